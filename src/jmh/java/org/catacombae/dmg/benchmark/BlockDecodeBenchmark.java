@@ -0,0 +1,84 @@
+package org.catacombae.dmg.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.catacombae.dmg.udif.Encoders;
+import org.catacombae.dmg.udif.UDIFBlock;
+import org.catacombae.dmg.udif.UDIFBlockInputStream;
+import org.catacombae.io.ReadableByteArrayStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+
+/**
+ * Decodes one chunk through {@link UDIFBlockInputStream}, per block type. Chunks are 1 MiB, the size hdiutil uses,
+ * except for LZFSE which decodes the 300000 byte test stream.<br>
+ * <code>readSize</code> 4096 reads through the stream's buffer, 1048576 lets the codecs that can decode straight
+ * into the caller's array.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BlockDecodeBenchmark {
+
+    @Param({"ZLIB", "BZIP2", "LZFSE", "COPY", "ZERO"})
+    public String blockType;
+
+    @Param({"4096", "1048576"})
+    public int readSize;
+
+    private byte[] image;
+    private UDIFBlock block;
+    private byte[] buffer;
+
+    @Setup
+    public void setup() {
+        byte[] data = Fixtures.createData(1024 * 1024, 1);
+        byte[] encoded;
+        int type;
+        switch (blockType) {
+            case "ZLIB" -> {
+                type = UDIFBlock.BT_ZLIB;
+                encoded = Encoders.deflate(data);
+            }
+            case "BZIP2" -> {
+                type = UDIFBlock.BT_BZIP2;
+                encoded = Encoders.bzip2(data);
+            }
+            case "LZFSE" -> {
+                type = UDIFBlock.BT_LZFSE;
+                byte[][] stream = Fixtures.lzfseStream();
+                encoded = stream[0];
+                data = stream[1];
+            }
+            case "COPY" -> {
+                type = UDIFBlock.BT_COPY;
+                encoded = data;
+            }
+            case "ZERO" -> {
+                type = UDIFBlock.BT_ZERO;
+                encoded = new byte[0];
+            }
+            default -> throw new IllegalArgumentException(blockType);
+        }
+        image = encoded;
+        block = new UDIFBlock(type, 0, 0, data.length, 0, encoded.length, 0, 0);
+        buffer = new byte[readSize];
+    }
+
+    @Benchmark
+    public void decode(ByteCounter counter) throws IOException {
+        try (UDIFBlockInputStream is = UDIFBlockInputStream.getStream(new ReadableByteArrayStream(image), block)) {
+            int bytesRead;
+            while ((bytesRead = is.read(buffer)) > 0)
+                counter.bytes += bytesRead;
+        }
+    }
+}
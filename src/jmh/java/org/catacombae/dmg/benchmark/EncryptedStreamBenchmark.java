@@ -0,0 +1,48 @@
+package org.catacombae.dmg.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.catacombae.dmg.encrypted.ReadableCEncryptedEncodingStream;
+import org.catacombae.io.ReadableByteArrayStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+
+/**
+ * Decrypts a generated 16 MiB AES-128 image with {@link ReadableCEncryptedEncodingStream}, in 64 KiB reads. The
+ * password is checked once in the setup, so only the decryption of the blocks is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class EncryptedStreamBenchmark {
+
+    private ReadableCEncryptedEncodingStream stream;
+    private final byte[] buffer = new byte[64 * 1024];
+
+    @Setup
+    public void setup() {
+        char[] password = "benchmark".toCharArray();
+        byte[] image = Fixtures.createEncryptedImage(Fixtures.createData(16 * 1024 * 1024, 1), password);
+        stream = new ReadableCEncryptedEncodingStream(new ReadableByteArrayStream(image), password);
+    }
+
+    @TearDown
+    public void tearDown() {
+        stream.close();
+    }
+
+    @Benchmark
+    public void decrypt(ByteCounter counter) {
+        stream.seek(0);
+        int bytesRead;
+        while ((bytesRead = stream.read(buffer)) > 0)
+            counter.bytes += bytesRead;
+    }
+}
@@ -0,0 +1,361 @@
+package org.catacombae.dmg.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.DESedeKeySpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.catacombae.dmg.udif.UDIFBlock;
+import org.catacombae.dmg.udif.UDIFBlockInputStream;
+import org.catacombae.dmg.udif.UDIFWriter;
+import org.catacombae.io.ReadableByteArrayStream;
+
+
+/**
+ * Generates the inputs of the benchmarks, so that they measure the same data on every machine and don't depend on
+ * images that aren't part of the source tree.<br>
+ * UDIF images are written by {@link UDIFWriter}. The other images are the smallest that the readers accept, laid
+ * out the way the readers expect them, and are not meant to be opened by anything else.
+ */
+public final class Fixtures {
+
+    private static final int SECTOR_SIZE = 512;
+
+    private Fixtures() {
+    }
+
+    /**
+     * Returns <code>size</code> bytes of data that compresses like the contents of a typical file: short runs of
+     * noise, of text and of zeros.
+     */
+    public static byte[] createData(int size, long seed) {
+        Random random = new Random(seed);
+        byte[] data = new byte[size];
+        int pos = 0;
+        while (pos < size) {
+            int run = Math.min(size - pos, 1 + random.nextInt(64 * 1024));
+            switch (random.nextInt(3)) {
+                case 0 -> {
+                    byte[] noise = new byte[run];
+                    random.nextBytes(noise);
+                    System.arraycopy(noise, 0, data, pos, run);
+                }
+                case 1 -> {
+                    for (int i = 0; i < run; ++i)
+                        data[pos + i] = (byte) ("The quick brown fox ".charAt(i % 20) + random.nextInt(2));
+                }
+                default -> {
+                    // zeros
+                }
+            }
+            pos += run;
+        }
+        return data;
+    }
+
+    /**
+     * Returns <code>size</code> bytes of data like the contents of a volume: {@link #createData(int, long)} with about
+     * a quarter of the MiBs zeroed as free space, which images store as BT_ZERO blocks or holes.
+     */
+    public static byte[] createVolumeData(int size, long seed) {
+        byte[] data = createData(size, seed);
+        Random random = new Random(~seed);
+        for (int pos = 0; pos < size; pos += 1024 * 1024) {
+            if (random.nextInt(4) == 0)
+                Arrays.fill(data, pos, Math.min(size, pos + 1024 * 1024), (byte) 0);
+        }
+        return data;
+    }
+
+    /**
+     * Returns an LZFSE stream and the data it decodes to. There is no LZFSE encoder in Java, so this is the stream
+     * that the unit tests use, made of 300000 bytes in LZFSE, LZVN and stored sub-blocks.
+     */
+    public static byte[][] lzfseStream() {
+        try (InputStream is = Fixtures.class.getResourceAsStream("/test.lzfse")) {
+            if (is == null)
+                throw new IllegalStateException("test.lzfse is not on the class path");
+            byte[] compressed = is.readAllBytes();
+            byte[] data = new byte[300000];
+            UDIFBlock block = new UDIFBlock(UDIFBlock.BT_LZFSE, 0, 0, data.length, 0, compressed.length, 0, 0);
+            try (InputStream decoder = UDIFBlockInputStream.getStream(new ReadableByteArrayStream(compressed),
+                    block)) {
+                if (decoder.readNBytes(data, 0, data.length) != data.length)
+                    throw new IllegalStateException("test.lzfse is truncated");
+            }
+            return new byte[][] {compressed, data};
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Builds an UDIF image holding <code>data</code> with {@link UDIFWriter}, in chunks of <code>chunkSize</code>
+     * bytes encoded as <code>blockType</code> (BT_ZLIB, BT_BZIP2 or BT_COPY).
+     */
+    public static byte[] createUdifImage(byte[] data, int blockType, int chunkSize) {
+        try {
+            ByteArrayOutputStream image = new ByteArrayOutputStream();
+            new UDIFWriter(blockType, chunkSize, Runtime.getRuntime().availableProcessors())
+                    .write(new ReadableByteArrayStream(data), image);
+            return image.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Builds the plist of an image with <code>partitionCount</code> partitions of <code>blocksPerPartition</code>
+     * BT_ZLIB blocks each, for measuring the parser. There is no data for the blocks.
+     */
+    public static byte[] createPlist(int partitionCount, int blocksPerPartition) {
+        byte[][] mishes = new byte[partitionCount][];
+        long inOffset = 0;
+        for (int i = 0; i < partitionCount; ++i) {
+            ByteBuffer mish = newMish((long) i * blocksPerPartition * 2048, blocksPerPartition * 2048L,
+                    blocksPerPartition + 1);
+            for (int j = 0; j < blocksPerPartition; ++j) {
+                putBlock(mish, UDIFBlock.BT_ZLIB, j * 1024L * 1024, 1024 * 1024, inOffset, 100000);
+                inOffset += 100000;
+            }
+            putBlock(mish, UDIFBlock.BT_END, blocksPerPartition * 1024L * 1024, 0, inOffset, 0);
+            mishes[i] = mish.array();
+        }
+        return createPlist(mishes);
+    }
+
+    private static ByteBuffer newMish(long firstSector, long sectorCount, int blockCount) {
+        ByteBuffer mish = ByteBuffer.allocate(0xCC + blockCount * UDIFBlock.structSize());
+        mish.put("mish".getBytes(StandardCharsets.US_ASCII));
+        mish.putInt(1); // version
+        mish.putLong(firstSector);
+        mish.putLong(sectorCount);
+        mish.position(0xC8);
+        mish.putInt(blockCount);
+        return mish;
+    }
+
+    private static void putBlock(ByteBuffer mish, int type, long outOffset, long outSize, long inOffset,
+                                 long inSize) {
+        mish.putInt(type);
+        mish.putInt(0);
+        mish.putLong(outOffset / SECTOR_SIZE);
+        mish.putLong((outSize + SECTOR_SIZE - 1) / SECTOR_SIZE);
+        mish.putLong(inOffset);
+        mish.putLong(inSize);
+    }
+
+    private static byte[] createPlist(byte[][] mishes) {
+        Base64.Encoder base64 = Base64.getMimeEncoder(52, new byte[] {'\n'});
+        StringBuilder sb = new StringBuilder();
+        sb.append("""
+                <?xml version="1.0" encoding="UTF-8"?>
+                <!DOCTYPE plist PUBLIC "-//Apple Computer//DTD PLIST 1.0//EN" \
+                "http://www.apple.com/DTDs/PropertyList-1.0.dtd">
+                <plist version="1.0">
+                <dict>
+                \t<key>resource-fork</key>
+                \t<dict>
+                \t\t<key>blkx</key>
+                \t\t<array>
+                """);
+        for (int i = 0; i < mishes.length; ++i) {
+            sb.append("\t\t\t<dict>\n");
+            sb.append("\t\t\t\t<key>Attributes</key>\n\t\t\t\t<string>0x0050</string>\n");
+            sb.append("\t\t\t\t<key>Data</key>\n\t\t\t\t<data>\n");
+            sb.append(base64.encodeToString(mishes[i])).append('\n');
+            sb.append("\t\t\t\t</data>\n");
+            sb.append("\t\t\t\t<key>ID</key>\n\t\t\t\t<string>").append(i - 1).append("</string>\n");
+            sb.append("\t\t\t\t<key>Name</key>\n\t\t\t\t<string>partition ").append(i).append("</string>\n");
+            sb.append("\t\t\t</dict>\n");
+        }
+        sb.append("\t\t</array>\n\t</dict>\n</dict>\n</plist>\n");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Builds a version 2 CEncryptedEncoding (AES-128) image of <code>data</code>, unlocked by
+     * <code>password</code>.
+     */
+    public static byte[] createEncryptedImage(byte[] data, char[] password) {
+        final int blockSize = 4096;
+        final int dataStart = 4096;
+        if (data.length % blockSize != 0)
+            throw new IllegalArgumentException("Size must be a multiple of " + blockSize);
+
+        try {
+            Random random = new Random(1);
+            byte[] aesKey = new byte[16];
+            byte[] hmacSha1Key = new byte[20];
+            byte[] salt = new byte[20];
+            byte[] blobIv = new byte[8];
+            random.nextBytes(aesKey);
+            random.nextBytes(hmacSha1Key);
+            random.nextBytes(salt);
+            random.nextBytes(blobIv);
+
+            // Wrap the keys with the key derived from the password.
+            PBEKeySpec pbeKey = new PBEKeySpec(password, salt, 1000, 192);
+            byte[] derivedKey = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1").generateSecret(pbeKey).getEncoded();
+            Cipher wrapCipher = Cipher.getInstance("DESede/CBC/PKCS5Padding");
+            wrapCipher.init(Cipher.ENCRYPT_MODE,
+                    SecretKeyFactory.getInstance("DESede").generateSecret(new DESedeKeySpec(derivedKey)),
+                    new IvParameterSpec(blobIv));
+            byte[] keys = new byte[aesKey.length + hmacSha1Key.length];
+            System.arraycopy(aesKey, 0, keys, 0, aesKey.length);
+            System.arraycopy(hmacSha1Key, 0, keys, aesKey.length, hmacSha1Key.length);
+            byte[] keyBlob = wrapCipher.doFinal(keys);
+
+            ByteBuffer image = ByteBuffer.allocate(dataStart + data.length);
+            image.put("encrcdsa".getBytes(StandardCharsets.US_ASCII));
+            image.putInt(2); // version
+            image.putInt(16);
+            image.putInt(5);
+            image.putInt(0x80000001);
+            image.putInt(aesKey.length * 8);
+            image.putInt(91);
+            image.putInt(160);
+            image.position(52);
+            image.putInt(blockSize);
+            image.putLong(data.length);
+            image.putLong(dataStart);
+            image.putInt(1); // number of keys
+            int keyOffset = 76 + 20;
+            int keyLength = 104 + keyBlob.length;
+            image.putInt(1); // user key
+            image.putLong(keyOffset);
+            image.putLong(keyLength);
+            image.putInt(103); // PBKDF2
+            image.putInt(0);
+            image.putInt(1000);
+            image.putInt(salt.length);
+            image.put(Arrays.copyOf(salt, 32));
+            image.putInt(blobIv.length);
+            image.put(Arrays.copyOf(blobIv, 32));
+            image.putInt(192);
+            image.putInt(17); // 3DES
+            image.putInt(7); // PKCS#7 padding
+            image.putInt(6); // CBC
+            image.putInt(keyBlob.length);
+            image.put(keyBlob);
+
+            // Each block is encrypted with an IV made from its number.
+            Mac hmacSha1 = Mac.getInstance("HmacSHA1");
+            hmacSha1.init(new SecretKeySpec(hmacSha1Key, "HmacSHA1"));
+            Cipher aes = Cipher.getInstance("AES/CBC/NoPadding");
+            SecretKeySpec aesKeySpec = new SecretKeySpec(aesKey, "AES");
+            for (int i = 0; i < data.length / blockSize; ++i) {
+                byte[] iv = Arrays.copyOf(hmacSha1.doFinal(ByteBuffer.allocate(4).putInt(i).array()), 16);
+                aes.init(Cipher.ENCRYPT_MODE, aesKeySpec, new IvParameterSpec(iv));
+                aes.doFinal(data, i * blockSize, blockSize, image.array(), dataStart + i * blockSize);
+            }
+            return image.array();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Builds a sparse image of <code>data</code> with blocks of <code>blockSize</code> bytes. Blocks of zeros are left
+     * out, and the others are stored in reverse order to make the block map matter.
+     */
+    public static byte[] createSparseImage(byte[] data, int blockSize) {
+        int blockCount = (data.length + blockSize - 1) / blockSize;
+        if (blockSize % SECTOR_SIZE != 0 || blockCount > 1008)
+            throw new IllegalArgumentException("Unsupported layout");
+
+        ByteArrayOutputStream blocks = new ByteArrayOutputStream();
+        ByteBuffer header = ByteBuffer.allocate(4096);
+        header.put("sprs".getBytes(StandardCharsets.US_ASCII));
+        header.putInt(3);
+        header.putInt(blockSize / SECTOR_SIZE);
+        header.putInt(1);
+        header.putInt(data.length / SECTOR_SIZE);
+        header.putInt(32, data.length / SECTOR_SIZE);
+        int physical = 0;
+        for (int virtual = blockCount - 1; virtual >= 0; --virtual) {
+            int pos = virtual * blockSize;
+            int len = Math.min(blockSize, data.length - pos);
+            if (isZero(data, pos, len))
+                continue;
+            header.putInt(64 + physical * 4, virtual + 1);
+            blocks.write(data, pos, len);
+            blocks.write(new byte[blockSize - len], 0, blockSize - len);
+            ++physical;
+        }
+
+        ByteArrayOutputStream image = new ByteArrayOutputStream();
+        image.writeBytes(header.array());
+        image.writeBytes(blocks.toByteArray());
+        return image.toByteArray();
+    }
+
+    /**
+     * Creates a sparse bundle of <code>data</code> with bands of <code>bandSize</code> bytes in the new directory
+     * <code>dir</code>. Bands of zeros are left out.
+     */
+    public static void createSparseBundle(Path dir, byte[] data, int bandSize) throws IOException {
+        Files.createDirectory(dir);
+        Path bands = Files.createDirectory(dir.resolve("bands"));
+        String info = """
+                <?xml version="1.0" encoding="UTF-8"?>
+                <!DOCTYPE plist PUBLIC "-//Apple//DTD PLIST 1.0//EN" "http://www.apple.com/DTDs/PropertyList-1.0.dtd">
+                <plist version="1.0">
+                <dict>
+                \t<key>CFBundleInfoDictionaryVersion</key>
+                \t<string>6.0</string>
+                \t<key>band-size</key>
+                \t<integer>%d</integer>
+                \t<key>bundle-backingstore-version</key>
+                \t<integer>1</integer>
+                \t<key>diskimage-bundle-type</key>
+                \t<string>com.apple.diskimage.sparsebundle</string>
+                \t<key>size</key>
+                \t<integer>%d</integer>
+                </dict>
+                </plist>
+                """.formatted(bandSize, data.length);
+        Files.writeString(dir.resolve("Info.plist"), info);
+        Files.writeString(dir.resolve("Info.bckup"), info);
+        Files.write(dir.resolve("token"), new byte[0]);
+        for (int pos = 0, band = 0; pos < data.length; pos += bandSize, ++band) {
+            int len = Math.min(bandSize, data.length - pos);
+            if (!isZero(data, pos, len))
+                Files.write(bands.resolve(Integer.toHexString(band)), Arrays.copyOfRange(data, pos, pos + len));
+        }
+    }
+
+    /** Deletes what {@link #createSparseBundle(Path, byte[], int)} created. */
+    public static void deleteSparseBundle(Path dir) throws IOException {
+        try (var bands = Files.list(dir.resolve("bands"))) {
+            for (Path band : bands.toList())
+                Files.delete(band);
+        }
+        for (String name : new String[] {"bands", "Info.plist", "Info.bckup", "token"})
+            Files.deleteIfExists(dir.resolve(name));
+        Files.delete(dir);
+    }
+
+    private static boolean isZero(byte[] data, int off, int len) {
+        for (int i = off; i < off + len; ++i) {
+            if (data[i] != 0)
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,43 @@
+package org.catacombae.dmg.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.catacombae.dmg.udif.Plist;
+import org.catacombae.dmg.udif.PlistPartition;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+
+/**
+ * Parses the block tables of an image with {@link Plist#getPartitions()}, against the number of blocks. An image
+ * of 1 MiB chunks has about 1000 blocks per GiB, so the largest plist is that of a 100 GiB image.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PlistBenchmark {
+
+    private static final int PARTITION_COUNT = 4;
+
+    @Param({"1000", "10000", "100000"})
+    public int blockCount;
+
+    private byte[] plistData;
+
+    @Setup
+    public void setup() {
+        plistData = Fixtures.createPlist(PARTITION_COUNT, blockCount / PARTITION_COUNT);
+    }
+
+    @Benchmark
+    public PlistPartition[] getPartitions() throws IOException {
+        return new Plist(plistData).getPartitions();
+    }
+}
@@ -0,0 +1,71 @@
+package org.catacombae.dmg.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.catacombae.dmg.udif.UDIFBlock;
+import org.catacombae.dmg.udif.UDIFRandomAccessStream;
+import org.catacombae.io.ReadableByteArrayStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+
+/**
+ * Reads a generated 16 MiB image through {@link UDIFRandomAccessStream}, from memory so that the numbers are about
+ * decoding and block lookup rather than the disk.<br>
+ * {@link #sequential} reads the whole image in 64 KiB reads. {@link #random} does one 4 KiB read at a random offset,
+ * which finds its block in the default 8 MiB block cache about half of the time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class UDIFRandomAccessStreamBenchmark {
+
+    private static final int IMAGE_SIZE = 16 * 1024 * 1024;
+
+    @Param({"ZLIB", "BZIP2", "COPY"})
+    public String blockType;
+
+    private UDIFRandomAccessStream stream;
+    private final byte[] sequentialBuffer = new byte[64 * 1024];
+    private final byte[] randomBuffer = new byte[4096];
+    private final Random random = new Random(1);
+
+    @Setup
+    public void setup() {
+        int type = switch (blockType) {
+            case "ZLIB" -> UDIFBlock.BT_ZLIB;
+            case "BZIP2" -> UDIFBlock.BT_BZIP2;
+            case "COPY" -> UDIFBlock.BT_COPY;
+            default -> throw new IllegalArgumentException(blockType);
+        };
+        byte[] image = Fixtures.createUdifImage(Fixtures.createVolumeData(IMAGE_SIZE, 1), type, 1024 * 1024);
+        stream = new UDIFRandomAccessStream(new ReadableByteArrayStream(image));
+    }
+
+    @TearDown
+    public void tearDown() {
+        stream.close();
+    }
+
+    @Benchmark
+    public void sequential(ByteCounter counter) {
+        stream.seek(0);
+        int bytesRead;
+        while ((bytesRead = stream.read(sequentialBuffer)) > 0)
+            counter.bytes += bytesRead;
+    }
+
+    @Benchmark
+    public void random(ByteCounter counter) {
+        stream.seek(random.nextInt(IMAGE_SIZE / randomBuffer.length) * (long) randomBuffer.length);
+        counter.bytes += stream.read(randomBuffer);
+    }
+}
@@ -25,7 +25,8 @@ import java.lang.System.Logger;
 import java.lang.System.Logger.Level;
 import java.nio.channels.FileLock;
 
-import org.catacombae.io.ReadableFileStream;
+import org.catacombae.dmgextractor.io.ConcurrentReadableRandomAccessStream;
+import org.catacombae.dmgextractor.io.ReadableFileChannelStream;
 import org.catacombae.io.ReadableRandomAccessStream;
 import org.catacombae.io.ReadableRandomAccessSubstream;
 import org.catacombae.io.RuntimeIOException;
@@ -322,7 +323,7 @@ class SparseBundle {
                 try {
                     newRaf = new RandomAccessFile(f, "r");
                     newRafSyncStream =
-                            new SynchronizedReadableRandomAccessStream(new ReadableFileStream(newRaf, f.getPath()));
+                            ConcurrentReadableRandomAccessStream.of(new ReadableFileChannelStream(newRaf, f.getPath()));
                 } catch (FileNotFoundException ex) {
                     throw new RuntimeIOException(ex);
                 } catch (RuntimeException ex) {
@@ -0,0 +1,471 @@
+package org.catacombae.dmg.udif;
+
+import java.util.Arrays;
+
+import org.catacombae.dmgextractor.DmgException;
+
+
+/**
+ * A bzip2 decoder working on compressed data that is already in memory, which is how the data of a BT_BZIP2 block is
+ * read.<br>
+ * Huffman codes up to {@link #LOOKUP_BITS} bits long, which is nearly all of them, are decoded with a single table
+ * lookup, and the inverse BWT follows the linked list through one <code>int</code> array, like the fast mode of the
+ * reference implementation. Block and stream CRCs are verified. Concatenated streams are decoded one after another.
+ * <br>
+ * Blocks using the "randomised" mode, which no bzip2 since 0.9.5 writes, are not supported.
+ */
+final class Bzip2Decoder {
+
+    private static final int LOOKUP_BITS = 10;
+    private static final int MAX_CODE_LENGTH = 20;
+    private static final int MAX_GROUPS = 6;
+    private static final int GROUP_SIZE = 50;
+    private static final int MAX_SELECTORS = 18002;
+    private static final int RUNA = 0;
+    private static final int RUNB = 1;
+
+    private static final long BLOCK_MAGIC = 0x314159265359L;
+    private static final long END_OF_STREAM_MAGIC = 0x177245385090L;
+
+    private static final int[] CRC_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; ++i) {
+            int c = i << 24;
+            for (int j = 0; j < 8; ++j)
+                c = c < 0 ? (c << 1) ^ 0x04c11db7 : c << 1;
+            CRC_TABLE[i] = c;
+        }
+    }
+
+    private final byte[] data;
+    private final int end;
+    private int pos;
+    private long bitBuffer = 0;
+    private int bitCount = 0;
+
+    private int blockSize;
+    /** The decoded block. The low byte of each entry is a symbol, the rest the index of the next entry. */
+    private int[] tt = null;
+    private boolean finished = false;
+    private int computedStreamCrc;
+
+    // Per block state
+    private boolean inBlock = false;
+    private int blockCrc;
+    private int computedBlockCrc;
+    private int tPos;
+    private int bytesLeftInBlock = 0;
+    private int lastByte = -1;
+    private int runLength = 0;
+    private int repeatsLeft = 0;
+
+    // Scratch space for decoding block headers, kept across blocks
+    private final byte[] seqToUnseq = new byte[256];
+    private final byte[] selectors = new byte[MAX_SELECTORS];
+    private final byte[][] codeLengths = new byte[MAX_GROUPS][258];
+    private final HuffmanTable[] tables = new HuffmanTable[MAX_GROUPS];
+    private final int[] charCounts = new int[256];
+    private final int[] cftab = new int[256];
+    private final byte[] mtf = new byte[256];
+
+    /**
+     * @param data the compressed data, starting with the "BZh" stream header.
+     */
+    Bzip2Decoder(byte[] data, int off, int len) {
+        this.data = data;
+        this.pos = off;
+        this.end = off + len;
+        for (int i = 0; i < MAX_GROUPS; ++i)
+            tables[i] = new HuffmanTable();
+        readStreamHeader();
+    }
+
+    /** Gives the tables of this decoder back to the {@link DecoderPool}. The decoder can't be used afterwards. */
+    void release() {
+        if (tt != null) {
+            DecoderPool.releaseBzip2Table(tt);
+            tt = null;
+        }
+    }
+
+    /** Returns whether all streams have been decoded. */
+    boolean finished() {
+        return finished;
+    }
+
+    /**
+     * Decodes up to <code>len</code> bytes into <code>b</code>.
+     *
+     * @return the number of bytes decoded. Less than <code>len</code> only at the end of the data.
+     * @throws DmgException if the data is corrupt.
+     */
+    int read(byte[] b, int off, int len) {
+        int bytesDecoded = 0;
+        while (bytesDecoded < len) {
+            if (repeatsLeft > 0) {
+                int n = Math.min(repeatsLeft, len - bytesDecoded);
+                Arrays.fill(b, off + bytesDecoded, off + bytesDecoded + n, (byte) lastByte);
+                int crc = computedBlockCrc;
+                for (int i = 0; i < n; ++i)
+                    crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ lastByte) & 0xff];
+                computedBlockCrc = crc;
+                repeatsLeft -= n;
+                bytesDecoded += n;
+                continue;
+            }
+            if (bytesLeftInBlock == 0) {
+                if (finished || !nextBlock())
+                    break;
+                continue;
+            }
+            bytesDecoded += decodeRun(b, off + bytesDecoded, len - bytesDecoded);
+        }
+        return bytesDecoded;
+    }
+
+    /**
+     * Undoes the BWT and the initial run length encoding until <code>len</code> bytes have been produced, the block
+     * ends or a repeat count is reached.
+     */
+    private int decodeRun(byte[] b, int off, int len) {
+        // Keep the hot state in locals.
+        int[] tt = this.tt;
+        int tPos = this.tPos;
+        int left = bytesLeftInBlock;
+        int last = lastByte;
+        int run = runLength;
+        int crc = computedBlockCrc;
+        int n = 0;
+        while (n < len && left > 0) {
+            int entry = tt[tPos];
+            tPos = entry >>> 8;
+            int c = entry & 0xff;
+            --left;
+            if (run == 4) {
+                // The fifth byte of a run is the number of further repeats.
+                repeatsLeft = c;
+                run = 0;
+                break;
+            }
+            if (c == last) {
+                ++run;
+            } else {
+                run = 1;
+                last = c;
+            }
+            b[off + n++] = (byte) c;
+            crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ c) & 0xff];
+        }
+        this.tPos = tPos;
+        bytesLeftInBlock = left;
+        lastByte = last;
+        runLength = run;
+        computedBlockCrc = crc;
+        return n;
+    }
+
+    private void readStreamHeader() {
+        if (bits(8) != 'B' || bits(8) != 'Z' || bits(8) != 'h')
+            throw new DmgException("Invalid bzip2 stream header");
+        int level = bits(8) - '0';
+        if (level < 1 || level > 9)
+            throw new DmgException("Invalid bzip2 block size: " + level);
+        blockSize = level * 100000;
+        if (tt == null || tt.length < blockSize) {
+            if (tt != null)
+                DecoderPool.releaseBzip2Table(tt);
+            tt = DecoderPool.acquireBzip2Table(blockSize);
+        }
+        computedStreamCrc = 0;
+    }
+
+    /**
+     * Finishes the current block and decodes the next one.
+     *
+     * @return false if there are no more blocks.
+     */
+    private boolean nextBlock() {
+        if (inBlock) {
+            int crc = ~computedBlockCrc;
+            if (crc != blockCrc)
+                throw new DmgException("bzip2 block CRC mismatch");
+            computedStreamCrc = ((computedStreamCrc << 1) | (computedStreamCrc >>> 31)) ^ crc;
+            inBlock = false;
+        }
+
+        while (true) {
+            long magic = ((long) bits(24) << 24) | bits(24);
+            if (magic == BLOCK_MAGIC)
+                break;
+            if (magic != END_OF_STREAM_MAGIC)
+                throw new DmgException("Invalid bzip2 block header");
+
+            int streamCrc = (bits(16) << 16) | bits(16);
+            if (streamCrc != computedStreamCrc)
+                throw new DmgException("bzip2 stream CRC mismatch");
+            // Streams end on a byte boundary. Another one may follow.
+            skipToByteBoundary();
+            if (end - pos < 4 || data[pos] != 'B' || data[pos + 1] != 'Z' || data[pos + 2] != 'h') {
+                finished = true;
+                return false;
+            }
+            readStreamHeader();
+        }
+
+        blockCrc = (bits(16) << 16) | bits(16);
+        if (bits(1) != 0)
+            throw new DmgException("Randomised bzip2 blocks are not supported");
+        int origPtr = bits(24);
+        int blockLength = decodeBlock();
+        if (origPtr >= blockLength)
+            throw new DmgException("Invalid bzip2 block origin pointer");
+
+        // Inverse BWT: link every position to the next one in the original order.
+        int[] tt = this.tt;
+        int[] cftab = this.cftab;
+        for (int i = 0, sum = 0; i < 256; ++i) {
+            cftab[i] = sum;
+            sum += charCounts[i];
+        }
+        for (int i = 0; i < blockLength; ++i) {
+            int c = tt[i] & 0xff;
+            tt[cftab[c]++] |= i << 8;
+        }
+
+        tPos = tt[origPtr] >>> 8;
+        bytesLeftInBlock = blockLength;
+        lastByte = -1;
+        runLength = 0;
+        computedBlockCrc = -1;
+        inBlock = true;
+        return true;
+    }
+
+    /** Decodes the Huffman and MTF coded symbols of a block into {@link #tt}. Returns the length of the block. */
+    private int decodeBlock() {
+        // Symbol map
+        int inUseCount = 0;
+        int inUse16 = bits(16);
+        for (int i = 0; i < 16; ++i) {
+            if ((inUse16 & (0x8000 >>> i)) != 0) {
+                int inUse = bits(16);
+                for (int j = 0; j < 16; ++j) {
+                    if ((inUse & (0x8000 >>> j)) != 0)
+                        seqToUnseq[inUseCount++] = (byte) (i * 16 + j);
+                }
+            }
+        }
+        if (inUseCount == 0)
+            throw new DmgException("bzip2 block uses no symbols");
+        int alphaSize = inUseCount + 2;
+        int endOfBlock = inUseCount + 1;
+
+        // Selectors
+        int groupCount = bits(3);
+        if (groupCount < 2 || groupCount > MAX_GROUPS)
+            throw new DmgException("Invalid number of bzip2 Huffman groups: " + groupCount);
+        int selectorCount = bits(15);
+        if (selectorCount < 1)
+            throw new DmgException("Invalid number of bzip2 selectors");
+        byte[] selectorMtf = {0, 1, 2, 3, 4, 5};
+        for (int i = 0; i < selectorCount; ++i) {
+            int j = 0;
+            while (bits(1) != 0) {
+                if (++j >= groupCount)
+                    throw new DmgException("Invalid bzip2 selector");
+            }
+            byte selector = selectorMtf[j];
+            System.arraycopy(selectorMtf, 0, selectorMtf, 1, j);
+            selectorMtf[0] = selector;
+            // Some encoders write more selectors than can be used, the extra ones are ignored.
+            if (i < MAX_SELECTORS)
+                selectors[i] = selector;
+        }
+        selectorCount = Math.min(selectorCount, MAX_SELECTORS);
+
+        // Code lengths, delta coded
+        for (int t = 0; t < groupCount; ++t) {
+            byte[] lengths = codeLengths[t];
+            int length = bits(5);
+            for (int i = 0; i < alphaSize; ++i) {
+                while (true) {
+                    if (length < 1 || length > MAX_CODE_LENGTH)
+                        throw new DmgException("Invalid bzip2 code length: " + length);
+                    if (bits(1) == 0)
+                        break;
+                    length += bits(1) == 0 ? 1 : -1;
+                }
+                lengths[i] = (byte) length;
+            }
+            tables[t].build(lengths, alphaSize);
+        }
+
+        // Symbols
+        int[] tt = this.tt;
+        int[] charCounts = this.charCounts;
+        byte[] mtf = this.mtf;
+        Arrays.fill(charCounts, 0);
+        for (int i = 0; i < 256; ++i)
+            mtf[i] = (byte) i;
+
+        int blockLength = 0;
+        int groupIndex = 0;
+        int groupLeft = 0;
+        HuffmanTable table = null;
+        int runLength = 0;
+        int runWeight = 1;
+        while (true) {
+            if (groupLeft == 0) {
+                if (groupIndex >= selectorCount)
+                    throw new DmgException("bzip2 block has too few selectors");
+                table = tables[selectors[groupIndex++]];
+                groupLeft = GROUP_SIZE;
+            }
+            --groupLeft;
+            int symbol = decodeSymbol(table);
+
+            if (symbol <= RUNB) {
+                // A run of the front symbol, with the length in bijective base 2.
+                runLength += runWeight << symbol;
+                runWeight <<= 1;
+                if (runLength > blockSize)
+                    throw new DmgException("bzip2 block too long");
+                continue;
+            }
+            if (runLength > 0) {
+                byte c = seqToUnseq[mtf[0] & 0xff];
+                if (blockLength + runLength > blockSize)
+                    throw new DmgException("bzip2 block too long");
+                charCounts[c & 0xff] += runLength;
+                Arrays.fill(tt, blockLength, blockLength + runLength, c & 0xff);
+                blockLength += runLength;
+                runLength = 0;
+                runWeight = 1;
+            }
+            if (symbol == endOfBlock)
+                break;
+
+            if (blockLength >= blockSize)
+                throw new DmgException("bzip2 block too long");
+            int index = symbol - 1;
+            if (index >= inUseCount)
+                throw new DmgException("Invalid bzip2 symbol: " + symbol);
+            byte front = mtf[index];
+            System.arraycopy(mtf, 0, mtf, 1, index);
+            mtf[0] = front;
+            int c = seqToUnseq[front & 0xff] & 0xff;
+            ++charCounts[c];
+            tt[blockLength++] = c;
+        }
+        return blockLength;
+    }
+
+    private int decodeSymbol(HuffmanTable table) {
+        if (bitCount < MAX_CODE_LENGTH)
+            refill();
+        int entry = table.lookup[peek(LOOKUP_BITS)];
+        if (entry != 0) {
+            consume(entry & 0x1f);
+            return entry >>> 5;
+        }
+        // A code longer than the lookup table.
+        for (int length = LOOKUP_BITS + 1; length <= table.maxLength; ++length) {
+            int code = peek(length) - table.firstCode[length];
+            if (code >= 0 && code < table.counts[length]) {
+                consume(length);
+                return table.symbols[table.firstIndex[length] + code];
+            }
+        }
+        throw new DmgException("Invalid bzip2 Huffman code");
+    }
+
+    /** Tops up the bit buffer to at least 56 bits, or as far as the data goes. */
+    private void refill() {
+        while (bitCount <= 56) {
+            if (pos < end) {
+                bitBuffer = (bitBuffer << 8) | (data[pos++] & 0xff);
+                bitCount += 8;
+            } else {
+                return;
+            }
+        }
+    }
+
+    /** Returns the next <code>n</code> bits without consuming them, padded with zeros past the end of the data. */
+    private int peek(int n) {
+        if (bitCount >= n)
+            return (int) (bitBuffer >>> (bitCount - n)) & ((1 << n) - 1);
+        return (int) (bitBuffer << (n - bitCount)) & ((1 << n) - 1);
+    }
+
+    private void consume(int n) {
+        if (n > bitCount)
+            throw new DmgException("Unexpected end of bzip2 data");
+        bitCount -= n;
+    }
+
+    /** Reads <code>n</code> bits, at most 24. */
+    private int bits(int n) {
+        if (bitCount < n)
+            refill();
+        int value = peek(n);
+        consume(n);
+        return value;
+    }
+
+    private void skipToByteBoundary() {
+        bitCount -= bitCount % 8;
+        // Give back whole bytes that are still buffered.
+        pos -= bitCount / 8;
+        bitCount = 0;
+        bitBuffer = 0;
+    }
+
+    /** A canonical Huffman code, decoded by table lookup for short codes and by length for the rest. */
+    private static final class HuffmanTable {
+
+        /** Indexed by the next {@link #LOOKUP_BITS} bits: symbol << 5 | code length, or 0 for longer codes. */
+        final short[] lookup = new short[1 << LOOKUP_BITS];
+        final int[] counts = new int[MAX_CODE_LENGTH + 1];
+        final int[] firstCode = new int[MAX_CODE_LENGTH + 1];
+        final int[] firstIndex = new int[MAX_CODE_LENGTH + 1];
+        /** The symbols ordered by code length, then by value. */
+        final int[] symbols = new int[258];
+        int maxLength;
+
+        void build(byte[] lengths, int alphaSize) {
+            Arrays.fill(counts, 0);
+            maxLength = 0;
+            for (int i = 0; i < alphaSize; ++i) {
+                ++counts[lengths[i]];
+                maxLength = Math.max(maxLength, lengths[i]);
+            }
+
+            int code = 0;
+            int index = 0;
+            for (int length = 1; length <= MAX_CODE_LENGTH; ++length) {
+                firstCode[length] = code;
+                firstIndex[length] = index;
+                code = (code + counts[length]) << 1;
+                index += counts[length];
+            }
+            if (firstCode[MAX_CODE_LENGTH] + counts[MAX_CODE_LENGTH] > 1 << MAX_CODE_LENGTH)
+                throw new DmgException("Oversubscribed bzip2 Huffman code");
+
+            int[] nextIndex = Arrays.copyOf(firstIndex, firstIndex.length);
+            for (int i = 0; i < alphaSize; ++i)
+                symbols[nextIndex[lengths[i]]++] = i;
+
+            Arrays.fill(lookup, (short) 0);
+            for (int length = 1; length <= LOOKUP_BITS; ++length) {
+                for (int i = 0; i < counts[length]; ++i) {
+                    int symbol = symbols[firstIndex[length] + i];
+                    int shift = LOOKUP_BITS - length;
+                    int start = (firstCode[length] + i) << shift;
+                    Arrays.fill(lookup, start, start + (1 << shift), (short) (symbol << 5 | length));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package org.catacombae.dmg.udif;
+
+import java.util.ArrayDeque;
+import java.util.zip.Inflater;
+
+
+/**
+ * Per-thread free lists of the objects that block streams need for decoding, so that opening a block stream (which
+ * {@link UDIFRandomAccessStream} does on every seek) doesn't allocate anything once the pools are warm.<br>
+ * Objects are taken from the pool of the calling thread and given back to the pool of the thread that releases them.
+ * Each pool keeps at most {@link #MAX_POOLED} objects of a kind. Inflaters beyond that are ended right away, so the
+ * native zlib memory in use stays bounded by the number of streams that are actually open. The large objects, input
+ * buffers and bzip2 tables, are only kept up to {@link #MAX_POOLED_BYTES} per thread, since a pool lives as long as
+ * its thread. Objects that are not kept, or never released, are simply left to the garbage collector.
+ */
+final class DecoderPool {
+
+    /** The size of the output buffer of every block stream. */
+    static final int BUFFER_SIZE = 16384;
+    /** The size of the smaller buffers, used for skipping and for feeding the inflater. */
+    static final int SMALL_BUFFER_SIZE = 4096;
+
+    /**
+     * The largest compressed block that is read into memory in one piece. Blocks made by hdiutil are far smaller, this
+     * only keeps a damaged block table from making us allocate gigabytes.
+     */
+    static final int MAX_INPUT_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    private static final int MAX_POOLED = 4;
+
+    /**
+     * The most bytes of input buffers and bzip2 tables that the pool of a thread keeps: room for the table of a bzip2
+     * block of the largest size (900k entries) and the input buffer of a chunk.
+     */
+    static final long MAX_POOLED_BYTES = 8 * 1024 * 1024;
+
+    private static final ThreadLocal<DecoderPool> pools = ThreadLocal.withInitial(DecoderPool::new);
+
+    private final ArrayDeque<Inflater> inflaters = new ArrayDeque<>();
+    private final ArrayDeque<byte[]> buffers = new ArrayDeque<>();
+    private final ArrayDeque<byte[]> smallBuffers = new ArrayDeque<>();
+    private final ArrayDeque<byte[]> inputBuffers = new ArrayDeque<>();
+    private final ArrayDeque<int[]> bzip2Tables = new ArrayDeque<>();
+    /** The size of the input buffers and bzip2 tables in the pool, in bytes. */
+    private long pooledBytes;
+
+    private DecoderPool() {
+    }
+
+    /** Returns an inflater in its initial state. */
+    static Inflater acquireInflater() {
+        Inflater inflater = pools.get().inflaters.poll();
+        return inflater != null ? inflater : new Inflater();
+    }
+
+    static void releaseInflater(Inflater inflater) {
+        ArrayDeque<Inflater> pool = pools.get().inflaters;
+        if (pool.size() < MAX_POOLED) {
+            inflater.reset();
+            pool.push(inflater);
+        } else {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Returns a buffer of {@link #BUFFER_SIZE} or {@link #SMALL_BUFFER_SIZE} bytes. Its contents are undefined.
+     */
+    static byte[] acquireBuffer(int size) {
+        byte[] buffer = pool(size).poll();
+        return buffer != null ? buffer : new byte[size];
+    }
+
+    static void releaseBuffer(byte[] buffer) {
+        ArrayDeque<byte[]> pool = pool(buffer.length);
+        if (pool.size() < MAX_POOLED)
+            pool.push(buffer);
+    }
+
+    /**
+     * Returns a buffer of at least <code>size</code> bytes for compressed input, or for a decoded LZFSE block.
+     * <code>size</code> may not be larger than {@link #MAX_INPUT_BUFFER_SIZE}. Its contents are undefined.
+     */
+    static byte[] acquireInputBuffer(int size) {
+        if (size > MAX_INPUT_BUFFER_SIZE)
+            throw new IllegalArgumentException("Input buffer too large: " + size);
+        DecoderPool pools = DecoderPool.pools.get();
+        for (byte[] buffer : pools.inputBuffers) {
+            if (buffer.length >= size) {
+                pools.inputBuffers.removeFirstOccurrence(buffer);
+                pools.pooledBytes -= buffer.length;
+                return buffer;
+            }
+        }
+        // Round up so that a buffer can be reused for the slightly larger blocks that come after it.
+        return new byte[Math.min(Integer.highestOneBit(Math.max(size, SMALL_BUFFER_SIZE) - 1) << 1,
+                MAX_INPUT_BUFFER_SIZE)];
+    }
+
+    static void releaseInputBuffer(byte[] buffer) {
+        DecoderPool pools = DecoderPool.pools.get();
+        if (pools.inputBuffers.size() < MAX_POOLED && pools.reserve(buffer.length))
+            pools.inputBuffers.push(buffer);
+    }
+
+    /** Returns a table for the inverse BWT of bzip2 blocks, at least <code>size</code> entries long. */
+    static int[] acquireBzip2Table(int size) {
+        DecoderPool pools = DecoderPool.pools.get();
+        for (int[] table : pools.bzip2Tables) {
+            if (table.length >= size) {
+                pools.bzip2Tables.removeFirstOccurrence(table);
+                pools.pooledBytes -= 4L * table.length;
+                return table;
+            }
+        }
+        return new int[size];
+    }
+
+    static void releaseBzip2Table(int[] table) {
+        DecoderPool pools = DecoderPool.pools.get();
+        if (pools.bzip2Tables.size() < MAX_POOLED && pools.reserve(4L * table.length))
+            pools.bzip2Tables.push(table);
+    }
+
+    /** Counts <code>bytes</code> more as pooled, if they fit in {@link #MAX_POOLED_BYTES}. */
+    private boolean reserve(long bytes) {
+        if (pooledBytes + bytes > MAX_POOLED_BYTES)
+            return false;
+        pooledBytes += bytes;
+        return true;
+    }
+
+    /** Returns the size of the input buffers and bzip2 tables in the pool of the calling thread. */
+    static long pooledBytes() {
+        return pools.get().pooledBytes;
+    }
+
+    private static ArrayDeque<byte[]> pool(int size) {
+        DecoderPool pools = DecoderPool.pools.get();
+        return switch (size) {
+            case BUFFER_SIZE -> pools.buffers;
+            case SMALL_BUFFER_SIZE -> pools.smallBuffers;
+            default -> throw new IllegalArgumentException("No pool for buffers of " + size + " bytes");
+        };
+    }
+}
@@ -0,0 +1,424 @@
+package org.catacombae.dmg.udif;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+
+/**
+ * A raw DEFLATE (RFC 1951) decoder working on an in-memory buffer.<br>
+ * Unlike {@link java.util.zip.Inflater}, this decoder can start at any bit position of a stream given the 32 KiB of
+ * output preceding that position, and it reports when it sits at a block boundary. This is what
+ * {@link ZlibCheckpointIndex} needs to record checkpoints and to resume decoding from them.
+ */
+class DeflateDecoder {
+
+    static final int WINDOW_SIZE = 32768;
+    private static final int WINDOW_MASK = WINDOW_SIZE - 1;
+
+    private static final int[] LENGTH_BASE = {
+            3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31, 35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195,
+            227, 258
+    };
+    private static final int[] LENGTH_EXTRA = {
+            0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0
+    };
+    private static final int[] DIST_BASE = {
+            1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193, 257, 385, 513, 769, 1025, 1537, 2049, 3073,
+            4097, 6145, 8193, 12289, 16385, 24577
+    };
+    private static final int[] DIST_EXTRA = {
+            0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13
+    };
+    private static final int[] CODE_LENGTH_ORDER = {
+            16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15
+    };
+
+    private static final Huffman FIXED_LITERALS;
+    private static final Huffman FIXED_DISTANCES;
+
+    static {
+        byte[] lengths = new byte[288];
+        Arrays.fill(lengths, 0, 144, (byte) 8);
+        Arrays.fill(lengths, 144, 256, (byte) 9);
+        Arrays.fill(lengths, 256, 280, (byte) 7);
+        Arrays.fill(lengths, 280, 288, (byte) 8);
+        FIXED_LITERALS = new Huffman(288);
+        FIXED_DISTANCES = new Huffman(30);
+        try {
+            FIXED_LITERALS.build(lengths, 0, 288);
+            Arrays.fill(lengths, 0, 30, (byte) 5);
+            FIXED_DISTANCES.build(lengths, 0, 30);
+        } catch (DataFormatException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private enum State {HEADER, STORED, HUFFMAN, DONE}
+
+    private final byte[] in;
+    private final int inEnd;
+    private int inPos;
+    private long bitBuffer = 0;
+    private int bitCount = 0;
+
+    private final byte[] window = new byte[WINDOW_SIZE];
+    private int windowPos = 0;
+    /** Number of valid bytes of history in the window. */
+    private int windowFill = 0;
+    private long totalOut;
+
+    private State state = State.HEADER;
+    private boolean lastBlock = false;
+    private int storedRemaining;
+    private int copyLength = 0;
+    private int copyDistance;
+    private Huffman literals;
+    private Huffman distances;
+    private Huffman dynamicLiterals;
+    private Huffman dynamicDistances;
+
+    /**
+     * Creates a decoder for the raw DEFLATE stream starting at <code>in[off]</code>.
+     *
+     * @param in  the compressed data.
+     * @param off the position of the first byte of the DEFLATE stream.
+     * @param len the number of bytes of compressed data available.
+     */
+    DeflateDecoder(byte[] in, int off, int len) {
+        this.in = in;
+        this.inPos = off;
+        this.inEnd = off + len;
+        this.totalOut = 0;
+    }
+
+    /**
+     * Creates a decoder that resumes a DEFLATE stream at a block boundary.
+     *
+     * @param in        the compressed data, starting with the byte that contains the first bit of the block.
+     * @param off       the position of that byte in <code>in</code>.
+     * @param len       the number of bytes of compressed data available.
+     * @param bitOffset the position of the first bit of the block in its byte (0-7).
+     * @param history   the output preceding the block (at most {@link #WINDOW_SIZE} bytes are used).
+     * @param totalOut  the number of bytes the stream had produced before the block.
+     */
+    DeflateDecoder(byte[] in, int off, int len, int bitOffset, byte[] history, long totalOut) {
+        this(in, off, len);
+        this.totalOut = totalOut;
+        if (bitOffset != 0) {
+            bitBuffer = (in[inPos++] & 0xFF) >>> bitOffset;
+            bitCount = 8 - bitOffset;
+        }
+        int historyLength = Math.min(history.length, WINDOW_SIZE);
+        System.arraycopy(history, history.length - historyLength, window, 0, historyLength);
+        windowPos = historyLength & WINDOW_MASK;
+        windowFill = historyLength;
+    }
+
+    /** Returns true when the decoder has consumed the final block of the stream. */
+    boolean finished() {
+        return state == State.DONE;
+    }
+
+    /** Returns true if the decoder is positioned at the start of a block (or at the end of the stream). */
+    boolean atBlockBoundary() {
+        return state == State.HEADER || state == State.DONE;
+    }
+
+    /** The position of the next unread bit, counted from the start of the DEFLATE stream. */
+    long getBitPosition(int streamOffset) {
+        return (long) (inPos - streamOffset) * 8 - bitCount;
+    }
+
+    long getTotalOut() {
+        return totalOut;
+    }
+
+    /** Returns a copy of the last (at most {@link #WINDOW_SIZE}) bytes of output, oldest first. */
+    byte[] getHistory() {
+        byte[] history = new byte[windowFill];
+        int start = (windowPos - windowFill) & WINDOW_MASK;
+        int firstPart = Math.min(windowFill, WINDOW_SIZE - start);
+        System.arraycopy(window, start, history, 0, firstPart);
+        System.arraycopy(window, 0, history, firstPart, windowFill - firstPart);
+        return history;
+    }
+
+    /**
+     * Decodes up to <code>len</code> bytes into <code>out</code>. Decoding stops early at the end of each block so
+     * that the caller can observe block boundaries.
+     *
+     * @return the number of bytes decoded, 0 only if the stream is finished (or <code>len</code> is 0).
+     */
+    int inflate(byte[] out, int off, int len) throws DataFormatException {
+        int produced = 0;
+        while (produced < len) {
+            switch (state) {
+                case HEADER -> {
+                    if (produced > 0)
+                        return produced;
+                    readBlockHeader();
+                }
+                case STORED -> {
+                    int n = Math.min(storedRemaining, len - produced);
+                    copyStored(out, off + produced, n);
+                    produced += n;
+                    storedRemaining -= n;
+                    if (storedRemaining == 0)
+                        state = lastBlock ? State.DONE : State.HEADER;
+                }
+                case HUFFMAN -> produced += inflateHuffman(out, off + produced, len - produced);
+                case DONE -> {
+                    return produced;
+                }
+            }
+        }
+        return produced;
+    }
+
+    private void readBlockHeader() throws DataFormatException {
+        lastBlock = bits(1) == 1;
+        int type = bits(2);
+        switch (type) {
+            case 0 -> {
+                bits(bitCount & 7); // skip to byte boundary
+                int length = bits(16);
+                int nlength = bits(16);
+                if (length != (~nlength & 0xFFFF))
+                    throw new DataFormatException("Stored block length mismatch");
+                storedRemaining = length;
+                state = length > 0 ? State.STORED : (lastBlock ? State.DONE : State.HEADER);
+            }
+            case 1 -> {
+                literals = FIXED_LITERALS;
+                distances = FIXED_DISTANCES;
+                state = State.HUFFMAN;
+            }
+            case 2 -> {
+                readDynamicTables();
+                literals = dynamicLiterals;
+                distances = dynamicDistances;
+                state = State.HUFFMAN;
+            }
+            default -> throw new DataFormatException("Invalid block type " + type);
+        }
+    }
+
+    private void readDynamicTables() throws DataFormatException {
+        int literalCount = bits(5) + 257;
+        int distanceCount = bits(5) + 1;
+        int codeLengthCount = bits(4) + 4;
+        if (literalCount > 286 || distanceCount > 30)
+            throw new DataFormatException("Too many length or distance codes");
+
+        byte[] lengths = new byte[320];
+        for (int i = 0; i < codeLengthCount; ++i)
+            lengths[CODE_LENGTH_ORDER[i]] = (byte) bits(3);
+        Huffman codeLengths = new Huffman(19);
+        codeLengths.build(lengths, 0, 19);
+
+        Arrays.fill(lengths, (byte) 0);
+        int i = 0;
+        while (i < literalCount + distanceCount) {
+            int symbol = decode(codeLengths);
+            if (symbol < 16) {
+                lengths[i++] = (byte) symbol;
+            } else {
+                int value = 0;
+                int repeat;
+                if (symbol == 16) {
+                    if (i == 0)
+                        throw new DataFormatException("Repeat with no previous length");
+                    value = lengths[i - 1];
+                    repeat = 3 + bits(2);
+                } else if (symbol == 17) {
+                    repeat = 3 + bits(3);
+                } else {
+                    repeat = 11 + bits(7);
+                }
+                if (i + repeat > literalCount + distanceCount)
+                    throw new DataFormatException("Too many code lengths");
+                Arrays.fill(lengths, i, i + repeat, (byte) value);
+                i += repeat;
+            }
+        }
+        if (lengths[256] == 0)
+            throw new DataFormatException("Missing end-of-block code");
+
+        if (dynamicLiterals == null) {
+            dynamicLiterals = new Huffman(288);
+            dynamicDistances = new Huffman(32);
+        }
+        dynamicLiterals.build(lengths, 0, literalCount);
+        dynamicDistances.build(lengths, literalCount, distanceCount);
+    }
+
+    private int inflateHuffman(byte[] out, int off, int len) throws DataFormatException {
+        int produced = 0;
+        while (produced < len) {
+            if (copyLength > 0) {
+                int n = Math.min(copyLength, len - produced);
+                int src = (windowPos - copyDistance) & WINDOW_MASK;
+                for (int i = 0; i < n; ++i) {
+                    byte b = window[src];
+                    src = (src + 1) & WINDOW_MASK;
+                    window[windowPos] = b;
+                    windowPos = (windowPos + 1) & WINDOW_MASK;
+                    out[off + produced++] = b;
+                }
+                copyLength -= n;
+                totalOut += n;
+                windowFill = Math.min(windowFill + n, WINDOW_SIZE);
+                continue;
+            }
+
+            int symbol = decode(literals);
+            if (symbol < 256) {
+                byte b = (byte) symbol;
+                window[windowPos] = b;
+                windowPos = (windowPos + 1) & WINDOW_MASK;
+                out[off + produced++] = b;
+                ++totalOut;
+                if (windowFill < WINDOW_SIZE)
+                    ++windowFill;
+            } else if (symbol == 256) {
+                state = lastBlock ? State.DONE : State.HEADER;
+                break;
+            } else {
+                symbol -= 257;
+                if (symbol >= 29)
+                    throw new DataFormatException("Invalid length code");
+                copyLength = LENGTH_BASE[symbol] + bits(LENGTH_EXTRA[symbol]);
+                int distanceSymbol = decode(distances);
+                if (distanceSymbol >= 30)
+                    throw new DataFormatException("Invalid distance code");
+                copyDistance = DIST_BASE[distanceSymbol] + bits(DIST_EXTRA[distanceSymbol]);
+                if (copyDistance > windowFill)
+                    throw new DataFormatException("Distance too far back (" + copyDistance + ")");
+            }
+        }
+        return produced;
+    }
+
+    private void copyStored(byte[] out, int off, int n) throws DataFormatException {
+        int i = 0;
+        while (i < n && bitCount >= 8)
+            out[off + i++] = (byte) bits(8);
+        int remaining = n - i;
+        if (inPos + remaining > inEnd)
+            throw new DataFormatException("Unexpected end of stored block");
+        System.arraycopy(in, inPos, out, off + i, remaining);
+        inPos += remaining;
+
+        for (int j = 0; j < n; ++j) {
+            window[windowPos] = out[off + j];
+            windowPos = (windowPos + 1) & WINDOW_MASK;
+        }
+        totalOut += n;
+        windowFill = (int) Math.min((long) windowFill + n, WINDOW_SIZE);
+    }
+
+    /** Makes sure there are at least <code>n</code> bits in the bit buffer, padding with zeros past the input. */
+    private void need(int n) {
+        while (bitCount < n) {
+            int b = inPos < inEnd ? in[inPos] & 0xFF : 0;
+            ++inPos;
+            bitBuffer |= (long) b << bitCount;
+            bitCount += 8;
+        }
+    }
+
+    private void consume(int n) throws DataFormatException {
+        bitBuffer >>>= n;
+        bitCount -= n;
+        if (inPos - (bitCount >> 3) > inEnd)
+            throw new DataFormatException("Unexpected end of compressed data");
+    }
+
+    private int bits(int n) throws DataFormatException {
+        if (n == 0)
+            return 0;
+        need(n);
+        int value = (int) (bitBuffer & ((1L << n) - 1));
+        consume(n);
+        return value;
+    }
+
+    private int decode(Huffman h) throws DataFormatException {
+        need(Huffman.FAST_BITS);
+        int entry = h.fast[(int) (bitBuffer & Huffman.FAST_MASK)];
+        if (entry != 0) {
+            consume(entry & 15);
+            return entry >>> 4;
+        }
+
+        // Slow path for codes longer than FAST_BITS, one bit at a time.
+        int code = 0;
+        int first = 0;
+        int index = 0;
+        for (int len = 1; len <= 15; ++len) {
+            code |= bits(1);
+            int count = h.count[len];
+            if (code - count < first)
+                return h.symbol[index + (code - first)];
+            index += count;
+            first += count;
+            first <<= 1;
+            code <<= 1;
+        }
+        throw new DataFormatException("Invalid Huffman code");
+    }
+
+    /** A canonical Huffman code with a lookup table for the short codes. */
+    private static class Huffman {
+
+        static final int FAST_BITS = 10;
+        static final int FAST_MASK = (1 << FAST_BITS) - 1;
+
+        final short[] count = new short[16];
+        final short[] symbol;
+        /** Indexed by the next FAST_BITS input bits; (symbol << 4) | length, or 0 for longer codes. */
+        final int[] fast = new int[1 << FAST_BITS];
+
+        Huffman(int maxSymbols) {
+            symbol = new short[maxSymbols];
+        }
+
+        void build(byte[] lengths, int off, int n) throws DataFormatException {
+            Arrays.fill(count, (short) 0);
+            for (int i = 0; i < n; ++i)
+                ++count[lengths[off + i]];
+            count[0] = 0;
+
+            int left = 1;
+            for (int len = 1; len <= 15; ++len) {
+                left <<= 1;
+                left -= count[len];
+                if (left < 0)
+                    throw new DataFormatException("Over-subscribed Huffman code");
+            }
+
+            int[] offsets = new int[16];
+            for (int len = 1; len < 15; ++len)
+                offsets[len + 1] = offsets[len] + count[len];
+            for (int i = 0; i < n; ++i) {
+                int len = lengths[off + i];
+                if (len != 0)
+                    symbol[offsets[len]++] = (short) i;
+            }
+
+            Arrays.fill(fast, 0);
+            int code = 0;
+            int k = 0;
+            for (int len = 1; len <= FAST_BITS; ++len) {
+                for (int i = 0; i < count[len]; ++i) {
+                    int reversed = Integer.reverse(code) >>> (32 - len);
+                    int entry = (symbol[k++] << 4) | len;
+                    for (int j = reversed; j < fast.length; j += 1 << len)
+                        fast[j] = entry;
+                    ++code;
+                }
+                code <<= 1;
+            }
+        }
+    }
+}
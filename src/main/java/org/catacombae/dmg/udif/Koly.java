@@ -178,6 +178,44 @@ public class Koly {
         return Util.createCopy(checksumData);
     }
 
+    /** Returns the offset of the data fork, which is stored in bytes 24-31 (unknown1[20..28]). */
+    public long getDataForkOffset() {
+        return Util.readLongBE(unknown1, 20);
+    }
+
+    /**
+     * Returns the length of the data fork, which is the field called plistBegin1. The plist usually follows the data
+     * fork directly, which is where that name comes from.
+     */
+    public long getDataForkLength() {
+        return getPlistBegin1();
+    }
+
+    /**
+     * Returns the checksum of the data fork, the compressed block data. It is stored from possibleChecksumType up to
+     * and including unknown7.
+     */
+    public UDIFChecksum getDataForkChecksum() {
+        byte[] data = new byte[UDIFChecksum.structSize()];
+        System.arraycopy(possibleChecksumType, 0, data, 0, 8);
+        System.arraycopy(unknown6, 0, data, 8, 4);
+        System.arraycopy(possibleUnitSize, 0, data, 12, 4);
+        System.arraycopy(unknown7, 0, data, 16, 120);
+        return new UDIFChecksum(data, 0);
+    }
+
+    /**
+     * Returns the checksum of the whole image, which is the checksum of the checksums of its block tables, taken
+     * together in order. It is stored in checksumAlgorithm, checksumSize and the first 128 bytes of checksumData.
+     */
+    public UDIFChecksum getMasterChecksum() {
+        byte[] data = new byte[UDIFChecksum.structSize()];
+        System.arraycopy(checksumAlgorithm, 0, data, 0, 4);
+        System.arraycopy(checksumSize, 0, data, 4, 4);
+        System.arraycopy(checksumData, 0, data, 8, 128);
+        return new UDIFChecksum(data, 0);
+    }
+
     public boolean isValid() {
         return getFourCC() == KOLY_FOURCC;
     }
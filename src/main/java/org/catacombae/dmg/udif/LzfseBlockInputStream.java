@@ -4,48 +4,149 @@ import java.io.IOException;
 import java.io.InputStream;
 
 import com.github.horrorho.ragingmoose.LZFSEInputStream;
-import org.catacombae.dmgextractor.io.RandomAccessInputStream;
-import org.catacombae.dmgextractor.io.SynchronizedRandomAccessStream;
 import org.catacombae.io.ReadableRandomAccessStream;
 
 
+/**
+ * Reads a BT_LZFSE block. The compressed block is read in one go and decoded by {@link LzfseDecoder} into an array
+ * holding the decoded block, one LZFSE sub-block at a time as reads and skips get to it. A read of the whole block
+ * at once is decoded straight into the caller's array.<br>
+ * Blocks too large for that, which only damaged images have, are streamed through {@link LZFSEInputStream}.
+ */
 public class LzfseBlockInputStream extends UDIFBlockInputStream {
 
+    /** The largest block that is decoded in memory. */
+    private static final int MAX_DECODED_SIZE = 64 * 1024 * 1024;
+
+    private final LzfseDecoder decoder;
+    private final LzfseCheckpointIndex checkpoints;
+    /** The decoded block, allocated at the first read that isn't for the whole block. */
+    private byte[] decoded = null;
     private final InputStream inputStream;
     private final InputStream decompressingStream;
     private long outPos = 0;
 
+    public LzfseBlockInputStream(ReadableRandomAccessStream raf, UDIFBlock block, int addInOffset)
+            throws IOException {
+        this(raf, block, addInOffset, null);
+    }
 
-    public LzfseBlockInputStream(ReadableRandomAccessStream raf, UDIFBlock block, int addInOffset) {
+    /**
+     * Creates a stream that uses <code>checkpoints</code> (if not null) to make {@link #skip(long)} resume decoding
+     * near the target instead of decoding all sub-blocks in between.
+     */
+    public LzfseBlockInputStream(ReadableRandomAccessStream raf, UDIFBlock block, int addInOffset,
+                                 LzfseCheckpointIndex checkpoints) throws IOException {
         super(raf, block, addInOffset);
+        this.checkpoints = checkpoints;
 
-        inputStream = new RandomAccessInputStream(new SynchronizedRandomAccessStream(raf),
-                block.getTrueInOffset(), block.getInSize());
-        decompressingStream = new LZFSEInputStream(inputStream);
+        byte[] data = block.getOutSize() <= MAX_DECODED_SIZE ? readCompressedData() : null;
+        if (data != null) {
+            decoder = new LzfseDecoder(data, 0, (int) block.getInSize());
+            inputStream = null;
+            decompressingStream = null;
+        } else {
+            decoder = null;
+            inputStream = openCompressedData();
+            decompressingStream = new LZFSEInputStream(inputStream);
+        }
     }
 
     @Override
     protected void fillBuffer() throws IOException {
-        int bytesToRead = (int) Math.min(block.getOutSize() - outPos, buffer.length);
-        int totalBytesRead = 0;
-        while (totalBytesRead < bytesToRead) {
-            int bytesRead = decompressingStream.read(buffer, totalBytesRead, bytesToRead - totalBytesRead);
-            if (bytesRead < 0)
-                break;
-            else {
-                totalBytesRead += bytesRead;
-                outPos += bytesRead;
+        // The fillBuffer method is responsible for updating bufferPos and bufferDataLength
+        bufferPos = 0;
+        bufferDataLength = fillDirect(buffer, 0, buffer.length);
+    }
+
+    @Override
+    protected int fillDirect(byte[] b, int off, int len) throws IOException {
+        int bytesToRead = (int) Math.min(block.getOutSize() - outPos, len);
+        if (bytesToRead <= 0)
+            return 0;
+
+        if (decoder == null) {
+            int totalBytesRead = 0;
+            while (totalBytesRead < bytesToRead) {
+                int bytesRead = decompressingStream.read(b, off + totalBytesRead, bytesToRead - totalBytesRead);
+                if (bytesRead < 0)
+                    break;
+                else {
+                    totalBytesRead += bytesRead;
+                    outPos += bytesRead;
+                }
             }
+            return totalBytesRead;
         }
 
-        // The fillBuffer method is responsible for updating bufferPos and bufferDataLength
+        if (decoded == null && outPos == 0 && decoder.getOutPosition() == 0 && bytesToRead == block.getOutSize()) {
+            // The whole block in one read, so the caller's array can be the history.
+            while (!decoder.finished())
+                decoder.decodeBlock(b, off, bytesToRead);
+            outPos = decoder.getOutPosition();
+            return decoder.getOutPosition();
+        }
+
+        if (decoded == null)
+            allocateDecoded();
+        while (decoder.getOutPosition() <= outPos && !decoder.finished())
+            decoder.decodeBlock(decoded, 0, (int) block.getOutSize());
+        int bytesAvailable = (int) Math.min(bytesToRead, decoder.getOutPosition() - outPos);
+        if (bytesAvailable <= 0)
+            return 0;
+        System.arraycopy(decoded, (int) outPos, b, off, bytesAvailable);
+        outPos += bytesAvailable;
+        return bytesAvailable;
+    }
+
+    private void allocateDecoded() {
+        int outSize = (int) block.getOutSize();
+        decoded = outSize <= DecoderPool.MAX_INPUT_BUFFER_SIZE ? DecoderPool.acquireInputBuffer(outSize) :
+                new byte[outSize];
+    }
+
+    /**
+     * Moves past the skipped bytes without copying them. They are decoded when a later read needs them as history,
+     * unless there is a checkpoint to resume at.
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        if (decoder == null || n <= 0)
+            return super.skip(n);
+
+        long position = outPos - (bufferDataLength - bufferPos);
+        long target = Math.min(position + n, block.getOutSize());
+        if (checkpoints != null) {
+            int i = checkpoints.find(target);
+            if (i >= 0 && checkpoints.getOutOffset(i) > decoder.getOutPosition()) {
+                if (decoded == null)
+                    allocateDecoded();
+                checkpoints.resume(i, decoder, decoded, 0);
+            }
+        }
+
+        // make read() refill buffer at next call...
         bufferPos = 0;
-        bufferDataLength = totalBytesRead;
+        bufferDataLength = 0;
+        outPos = target;
+        globalBytesRead += target - position;
+        return target - position;
+    }
+
+    @Override
+    protected void releaseResources() {
+        super.releaseResources();
+        if (decoded != null && decoded.length <= DecoderPool.MAX_INPUT_BUFFER_SIZE)
+            DecoderPool.releaseInputBuffer(decoded);
+        decoded = null;
     }
 
     @Override
     public void close() throws IOException {
-        decompressingStream.close();
-        inputStream.close();
+        if (decompressingStream != null) {
+            decompressingStream.close();
+            inputStream.close();
+        }
+        super.close();
     }
 }
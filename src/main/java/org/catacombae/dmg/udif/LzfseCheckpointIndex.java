@@ -0,0 +1,103 @@
+package org.catacombae.dmg.udif;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.catacombae.dmgextractor.DmgException;
+
+
+/**
+ * Random access points inside a single LZFSE compressed block, the LZFSE counterpart of {@link ZlibCheckpointIndex}.
+ * <br>
+ * Each checkpoint records a sub-block boundary: the decoded offset, the position of the sub-block header in the
+ * compressed data and the decoded data preceding it, up to {@link LzfseDecoder#HISTORY_SIZE} bytes, since matches
+ * may reach back that far across sub-blocks. That is all a decoder needs to start at the checkpoint instead of at
+ * the beginning of the block.
+ */
+public class LzfseCheckpointIndex {
+
+    private final int[] outOffsets;
+    private final int[] inOffsets;
+    private final byte[][] windows;
+
+    private LzfseCheckpointIndex(int[] outOffsets, int[] inOffsets, byte[][] windows) {
+        this.outOffsets = outOffsets;
+        this.inOffsets = inOffsets;
+        this.windows = windows;
+    }
+
+    /**
+     * Decodes a complete LZFSE stream and records a checkpoint at the first sub-block boundary after every
+     * <code>interval</code> bytes of output.
+     *
+     * @param data     the compressed block.
+     * @param off      the position of the first sub-block header in <code>data</code>.
+     * @param len      the size of the compressed block.
+     * @param outSize  the size of the decoded block.
+     * @param interval the minimum distance in decoded bytes between two checkpoints.
+     * @throws DmgException if the data is corrupt.
+     */
+    public static LzfseCheckpointIndex build(byte[] data, int off, int len, int outSize, int interval) {
+        if (interval <= 0)
+            throw new IllegalArgumentException("interval must be positive (" + interval + ")");
+
+        LzfseDecoder decoder = new LzfseDecoder(data, off, len);
+        byte[] out = new byte[outSize];
+        ArrayList<int[]> offsets = new ArrayList<>();
+        ArrayList<byte[]> windows = new ArrayList<>();
+
+        int lastCheckpoint = 0;
+        while (decoder.decodeBlock(out, 0, outSize) >= 0) {
+            int outOffset = decoder.getOutPosition();
+            if (outOffset - lastCheckpoint >= interval && outOffset < outSize) {
+                lastCheckpoint = outOffset;
+                offsets.add(new int[] {outOffset, decoder.getInPosition()});
+                windows.add(Arrays.copyOfRange(out, Math.max(0, outOffset - LzfseDecoder.HISTORY_SIZE), outOffset));
+            }
+        }
+
+        int[] outArray = new int[offsets.size()];
+        int[] inArray = new int[offsets.size()];
+        for (int i = 0; i < outArray.length; ++i) {
+            outArray[i] = offsets.get(i)[0];
+            inArray[i] = offsets.get(i)[1];
+        }
+        return new LzfseCheckpointIndex(outArray, inArray, windows.toArray(byte[][]::new));
+    }
+
+    public int getCheckpointCount() {
+        return outOffsets.length;
+    }
+
+    /** Returns the decoded offset of checkpoint <code>i</code>. */
+    public long getOutOffset(int i) {
+        return outOffsets[i];
+    }
+
+    /** Returns the offset of the sub-block header, relative to the start of the block, of checkpoint <code>i</code>. */
+    public long getInOffset(int i) {
+        return inOffsets[i];
+    }
+
+    /**
+     * Returns the index of the last checkpoint at or before the decoded offset <code>outOffset</code>, or -1 if
+     * there is none.
+     */
+    public int find(long outOffset) {
+        int target = (int) Math.min(outOffset, Integer.MAX_VALUE);
+        int i = Arrays.binarySearch(outOffsets, target);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    /**
+     * Positions <code>decoder</code> at checkpoint <code>i</code>, putting the history it needs in place.
+     *
+     * @param out the decoded block that <code>decoder</code> decodes into.
+     * @param off the position of the decoded block in <code>out</code>.
+     */
+    void resume(int i, LzfseDecoder decoder, byte[] out, int off) {
+        byte[] window = windows[i];
+        System.arraycopy(window, 0, out, off + outOffsets[i] - window.length, window.length);
+        decoder.resume(inOffsets[i], outOffsets[i]);
+    }
+}
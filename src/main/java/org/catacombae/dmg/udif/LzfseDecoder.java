@@ -0,0 +1,570 @@
+package org.catacombae.dmg.udif;
+
+import org.catacombae.dmgextractor.DmgException;
+
+
+/**
+ * An LZFSE decoder working from an array of compressed data to an array holding the decoded block, which is how
+ * BT_LZFSE blocks are read.<br>
+ * An LZFSE stream is a sequence of sub-blocks, each with its own header: LZFSE compressed (bvx2), LZVN compressed
+ * (bvxn) or stored (bvx-), ended by bvx$. The decoder works one sub-block at a time. Matches may reach back across
+ * sub-block boundaries, by at most {@link #HISTORY_SIZE} bytes, so the output array doubles as the history and must
+ * hold everything decoded before the current sub-block, or at least that many bytes of it.<br>
+ * Decoding can be started at any sub-block header with {@link #resume(int, int)}. Only the v2 header layout is
+ * supported, which is what every encoder writes; bvx1 headers are rejected.
+ */
+final class LzfseDecoder {
+
+    /** The farthest back a match can reach, in bytes. */
+    static final int HISTORY_SIZE = 1 << 18;
+
+    private static final int MAGIC_END_OF_STREAM = 0x24787662; // "bvx$"
+    private static final int MAGIC_UNCOMPRESSED = 0x2d787662; // "bvx-"
+    private static final int MAGIC_COMPRESSED_V1 = 0x31787662; // "bvx1"
+    private static final int MAGIC_COMPRESSED_V2 = 0x32787662; // "bvx2"
+    private static final int MAGIC_COMPRESSED_LZVN = 0x6e787662; // "bvxn"
+
+    private static final int V2_HEADER_SIZE = 32;
+
+    private static final int L_SYMBOLS = 20;
+    private static final int M_SYMBOLS = 20;
+    private static final int D_SYMBOLS = 64;
+    private static final int LITERAL_SYMBOLS = 256;
+    private static final int L_STATES = 64;
+    private static final int M_STATES = 64;
+    private static final int D_STATES = 256;
+    private static final int LITERAL_STATES = 1024;
+
+    private static final int[] L_EXTRA_BITS = {
+            0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 2, 3, 5, 8};
+    private static final int[] L_BASE_VALUE = {
+            0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 20, 28, 60};
+    private static final int[] M_EXTRA_BITS = {
+            0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 3, 5, 8, 11};
+    private static final int[] M_BASE_VALUE = {
+            0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 24, 56, 312};
+    private static final int[] D_EXTRA_BITS = {
+            0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3,
+            4, 4, 4, 4, 5, 5, 5, 5, 6, 6, 6, 6, 7, 7, 7, 7,
+            8, 8, 8, 8, 9, 9, 9, 9, 10, 10, 10, 10, 11, 11, 11, 11,
+            12, 12, 12, 12, 13, 13, 13, 13, 14, 14, 14, 14, 15, 15, 15, 15};
+    private static final int[] D_BASE_VALUE = {
+            0, 1, 2, 3, 4, 6, 8, 10, 12, 16,
+            20, 24, 28, 36, 44, 52, 60, 76, 92, 108,
+            124, 156, 188, 220, 252, 316, 380, 444, 508, 636,
+            764, 892, 1020, 1276, 1532, 1788, 2044, 2556, 3068, 3580,
+            4092, 5116, 6140, 7164, 8188, 10236, 12284, 14332, 16380, 20476,
+            24572, 28668, 32764, 40956, 49148, 57340, 65532, 81916, 98300, 114684,
+            131068, 163836, 196604, 229372};
+
+    /** Code lengths of the variable length frequencies in a v2 header, by the low 5 bits of the code. */
+    private static final int[] FREQ_NBITS = {
+            2, 3, 2, 5, 2, 3, 2, 8, 2, 3, 2, 5, 2, 3, 2, 14,
+            2, 3, 2, 5, 2, 3, 2, 8, 2, 3, 2, 5, 2, 3, 2, 14};
+    private static final int[] FREQ_VALUE = {
+            0, 2, 1, 4, 0, 3, 1, -1, 0, 2, 1, 5, 0, 3, 1, -1,
+            0, 2, 1, 6, 0, 3, 1, -1, 0, 2, 1, 7, 0, 3, 1, -1};
+
+    private final byte[] in;
+    private final int inStart;
+    private final int inEnd;
+    /** The position of the next sub-block header in {@link #in}. */
+    private int inPos;
+    /** The number of bytes decoded so far, which is also where the next sub-block goes. */
+    private int outPos = 0;
+    private boolean finished = false;
+
+    // Scratch space for bvx2 sub-blocks, kept across sub-blocks
+    private final int[] frequencies = new int[L_SYMBOLS + M_SYMBOLS + D_SYMBOLS + LITERAL_SYMBOLS];
+    private final int[] literalTable = new int[LITERAL_STATES];
+    private final long[] lTable = new long[L_STATES];
+    private final long[] mTable = new long[M_STATES];
+    private final long[] dTable = new long[D_STATES];
+    private byte[] literals = new byte[0];
+
+    // The backwards bit stream of the current bvx2 payload
+    private long accum;
+    private int accumBits;
+    private int bitPos;
+    private int bitStart;
+
+    /**
+     * @param in  the compressed data, starting with a sub-block header.
+     * @param off the position of the data in <code>in</code>.
+     * @param len the size of the compressed data.
+     */
+    LzfseDecoder(byte[] in, int off, int len) {
+        this.in = in;
+        this.inStart = off;
+        this.inEnd = off + len;
+        this.inPos = off;
+    }
+
+    /** Returns whether the end of the stream has been reached. */
+    boolean finished() {
+        return finished;
+    }
+
+    /** Returns the position of the next sub-block header, relative to the start of the compressed data. */
+    int getInPosition() {
+        return inPos - inStart;
+    }
+
+    /** Returns the number of bytes decoded so far, or where decoding was resumed plus the bytes decoded since. */
+    int getOutPosition() {
+        return outPos;
+    }
+
+    /**
+     * Continues decoding at the sub-block header at <code>inPosition</code> in the compressed data, whose output goes
+     * at <code>outPosition</code> in the decoded block. At least {@link #HISTORY_SIZE} bytes (or all, if fewer) of the
+     * output preceding <code>outPosition</code> must be in place in the array passed to
+     * {@link #decodeBlock(byte[], int, int)}.
+     */
+    void resume(int inPosition, int outPosition) {
+        if (inPosition < 0 || inPosition > inEnd - inStart || outPosition < 0)
+            throw new IllegalArgumentException("Invalid resume position " + inPosition + "/" + outPosition);
+        inPos = inStart + inPosition;
+        outPos = outPosition;
+        finished = false;
+    }
+
+    /**
+     * Decodes the next sub-block into <code>out</code>, at <code>off</code> plus {@link #getOutPosition()}.
+     *
+     * @param out the decoded block, holding the output decoded so far.
+     * @param off the position of the decoded block in <code>out</code>.
+     * @param len the size of the decoded block. A sub-block that doesn't fit is an error.
+     * @return the number of bytes decoded, or -1 at the end of the stream.
+     * @throws DmgException if the data is corrupt.
+     */
+    int decodeBlock(byte[] out, int off, int len) {
+        if (finished)
+            return -1;
+        if (inPos == inEnd) {
+            // Tolerate a missing end of stream marker.
+            finished = true;
+            return -1;
+        }
+
+        int magic = readInt(inPos);
+        if (magic == MAGIC_END_OF_STREAM) {
+            inPos += 4;
+            finished = true;
+            return -1;
+        }
+
+        int rawBytes = readInt(inPos + 4);
+        if (rawBytes < 0 || rawBytes > len - outPos)
+            throw new DmgException("LZFSE sub-block of " + (rawBytes & 0xffffffffL) + " bytes doesn't fit in block");
+
+        switch (magic) {
+            case MAGIC_UNCOMPRESSED -> {
+                int dataStart = inPos + 8;
+                if (rawBytes > inEnd - dataStart)
+                    throw new DmgException("Truncated LZFSE sub-block");
+                System.arraycopy(in, dataStart, out, off + outPos, rawBytes);
+                inPos = dataStart + rawBytes;
+            }
+            case MAGIC_COMPRESSED_LZVN -> {
+                int payloadBytes = readInt(inPos + 8);
+                int payloadStart = inPos + 12;
+                if (payloadBytes < 0 || payloadBytes > inEnd - payloadStart)
+                    throw new DmgException("Truncated LZVN sub-block");
+                decodeLzvn(payloadStart, payloadStart + payloadBytes, out, off, rawBytes);
+                inPos = payloadStart + payloadBytes;
+            }
+            case MAGIC_COMPRESSED_V2 -> decodeV2(out, off, rawBytes);
+            case MAGIC_COMPRESSED_V1 -> throw new DmgException("LZFSE v1 sub-block headers are not supported");
+            default -> throw new DmgException("Invalid LZFSE sub-block magic: 0x" + Integer.toHexString(magic));
+        }
+        outPos += rawBytes;
+        return rawBytes;
+    }
+
+    private int readInt(int pos) {
+        if (pos > inEnd - 4)
+            throw new DmgException("Truncated LZFSE sub-block header");
+        return (in[pos] & 0xff) | (in[pos + 1] & 0xff) << 8 | (in[pos + 2] & 0xff) << 16 | (in[pos + 3] & 0xff) << 24;
+    }
+
+    private long readLong(int pos) {
+        return (readInt(pos) & 0xffffffffL) | (long) readInt(pos + 4) << 32;
+    }
+
+    private static int field(long value, int offset, int bits) {
+        return (int) ((value >>> offset) & ((1L << bits) - 1));
+    }
+
+    // LZFSE (bvx2)
+
+    private void decodeV2(byte[] out, int off, int rawBytes) {
+        long v0 = readLong(inPos + 8);
+        long v1 = readLong(inPos + 16);
+        long v2 = readLong(inPos + 24);
+        int literalCount = field(v0, 0, 20);
+        int literalPayloadBytes = field(v0, 20, 20);
+        int matchCount = field(v0, 40, 20);
+        int literalBits = field(v0, 60, 3) - 7;
+        int[] literalStates = {field(v1, 0, 10), field(v1, 10, 10), field(v1, 20, 10), field(v1, 30, 10)};
+        int lmdPayloadBytes = field(v1, 40, 20);
+        int lmdBits = field(v1, 60, 3) - 7;
+        int headerSize = field(v2, 0, 32);
+        int lState = field(v2, 32, 10);
+        int mState = field(v2, 42, 10);
+        int dState = field(v2, 52, 10);
+
+        if (headerSize < V2_HEADER_SIZE || headerSize > inEnd - inPos)
+            throw new DmgException("Invalid LZFSE header size: " + headerSize);
+        int literalStart = inPos + headerSize;
+        int lmdStart = literalStart + literalPayloadBytes;
+        int blockEnd = lmdStart + lmdPayloadBytes;
+        if (literalPayloadBytes > inEnd - literalStart || lmdPayloadBytes > inEnd - lmdStart)
+            throw new DmgException("Truncated LZFSE sub-block");
+        if (lState >= L_STATES || mState >= M_STATES || dState >= D_STATES)
+            throw new DmgException("Invalid LZFSE state");
+
+        readFrequencies(inPos + V2_HEADER_SIZE, inPos + headerSize);
+        int freqOffset = 0;
+        buildValueTable(L_STATES, L_SYMBOLS, freqOffset, L_EXTRA_BITS, L_BASE_VALUE, lTable);
+        freqOffset += L_SYMBOLS;
+        buildValueTable(M_STATES, M_SYMBOLS, freqOffset, M_EXTRA_BITS, M_BASE_VALUE, mTable);
+        freqOffset += M_SYMBOLS;
+        buildValueTable(D_STATES, D_SYMBOLS, freqOffset, D_EXTRA_BITS, D_BASE_VALUE, dTable);
+        freqOffset += D_SYMBOLS;
+        buildLiteralTable(freqOffset);
+
+        decodeLiterals(literalStart, lmdStart, literalCount, literalBits, literalStates);
+        decodeMatches(lmdStart, blockEnd, matchCount, lmdBits, lState, mState, dState, literalCount, out, off,
+                rawBytes);
+        inPos = blockEnd;
+    }
+
+    /** Reads the variable length coded frequency tables of a v2 header. */
+    private void readFrequencies(int pos, int end) {
+        int accum = 0;
+        int accumBits = 0;
+        for (int i = 0; i < frequencies.length; ++i) {
+            while (pos < end && accumBits + 8 <= 32) {
+                accum |= (in[pos++] & 0xff) << accumBits;
+                accumBits += 8;
+            }
+            int b = accum & 31;
+            int nbits = FREQ_NBITS[b];
+            if (nbits > accumBits)
+                throw new DmgException("Truncated LZFSE frequency table");
+            frequencies[i] = switch (nbits) {
+                case 8 -> 8 + ((accum >>> 4) & 0xf);
+                case 14 -> 24 + ((accum >>> 4) & 0x3ff);
+                default -> FREQ_VALUE[b];
+            };
+            accum >>>= nbits;
+            accumBits -= nbits;
+        }
+        if (accumBits >= 8 || pos != end)
+            throw new DmgException("Invalid LZFSE frequency table");
+    }
+
+    /** Returns the shift that brings <code>f</code> into [<code>states</code>, 2 * <code>states</code>). */
+    private static int shift(int f, int states) {
+        return Integer.numberOfLeadingZeros(f) - Integer.numberOfLeadingZeros(states);
+    }
+
+    /**
+     * Builds the decoding table of the literals. An entry holds the number of bits to read for the next state in its
+     * low byte, the symbol in the next byte and the base of the next state in the upper half.
+     */
+    private void buildLiteralTable(int freqOffset) {
+        int sum = 0;
+        int state = 0;
+        for (int symbol = 0; symbol < LITERAL_SYMBOLS; ++symbol) {
+            int f = frequencies[freqOffset + symbol];
+            if (f == 0)
+                continue;
+            sum += f;
+            if (sum > LITERAL_STATES)
+                throw new DmgException("Invalid LZFSE literal frequencies");
+            int k = shift(f, LITERAL_STATES);
+            int j0 = ((2 * LITERAL_STATES) >> k) - f;
+            for (int j = 0; j < f; ++j) {
+                int bits;
+                int delta;
+                if (j < j0) {
+                    bits = k;
+                    delta = ((f + j) << k) - LITERAL_STATES;
+                } else {
+                    bits = k - 1;
+                    delta = (j - j0) << (k - 1);
+                }
+                literalTable[state++] = delta << 16 | symbol << 8 | bits;
+            }
+        }
+    }
+
+    /**
+     * Builds the decoding table of L, M or D values. An entry holds the total number of bits to read (state bits
+     * followed by extra value bits) in its low byte, the number of value bits in the next, the base of the next state
+     * in the next two and the base value in the upper half.
+     */
+    private void buildValueTable(int states, int symbols, int freqOffset, int[] extraBits, int[] baseValues,
+                                 long[] table) {
+        int sum = 0;
+        int state = 0;
+        for (int symbol = 0; symbol < symbols; ++symbol) {
+            int f = frequencies[freqOffset + symbol];
+            if (f == 0)
+                continue;
+            sum += f;
+            if (sum > states)
+                throw new DmgException("Invalid LZFSE frequencies");
+            int k = shift(f, states);
+            int j0 = ((2 * states) >> k) - f;
+            for (int j = 0; j < f; ++j) {
+                int bits;
+                int delta;
+                if (j < j0) {
+                    bits = k;
+                    delta = ((f + j) << k) - states;
+                } else {
+                    bits = k - 1;
+                    delta = (j - j0) << (k - 1);
+                }
+                table[state++] = (long) baseValues[symbol] << 32 | (delta & 0xffffL) << 16 |
+                        extraBits[symbol] << 8 | (bits + extraBits[symbol]);
+            }
+        }
+    }
+
+    private void decodeLiterals(int start, int end, int count, int bits, int[] states) {
+        for (int state : states) {
+            if (state >= LITERAL_STATES)
+                throw new DmgException("Invalid LZFSE literal state");
+        }
+        int paddedCount = (count + 3) & ~3;
+        if (literals.length < paddedCount)
+            literals = new byte[paddedCount];
+
+        initBits(start, end, bits);
+        int[] table = literalTable;
+        byte[] literals = this.literals;
+        int state0 = states[0];
+        int state1 = states[1];
+        int state2 = states[2];
+        int state3 = states[3];
+        for (int i = 0; i < count; i += 4) {
+            // A refill gives at least 56 bits, and a literal takes at most 10.
+            refillBits();
+            int e = table[state0];
+            literals[i] = (byte) (e >>> 8);
+            state0 = (e >> 16) + pullBits(e & 0xff);
+            e = table[state1];
+            literals[i + 1] = (byte) (e >>> 8);
+            state1 = (e >> 16) + pullBits(e & 0xff);
+            e = table[state2];
+            literals[i + 2] = (byte) (e >>> 8);
+            state2 = (e >> 16) + pullBits(e & 0xff);
+            e = table[state3];
+            literals[i + 3] = (byte) (e >>> 8);
+            state3 = (e >> 16) + pullBits(e & 0xff);
+        }
+    }
+
+    private void decodeMatches(int start, int end, int count, int bits, int lState, int mState, int dState,
+                               int literalCount, byte[] out, int off, int rawBytes) {
+        initBits(start, end, bits);
+        int pos = off + outPos;
+        int blockEnd = pos + rawBytes;
+        int literalPos = 0;
+        int d = -1;
+        for (int i = 0; i < count; ++i) {
+            // A refill gives at least 56 bits, and an L, M, D triple takes at most 54.
+            refillBits();
+            long e = lTable[lState];
+            int stateAndValue = pullBits((int) e & 0xff);
+            int valueBits = (int) (e >>> 8) & 0xff;
+            lState = (short) (e >>> 16) + (stateAndValue >>> valueBits);
+            int l = (int) (e >>> 32) + (stateAndValue & ((1 << valueBits) - 1));
+
+            e = mTable[mState];
+            stateAndValue = pullBits((int) e & 0xff);
+            valueBits = (int) (e >>> 8) & 0xff;
+            mState = (short) (e >>> 16) + (stateAndValue >>> valueBits);
+            int m = (int) (e >>> 32) + (stateAndValue & ((1 << valueBits) - 1));
+
+            e = dTable[dState];
+            stateAndValue = pullBits((int) e & 0xff);
+            valueBits = (int) (e >>> 8) & 0xff;
+            dState = (short) (e >>> 16) + (stateAndValue >>> valueBits);
+            int newD = (int) (e >>> 32) + (stateAndValue & ((1 << valueBits) - 1));
+            if (newD != 0)
+                d = newD;
+
+            if (l > literalCount - literalPos || l + m > blockEnd - pos)
+                throw new DmgException("Invalid LZFSE match");
+            System.arraycopy(literals, literalPos, out, pos, l);
+            literalPos += l;
+            pos += l;
+            if (m > 0) {
+                if (d <= 0 || d > pos - off)
+                    throw new DmgException("Invalid LZFSE match distance: " + d);
+                copyMatch(out, pos, d, m);
+                pos += m;
+            }
+        }
+        if (pos != blockEnd)
+            throw new DmgException("LZFSE sub-block decoded to " + (pos - off - outPos) + " bytes instead of " +
+                    rawBytes);
+    }
+
+    /** Starts reading a bit stream backwards from <code>end</code>, the first byte having <code>bits</code> unused. */
+    private void initBits(int start, int end, int bits) {
+        bitStart = start;
+        if (bits != 0) {
+            if (end - start < 8)
+                throw new DmgException("Truncated LZFSE payload");
+            bitPos = end - 8;
+            accum = readLong(bitPos);
+            accumBits = bits + 64;
+        } else {
+            if (end - start < 7)
+                throw new DmgException("Truncated LZFSE payload");
+            bitPos = end - 7;
+            accum = readLong(bitPos - 1) >>> 8;
+            accumBits = 56;
+        }
+        if (accumBits < 56 || accumBits >= 64 || (accum >>> accumBits) != 0)
+            throw new DmgException("Invalid LZFSE payload");
+    }
+
+    /** Tops up the bit buffer to between 56 and 63 bits, by reading whole bytes backwards. */
+    private void refillBits() {
+        int nbits = (63 - accumBits) & -8;
+        int nbytes = nbits >>> 3;
+        if (nbytes == 0)
+            return;
+        int pos = bitPos - nbytes;
+        if (pos < bitStart)
+            throw new DmgException("Truncated LZFSE payload");
+        long incoming = 0;
+        for (int i = nbytes - 1; i >= 0; --i)
+            incoming = incoming << 8 | (in[pos + i] & 0xff);
+        bitPos = pos;
+        accum = accum << nbits | incoming;
+        accumBits += nbits;
+    }
+
+    private int pullBits(int n) {
+        accumBits -= n;
+        int result = (int) (accum >>> accumBits);
+        accum &= (1L << accumBits) - 1;
+        return result;
+    }
+
+    // LZVN (bvxn)
+
+    private void decodeLzvn(int start, int end, byte[] out, int off, int rawBytes) {
+        byte[] in = this.in;
+        int src = start;
+        int pos = off + outPos;
+        int blockEnd = pos + rawBytes;
+        int d = 0;
+        while (true) {
+            if (src >= end)
+                throw new DmgException("Truncated LZVN payload");
+            int opc = in[src] & 0xff;
+            int l;
+            int m;
+            int opcLength;
+            if (opc >= 0xe0) {
+                // Literal or match only
+                if (opc == 0xe0 || opc == 0xf0) {
+                    if (src + 1 >= end)
+                        throw new DmgException("Truncated LZVN payload");
+                    int length = (in[src + 1] & 0xff) + 16;
+                    opcLength = 2;
+                    l = opc == 0xe0 ? length : 0;
+                    m = opc == 0xf0 ? length : 0;
+                } else {
+                    opcLength = 1;
+                    l = opc < 0xf0 ? opc & 0xf : 0;
+                    m = opc >= 0xf0 ? opc & 0xf : 0;
+                }
+            } else if (opc >= 0xa0 && opc < 0xc0) {
+                // Medium distance: 101LLMMM DDDDDDMM DDDDDDDD
+                if (src + 2 >= end)
+                    throw new DmgException("Truncated LZVN payload");
+                int opc23 = (in[src + 1] & 0xff) | (in[src + 2] & 0xff) << 8;
+                opcLength = 3;
+                l = (opc >>> 3) & 3;
+                m = (((opc & 7) << 2) | (opc23 & 3)) + 3;
+                d = opc23 >>> 2;
+            } else if (opc >= 0xd0 && opc < 0xe0 || opc >= 0x70 && opc < 0x80) {
+                throw new DmgException("Invalid LZVN opcode: 0x" + Integer.toHexString(opc));
+            } else {
+                // LLMMMDDD opcodes
+                l = opc >>> 6;
+                m = ((opc >>> 3) & 7) + 3;
+                switch (opc & 7) {
+                    case 6 -> {
+                        if (opc == 0x06) {
+                            // End of stream, 8 bytes
+                            if (pos != blockEnd)
+                                throw new DmgException("LZVN sub-block decoded to " + (pos - off - outPos) +
+                                        " bytes instead of " + rawBytes);
+                            return;
+                        } else if (opc == 0x0e || opc == 0x16) {
+                            ++src;
+                            continue;
+                        } else if (opc < 0x40) {
+                            throw new DmgException("Invalid LZVN opcode: 0x" + Integer.toHexString(opc));
+                        }
+                        // Previous distance
+                        opcLength = 1;
+                    }
+                    case 7 -> {
+                        // Large distance
+                        if (src + 2 >= end)
+                            throw new DmgException("Truncated LZVN payload");
+                        opcLength = 3;
+                        d = (in[src + 1] & 0xff) | (in[src + 2] & 0xff) << 8;
+                    }
+                    default -> {
+                        // Small distance
+                        if (src + 1 >= end)
+                            throw new DmgException("Truncated LZVN payload");
+                        opcLength = 2;
+                        d = (opc & 7) << 8 | (in[src + 1] & 0xff);
+                    }
+                }
+            }
+
+            src += opcLength;
+            if (l > end - src || l + m > blockEnd - pos)
+                throw new DmgException("Invalid LZVN opcode");
+            System.arraycopy(in, src, out, pos, l);
+            src += l;
+            pos += l;
+            if (m > 0) {
+                if (d <= 0 || d > pos - off)
+                    throw new DmgException("Invalid LZVN match distance: " + d);
+                copyMatch(out, pos, d, m);
+                pos += m;
+            }
+        }
+    }
+
+    /** Copies <code>m</code> bytes from <code>d</code> bytes back, which may overlap the destination. */
+    private static void copyMatch(byte[] out, int pos, int d, int m) {
+        if (d >= m) {
+            System.arraycopy(out, pos - d, out, pos, m);
+            return;
+        }
+        // Overlapping: repeat the last d bytes, doubling the period as the copied run grows.
+        int copied = 0;
+        while (copied < m) {
+            int n = Math.min(d + copied, m - copied);
+            System.arraycopy(out, pos - d, out, pos + copied, n);
+            copied += n;
+        }
+    }
+}
@@ -18,17 +18,18 @@
 package org.catacombae.dmg.udif;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.Reader;
 import java.lang.System.Logger;
 import java.lang.System.Logger.Level;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.LinkedList;
+import java.util.List;
 
-import net.iharder.Base64;
 import org.catacombae.dmgextractor.Util;
-import org.catacombae.dmgextractor.io.ReaderInputStream;
 import org.catacombae.plist.PlistNode;
+import org.catacombae.plist.PlistPullParser;
 import org.catacombae.plist.XmlPlist;
 import org.catacombae.plist.XmlPlistNode;
 
@@ -51,14 +52,98 @@ public class Plist extends XmlPlist {
         this(data, offset, length, false);
     }
 
+    private final byte[] data;
+    private final int offset;
+    private final int length;
+
     public Plist(byte[] data, int offset, int length, boolean useSAXParser) {
         super(data, offset, length, useSAXParser);
+        this.data = data;
+        this.offset = offset;
+        this.length = length;
     }
 
 //    public byte[] getData() { return Util.createCopy(plistData); }
 
+    /**
+     * Returns the partitions of the <code>resource-fork/blkx</code> array of the plist, with their block tables.<br>
+     * The entries are read straight from the XML data with a {@link PlistPullParser}, without building the tree of
+     * the plist. If that fails, or if the SAX parser was asked for, they are read from the tree.
+     */
     public PlistPartition[] getPartitions() throws IOException {
+        if (!isUsingSAXParser()) {
+            try {
+                return readPartitions();
+            } catch (IllegalArgumentException e) {
+                logger.log(Level.DEBUG, "Could not read the partitions straight from the plist (" + e.getMessage() +
+                        "), falling back to the XML tree.");
+            }
+        }
+        return getPartitionsFromTree();
+    }
+
+    /** Reads the blkx entries with a pull parser, skipping everything else. */
+    PlistPartition[] readPartitions() throws IOException {
+        PlistPullParser parser = new PlistPullParser(data, offset, length);
+        parser.requireStart("plist");
+        parser.requireStart("dict");
+        if (!parser.findKey("resource-fork"))
+            throw new IllegalArgumentException("No resource-fork key in the plist");
+        parser.requireStart("dict");
+        if (!parser.findKey("blkx"))
+            throw new IllegalArgumentException("No blkx key in the resource fork");
+        parser.requireStart("array");
+
+        List<PlistPartition> partitionList = new ArrayList<>();
+        UDIFBlockTable blockTable = new UDIFBlockTable();
+        long previousOutOffset = 0;
+        long previousInOffset = 0;
+        while (parser.nextTag() == PlistPullParser.START_ELEMENT) {
+            if (!parser.getName().equals("dict"))
+                throw new IllegalArgumentException("Expected <dict> in the blkx array, found <" + parser.getName() +
+                        ">");
+
+            String partitionName = "";
+            String partitionID = null;
+            String partitionAttributes = null;
+            byte[] blkxData = null;
+            while (parser.nextTag() == PlistPullParser.START_ELEMENT) {
+                if (!parser.getName().equals("key"))
+                    throw new IllegalArgumentException("Expected <key> in the blkx array, found <" +
+                            parser.getName() + ">");
+                String key = parser.readText();
+                if (parser.nextTag() != PlistPullParser.START_ELEMENT)
+                    throw new IllegalArgumentException("Missing value for key \"" + key + "\" in the blkx array");
+                // The strings are trimmed like the text of the tree, some names start with a space.
+                switch (key) {
+                    case "Name" -> partitionName = parser.readText().trim();
+                    case "ID" -> partitionID = parser.readText().trim();
+                    case "Attributes" -> partitionAttributes = parser.readText().trim();
+                    case "Data" -> blkxData = parser.readData();
+                    default -> parser.skipElement();
+                }
+            }
+            if (partitionID == null || partitionAttributes == null || blkxData == null)
+                throw new IllegalArgumentException("Incomplete entry in the blkx array");
+
+            PlistPartition dpp = new PlistPartition(partitionName, partitionID, partitionAttributes, blkxData,
+                    previousOutOffset, previousInOffset, blockTable);
+            previousOutOffset = dpp.getFinalOutOffset();
+            previousInOffset = dpp.getFinalInOffset();
+            partitionList.add(dpp);
+        }
+        blockTable.trimToSize();
+
+        return partitionList.toArray(PlistPartition[]::new);
+    }
+
+    /**
+     * Reads the blkx entries from the tree of the plist. The tree is released afterwards, since nothing else is read
+     * from it.
+     */
+    PlistPartition[] getPartitionsFromTree() throws IOException {
         LinkedList<PlistPartition> partitionList = new LinkedList<>();
+        UDIFBlockTable blockTable = new UDIFBlockTable();
         PlistNode current = getRootNode();
         if (logger.isLoggable(Level.DEBUG)) {
             ((XmlPlistNode) current).getXMLNode().printTree(System.err);
@@ -115,17 +200,45 @@ public class Plist extends XmlPlist {
 //                 fos.close();
 //             } catch(Exception e) { e.printStackTrace(); }
 
-            InputStream base64DataInputStream = new Base64.InputStream(new ReaderInputStream(base64Data, StandardCharsets.US_ASCII));
+            byte[] blkxData = decodeBase64(base64Data);
 
 //            logger.log(Level.TRACE, "Creating PlistPartition.");
 //            logger.log(Level.TRACE, "Block list for partition " + i++ + ":");
             PlistPartition dpp = new PlistPartition(partitionName, partitionID, partitionAttributes,
-                    base64DataInputStream, previousOutOffset, previousInOffset);
+                    blkxData, previousOutOffset, previousInOffset, blockTable);
             previousOutOffset = dpp.getFinalOutOffset();
             previousInOffset = dpp.getFinalInOffset();
             partitionList.addLast(dpp);
         }
+        blockTable.trimToSize();
+        releaseRootNode();
 
         return partitionList.toArray(PlistPartition[]::new);
     }
+
+    /**
+     * Decodes the base64 text of a <code>&lt;data&gt;</code> value, read in bulk from <code>reader</code>. The
+     * whitespace between the lines is skipped.
+     */
+    static byte[] decodeBase64(Reader reader) throws IOException {
+        char[] chars = new char[8192];
+        byte[] text = new byte[8192];
+        int length = 0;
+        int charsRead;
+        while ((charsRead = reader.read(chars)) != -1) {
+            if (length + charsRead > text.length)
+                text = Arrays.copyOf(text, Math.max(text.length * 2, length + charsRead));
+            for (int i = 0; i < charsRead; ++i) {
+                char c = chars[i];
+                if (c != ' ' && c != '\t' && c != '\n' && c != '\r')
+                    text[length++] = c < 0x80 ? (byte) c : (byte) '?';
+            }
+        }
+
+        try {
+            return Base64.getDecoder().decode(length == text.length ? text : Arrays.copyOf(text, length));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid base64 data in blkx entry: " + e.getMessage(), e);
+        }
+    }
 }
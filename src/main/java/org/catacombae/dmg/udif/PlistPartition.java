@@ -17,13 +17,12 @@
 
 package org.catacombae.dmg.udif;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.System.Logger;
 import java.lang.System.Logger.Level;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.NoSuchElementException;
 
 import static java.lang.System.getLogger;
 
@@ -35,8 +34,12 @@ public class PlistPartition {
     private final String name;
     private final String id;
     private final String attributes;
-    private final UDIFBlock[] blockList;
+    /** The blocks of this partition are <code>blockCount</code> blocks of this table, from <code>firstBlock</code>. */
+    private final UDIFBlockTable blockTable;
+    private final int firstBlock;
+    private final int blockCount;
     private final long partitionSize;
+    private final UDIFChecksum checksum;
 
     // Incoming variables
     private final long previousOutOffset;
@@ -46,21 +49,55 @@ public class PlistPartition {
     private long finalOutOffset = -1;
     private long finalInOffset = -1;
 
+    /** @param data the mish block table of the partition, as decoded from the <code>Data</code> of its blkx entry. */
     public PlistPartition(String name, String id, String attributes, byte[] data,
                           long previousOutOffset, long previousInOffset) throws IOException {
-        this(name, id, attributes, new ByteArrayInputStream(data), previousOutOffset, previousInOffset);
+        this(name, id, attributes, data, previousOutOffset, previousInOffset, new UDIFBlockTable());
+        blockTable.trimToSize();
     }
 
     public PlistPartition(String name, String id, String attributes, InputStream data,
                           long previousOutOffset, long previousInOffset) throws IOException {
+        this(name, id, attributes, data.readAllBytes(), previousOutOffset, previousInOffset);
+    }
+
+    /**
+     * Parses the block table <code>data</code> into the end of <code>blockTable</code>, which the partitions of a plist
+     * share.
+     */
+    PlistPartition(String name, String id, String attributes, byte[] data, long previousOutOffset,
+                   long previousInOffset, UDIFBlockTable blockTable) throws IOException {
         this.name = name;
         this.id = id;
         this.attributes = attributes;
         this.previousOutOffset = previousOutOffset;
         this.previousInOffset = previousInOffset;
 
-        this.blockList = parseBlocks(data);
-        this.partitionSize = calculatePartitionSize(blockList);
+        this.blockTable = blockTable;
+        this.firstBlock = blockTable.size();
+        parseBlocks(data);
+        this.checksum = new UDIFChecksum(data, 0x40);
+        this.blockCount = blockTable.size() - firstBlock;
+        this.partitionSize = blockTable.getOutSize(firstBlock, firstBlock + blockCount);
+    }
+
+    /** Restores a partition whose blocks are already in <code>blockTable</code>, as stored by {@link UDIFIndex}. */
+    PlistPartition(String name, String id, String attributes, UDIFChecksum checksum, UDIFBlockTable blockTable,
+                   int firstBlock, int blockCount, long previousOutOffset, long previousInOffset, long finalOutOffset,
+                   long finalInOffset) {
+        this.name = name;
+        this.id = id;
+        this.attributes = attributes;
+        this.checksum = checksum;
+        this.previousOutOffset = previousOutOffset;
+        this.previousInOffset = previousInOffset;
+        this.finalOutOffset = finalOutOffset;
+        this.finalInOffset = finalInOffset;
+
+        this.blockTable = blockTable;
+        this.firstBlock = firstBlock;
+        this.blockCount = blockCount;
+        this.partitionSize = blockTable.getOutSize(firstBlock, firstBlock + blockCount);
     }
 
     public String getName() {
@@ -79,20 +116,50 @@ public class PlistPartition {
         return partitionSize;
     }
 
-    /** Copies all blocks to a newly allocated array. Might waste some memory. */
+    /**
+     * Returns the checksum from the header of the block table, which covers the decoded data of all blocks except
+     * the BT_ZERO ones (see {@link UDIFVerifier}).
+     */
+    public UDIFChecksum getChecksum() {
+        return checksum;
+    }
+
+    /** Creates UDIFBlocks for all blocks, in a newly allocated array. Prefer {@link #getBlockTable()} for large images. */
     public UDIFBlock[] getBlocks() {
-        UDIFBlock[] res = new UDIFBlock[blockList.length];
-        System.arraycopy(blockList, 0, res, 0, res.length);
+        UDIFBlock[] res = new UDIFBlock[blockCount];
+        for (int i = 0; i < res.length; ++i)
+            res[i] = blockTable.getBlock(firstBlock + i);
         return res;
     }
 
     /** Returns an iterator over all the UDIFBlocks that describe the contents of this partition. */
     public Iterator<UDIFBlock> getBlockIterator() {
-        return new BlockIterator(blockList);
+        return new BlockIterator(blockTable, firstBlock, blockCount);
     }
 
     public int getBlockCount() {
-        return blockList.length;
+        return blockCount;
+    }
+
+    /**
+     * Returns the table holding the blocks of this partition, which may hold the blocks of other partitions as well.
+     * The blocks of this partition are the {@link #getBlockCount()} blocks from {@link #getFirstBlock()}.
+     */
+    public UDIFBlockTable getBlockTable() {
+        return blockTable;
+    }
+
+    /** Returns the index of the first block of this partition in {@link #getBlockTable()}. */
+    public int getFirstBlock() {
+        return firstBlock;
+    }
+
+    long getPreviousOutOffset() {
+        return previousOutOffset;
+    }
+
+    long getPreviousInOffset() {
+        return previousInOffset;
     }
 
     public long getFinalOutOffset() {
@@ -107,10 +174,8 @@ public class PlistPartition {
         return finalInOffset;
     }
 
-    private UDIFBlock[] parseBlocks(InputStream is) throws IOException {
-        long bytesSkipped = is.read(new byte[0xCC]);
-
-        if (bytesSkipped != 0xCC)
+    private void parseBlocks(byte[] data) throws IOException {
+        if (data.length < 0xCC)
             throw new IllegalStateException("Could not skip the desired amount of bytes...");
 
         int blockNumber = 0; // Increments by one for each block we read (each iteration in the while loop below)
@@ -119,21 +184,16 @@ public class PlistPartition {
         long lastByteReadInBlock = -1;
         boolean addInOffset = false;
 
-        byte[] blockData = new byte[UDIFBlock.structSize()];
-
-        LinkedList<UDIFBlock> blocks = new LinkedList<>();
-
-        int bytesRead = is.read(blockData);
-        while (bytesRead > 0) { //offset <= data.length-UDIFBlock) {
-//            logger.log(Level.TRACE, "Looping (read " + bytesRead + " bytes)");
-            if (bytesRead != blockData.length)
-                throw new RuntimeException("Could not read the desired amount of bytes... (desired: " + blockData.length + " read: " + bytesRead + ")");
+        int structSize = UDIFBlock.structSize();
+        blockTable.ensureCapacity((data.length - 0xCC) / structSize);
 
-            long inOffset = UDIFBlock.peekInOffset(blockData, 0);
-            long inSize = UDIFBlock.peekInSize(blockData, 0);
+        for (int offset = 0xCC; offset < data.length; offset += structSize) {
+            int bytesRead = Math.min(structSize, data.length - offset);
+            if (bytesRead != structSize)
+                throw new RuntimeException("Could not read the desired amount of bytes... (desired: " + structSize + " read: " + bytesRead + ")");
 
-            // Set compensation to the end of the output data of the previous partition to get true offset in outfile.
-            long outOffsetCompensation = previousOutOffset;
+            long inOffset = UDIFBlock.peekInOffset(data, offset);
+            long inSize = UDIFBlock.peekInSize(data, offset);
 
             // Update pointer to the last byte read in the last block
             if (lastByteReadInBlock == -1)
@@ -150,30 +210,30 @@ public class PlistPartition {
                 logger.log(Level.DEBUG, "Detected inOffset == 0, setting addInOffset flag.");
                 addInOffset = true;
             }
-            long inOffsetCompensation = 0;
             if (addInOffset) {
                 logger.log(Level.DEBUG, "addInOffset mode: inOffset tranformation " + inOffset + "->" +
                         (inOffset + previousInOffset));
-                inOffsetCompensation = previousInOffset;
             }
+            // The compensations are the same for all blocks of the partition, since addInOffset is only set by the
+            // first block. The out offset compensation is the end of the output data of the previous partition.
+            if (blockNumber == 0)
+                blockTable.startSegment(previousOutOffset, addInOffset ? previousInOffset : 0);
 
-            UDIFBlock currentBlock = new UDIFBlock(blockData, 0, outOffsetCompensation, inOffsetCompensation);
-            blocks.add(currentBlock);
+            blockTable.add(data, offset);
+            int current = blockTable.size() - 1;
             ++blockNumber;
 
-//            logger.log(Level.DEBUG, "  " + currentBlock.toString());
+//            logger.log(Level.DEBUG, "  " + blockTable.getBlock(current).toString());
 
             // Return if we have reached the end, and update
-            if (currentBlock.getBlockType() == UDIFBlock.BT_END) {
-                finalOutOffset = currentBlock.getTrueOutOffset();
+            if (blockTable.getBlockType(current) == UDIFBlock.BT_END) {
+                finalOutOffset = blockTable.getTrueOutOffset(current);
                 finalInOffset = previousInOffset + lastByteReadInBlock;
 
-                if (is.read() != -1)
+                if (offset + structSize < data.length)
                     logger.log(Level.WARNING, "Encountered additional data in blkx blob.");
-                return blocks.toArray(UDIFBlock[]::new);
+                return;
             }
-
-            bytesRead = is.read(blockData);
         }
 
         throw new RuntimeException("No BT_END block found!");
@@ -190,15 +250,11 @@ public class PlistPartition {
 
     private static class BlockIterator implements Iterator<UDIFBlock> {
 
-        private final UDIFBlock[] blocks;
+        private final UDIFBlockTable blocks;
         private int pointer;
         private final int endOffset;
 
-        public BlockIterator(UDIFBlock[] blocks) {
-            this(blocks, 0, blocks.length);
-        }
-
-        public BlockIterator(UDIFBlock[] blocks, int offset, int length) {
+        public BlockIterator(UDIFBlockTable blocks, int offset, int length) {
             this.blocks = blocks;
             this.pointer = offset;
             this.endOffset = offset + length;
@@ -211,7 +267,9 @@ public class PlistPartition {
 
         @Override
         public UDIFBlock next() {
-            return blocks[pointer++];
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return blocks.getBlock(pointer++);
         }
 
         @Override
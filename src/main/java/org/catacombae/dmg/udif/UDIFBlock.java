@@ -20,6 +20,10 @@ package org.catacombae.dmg.udif;
 import org.catacombae.dmgextractor.Util;
 
 
+/**
+ * One entry of the block table of a partition. The blocks of parsed partitions are kept in a {@link UDIFBlockTable},
+ * which creates UDIFBlocks when they are asked for.
+ */
 public class UDIFBlock implements Comparable<UDIFBlock> {
 
     /** This blocktype means the data is compressed using some "ADC" algorithm that I have no idea how to decompress... */
@@ -143,6 +147,11 @@ public class UDIFBlock implements Comparable<UDIFBlock> {
     }
 
     public String getBlockTypeAsString() {
+        return getBlockTypeAsString(blockType);
+    }
+
+    /** Returns the name of <code>blockType</code>, such as "BT_ZLIB". */
+    public static String getBlockTypeAsString(int blockType) {
         return switch (blockType) {
             case BT_ADC -> BT_ADC_STRING;
             case BT_ZLIB -> BT_ZLIB_STRING;
@@ -0,0 +1,148 @@
+package org.catacombae.dmg.udif;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+
+/**
+ * A bounded cache of decoded block data, keyed by block index. When the total size of the cached data exceeds the
+ * limit, the least recently used blocks are evicted.<br>
+ * The cache is safe to use from several threads. If more than one thread asks for a block that is not cached, only
+ * one of them decodes it and the others wait for the result.
+ */
+public class UDIFBlockCache {
+
+    /** Decodes the contents of a block when it isn't found in the cache. */
+    public interface Decoder {
+
+        byte[] decode(int blockIndex) throws IOException;
+    }
+
+    private final long maxSize;
+    private long size = 0;
+    private final LinkedHashMap<Integer, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Integer, FutureTask<byte[]>> pending = new HashMap<>();
+    private final UDIFMetrics metrics;
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxSize the maximum number of bytes of decoded data to keep.
+     */
+    public UDIFBlockCache(long maxSize) {
+        this(maxSize, new UDIFMetrics());
+    }
+
+    /**
+     * Creates a new cache which counts its hits and misses in <code>metrics</code>. A lookup which finds another
+     * thread decoding the block counts as a hit, as it doesn't decode the block again.
+     *
+     * @param maxSize the maximum number of bytes of decoded data to keep.
+     */
+    public UDIFBlockCache(long maxSize, UDIFMetrics metrics) {
+        if (maxSize < 0)
+            throw new IllegalArgumentException("maxSize must not be negative (" + maxSize + ")");
+        this.maxSize = maxSize;
+        this.metrics = metrics;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /** Returns the number of bytes of decoded data currently held by the cache. */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    /** Returns the decoded data for block <code>blockIndex</code> if it is cached, otherwise null. */
+    public synchronized byte[] getIfPresent(int blockIndex) {
+        byte[] data = entries.get(blockIndex);
+        if (data != null)
+            metrics.recordCacheHit();
+        else
+            metrics.recordCacheMiss();
+        return data;
+    }
+
+    /**
+     * Returns the decoded data for block <code>blockIndex</code>, calling <code>decoder</code> if it isn't cached. The
+     * returned array is shared and must not be modified.
+     */
+    public byte[] get(int blockIndex, Decoder decoder) throws IOException {
+        FutureTask<byte[]> task;
+        boolean owner = false;
+        synchronized (this) {
+            byte[] data = entries.get(blockIndex);
+            if (data != null) {
+                metrics.recordCacheHit();
+                return data;
+            }
+
+            task = pending.get(blockIndex);
+            if (task == null) {
+                task = new FutureTask<>(() -> decoder.decode(blockIndex));
+                pending.put(blockIndex, task);
+                owner = true;
+                metrics.recordCacheMiss();
+            } else
+                metrics.recordCacheHit();
+        }
+
+        byte[] data = null;
+        try {
+            if (owner)
+                task.run();
+            data = task.get();
+            return data;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for block " + blockIndex);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException ioe)
+                throw ioe;
+            else if (cause instanceof RuntimeException re)
+                throw re;
+            else if (cause instanceof Error err)
+                throw err;
+            else
+                throw new IOException(cause);
+        } finally {
+            if (owner) {
+                synchronized (this) {
+                    pending.remove(blockIndex);
+                    if (data != null)
+                        put(blockIndex, data);
+                }
+            }
+        }
+    }
+
+    private void put(int blockIndex, byte[] data) {
+        if (data.length > maxSize)
+            return;
+
+        byte[] previous = entries.put(blockIndex, data);
+        if (previous != null)
+            size -= previous.length;
+        size += data.length;
+
+        Iterator<byte[]> it = entries.values().iterator();
+        while (size > maxSize && it.hasNext()) {
+            size -= it.next().length;
+            it.remove();
+        }
+    }
+}
@@ -18,6 +18,7 @@
 package org.catacombae.dmg.udif;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -45,13 +46,15 @@ public abstract class UDIFBlockInputStream extends InputStream {
     protected final ReadableRandomAccessStream raf;
     protected final UDIFBlock block;
     protected final int addInOffset;
-    private long globalBytesRead;
+    protected long globalBytesRead;
     // 16 KiB buffer... is it reasonable?
-    protected final byte[] buffer = new byte[16384];
+    protected final byte[] buffer = DecoderPool.acquireBuffer(DecoderPool.BUFFER_SIZE);
     protected int bufferPos = 0;
     // Initializing this to zero will make read call fillBuffer at first call
     protected int bufferDataLength = 0;
-    private final byte[] skipBuffer = new byte[4096];
+    private boolean closed = false;
+    /** The compressed data of the block, if {@link #readCompressedData()} read it into memory. */
+    private byte[] compressedData = null;
 
     /**
      * Subclasses use this variable to report how many bytes were read into the
@@ -110,10 +113,57 @@ public abstract class UDIFBlockInputStream extends InputStream {
 
     /**
      * This method does NOT close the underlying RandomAccessFile. It can be
-     * reused afterwards.
+     * reused afterwards.<br>
+     * The buffers and decoder state of this stream are given back to the
+     * {@link DecoderPool}, so the stream must not be used after it has been
+     * closed.
      */
     @Override
     public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            releaseResources();
+        }
+    }
+
+    /** Gives pooled objects back to the {@link DecoderPool}. Called once, by {@link #close()}. */
+    protected void releaseResources() {
+        DecoderPool.releaseBuffer(buffer);
+        if (compressedData != null) {
+            DecoderPool.releaseInputBuffer(compressedData);
+            compressedData = null;
+        }
+    }
+
+    /**
+     * Returns a stream over the compressed data of the block. The data is read from <code>raf</code> in a single
+     * I/O, unless the block is larger than {@link DecoderPool#MAX_INPUT_BUFFER_SIZE}, in which case it is streamed
+     * from <code>raf</code> instead.
+     */
+    protected InputStream openCompressedData() throws IOException {
+        byte[] data = readCompressedData();
+        if (data == null) {
+            return new RandomAccessInputStream(
+                    new SynchronizedRandomAccessStream(raf), addInOffset + block.getTrueInOffset(), block.getInSize());
+        }
+        return new ByteArrayInputStream(data, 0, (int) block.getInSize());
+    }
+
+    /**
+     * Reads the compressed data of the block from <code>raf</code> in a single I/O. The data starts at index 0 of the
+     * returned array, which may be longer than the block and is owned by this stream until it is closed.
+     *
+     * @return the data, or null if the block is larger than {@link DecoderPool#MAX_INPUT_BUFFER_SIZE}.
+     */
+    protected byte[] readCompressedData() throws IOException {
+        long inSize = block.getInSize();
+        if (inSize > DecoderPool.MAX_INPUT_BUFFER_SIZE)
+            return null;
+
+        compressedData = DecoderPool.acquireInputBuffer((int) inSize);
+        raf.seek(addInOffset + block.getTrueInOffset());
+        raf.readFully(compressedData, 0, (int) inSize);
+        return compressedData;
     }
 
     /** Not supported. */
@@ -148,6 +198,20 @@ public abstract class UDIFBlockInputStream extends InputStream {
         int outPos = off;
         while (bytesRead < bytesToRead) {
             int bytesRemainingInBuffer = bufferDataLength - bufferPos;
+            if (bytesRemainingInBuffer == 0 && bytesToRead - bytesRead >= buffer.length) {
+                // Large reads skip the buffer and have the data decoded straight into b.
+                int res = fillDirect(b, outPos, bytesToRead - bytesRead);
+                if (res > 0) {
+                    outPos += res;
+                    bytesRead += res;
+                    continue;
+                } else if (res == 0) {
+                    if (bytesRead == 0)
+                        return -1;
+                    else
+                        break;
+                }
+            }
             if (bytesRemainingInBuffer == 0) {
 //                logger.log(Level.TRACE, "  first call to fillBuffer");
                 fillBuffer();
@@ -193,36 +257,85 @@ public abstract class UDIFBlockInputStream extends InputStream {
      */
     @Override
     public long skip(long n) throws IOException {
-        long bytesSkipped = 0;
-        while (bytesSkipped < n) {
-            int curSkip = (int) Math.min(n - bytesSkipped, skipBuffer.length);
-            if (curSkip < 0) {
-                throw new RuntimeException("Internal error: curSkip is negative (" + curSkip + ").");
-            }
+        if (n <= 0)
+            return 0;
+
+        byte[] skipBuffer = DecoderPool.acquireBuffer(DecoderPool.SMALL_BUFFER_SIZE);
+        try {
+            long bytesSkipped = 0;
+            while (bytesSkipped < n) {
+                int curSkip = (int) Math.min(n - bytesSkipped, skipBuffer.length);
+                if (curSkip < 0) {
+                    throw new RuntimeException("Internal error: curSkip is negative (" + curSkip + ").");
+                }
 
-            int res = read(skipBuffer, 0, curSkip);
-            if (res > 0)
-                bytesSkipped += res;
-            else
-                break;
+                int res = read(skipBuffer, 0, curSkip);
+                if (res > 0)
+                    bytesSkipped += res;
+                else
+                    break;
+            }
+            return bytesSkipped;
+        } finally {
+            DecoderPool.releaseBuffer(skipBuffer);
         }
-        return bytesSkipped;
     }
 
     protected abstract void fillBuffer() throws IOException;
 
+    /**
+     * Decodes up to <code>len</code> bytes straight into <code>b</code> instead of into {@link #buffer}. Only called
+     * when the buffer is empty.
+     *
+     * @return the number of bytes decoded, 0 at the end of the block, or -1 if the stream can only decode into the
+     * buffer, in which case {@link #fillBuffer()} is used.
+     */
+    protected int fillDirect(byte[] b, int off, int len) throws IOException {
+        return -1;
+    }
+
+    /** Reads from <code>is</code> until <code>len</code> bytes have been read or the stream ends. */
+    private static int readFully(InputStream is, byte[] b, int off, int len) throws IOException {
+        int totalBytesRead = 0;
+        while (totalBytesRead < len) {
+            int bytesRead = is.read(b, off + totalBytesRead, len - totalBytesRead);
+            if (bytesRead < 0)
+                break;
+            totalBytesRead += bytesRead;
+        }
+        return totalBytesRead;
+    }
+
     public static class ZlibBlockInputStream extends UDIFBlockInputStream {
 
-        private final Inflater inflater;
+        /** Taken from the {@link DecoderPool}, and given back once it's no longer needed. */
+        private Inflater inflater;
         private final byte[] inBuffer;
         private long inPos;
+        /** Number of decoded bytes delivered to the buffer so far. */
+        private long outPos = 0;
+        private final ZlibCheckpointIndex checkpoints;
+        /** Takes over from the inflater once we have jumped to a checkpoint. */
+        private DeflateDecoder resumedDecoder = null;
 
         public ZlibBlockInputStream(ReadableRandomAccessStream raf, UDIFBlock block, int addInOffset)
                 throws IOException {
+            this(raf, block, addInOffset, null);
+        }
+
+        /**
+         * Creates a stream that uses <code>checkpoints</code> (if not null) to make {@link #skip(long)} resume
+         * decoding near the target instead of decoding everything in between.
+         */
+        public ZlibBlockInputStream(ReadableRandomAccessStream raf, UDIFBlock block, int addInOffset,
+                                    ZlibCheckpointIndex checkpoints) throws IOException {
             super(raf, block, addInOffset);
-            inflater = new Inflater();
-            inBuffer = new byte[4096];
+            inflater = DecoderPool.acquireInflater();
+            // Large enough for the whole block in all but damaged images, so that it is fed to the inflater at once.
+            inBuffer = DecoderPool.acquireInputBuffer(
+                    (int) Math.min(block.getInSize(), DecoderPool.MAX_INPUT_BUFFER_SIZE));
             inPos = 0;
+            this.checkpoints = checkpoints;
             feedInflater();
         }
 
@@ -235,7 +348,13 @@ public abstract class UDIFBlockInputStream extends InputStream {
             int bytesToFeed = (int) Math.min(inBuffer.length, bytesLeftToRead);
 //            logger.log(Level.TRACE, "  bytesToFeed=" + bytesToFeed);
 
-            int curBytesRead = raf.read(inBuffer, 0, bytesToFeed);
+            int curBytesRead = 0;
+            while (curBytesRead < bytesToFeed) {
+                int res = raf.read(inBuffer, curBytesRead, bytesToFeed - curBytesRead);
+                if (res < 0)
+                    throw new DmgException("Unexpected end of file in zlib block at " + (seekPos + curBytesRead));
+                curBytesRead += res;
+            }
             inPos += curBytesRead;
             inflater.setInput(inBuffer, 0, curBytesRead);
 //            logger.log(Level.TRACE, "  curBytesRead=" + curBytesRead);
@@ -249,34 +368,91 @@ public abstract class UDIFBlockInputStream extends InputStream {
 //                logger.log(Level.TRACE, "INFLATER IS NULL");
 //            if (inBuffer == null)
 //                logger.log(Level.TRACE, "INBUFFER IS NULL");
-            if (inflater.finished()) {
-//                logger.log(Level.TRACE, "inflater claims to be finished...");
-                bufferPos = 0;
-                bufferDataLength = 0;
-            }
+            int bytesInflated = inflate(buffer, 0, buffer.length);
+
+            // The fillBuffer method is responsible for updating bufferPos
+            // and bufferDataLength
+            bufferPos = 0;
+            bufferDataLength = bytesInflated;
+//            logger.log(Level.TRACE, "}");
+        }
+
+        @Override
+        protected int fillDirect(byte[] b, int off, int len) throws IOException {
+            return inflate(b, off, len);
+        }
+
+        /** Inflates until <code>len</code> bytes have been produced or the block ends. */
+        private int inflate(byte[] b, int off, int len) throws IOException {
             try {
                 int bytesInflated = 0;
-                while (bytesInflated < buffer.length && !inflater.finished()) {
-                    if (inflater.needsInput())
-                        feedInflater();
-                    int res = inflater.inflate(buffer, bytesInflated,
-                            buffer.length - bytesInflated);
-                    if (res >= 0)
-                        bytesInflated += res;
-                    else
-                        throw new DmgException("Negative return value when inflating");
+                if (resumedDecoder != null) {
+                    while (bytesInflated < len && !resumedDecoder.finished())
+                        bytesInflated += resumedDecoder.inflate(b, off + bytesInflated, len - bytesInflated);
+                } else {
+                    while (bytesInflated < len && !inflater.finished()) {
+                        if (inflater.needsInput())
+                            feedInflater();
+                        int res = inflater.inflate(b, off + bytesInflated, len - bytesInflated);
+                        if (res >= 0)
+                            bytesInflated += res;
+                        else
+                            throw new DmgException("Negative return value when inflating");
+                    }
                 }
-
-                // The fillBuffer method is responsible for updating bufferPos
-                // and bufferDataLength
-                bufferPos = 0;
-                bufferDataLength = bytesInflated;
+                outPos += bytesInflated;
+                return bytesInflated;
             } catch (DataFormatException e) {
                 DmgException re = new DmgException("Invalid zlib data!");
                 re.initCause(e);
                 throw re;
             }
-//            logger.log(Level.TRACE, "}");
+        }
+
+        /**
+         * Jumps to the last checkpoint before the target, if that is ahead of what has already been decoded, and
+         * decodes only the rest.
+         */
+        @Override
+        public long skip(long n) throws IOException {
+            if (checkpoints != null && n > 0) {
+                long position = outPos - (bufferDataLength - bufferPos);
+                long target = position + n;
+                int i = checkpoints.find(target);
+                if (i >= 0 && checkpoints.getOutOffset(i) > outPos) {
+                    resumeAt(i);
+                    long skipped = checkpoints.getOutOffset(i) - position;
+                    globalBytesRead += skipped;
+                    return skipped + super.skip(target - checkpoints.getOutOffset(i));
+                }
+            }
+            return super.skip(n);
+        }
+
+        private void resumeAt(int checkpoint) throws IOException {
+            long inOffset = checkpoints.getInOffset(checkpoint);
+            int length = (int) (block.getInSize() - inOffset);
+            // The inflater is done with inBuffer after this, so the resumed decoder can have it.
+            byte[] data = length <= inBuffer.length ? inBuffer : new byte[length];
+            raf.seek(addInOffset + block.getTrueInOffset() + inOffset);
+            raf.readFully(data, 0, length);
+
+            resumedDecoder = checkpoints.resume(checkpoint, data, 0, length);
+            DecoderPool.releaseInflater(inflater);
+            inflater = null;
+            outPos = checkpoints.getOutOffset(checkpoint);
+            bufferPos = 0;
+            bufferDataLength = 0;
+        }
+
+        @Override
+        protected void releaseResources() {
+            super.releaseResources();
+            if (inflater != null) {
+                DecoderPool.releaseInflater(inflater);
+                inflater = null;
+            }
+            DecoderPool.releaseInputBuffer(inBuffer);
         }
     }
 
@@ -291,12 +467,19 @@ public abstract class UDIFBlockInputStream extends InputStream {
 
         @Override
         protected void fillBuffer() throws IOException {
+            // The fillBuffer method is responsible for updating bufferPos and bufferDataLength
+            bufferPos = 0;
+            bufferDataLength = fillDirect(buffer, 0, buffer.length);
+        }
+
+        @Override
+        protected int fillDirect(byte[] b, int off, int len) throws IOException {
             raf.seek(addInOffset + inPos + block.getTrueInOffset());
 
-            int bytesToRead = (int) Math.min(block.getInSize() - inPos, buffer.length);
+            int bytesToRead = (int) Math.min(block.getInSize() - inPos, len);
             int totalBytesRead = 0;
             while (totalBytesRead < bytesToRead) {
-                int bytesRead = raf.read(buffer, totalBytesRead, bytesToRead - totalBytesRead);
+                int bytesRead = raf.read(b, off + totalBytesRead, bytesToRead - totalBytesRead);
                 if (bytesRead < 0)
                     break;
                 else {
@@ -304,10 +487,7 @@ public abstract class UDIFBlockInputStream extends InputStream {
                     inPos += bytesRead;
                 }
             }
-
-            // The fillBuffer method is responsible for updating bufferPos and bufferDataLength
-            bufferPos = 0;
-            bufferDataLength = totalBytesRead;
+            return totalBytesRead;
         }
 
         /** Extremely more efficient skip method! */
@@ -339,13 +519,17 @@ public abstract class UDIFBlockInputStream extends InputStream {
 
         @Override
         protected void fillBuffer() throws IOException {
-            int bytesToWrite = (int) Math.min(block.getOutSize() - outPos, buffer.length);
-            Util.zero(buffer, 0, bytesToWrite);
-            outPos += bytesToWrite;
-
             // The fillBuffer method is responsible for updating bufferPos and bufferDataLength
             bufferPos = 0;
-            bufferDataLength = bytesToWrite;
+            bufferDataLength = fillDirect(buffer, 0, buffer.length);
+        }
+
+        @Override
+        protected int fillDirect(byte[] b, int off, int len) throws IOException {
+            int bytesToWrite = (int) Math.min(block.getOutSize() - outPos, len);
+            Util.zero(b, off, bytesToWrite);
+            outPos += bytesToWrite;
+            return bytesToWrite;
         }
 
         /** Extremely more efficient skip method! */
@@ -366,9 +550,65 @@ public abstract class UDIFBlockInputStream extends InputStream {
         }
     }
 
+    /**
+     * Serves a block whose contents have already been decoded into memory, for instance by a
+     * {@link UDIFBlockCache}.
+     */
+    public static class DecodedBlockInputStream extends UDIFBlockInputStream {
+
+        private final byte[] data;
+        private int outPos = 0;
+
+        public DecodedBlockInputStream(UDIFBlock block, byte[] data) {
+            super(null, block, 0);
+            this.data = data;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return data.length - outPos;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int bytesToRead = Math.min(len, data.length - outPos);
+            if (bytesToRead <= 0)
+                return len == 0 ? 0 : -1;
+
+            System.arraycopy(data, outPos, b, off, bytesToRead);
+            outPos += bytesToRead;
+            return bytesToRead;
+        }
+
+        @Override
+        protected void fillBuffer() throws IOException {
+            int bytesToCopy = Math.min(data.length - outPos, buffer.length);
+            System.arraycopy(data, outPos, buffer, 0, bytesToCopy);
+            outPos += bytesToCopy;
+
+            // The fillBuffer method is responsible for updating bufferPos and bufferDataLength
+            bufferPos = 0;
+            bufferDataLength = bytesToCopy;
+        }
+
+        /** Extremely more efficient skip method! */
+        @Override
+        public long skip(long n) throws IOException {
+            long bytesToSkip = Math.min(data.length - outPos, n);
+            if (bytesToSkip < 0) {
+                throw new RuntimeException("Internal error: bytesToSkip is negative (" + bytesToSkip + ").");
+            }
+
+            outPos += (int) bytesToSkip;
+            return bytesToSkip;
+        }
+    }
+
     public static class Bzip2BlockInputStream extends UDIFBlockInputStream {
 
         private final byte[] BZIP2_SIGNATURE = {0x42, 0x5A}; // 'BZ'
+        /** Decodes the block when it fits in memory, which is always except in damaged images. */
+        private final Bzip2Decoder decoder;
         private final InputStream bzip2DataStream;
         private final CBZip2InputStream decompressingStream;
         private long outPos = 0;
@@ -402,8 +642,16 @@ public abstract class UDIFBlockInputStream extends InputStream {
                 outStream.close();
             }
 
-            bzip2DataStream = new RandomAccessInputStream(
-                    new SynchronizedRandomAccessStream(raf), block.getTrueInOffset(), block.getInSize());
+            byte[] data = readCompressedData();
+            if (data != null) {
+                decoder = new Bzip2Decoder(data, 0, (int) block.getInSize());
+                bzip2DataStream = null;
+                decompressingStream = null;
+                return;
+            }
+
+            decoder = null;
+            bzip2DataStream = openCompressedData();
 
             byte[] signature = new byte[2];
             if (bzip2DataStream.read(signature) != signature.length)
@@ -417,28 +665,34 @@ public abstract class UDIFBlockInputStream extends InputStream {
 
         @Override
         protected void fillBuffer() throws IOException {
-
-            int bytesToRead = (int) Math.min(block.getOutSize() - outPos, buffer.length);
-            int totalBytesRead = 0;
-            while (totalBytesRead < bytesToRead) {
-                int bytesRead = decompressingStream.read(buffer, totalBytesRead, bytesToRead - totalBytesRead);
-                if (bytesRead < 0)
-                    break;
-                else {
-                    totalBytesRead += bytesRead;
-                    outPos += bytesRead;
-                }
-            }
-
             // The fillBuffer method is responsible for updating bufferPos and bufferDataLength
             bufferPos = 0;
-            bufferDataLength = totalBytesRead;
+            bufferDataLength = fillDirect(buffer, 0, buffer.length);
+        }
+
+        @Override
+        protected int fillDirect(byte[] b, int off, int len) throws IOException {
+            int bytesToRead = (int) Math.min(block.getOutSize() - outPos, len);
+            int totalBytesRead = decoder != null ? decoder.read(b, off, bytesToRead) :
+                    readFully(decompressingStream, b, off, bytesToRead);
+            outPos += totalBytesRead;
+            return totalBytesRead;
         }
 
         @Override
         public void close() throws IOException {
-            decompressingStream.close();
-            bzip2DataStream.close();
+            if (decompressingStream != null) {
+                decompressingStream.close();
+                bzip2DataStream.close();
+            }
+            super.close();
+        }
+
+        @Override
+        protected void releaseResources() {
+            super.releaseResources();
+            if (decoder != null)
+                decoder.release();
         }
     }
 }
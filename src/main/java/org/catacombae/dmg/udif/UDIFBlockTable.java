@@ -0,0 +1,253 @@
+package org.catacombae.dmg.udif;
+
+import java.util.Arrays;
+
+import org.catacombae.dmgextractor.Util;
+
+
+/**
+ * The blocks of one or more partitions, kept column by column in primitive arrays rather than as {@link UDIFBlock}
+ * objects, which takes 40 bytes per block and leaves nothing for the garbage collector to trace.<br>
+ * The partitions of a plist share one table, each {@link PlistPartition} covering a range of it, and
+ * {@link UDIFRandomAccessStream} reads from the same table. {@link #getBlock(int)} creates a {@link UDIFBlock} for
+ * code that wants one.<br>
+ * The offsets are stored compensated ("true"). The compensations are the same for all blocks of a partition, so they
+ * are stored once per segment, a segment being the blocks added after one call to
+ * {@link #startSegment(long, long)}.<br>
+ * A table is filled in by the code that parses the block tables, and doesn't change once it has been handed out.
+ */
+public class UDIFBlockTable {
+
+    private int size;
+    private int[] blockTypes;
+    private int[] reserved;
+    private long[] trueOutOffsets;
+    private long[] outSizes;
+    private long[] trueInOffsets;
+    private long[] inSizes;
+
+    private int segmentCount;
+    private int[] segmentStarts;
+    private long[] outOffsetComps;
+    private long[] inOffsetComps;
+
+    UDIFBlockTable() {
+        this(16);
+    }
+
+    UDIFBlockTable(int capacity) {
+        blockTypes = new int[capacity];
+        reserved = new int[capacity];
+        trueOutOffsets = new long[capacity];
+        outSizes = new long[capacity];
+        trueInOffsets = new long[capacity];
+        inSizes = new long[capacity];
+        segmentStarts = new int[1];
+        outOffsetComps = new long[1];
+        inOffsetComps = new long[1];
+    }
+
+    /** Returns the number of blocks in the table. */
+    public int size() {
+        return size;
+    }
+
+    public int getBlockType(int i) {
+        checkIndex(i);
+        return blockTypes[i];
+    }
+
+    public int getReserved(int i) {
+        checkIndex(i);
+        return reserved[i];
+    }
+
+    public long getOutOffset(int i) {
+        return getTrueOutOffset(i) - getOutOffsetCompensation(i);
+    }
+
+    public long getOutSize(int i) {
+        checkIndex(i);
+        return outSizes[i];
+    }
+
+    public long getInOffset(int i) {
+        return getTrueInOffset(i) - getInOffsetCompensation(i);
+    }
+
+    public long getInSize(int i) {
+        checkIndex(i);
+        return inSizes[i];
+    }
+
+    /** The same as {@link UDIFBlock#getTrueOutOffset()} of block <code>i</code>. */
+    public long getTrueOutOffset(int i) {
+        checkIndex(i);
+        return trueOutOffsets[i];
+    }
+
+    /** The same as {@link UDIFBlock#getTrueInOffset()} of block <code>i</code>. */
+    public long getTrueInOffset(int i) {
+        checkIndex(i);
+        return trueInOffsets[i];
+    }
+
+    public long getOutOffsetCompensation(int i) {
+        checkIndex(i);
+        return outOffsetComps[segmentOf(i)];
+    }
+
+    public long getInOffsetCompensation(int i) {
+        checkIndex(i);
+        return inOffsetComps[segmentOf(i)];
+    }
+
+    /** Creates a {@link UDIFBlock} with the fields of block <code>i</code>. */
+    public UDIFBlock getBlock(int i) {
+        checkIndex(i);
+        int segment = segmentOf(i);
+        long outOffsetComp = outOffsetComps[segment];
+        long inOffsetComp = inOffsetComps[segment];
+        return new UDIFBlock(blockTypes[i], reserved[i], trueOutOffsets[i] - outOffsetComp, outSizes[i],
+                trueInOffsets[i] - inOffsetComp, inSizes[i], outOffsetComp, inOffsetComp);
+    }
+
+    /** Returns the sum of the out sizes of the blocks from <code>from</code> up to, not including, <code>to</code>. */
+    public long getOutSize(int from, int to) {
+        if (from < 0 || to > size || from > to)
+            throw new IndexOutOfBoundsException("from=" + from + " to=" + to + " size=" + size);
+        long outSize = 0;
+        for (int i = from; i < to; ++i)
+            outSize += outSizes[i];
+        return outSize;
+    }
+
+    private void checkIndex(int i) {
+        if (i < 0 || i >= size)
+            throw new IndexOutOfBoundsException("Block " + i + " of " + size);
+    }
+
+    private int segmentOf(int i) {
+        int segment = Arrays.binarySearch(segmentStarts, 0, segmentCount, i);
+        if (segment < 0)
+            segment = -segment - 2; // the last segment starting before block i
+        else {
+            // Empty segments start at the same block as the one following them.
+            while (segment + 1 < segmentCount && segmentStarts[segment + 1] == i)
+                ++segment;
+        }
+        return segment;
+    }
+
+    /** Starts a new segment, whose blocks all have the given offset compensations. */
+    void startSegment(long outOffsetComp, long inOffsetComp) {
+        if (segmentCount == segmentStarts.length) {
+            int capacity = Math.max(4, segmentCount * 2);
+            segmentStarts = Arrays.copyOf(segmentStarts, capacity);
+            outOffsetComps = Arrays.copyOf(outOffsetComps, capacity);
+            inOffsetComps = Arrays.copyOf(inOffsetComps, capacity);
+        }
+        segmentStarts[segmentCount] = size;
+        outOffsetComps[segmentCount] = outOffsetComp;
+        inOffsetComps[segmentCount] = inOffsetComp;
+        ++segmentCount;
+    }
+
+    /** Makes room for <code>count</code> more blocks. */
+    void ensureCapacity(int count) {
+        if (count > blockTypes.length - size)
+            grow(Math.max(size + count, blockTypes.length * 2));
+    }
+
+    /**
+     * Adds a block of the current segment.
+     *
+     * @param outOffset the out offset of the block, without the compensation of the segment.
+     * @param inOffset  the in offset of the block, without the compensation of the segment.
+     */
+    void add(int blockType, int reserved, long outOffset, long outSize, long inOffset, long inSize) {
+        if (segmentCount == 0)
+            throw new IllegalStateException("No segment has been started");
+        if (size == blockTypes.length)
+            grow(Math.max(16, size * 2));
+        blockTypes[size] = blockType;
+        this.reserved[size] = reserved;
+        trueOutOffsets[size] = outOffset + outOffsetComps[segmentCount - 1];
+        outSizes[size] = outSize;
+        trueInOffsets[size] = inOffset + inOffsetComps[segmentCount - 1];
+        inSizes[size] = inSize;
+        ++size;
+    }
+
+    /** Adds the block at <code>offset</code> in a raw block table, whose layout is described in {@link UDIFBlock}. */
+    void add(byte[] data, int offset) {
+        add(Util.readIntBE(data, offset + 0),
+                Util.readIntBE(data, offset + 4),
+                Util.readLongBE(data, offset + 8) * 0x200,
+                Util.readLongBE(data, offset + 16) * 0x200,
+                Util.readLongBE(data, offset + 24),
+                Util.readLongBE(data, offset + 32));
+    }
+
+    /** Releases the unused capacity, once all blocks have been added. */
+    void trimToSize() {
+        if (size < blockTypes.length)
+            grow(size);
+        if (segmentCount < segmentStarts.length) {
+            segmentStarts = Arrays.copyOf(segmentStarts, segmentCount);
+            outOffsetComps = Arrays.copyOf(outOffsetComps, segmentCount);
+            inOffsetComps = Arrays.copyOf(inOffsetComps, segmentCount);
+        }
+    }
+
+    private void grow(int capacity) {
+        blockTypes = Arrays.copyOf(blockTypes, capacity);
+        reserved = Arrays.copyOf(reserved, capacity);
+        trueOutOffsets = Arrays.copyOf(trueOutOffsets, capacity);
+        outSizes = Arrays.copyOf(outSizes, capacity);
+        trueInOffsets = Arrays.copyOf(trueInOffsets, capacity);
+        inSizes = Arrays.copyOf(inSizes, capacity);
+    }
+
+    /**
+     * Returns one table holding the blocks of all of <code>partitions</code>, in order. That is the table the
+     * partitions already share if they cover it from start to end, otherwise a new one.
+     */
+    static UDIFBlockTable of(PlistPartition[] partitions) {
+        if (partitions.length > 0) {
+            UDIFBlockTable shared = partitions[0].getBlockTable();
+            int next = 0;
+            for (PlistPartition pp : partitions) {
+                if (pp.getBlockTable() != shared || pp.getFirstBlock() != next) {
+                    shared = null;
+                    break;
+                }
+                next += pp.getBlockCount();
+            }
+            if (shared != null && next == shared.size())
+                return shared;
+        }
+
+        int totalBlockCount = 0;
+        for (PlistPartition pp : partitions)
+            totalBlockCount += pp.getBlockCount();
+        UDIFBlockTable table = new UDIFBlockTable(totalBlockCount);
+        for (PlistPartition pp : partitions) {
+            UDIFBlockTable source = pp.getBlockTable();
+            int start = pp.getFirstBlock();
+            int end = start + pp.getBlockCount();
+            int segment = -1;
+            for (int i = start; i < end; ++i) {
+                int s = source.segmentOf(i);
+                if (s != segment) {
+                    table.startSegment(source.outOffsetComps[s], source.inOffsetComps[s]);
+                    segment = s;
+                }
+                table.add(source.blockTypes[i], source.reserved[i], source.getOutOffset(i), source.outSizes[i],
+                        source.getInOffset(i), source.inSizes[i]);
+            }
+        }
+        table.trimToSize();
+        return table;
+    }
+}
@@ -0,0 +1,149 @@
+package org.catacombae.dmg.udif;
+
+import org.catacombae.dmgextractor.Util;
+
+
+/**
+ * A checksum as stored in the koly block (for the data fork and the image as a whole) and in the header of each
+ * block table (for the decoded data of the partition).
+ * <pre>
+ * BP   Size   Type       Identifier  Description
+ * --------------------------------------------------------
+ * 0    4      UInt32     type        0: none, 2: CRC32
+ * 4    4      UInt32     size        the size of the checksum in bits
+ * 8    1*128  byte[128]  data        the checksum, big-endian, in the first size/8 bytes
+ * </pre>
+ * CRC32 is the only type seen in images so far, and the only one that can be verified.
+ */
+public class UDIFChecksum {
+
+    public static final int TYPE_NONE = 0;
+    public static final int TYPE_CRC32 = 2;
+
+    private static final int DATA_SIZE = 128;
+
+    private static final int POLYNOMIAL = 0xedb88320; // reflected, as in java.util.zip.CRC32
+
+    /** X2N[n] is x<sup>2<sup>n</sup></sup> modulo the CRC polynomial. */
+    private static final int[] X2N = new int[32];
+
+    static {
+        int p = 1 << 30; // x^1
+        X2N[0] = p;
+        for (int n = 1; n < 32; ++n)
+            X2N[n] = p = multiplyModP(p, p);
+    }
+
+    private final int type;
+    private final int size;
+    private final byte[] data = new byte[DATA_SIZE];
+
+    public UDIFChecksum(byte[] data, int offset) {
+        this.type = Util.readIntBE(data, offset + 0);
+        this.size = Util.readIntBE(data, offset + 4);
+        System.arraycopy(data, offset + 8, this.data, 0, DATA_SIZE);
+    }
+
+    UDIFChecksum(int type, int size, byte[] data) {
+        if (data.length != DATA_SIZE)
+            throw new IllegalArgumentException("data must be " + DATA_SIZE + " bytes (" + data.length + ")");
+        this.type = type;
+        this.size = size;
+        System.arraycopy(data, 0, this.data, 0, DATA_SIZE);
+    }
+
+    public static int structSize() {
+        return 4 + 4 + DATA_SIZE;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    /** Returns the size of the checksum in bits. */
+    public int getSize() {
+        return size;
+    }
+
+    /** Returns all of the data field, including the bytes after the checksum. */
+    public byte[] getData() {
+        return Util.createCopy(data);
+    }
+
+    /** Returns the checksum itself, the first {@link #getSize()} bits of the data field. */
+    public byte[] getValue() {
+        return Util.createCopy(data, 0, Math.min(Math.max(size, 0) / 8, DATA_SIZE));
+    }
+
+    /** Returns whether this is a CRC32 checksum, the only type that can be verified. */
+    public boolean isCRC32() {
+        return type == TYPE_CRC32 && size == 32;
+    }
+
+    public int getCRC32() {
+        if (!isCRC32())
+            throw new IllegalStateException("Not a CRC32 checksum: " + this);
+        return Util.readIntBE(data, 0);
+    }
+
+    public String getTypeAsString() {
+        return switch (type) {
+            case TYPE_NONE -> "none";
+            case TYPE_CRC32 -> "CRC32";
+            default -> "unknown type " + type;
+        };
+    }
+
+    @Override
+    public String toString() {
+        return getTypeAsString() + (type != TYPE_NONE ? " 0x" + Util.byteArrayToHexString(getValue()) : "");
+    }
+
+    /**
+     * Returns the CRC32 of two pieces of data put together, given the CRC32 of each and the length of the second,
+     * without going over the data again. This lets pieces be checksummed in any order, on any thread.<br>
+     * This is <code>crc32_combine</code> of zlib: <code>crc1</code> is multiplied by x<sup>8 * length2</sup> modulo
+     * the CRC polynomial, which moves it past the second piece.
+     */
+    public static int combineCRC32(int crc1, int crc2, long length2) {
+        if (length2 <= 0)
+            return crc1;
+        return multiplyModP(powerModP(length2, 3), crc1) ^ crc2;
+    }
+
+    /** Returns the CRC32 of <code>length</code> zero bytes. */
+    public static int zerosCRC32(long length) {
+        // The register starts out as all ones, is multiplied by x^(8 * length) and is inverted at the end.
+        if (length <= 0)
+            return 0;
+        return ~multiplyModP(powerModP(length, 3), 0xFFFFFFFF);
+    }
+
+    /** Returns a * b modulo the CRC polynomial, the bits being reflected. <code>a</code> must not be 0. */
+    private static int multiplyModP(int a, int b) {
+        int m = 1 << 31;
+        int p = 0;
+        while (true) {
+            if ((a & m) != 0) {
+                p ^= b;
+                if ((a & (m - 1)) == 0)
+                    break;
+            }
+            m >>>= 1;
+            b = (b & 1) != 0 ? (b >>> 1) ^ POLYNOMIAL : b >>> 1;
+        }
+        return p;
+    }
+
+    /** Returns x<sup>n * 2<sup>k</sup></sup> modulo the CRC polynomial. */
+    private static int powerModP(long n, int k) {
+        int p = 1 << 31; // x^0
+        while (n != 0) {
+            if ((n & 1) != 0)
+                p = multiplyModP(X2N[k & 31], p);
+            n >>>= 1;
+            ++k;
+        }
+        return p;
+    }
+}
@@ -17,17 +17,93 @@
 
 package org.catacombae.dmg.udif;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+
+import org.catacombae.dmgextractor.io.ReadableFileChannelStream;
 import org.catacombae.io.ReadableRandomAccessStream;
+import org.catacombae.io.RuntimeIOException;
+
+import static java.lang.System.getLogger;
+
 
+public class UDIFFile implements AutoCloseable {
 
-public class UDIFFile {
+    private static final Logger logger = getLogger(UDIFFile.class.getName());
 
     private final ReadableRandomAccessStream stream;
     private final UDIFFileView dmgView;
+    private final File file;
+    private final File indexFile;
+    /** Whether {@link #stream} was opened by this object, and so is closed by {@link #close()}. */
+    private final boolean ownsStream;
 
+    /** Reads the image in <code>stream</code>, which stays open when this object is closed. */
     public UDIFFile(ReadableRandomAccessStream stream) {
+        this(stream, null, null, false);
+    }
+
+    /**
+     * Opens <code>file</code> and keeps a binary index of its partitions and blocks in <code>indexFile</code>.<br>
+     * {@link #getPartitions()} loads the index instead of parsing the plist of the image, as long as the size and
+     * modification time of the image and the plist location and checksum in its koly block haven't changed since the
+     * index was written. Otherwise it parses the plist and writes a new index. Failing to read or write the index
+     * is logged, and doesn't stop the image from being read.<br>
+     * The file is kept open until {@link #close()} is called.
+     */
+    public UDIFFile(File file, File indexFile) throws RuntimeIOException {
+        this(open(file), file, indexFile, true);
+    }
+
+    private UDIFFile(ReadableRandomAccessStream stream, File file, File indexFile, boolean ownsStream) {
         this.stream = stream;
         this.dmgView = new UDIFFileView(stream);
+        this.file = file;
+        this.indexFile = indexFile;
+        this.ownsStream = ownsStream;
+    }
+
+    private static ReadableRandomAccessStream open(File file) throws RuntimeIOException {
+        try {
+            return new ReadableFileChannelStream(new RandomAccessFile(file, "r"), file.getPath());
+        } catch (IOException ioe) {
+            throw new RuntimeIOException(ioe);
+        }
+    }
+
+    /** Returns the partitions of the image, from its index file if there is a valid one. */
+    public PlistPartition[] getPartitions() throws IOException {
+        if (indexFile == null)
+            return dmgView.getPlist().getPartitions();
+
+        Koly koly = dmgView.getKoly();
+        if (indexFile.isFile()) {
+            try {
+                PlistPartition[] partitions = UDIFIndex.read(indexFile, file, koly);
+                if (partitions != null) {
+                    logger.log(Level.DEBUG, "Loaded the partitions of " + file + " from " + indexFile);
+                    return partitions;
+                }
+                logger.log(Level.DEBUG, indexFile + " is out of date");
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.WARNING, "Could not read the index " + indexFile + ": " + e);
+            }
+        }
+
+        PlistPartition[] partitions = dmgView.getPlist().getPartitions();
+        try {
+            UDIFIndex.write(indexFile, file, koly, partitions);
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.WARNING, "Could not write the index " + indexFile + ": " + e);
+        }
+        return partitions;
+    }
+
+    public File getIndexFile() {
+        return indexFile;
     }
 
     public UDIFFileView getView() {
@@ -37,4 +113,11 @@ public class UDIFFile {
     public ReadableRandomAccessStream getStream() {
         return stream;
     }
+
+    /** Closes the image file if it was opened by this object, otherwise leaves the stream to its owner. */
+    @Override
+    public void close() throws RuntimeIOException {
+        if (ownsStream)
+            stream.close();
+    }
 }
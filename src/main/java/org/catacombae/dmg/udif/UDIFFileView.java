@@ -21,7 +21,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 
-import org.catacombae.io.ReadableFileStream;
+import org.catacombae.dmgextractor.io.ReadableFileChannelStream;
 import org.catacombae.io.ReadableRandomAccessStream;
 import org.catacombae.io.RuntimeIOException;
 
@@ -33,7 +33,7 @@ public class UDIFFileView {
     public UDIFFileView(File file) {
         try {
 //            this.file = file;
-            this.dmgRaf = new ReadableFileStream(new RandomAccessFile(file, "r"), file.getPath());
+            this.dmgRaf = new ReadableFileChannelStream(new RandomAccessFile(file, "r"), file.getPath());
         } catch (IOException ioe) {
             throw new RuntimeIOException(ioe);
         }
@@ -0,0 +1,210 @@
+package org.catacombae.dmg.udif;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+
+/**
+ * A binary copy of the partitions and block tables of an UDIF image, so that opening the image again doesn't have to
+ * parse its plist.<br>
+ * The index starts with a key made of the size and modification time of the image and the plist location and master
+ * checksum from its koly block. An index is only used when its key matches the image, and when the CRC32 at its end
+ * matches its contents. Everything is big-endian.
+ * <pre>
+ * int     magic 'dmgi', version
+ * long    file size, file modification time (ms)
+ * long    plistBegin1, plistBegin2, plistSize
+ * int     checksumAlgorithm, checksumSize
+ * byte[]  checksumData (152 bytes)
+ * int     partition count
+ *   name, ID, attributes (a presence flag and a modified UTF-8 string each)
+ *   int   checksum type, checksum size
+ *   byte[] checksum data (128 bytes)
+ *   long  previous out offset, previous in offset, final out offset, final in offset
+ *   long  out offset compensation, in offset compensation (the same for all blocks of a partition)
+ *   int   block count
+ *     int block type, reserved
+ *     long out offset, out size, in offset, in size
+ * int     CRC32 of all of the above
+ * </pre>
+ */
+class UDIFIndex {
+
+    private static final int MAGIC = 0x646D6769; // ASCII: 'dmgi'
+    private static final int VERSION = 2;
+    private static final int CHECKSUM_DATA_SIZE = 152;
+    private static final int PARTITION_MIN_SIZE = 3 + UDIFChecksum.structSize() + 6 * 8 + 4;
+    private static final int BLOCK_SIZE = 2 * 4 + 4 * 8;
+
+    private UDIFIndex() {
+    }
+
+    /**
+     * Reads the partitions stored in <code>indexFile</code>.
+     *
+     * @return the partitions, or <code>null</code> if the index doesn't match <code>dmgFile</code> and
+     *         <code>koly</code>.
+     * @throws IOException if the index can't be read or is corrupt.
+     */
+    static PlistPartition[] read(File indexFile, File dmgFile, Koly koly) throws IOException {
+        byte[] data = Files.readAllBytes(indexFile.toPath());
+        if (data.length < 4)
+            throw new IOException("Truncated index " + indexFile);
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - 4);
+        if ((int) crc.getValue() != ByteBuffer.wrap(data, data.length - 4, 4).getInt())
+            throw new IOException("Checksum mismatch in index " + indexFile);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, data.length - 4));
+        if (in.readInt() != MAGIC)
+            throw new IOException("Not an index: " + indexFile);
+        if (in.readInt() != VERSION)
+            return null;
+        byte[] key = new byte[keySize()];
+        in.readFully(key);
+        if (!Arrays.equals(key, key(dmgFile, koly)))
+            return null;
+
+        int partitionCount = in.readInt();
+        if (partitionCount < 0 || partitionCount > in.available() / PARTITION_MIN_SIZE)
+            throw new IOException("Invalid partition count " + partitionCount + " in index " + indexFile);
+        PlistPartition[] partitions = new PlistPartition[partitionCount];
+        UDIFBlockTable blockTable = new UDIFBlockTable((in.available() - partitionCount * PARTITION_MIN_SIZE) /
+                BLOCK_SIZE);
+        for (int i = 0; i < partitionCount; ++i) {
+            String name = readString(in);
+            String id = readString(in);
+            String attributes = readString(in);
+            int checksumType = in.readInt();
+            int checksumSize = in.readInt();
+            byte[] checksumData = new byte[UDIFChecksum.structSize() - 8];
+            in.readFully(checksumData);
+            long previousOutOffset = in.readLong();
+            long previousInOffset = in.readLong();
+            long finalOutOffset = in.readLong();
+            long finalInOffset = in.readLong();
+            long outOffsetComp = in.readLong();
+            long inOffsetComp = in.readLong();
+            int blockCount = in.readInt();
+            if (blockCount < 0 || blockCount > in.available() / BLOCK_SIZE)
+                throw new IOException("Invalid block count " + blockCount + " in index " + indexFile);
+
+            int firstBlock = blockTable.size();
+            blockTable.ensureCapacity(blockCount);
+            blockTable.startSegment(outOffsetComp, inOffsetComp);
+            for (int j = 0; j < blockCount; ++j)
+                blockTable.add(in.readInt(), in.readInt(), in.readLong(), in.readLong(), in.readLong(), in.readLong());
+            partitions[i] = new PlistPartition(name, id, attributes,
+                    new UDIFChecksum(checksumType, checksumSize, checksumData), blockTable, firstBlock, blockCount,
+                    previousOutOffset, previousInOffset, finalOutOffset, finalInOffset);
+        }
+        blockTable.trimToSize();
+        if (in.available() != 0)
+            throw new IOException("Trailing data in index " + indexFile);
+        return partitions;
+    }
+
+    /**
+     * Stores <code>partitions</code> in <code>indexFile</code>, replacing it atomically where the file system allows
+     * it, so that readers never see a partially written index.
+     */
+    static void write(File indexFile, File dmgFile, Koly koly, PlistPartition[] partitions) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.write(key(dmgFile, koly));
+
+        out.writeInt(partitions.length);
+        for (PlistPartition pp : partitions) {
+            UDIFBlockTable blocks = pp.getBlockTable();
+            int start = pp.getFirstBlock();
+            int end = start + pp.getBlockCount();
+            long outOffsetComp = start < end ? blocks.getOutOffsetCompensation(start) : 0;
+            long inOffsetComp = start < end ? blocks.getInOffsetCompensation(start) : 0;
+            for (int i = start; i < end; ++i) {
+                if (blocks.getOutOffsetCompensation(i) != outOffsetComp ||
+                        blocks.getInOffsetCompensation(i) != inOffsetComp)
+                    throw new IllegalArgumentException("Partition \"" + pp.getName() +
+                            "\" has blocks with different offset compensations");
+            }
+
+            writeString(out, pp.getName());
+            writeString(out, pp.getID());
+            writeString(out, pp.getAttributes());
+            out.writeInt(pp.getChecksum().getType());
+            out.writeInt(pp.getChecksum().getSize());
+            out.write(pp.getChecksum().getData());
+            out.writeLong(pp.getPreviousOutOffset());
+            out.writeLong(pp.getPreviousInOffset());
+            out.writeLong(pp.getFinalOutOffset());
+            out.writeLong(pp.getFinalInOffset());
+            out.writeLong(outOffsetComp);
+            out.writeLong(inOffsetComp);
+            out.writeInt(pp.getBlockCount());
+            for (int i = start; i < end; ++i) {
+                out.writeInt(blocks.getBlockType(i));
+                out.writeInt(blocks.getReserved(i));
+                out.writeLong(blocks.getOutOffset(i));
+                out.writeLong(blocks.getOutSize(i));
+                out.writeLong(blocks.getInOffset(i));
+                out.writeLong(blocks.getInSize(i));
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+        out.flush();
+
+        Path target = indexFile.toPath().toAbsolutePath();
+        Path tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            Files.write(tmp, bytes.toByteArray());
+            try {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static int keySize() {
+        return 5 * 8 + 2 * 4 + CHECKSUM_DATA_SIZE;
+    }
+
+    private static byte[] key(File dmgFile, Koly koly) {
+        return ByteBuffer.allocate(keySize())
+                .putLong(dmgFile.length())
+                .putLong(dmgFile.lastModified())
+                .putLong(koly.getPlistBegin1())
+                .putLong(koly.getPlistBegin2())
+                .putLong(koly.getPlistSize())
+                .putInt(koly.getChecksumAlgorithm())
+                .putInt(koly.getChecksumSize())
+                .put(koly.getChecksumData(), 0, CHECKSUM_DATA_SIZE)
+                .array();
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null)
+            out.writeUTF(s);
+    }
+}
@@ -0,0 +1,287 @@
+package org.catacombae.dmg.udif;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Counters describing where the time goes when an UDIF image is read: bytes, chunk counts and read, decode and write
+ * times per block type and per partition, a latency histogram of the reads of an {@link UDIFRandomAccessStream},
+ * seeks, block cache hits and misses and prefetched blocks.<br>
+ * All methods may be called from any number of threads at once. The counters are only ever added to, so a summary
+ * taken while the image is being read is a consistent snapshot of each counter but not of all of them together.
+ */
+public class UDIFMetrics {
+
+    /** Counters of the blocks of one block type or one partition. */
+    public static class BlockStats {
+
+        private volatile String name;
+        private final LongAdder chunks = new LongAdder();
+        private final LongAdder bytesIn = new LongAdder();
+        private final LongAdder bytesOut = new LongAdder();
+        private final LongAdder readNanos = new LongAdder();
+        private final LongAdder decodeNanos = new LongAdder();
+        private final LongAdder writeNanos = new LongAdder();
+
+        private BlockStats(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /** Returns the number of blocks. */
+        public long getChunkCount() {
+            return chunks.sum();
+        }
+
+        /** Returns the number of bytes of block data in the image. */
+        public long getBytesIn() {
+            return bytesIn.sum();
+        }
+
+        /** Returns the number of bytes decoded from the blocks. */
+        public long getBytesOut() {
+            return bytesOut.sum();
+        }
+
+        /** Returns the time spent reading the image. */
+        public long getReadNanos() {
+            return readNanos.sum();
+        }
+
+        /** Returns the time spent decoding, not counting the reads of the image. */
+        public long getDecodeNanos() {
+            return decodeNanos.sum();
+        }
+
+        /** Returns the time spent writing the output. */
+        public long getWriteNanos() {
+            return writeNanos.sum();
+        }
+
+        /** Returns the number of bytes out per byte in, or 0 if no bytes were read (as for zero fills). */
+        public double getCompressionRatio() {
+            long in = getBytesIn();
+            return in > 0 ? (double) getBytesOut() / in : 0;
+        }
+
+        private void add(long in, long out, long read, long decode, long write) {
+            chunks.increment();
+            bytesIn.add(in);
+            bytesOut.add(out);
+            readNanos.add(read);
+            decodeNanos.add(decode);
+            writeNanos.add(write);
+        }
+
+        private String getSummary() {
+            return getChunkCount() + " chunks, " + getBytesIn() + " bytes in, " + getBytesOut() + " bytes out" +
+                    (getBytesIn() > 0 ? String.format(Locale.ROOT, " (ratio %.2f)", getCompressionRatio()) : "") +
+                    ", read " + millis(getReadNanos()) + ", decode " + millis(getDecodeNanos()) + ", write " +
+                    millis(getWriteNanos());
+        }
+    }
+
+    /**
+     * A histogram of latencies with buckets of powers of two nanoseconds, bucket <code>i</code> holding the latencies
+     * from 2<sup>i</sup> up to, not including, 2<sup>i+1</sup> ns (bucket 0 also holds 0 ns).
+     */
+    public static class LatencyHistogram {
+
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        private LatencyHistogram() {
+        }
+
+        void record(long nanos) {
+            nanos = Math.max(nanos, 0);
+            buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(nanos | 1));
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getTotalNanos() {
+            return totalNanos.sum();
+        }
+
+        public long getMaxNanos() {
+            return maxNanos.get();
+        }
+
+        /** Returns the number of latencies in each bucket. */
+        public long[] getBuckets() {
+            long[] res = new long[buckets.length()];
+            for (int i = 0; i < res.length; ++i)
+                res[i] = buckets.get(i);
+            return res;
+        }
+
+        /**
+         * Returns an upper bound of the <code>percentile</code>th percentile (0-100) of the latencies, which is the
+         * end of the bucket holding it, or 0 if nothing has been recorded.
+         */
+        public long getPercentileNanos(double percentile) {
+            long[] counts = getBuckets();
+            long total = 0;
+            for (long c : counts)
+                total += c;
+            long rank = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < counts.length; ++i) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0)
+                    return i < 62 ? (1L << (i + 1)) - 1 : Long.MAX_VALUE;
+            }
+            return 0;
+        }
+    }
+
+    private final Map<Integer, BlockStats> blockTypes = new ConcurrentSkipListMap<>(Integer::compareUnsigned);
+    private final Map<Integer, BlockStats> partitions = new ConcurrentSkipListMap<>();
+    private final LatencyHistogram readLatencies = new LatencyHistogram();
+    private final LongAdder seeks = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final LongAdder prefetches = new LongAdder();
+
+    /**
+     * Records a block.
+     *
+     * @param blockType   the type of the block.
+     * @param partition   the index of the partition of the block, or -1 if it isn't known.
+     * @param bytesIn     the number of bytes of block data in the image.
+     * @param bytesOut    the number of bytes decoded.
+     * @param readNanos   the time spent reading the image.
+     * @param decodeNanos the time spent decoding, not counting the reads of the image.
+     * @param writeNanos  the time spent writing the output.
+     */
+    public void recordBlock(int blockType, int partition, long bytesIn, long bytesOut, long readNanos,
+                            long decodeNanos, long writeNanos) {
+        blockTypes.computeIfAbsent(blockType, t -> new BlockStats(UDIFBlock.getBlockTypeAsString(t)))
+                .add(bytesIn, bytesOut, readNanos, decodeNanos, writeNanos);
+        if (partition >= 0)
+            partitions.computeIfAbsent(partition, p -> new BlockStats(null))
+                    .add(bytesIn, bytesOut, readNanos, decodeNanos, writeNanos);
+    }
+
+    /** Gives partition <code>partition</code> a name for the summary. */
+    public void setPartitionName(int partition, String name) {
+        partitions.computeIfAbsent(partition, p -> new BlockStats(null)).name = name;
+    }
+
+    /** Records the time taken by a read. */
+    public void recordRead(long nanos) {
+        readLatencies.record(nanos);
+    }
+
+    public void recordSeek() {
+        seeks.increment();
+    }
+
+    public void recordCacheHit() {
+        cacheHits.increment();
+    }
+
+    public void recordCacheMiss() {
+        cacheMisses.increment();
+    }
+
+    /** Records a block handed to a prefetcher, to be decoded ahead of the reader. */
+    public void recordPrefetch() {
+        prefetches.increment();
+    }
+
+    /** Returns the counters of each block type that has been recorded, by block type. */
+    public Map<Integer, BlockStats> getBlockTypeStats() {
+        return Collections.unmodifiableMap(blockTypes);
+    }
+
+    /** Returns the counters of each partition that has been recorded, by partition index. */
+    public Map<Integer, BlockStats> getPartitionStats() {
+        return Collections.unmodifiableMap(partitions);
+    }
+
+    public LatencyHistogram getReadLatencies() {
+        return readLatencies;
+    }
+
+    public long getSeekCount() {
+        return seeks.sum();
+    }
+
+    public long getCacheHitCount() {
+        return cacheHits.sum();
+    }
+
+    public long getCacheMissCount() {
+        return cacheMisses.sum();
+    }
+
+    public long getPrefetchCount() {
+        return prefetches.sum();
+    }
+
+    /** Describes the counters that have been recorded, in lines of text. Empty sections are left out. */
+    public String[] getSummary() {
+        List<String> lines = new ArrayList<>();
+        if (!blockTypes.isEmpty()) {
+            lines.add("Block types:");
+            for (BlockStats stats : blockTypes.values())
+                lines.add("  " + stats.getName() + ": " + stats.getSummary());
+        }
+        if (!partitions.isEmpty()) {
+            lines.add("Partitions:");
+            for (Map.Entry<Integer, BlockStats> e : partitions.entrySet()) {
+                String name = e.getValue().getName();
+                lines.add("  " + e.getKey() + (name != null ? " " + name : "") + ": " + e.getValue().getSummary());
+            }
+        }
+        long reads = readLatencies.getCount();
+        if (reads > 0) {
+            lines.add("Reads: " + reads + ", mean " + micros(readLatencies.getTotalNanos() / reads) +
+                    ", p50 <= " + micros(readLatencies.getPercentileNanos(50)) +
+                    ", p90 <= " + micros(readLatencies.getPercentileNanos(90)) +
+                    ", p99 <= " + micros(readLatencies.getPercentileNanos(99)) +
+                    ", max " + micros(readLatencies.getMaxNanos()));
+        }
+        if (getSeekCount() > 0)
+            lines.add("Seeks: " + getSeekCount());
+        if (getCacheHitCount() > 0 || getCacheMissCount() > 0)
+            lines.add("Block cache: " + getCacheHitCount() + " hits, " + getCacheMissCount() + " misses");
+        if (getPrefetchCount() > 0)
+            lines.add("Prefetched blocks: " + getPrefetchCount());
+        return lines.toArray(String[]::new);
+    }
+
+    public void print(PrintStream ps, String prefix) {
+        for (String line : getSummary())
+            ps.println(prefix + line);
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f ms", nanos / 1e6);
+    }
+
+    private static String micros(long nanos) {
+        return String.format(Locale.ROOT, "%.1f us", nanos / 1e3);
+    }
+}
@@ -18,22 +18,151 @@
 package org.catacombae.dmg.udif;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
 
+import org.catacombae.dmgextractor.DmgException;
+import org.catacombae.dmgextractor.io.ConcurrentReadableRandomAccessStream;
+import org.catacombae.dmgextractor.io.ReadableFileChannelStream;
 import org.catacombae.io.BasicReadableRandomAccessStream;
-import org.catacombae.io.ReadableFileStream;
 import org.catacombae.io.ReadableRandomAccessStream;
+import org.catacombae.io.ReadableRandomAccessSubstream;
 import org.catacombae.io.RuntimeIOException;
+import org.catacombae.io.SynchronizedReadableRandomAccessStream;
 
+import static java.lang.System.getLogger;
 
+
+/**
+ * Presents the decoded contents of an UDIF image as a random access stream.<br>
+ * The seek/read methods share one file pointer and must not be called from several threads at once.
+ * {@link #readAt(long, byte[], int, int)} keeps no shared position and may be called from any number of threads,
+ * also while another thread uses seek/read.<br>
+ * When seek/read moves from one block on to the next, the compressed blocks after it are decoded into the block cache
+ * on background threads, so that a sequential reader finds them decoded when it gets there and reading the image
+ * overlaps with decoding it.
+ */
 public class UDIFRandomAccessStream extends BasicReadableRandomAccessStream {
 
+    private static final Logger logger = getLogger(UDIFRandomAccessStream.class.getName());
+
+    /** A thread's position in the image for {@link #readAt(long, byte[], int, int)}. */
+    private static class ReadCursor {
+
+        /** The thread's own view of the image, with a file pointer of its own. */
+        final ReadableRandomAccessStream raf;
+        int blockIndex = -1;
+        UDIFBlockInputStream stream;
+        /** The position of <code>stream</code> in the virtual file. */
+        long pos;
+
+        ReadCursor(ReadableRandomAccessStream raf) {
+            this.raf = raf;
+        }
+
+        void reset() throws IOException {
+            if (stream != null)
+                stream.close();
+            stream = null;
+            blockIndex = -1;
+        }
+    }
+
+    /** The default size limit, in bytes, of the decoded block cache. */
+    public static final long DEFAULT_BLOCK_CACHE_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * The default distance, in decoded bytes, between random access checkpoints in large zlib blocks. Only blocks of
+     * at least {@link #CHECKPOINT_MIN_INTERVALS} intervals get checkpoints.
+     */
+    public static final int DEFAULT_ZLIB_CHECKPOINT_INTERVAL = 256 * 1024;
+    private static final int CHECKPOINT_MIN_INTERVALS = 4;
+    /**
+     * LZFSE checkpoints carry up to {@link LzfseDecoder#HISTORY_SIZE} bytes of history each, so they are kept at
+     * least four times that far apart to bound the size of the index to a quarter of the block.
+     */
+    private static final int LZFSE_MIN_CHECKPOINT_INTERVAL = 4 * LzfseDecoder.HISTORY_SIZE;
+
+    /** The default number of blocks to look ahead of a sequential reader. */
+    public static final int DEFAULT_PREFETCH_DEPTH = 4;
+
+    /**
+     * How long a prefetch thread waits for more work before it ends, so that a stream that is dropped without being
+     * closed leaves no threads behind.
+     */
+    static final long PREFETCH_KEEP_ALIVE_MILLIS = 1000;
+
     // We have a string of data divided into blocks. Different algorithms must be applied to
     // different types of blocks in order to extract the data.
     private final UDIFFile dmgFile;
-    private final UDIFBlock[] allBlocks;
-    private UDIFBlock currentBlock;
+    /**
+     * All reads of the image go through this stream, so that the seek/read pair of one reader is never split. Over a
+     * file, it reads at positions without taking a lock.
+     */
+    private final SynchronizedReadableRandomAccessStream syncStream;
+    /** The view of the image used by seek/read. */
+    private final ReadableRandomAccessStream cursorRaf;
+    private final ThreadLocal<ReadCursor> readCursors;
+    /**
+     * The cursors of all threads, so that {@link #close()} can release them. Held weakly, so the cursor of a thread
+     * that has ended goes away with it.
+     */
+    private final Set<ReadCursor> allReadCursors = Collections.synchronizedSet(Collections.newSetFromMap(
+            new WeakHashMap<>()));
+    /** The blocks of all partitions, usually the very table the partitions were parsed into. */
+    private final UDIFBlockTable allBlocks;
+    /**
+     * Lookup index over the blocks that carry data, sorted by true out offset. <code>blockStarts[i]</code> is the
+     * first byte and <code>blockEnds[i]</code> the first byte after the block <code>blockIndices[i]</code>.
+     * Zero-length markers (BT_END, BT_UNKNOWN...) are left out, so a seek is a binary search over this table.
+     */
+    private final long[] blockStarts;
+    private final long[] blockEnds;
+    private final int[] blockIndices;
+    private int currentBlockIndex;
     private UDIFBlockInputStream currentBlockStream;
+    /** Decoded contents of recently used compressed blocks, or null if caching is disabled. */
+    private final UDIFBlockCache blockCache;
+    private final UDIFMetrics metrics = new UDIFMetrics();
+    private final int zlibCheckpointInterval;
+    private final int lzfseCheckpointInterval;
+    /**
+     * Checkpoint indexes of large zlib blocks, by block index. Built the first time a seek lands deep in a block, by
+     * the first thread to get there. Other threads that need the same index wait for it, the rest don't.
+     */
+    private final ConcurrentHashMap<Integer, FutureTask<ZlibCheckpointIndex>> checkpointIndexes =
+            new ConcurrentHashMap<>();
+    /** Checkpoint indexes of large LZFSE blocks, by block index. */
+    private final ConcurrentHashMap<Integer, FutureTask<LzfseCheckpointIndex>> lzfseCheckpointIndexes =
+            new ConcurrentHashMap<>();
+    private final int prefetchDepth;
+    /**
+     * Decodes blocks ahead of seek/read. Created when first needed, and shut down by {@link #close()}. Its threads end
+     * when they have been idle for {@link #PREFETCH_KEEP_ALIVE_MILLIS}.
+     */
+    private ThreadPoolExecutor prefetcher;
+    /** Set by {@link #close()}, after which nothing more is prefetched. */
+    private boolean closed;
+    /** The position in the lookup index of the current block of seek/read, or -1 if it isn't known. */
+    private int currentLookupPos = -1;
+    /** The blocks of the lookup index before this position have been handed to the prefetcher. */
+    private int prefetchEnd = 0;
 
     private long length;
     /** This is the pointer to the current position in the virtual file provided by this stream. */
@@ -41,7 +170,7 @@ public class UDIFRandomAccessStream extends BasicReadableRandomAccessStream {
     private boolean seekCalled = false;
 
     public UDIFRandomAccessStream(RandomAccessFile raf, String openPath) throws RuntimeIOException {
-        this(new ReadableFileStream(raf, openPath));
+        this(new ReadableFileChannelStream(raf, openPath));
     }
 
     public UDIFRandomAccessStream(ReadableRandomAccessStream stream) throws RuntimeIOException {
@@ -49,32 +178,92 @@ public class UDIFRandomAccessStream extends BasicReadableRandomAccessStream {
     }
 
     public UDIFRandomAccessStream(UDIFFile dmgFile) throws RuntimeIOException {
+        this(dmgFile, DEFAULT_BLOCK_CACHE_SIZE);
+    }
+
+    /**
+     * Creates a new stream over the contents of <code>dmgFile</code>.
+     *
+     * @param dmgFile        the UDIF file to read.
+     * @param blockCacheSize the maximum number of bytes of decoded block data to keep in memory, so that seeking back
+     *                       into a recently read compressed block doesn't require decoding it again. 0 disables the
+     *                       cache.
+     */
+    public UDIFRandomAccessStream(UDIFFile dmgFile, long blockCacheSize) throws RuntimeIOException {
+        this(dmgFile, blockCacheSize, DEFAULT_ZLIB_CHECKPOINT_INTERVAL);
+    }
+
+    /**
+     * Creates a new stream over the contents of <code>dmgFile</code>.
+     *
+     * @param dmgFile                the UDIF file to read.
+     * @param blockCacheSize         the maximum number of bytes of decoded block data to keep in memory, so that
+     *                               seeking back into a recently read compressed block doesn't require decoding it
+     *                               again. 0 disables the cache.
+     * @param zlibCheckpointInterval the distance in decoded bytes between random access checkpoints inside large
+     *                               zlib blocks, which bounds how much has to be decoded to reach an offset inside
+     *                               such a block. LZFSE blocks use the same distance, but at least 1 MiB. 0
+     *                               disables checkpoints.
+     */
+    public UDIFRandomAccessStream(UDIFFile dmgFile, long blockCacheSize, int zlibCheckpointInterval)
+            throws RuntimeIOException {
+        this(dmgFile, blockCacheSize, zlibCheckpointInterval, DEFAULT_PREFETCH_DEPTH);
+    }
+
+    /**
+     * Creates a new stream over the contents of <code>dmgFile</code>.
+     *
+     * @param dmgFile                the UDIF file to read.
+     * @param blockCacheSize         the maximum number of bytes of decoded block data to keep in memory, so that
+     *                               seeking back into a recently read compressed block doesn't require decoding it
+     *                               again. 0 disables the cache.
+     * @param zlibCheckpointInterval the distance in decoded bytes between random access checkpoints inside large
+     *                               zlib blocks, which bounds how much has to be decoded to reach an offset inside
+     *                               such a block. LZFSE blocks use the same distance, but at least 1 MiB. 0
+     *                               disables checkpoints.
+     * @param prefetchDepth          the number of blocks to look ahead of a sequential reader. The compressed ones
+     *                               among them are decoded on up to as many background threads, as long as they
+     *                               take up no more than half of the block cache. 0, or a disabled block cache,
+     *                               disables prefetching.
+     */
+    public UDIFRandomAccessStream(UDIFFile dmgFile, long blockCacheSize, int zlibCheckpointInterval,
+                                  int prefetchDepth) throws RuntimeIOException {
+        if (prefetchDepth < 0)
+            throw new IllegalArgumentException("prefetchDepth must not be negative (" + prefetchDepth + ")");
+        this.prefetchDepth = blockCacheSize > 0 ? prefetchDepth : 0;
         this.dmgFile = dmgFile;
-//        logger.log(Level.TRACE, "dmgFile.getView().getPlist(); free memory: " + Runtime.getRuntime().freeMemory() + " total memory: " + Runtime.getRuntime().totalMemory());
-        Plist plist = dmgFile.getView().getPlist();
-//        logger.log(Level.TRACE, "before gc(): free memory: " + Runtime.getRuntime().freeMemory() + " total memory: " + Runtime.getRuntime().totalMemory());
-//        Runtime.getRuntime().gc();
-//        logger.log(Level.TRACE, "plist.getPartitions(); free memory: " + Runtime.getRuntime().freeMemory() + " total memory: " + Runtime.getRuntime().totalMemory());
+        this.syncStream = ConcurrentReadableRandomAccessStream.of(dmgFile.getStream());
+        this.cursorRaf = new ReadableRandomAccessSubstream(syncStream);
+        this.readCursors = ThreadLocal.withInitial(() -> {
+            ReadCursor cursor = new ReadCursor(new ReadableRandomAccessSubstream(syncStream));
+            allReadCursors.add(cursor);
+            return cursor;
+        });
+        this.blockCache = blockCacheSize > 0 ? new UDIFBlockCache(blockCacheSize, metrics) : null;
+        this.zlibCheckpointInterval = Math.max(zlibCheckpointInterval, 0);
+        this.lzfseCheckpointInterval = zlibCheckpointInterval > 0 ?
+                Math.max(zlibCheckpointInterval, LZFSE_MIN_CHECKPOINT_INTERVAL) : 0;
+//        logger.log(Level.TRACE, "dmgFile.getPartitions(); free memory: " + Runtime.getRuntime().freeMemory() + " total memory: " + Runtime.getRuntime().totalMemory());
         try {
-            PlistPartition[] partitions = plist.getPartitions();
+            PlistPartition[] partitions = dmgFile.getPartitions();
 
-            int totalBlockCount = 0;
-            for (PlistPartition pp : partitions) {
-                totalBlockCount += pp.getBlockCount();
-//                logger.log(Level.TRACE, "totalBlockCount = " + totalBlockCount);
-            }
-            allBlocks = new UDIFBlock[totalBlockCount];
-            int pos = 0;
-//            logger.log(Level.TRACE, "looping for each of " + partitions.length + " partitions...");
-            for (PlistPartition pp : partitions) {
-                UDIFBlock[] blocks = pp.getBlocks();
-//                logger.log(Level.TRACE, "Blocks in partition: " + blocks.length);
-                System.arraycopy(blocks, 0, allBlocks, pos, blocks.length);
-                pos += blocks.length;
+            allBlocks = UDIFBlockTable.of(partitions);
+            int totalBlockCount = allBlocks.size();
+            for (PlistPartition pp : partitions)
                 length += pp.getPartitionSize();
+
+            int dataBlockCount = 0;
+            for (int i = 0; i < totalBlockCount; ++i) {
+                if (allBlocks.getOutSize(i) > 0)
+                    ++dataBlockCount;
             }
+            blockStarts = new long[dataBlockCount];
+            blockEnds = new long[dataBlockCount];
+            blockIndices = new int[dataBlockCount];
+            buildBlockIndex();
+
             if (totalBlockCount > 0) {
-                currentBlock = allBlocks[0];
+                currentBlockIndex = 0;
 //                logger.log(Level.TRACE, "Repositioning stream");
                 repositionStream();
 //                logger.log(Level.TRACE, "repositioning done.");
@@ -86,8 +275,98 @@ public class UDIFRandomAccessStream extends BasicReadableRandomAccessStream {
         }
     }
 
+    /**
+     * Fills in the lookup index. The blocks are normally already ordered by out offset, but if a plist lists its
+     * partitions out of order we fall back to sorting the index.
+     */
+    private void buildBlockIndex() {
+        int pos = 0;
+        boolean sorted = true;
+        for (int i = 0; i < allBlocks.size(); ++i) {
+            if (allBlocks.getOutSize(i) <= 0)
+                continue;
+            blockIndices[pos] = i;
+            blockStarts[pos] = allBlocks.getTrueOutOffset(i);
+            if (pos > 0 && blockStarts[pos] < blockStarts[pos - 1])
+                sorted = false;
+            ++pos;
+        }
+
+        if (!sorted) {
+            Integer[] order = new Integer[blockIndices.length];
+            for (int i = 0; i < order.length; ++i)
+                order[i] = blockIndices[i];
+            Arrays.sort(order, (a, b) -> Long.compare(allBlocks.getTrueOutOffset(a), allBlocks.getTrueOutOffset(b)));
+            for (int i = 0; i < order.length; ++i) {
+                blockIndices[i] = order[i];
+                blockStarts[i] = allBlocks.getTrueOutOffset(order[i]);
+            }
+        }
+
+        for (int i = 0; i < blockIndices.length; ++i)
+            blockEnds[i] = blockStarts[i] + allBlocks.getOutSize(blockIndices[i]);
+    }
+
+    /**
+     * Returns the index in <code>allBlocks</code> of the block containing the byte at <code>pos</code>, or -1 if no
+     * block covers that position.
+     */
+    private int findBlock(long pos) {
+        int i = findLookupPos(pos);
+        return i >= 0 ? blockIndices[i] : -1;
+    }
+
+    /**
+     * Returns the position in the lookup index of the block containing the byte at <code>pos</code>, or -1 if no
+     * block covers that position.
+     */
+    private int findLookupPos(long pos) {
+        int i = Arrays.binarySearch(blockStarts, pos);
+        if (i < 0)
+            i = -i - 2; // the last block starting before pos
+        if (i < 0 || pos >= blockEnds[i])
+            return -1;
+        return i;
+    }
+
+    /**
+     * Returns the counters of this stream: the latencies of its reads (through read and readAt), its seeks and the
+     * hits and misses of its block cache.
+     */
+    public UDIFMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Stops prefetching and releases the decoders of all threads. Blocks that are being decoded in the background are
+     * finished, but no more are started. Must not be called while other threads are reading.<br>
+     * The image is closed with {@link UDIFFile#close()}, so a file opened by
+     * {@link UDIFFile#UDIFFile(java.io.File, java.io.File)} is closed as well, while a stream passed in by the caller
+     * is left open.
+     */
     @Override
     public void close() throws RuntimeIOException {
+        synchronized (this) {
+            closed = true;
+            if (prefetcher != null)
+                prefetcher.shutdown();
+            prefetcher = null;
+        }
+        List<ReadCursor> cursors;
+        synchronized (allReadCursors) {
+            cursors = new ArrayList<>(allReadCursors);
+        }
+        try {
+            if (currentBlockStream != null)
+                currentBlockStream.close();
+            currentBlockStream = null;
+            for (ReadCursor cursor : cursors)
+                cursor.reset();
+        } catch (IOException ex) {
+            throw new RuntimeIOException(ex);
+        } finally {
+            dmgFile.close();
+        }
     }
 
     @Override
@@ -116,6 +395,7 @@ public class UDIFRandomAccessStream extends BasicReadableRandomAccessStream {
 
     @Override
     public int read(byte[] b, int off, int len) throws RuntimeIOException {
+        long start = System.nanoTime();
         try {
 //            logger.log(Level.TRACE, "UDIFRandomAccessStream.read(b.length=" + b.length + ", " + off + ", " + len + ") {");
             if (seekCalled) {
@@ -162,12 +442,95 @@ public class UDIFRandomAccessStream extends BasicReadableRandomAccessStream {
             return bytesRead;
         } catch (IOException ex) {
             throw new RuntimeIOException(ex);
+        } finally {
+            metrics.recordRead(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Reads up to <code>len</code> bytes at position <code>pos</code> of the virtual file, without using or moving
+     * the file pointer. Safe to call from several threads at once. Each thread keeps its own decoder state, so a
+     * thread that reads a region in consecutive calls doesn't have to decode the current block again on every call.
+     *
+     * @return the number of bytes read, which is less than <code>len</code> only at the end of the data, or -1 if
+     * there is no data at <code>pos</code>.
+     */
+    public int readAt(long pos, byte[] b, int off, int len) throws RuntimeIOException {
+        if (pos < 0)
+            throw new IllegalArgumentException("Negative position: " + pos);
+        if (off < 0 || len < 0 || len > b.length - off)
+            throw new IndexOutOfBoundsException("off=" + off + " len=" + len + " b.length=" + b.length);
+
+        long start = System.nanoTime();
+        ReadCursor cursor = readCursors.get();
+        try {
+            int bytesRead = 0;
+            while (bytesRead < len) {
+                long curPos = pos + bytesRead;
+                if (!positionCursor(cursor, curPos))
+                    break;
+
+                int curBytesRead = cursor.stream.read(b, off + bytesRead, len - bytesRead);
+                if (curBytesRead <= 0) {
+                    // The block holds less data than it claims.
+                    cursor.reset();
+                    break;
+                }
+                bytesRead += curBytesRead;
+                cursor.pos += curBytesRead;
+            }
+            return bytesRead == 0 && len > 0 ? -1 : bytesRead;
+        } catch (IOException ex) {
+            throw new RuntimeIOException(ex);
+        } catch (RuntimeException ex) {
+            try {
+                cursor.reset();
+            } catch (IOException e) {
+                ex.addSuppressed(e);
+            }
+            throw ex;
+        } finally {
+            metrics.recordRead(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Moves the cursor to <code>pos</code>, reusing its open block stream when <code>pos</code> lies ahead of it in
+     * the same block.
+     *
+     * @return false if no block covers <code>pos</code>.
+     */
+    private boolean positionCursor(ReadCursor cursor, long pos) throws IOException {
+        if (cursor.stream != null && cursor.pos == pos && pos < blockEnd(cursor.blockIndex))
+            return true;
+
+        int blockIndex = findBlock(pos);
+        if (blockIndex < 0) {
+            cursor.reset();
+            return false;
+        }
+
+        if (cursor.stream != null && cursor.blockIndex == blockIndex && cursor.pos < pos) {
+            cursor.stream.skip(pos - cursor.pos);
+        } else {
+            cursor.reset();
+            long offsetInBlock = pos - allBlocks.getTrueOutOffset(blockIndex);
+            cursor.stream = openBlockStream(cursor.raf, blockIndex, offsetInBlock);
+            cursor.blockIndex = blockIndex;
+            cursor.stream.skip(offsetInBlock);
         }
+        cursor.pos = pos;
+        return true;
+    }
+
+    private long blockEnd(int blockIndex) {
+        return allBlocks.getTrueOutOffset(blockIndex) + allBlocks.getOutSize(blockIndex);
     }
 
     @Override
     public void seek(long pos) throws RuntimeIOException {
         if (logicalFilePointer != pos) {
+            metrics.recordSeek();
             seekCalled = true;
             logicalFilePointer = pos;
         }
@@ -177,30 +540,28 @@ public class UDIFRandomAccessStream extends BasicReadableRandomAccessStream {
 //        logger.log(Level.TRACE, "<UDIFRandomAccessStream.repositionStream()>");
         try {
             // if the global file pointer is not within the bounds of the current block, then find the accurate block
-            if (!(currentBlock.getTrueOutOffset() <= logicalFilePointer &&
-                    (currentBlock.getTrueOutOffset() + currentBlock.getOutSize()) > logicalFilePointer)) {
-                UDIFBlock soughtBlock = null;
-                for (UDIFBlock dblk : allBlocks) {
-                    long startPos = dblk.getTrueOutOffset();
-                    long endPos = startPos + dblk.getOutSize();
-                    if (startPos <= logicalFilePointer && endPos > logicalFilePointer) {
-                        soughtBlock = dblk;
-                        break;
-                    }
-                }
-                if (soughtBlock != null) {
-//                    logger.log(Level.TRACE, "REPOSITION " + currentBlock.getBlockTypeAsString() + "(" + currentBlock.getTrueOutOffset() + "," + currentBlock.getOutSize() + ") -> " + soughtBlock.getBlockTypeAsString() + "(" + soughtBlock.getTrueOutOffset() + "," + soughtBlock.getOutSize() + ")");
-//                    if (soughtBlock.getTrueOutOffset() == currentBlock.getTrueOutOffset() + currentBlock.getOutSize())
-//                        logger.log(Level.TRACE, "  Continuous! :)");
-//                    else
-//                        logger.log(Level.TRACE, "  FUCKADSFOA!!!1one");
-                    currentBlock = soughtBlock;
+            if (!(allBlocks.getTrueOutOffset(currentBlockIndex) <= logicalFilePointer &&
+                    blockEnd(currentBlockIndex) > logicalFilePointer)) {
+                int lookupPos = findLookupPos(logicalFilePointer);
+                if (lookupPos >= 0) {
+                    currentBlockIndex = blockIndices[lookupPos];
+                    if (currentLookupPos >= 0 && lookupPos == currentLookupPos + 1)
+                        prefetch(lookupPos + 1);
+                    else
+                        prefetchEnd = lookupPos + 1; // a seek, which ends the sequential run
+                    currentLookupPos = lookupPos;
                 } else
                     throw new RuntimeException("Trying to seek outside bounds.");
+            } else if (currentLookupPos < 0) {
+                currentLookupPos = findLookupPos(logicalFilePointer);
             }
 
-            currentBlockStream = UDIFBlockInputStream.getStream(dmgFile.getStream(), currentBlock);
-            long bytesToSkip = logicalFilePointer - currentBlock.getTrueOutOffset();
+            long bytesToSkip = logicalFilePointer - allBlocks.getTrueOutOffset(currentBlockIndex);
+            UDIFBlockInputStream newBlockStream = openBlockStream(cursorRaf, currentBlockIndex, bytesToSkip);
+            // Hands the decoder of the previous block back to the pool.
+            if (currentBlockStream != null)
+                currentBlockStream.close();
+            currentBlockStream = newBlockStream;
 //            logger.log(Level.TRACE, "  skipping " + bytesToSkip + " bytes...");
             currentBlockStream.skip(bytesToSkip);
 //            logger.log(Level.TRACE, "done.");
@@ -209,4 +570,193 @@ public class UDIFRandomAccessStream extends BasicReadableRandomAccessStream {
         }
 //        logger.log(Level.TRACE, "</UDIFRandomAccessStream.repositionStream()>");
     }
+
+    /**
+     * Hands the compressed blocks among the {@link #prefetchDepth} blocks from position <code>lookupPos</code> of the
+     * lookup index on to the prefetcher, unless they have been already. The blocks are decoded through the block
+     * cache, which hands them over to seek/read when it gets there, also while they are still being decoded. They are
+     * only taken up to half of the cache, so that they don't push each other out of it before they are read.
+     */
+    private void prefetch(int lookupPos) {
+        if (prefetchDepth == 0)
+            return;
+
+        long budget = blockCache.getMaxSize() / 2;
+        int end = Math.min(lookupPos + prefetchDepth, blockIndices.length);
+        for (int i = lookupPos; i < end; ++i) {
+            int blockIndex = blockIndices[i];
+            UDIFBlock block = allBlocks.getBlock(blockIndex);
+            if (!isCacheable(block))
+                continue;
+            budget -= block.getOutSize();
+            if (budget < 0)
+                break;
+            if (i >= prefetchEnd) {
+                submitPrefetch(blockIndex);
+                prefetchEnd = i + 1;
+            }
+        }
+    }
+
+    private synchronized void submitPrefetch(int blockIndex) {
+        if (closed)
+            return;
+        if (prefetcher == null) {
+            int threads = Math.min(prefetchDepth, Runtime.getRuntime().availableProcessors());
+            prefetcher = new ThreadPoolExecutor(threads, threads, PREFETCH_KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(), r -> {
+                Thread t = new Thread(r, "UDIFRandomAccessStream-prefetch");
+                t.setDaemon(true);
+                return t;
+            });
+            prefetcher.allowCoreThreadTimeOut(true);
+        }
+        ExecutorService executor = prefetcher;
+        metrics.recordPrefetch();
+        executor.execute(() -> {
+            // Blocks still queued when the stream is closed are dropped. A decode is never interrupted, as that
+            // could close a channel shared with the readers of the image.
+            if (executor.isShutdown())
+                return;
+            try {
+                blockCache.get(blockIndex, i -> decodeBlock(readCursors.get().raf, i));
+            } catch (IOException | RuntimeException e) {
+                // The reader will run into the same error, and report it, when it gets to the block.
+                logger.log(Level.DEBUG, "prefetch of block " + blockIndex + " failed: " + e);
+            }
+        });
+    }
+
+    /**
+     * Opens a stream over the block <code>blockIndex</code>, reading the image through <code>raf</code>,
+     * which the caller is going to skip <code>offsetInBlock</code> bytes into. A large zlib or LZFSE block entered far
+     * from its start is decoded from the nearest checkpoint, unless it is already in the block cache. Other
+     * compressed blocks are served from the block cache if they fit there.
+     */
+    private UDIFBlockInputStream openBlockStream(ReadableRandomAccessStream raf, int blockIndex, long offsetInBlock)
+            throws IOException {
+        UDIFBlock block = allBlocks.getBlock(blockIndex);
+        int checkpointInterval = getCheckpointInterval(block);
+        if (checkpointInterval > 0 && offsetInBlock >= checkpointInterval) {
+            byte[] cached = blockCache != null ? blockCache.getIfPresent(blockIndex) : null;
+            if (cached != null)
+                return new UDIFBlockInputStream.DecodedBlockInputStream(block, cached);
+            if (block.getBlockType() == UDIFBlock.BT_LZFSE)
+                return new LzfseBlockInputStream(raf, block, 0, getLzfseCheckpointIndex(raf, blockIndex));
+            return new UDIFBlockInputStream.ZlibBlockInputStream(raf, block, 0, getCheckpointIndex(raf, blockIndex));
+        }
+
+        if (blockCache != null && isCacheable(block))
+            return new UDIFBlockInputStream.DecodedBlockInputStream(block,
+                    blockCache.get(blockIndex, i -> decodeBlock(raf, i)));
+        else
+            return UDIFBlockInputStream.getStream(raf, block);
+    }
+
+    /** Only compressed blocks are worth caching, as the others are cheap to read again. */
+    private boolean isCacheable(UDIFBlock block) {
+        return switch (block.getBlockType()) {
+            case UDIFBlock.BT_ZLIB, UDIFBlock.BT_BZIP2, UDIFBlock.BT_LZFSE ->
+                    block.getOutSize() <= blockCache.getMaxSize();
+            default -> false;
+        };
+    }
+
+    /** Returns the distance between the checkpoints of <code>block</code>, or 0 if it doesn't get any. */
+    private int getCheckpointInterval(UDIFBlock block) {
+        int interval = switch (block.getBlockType()) {
+            case UDIFBlock.BT_ZLIB -> zlibCheckpointInterval;
+            case UDIFBlock.BT_LZFSE -> lzfseCheckpointInterval;
+            default -> 0;
+        };
+        return interval > 0 && block.getOutSize() >= (long) interval * CHECKPOINT_MIN_INTERVALS ? interval : 0;
+    }
+
+    private ZlibCheckpointIndex getCheckpointIndex(ReadableRandomAccessStream raf, int blockIndex)
+            throws IOException {
+        return getIndex(checkpointIndexes, blockIndex, () -> {
+            byte[] data = readBlockData(raf, blockIndex);
+            try {
+                return ZlibCheckpointIndex.build(data, 0, data.length, zlibCheckpointInterval);
+            } catch (DataFormatException e) {
+                DmgException de = new DmgException("Invalid zlib data!");
+                de.initCause(e);
+                throw de;
+            }
+        });
+    }
+
+    private LzfseCheckpointIndex getLzfseCheckpointIndex(ReadableRandomAccessStream raf, int blockIndex)
+            throws IOException {
+        return getIndex(lzfseCheckpointIndexes, blockIndex, () -> {
+            byte[] data = readBlockData(raf, blockIndex);
+            return LzfseCheckpointIndex.build(data, 0, data.length, (int) allBlocks.getOutSize(blockIndex),
+                    lzfseCheckpointInterval);
+        });
+    }
+
+    /** Builds a checkpoint index. */
+    private interface IndexBuilder<T> {
+
+        T build() throws IOException;
+    }
+
+    /**
+     * Returns the index of block <code>blockIndex</code> from <code>indexes</code>, building it with
+     * <code>builder</code> on the calling thread if no other thread has done so or is doing so. A failed build is
+     * forgotten, so that the next thread tries again and gets to report the error itself.
+     */
+    private static <T> T getIndex(ConcurrentHashMap<Integer, FutureTask<T>> indexes, int blockIndex,
+                                  IndexBuilder<T> builder) throws IOException {
+        FutureTask<T> task = indexes.get(blockIndex);
+        if (task == null) {
+            FutureTask<T> newTask = new FutureTask<>(builder::build);
+            task = indexes.putIfAbsent(blockIndex, newTask);
+            if (task == null) {
+                task = newTask;
+                task.run();
+            }
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the index of block " + blockIndex);
+        } catch (ExecutionException e) {
+            indexes.remove(blockIndex, task);
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException ioe)
+                throw ioe;
+            else if (cause instanceof RuntimeException re)
+                throw re;
+            else if (cause instanceof Error err)
+                throw err;
+            else
+                throw new IOException(cause);
+        }
+    }
+
+    /** Reads the compressed data of the block <code>blockIndex</code> through <code>raf</code>. */
+    private byte[] readBlockData(ReadableRandomAccessStream raf, int blockIndex) throws IOException {
+        byte[] data = new byte[(int) allBlocks.getInSize(blockIndex)];
+        raf.seek(allBlocks.getTrueInOffset(blockIndex));
+        raf.readFully(data);
+        return data;
+    }
+
+    /** Decodes the entire block <code>blockIndex</code> into memory, reading it through <code>raf</code>. */
+    private byte[] decodeBlock(ReadableRandomAccessStream raf, int blockIndex) throws IOException {
+        UDIFBlock block = allBlocks.getBlock(blockIndex);
+        byte[] data = new byte[(int) block.getOutSize()];
+        int bytesRead = 0;
+        try (UDIFBlockInputStream is = UDIFBlockInputStream.getStream(raf, block)) {
+            while (bytesRead < data.length) {
+                int res = is.read(data, bytesRead, data.length - bytesRead);
+                if (res < 0)
+                    break;
+                bytesRead += res;
+            }
+        }
+        return bytesRead == data.length ? data : Arrays.copyOf(data, bytesRead);
+    }
 }
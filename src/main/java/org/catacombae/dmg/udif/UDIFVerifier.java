@@ -0,0 +1,388 @@
+package org.catacombae.dmg.udif;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+import org.catacombae.dmgextractor.io.ConcurrentReadableRandomAccessStream;
+import org.catacombae.dmgextractor.io.ReadableFileChannelStream;
+import org.catacombae.io.ReadableRandomAccessStream;
+import org.catacombae.io.ReadableRandomAccessSubstream;
+import org.catacombae.io.SynchronizedReadableRandomAccessStream;
+
+
+/**
+ * Verifies the checksums of an UDIF image, which are:
+ * <ul>
+ * <li>the checksum of the data fork in the koly block, over the compressed block data as stored in the file,</li>
+ * <li>the master checksum in the koly block, over the checksums of the block tables taken together in order,</li>
+ * <li>the checksum in the header of each block table, over the decoded data of the blocks of the partition, leaving
+ * out the BT_ZERO blocks (block type 2, which Apple's tools write for free space).</li>
+ * </ul>
+ * The first two only need the image to be read, which makes for a fast check. The partition checksums need all
+ * blocks to be decoded, which {@link #verify(boolean, int)} does on a pool of threads, one partition per task. An
+ * extraction decodes the blocks anyway, so it can feed them to a {@link PartitionChecksum} instead, in any order.<br>
+ * Only CRC32 checksums can be verified, which is the only type seen in images so far.
+ */
+public class UDIFVerifier {
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    public enum Status {
+        /** The checksum matches. */
+        OK,
+        /** The checksum doesn't match. */
+        MISMATCH,
+        /** The image has no checksum here (type 0). */
+        NONE,
+        /** The checksum has a type that can't be computed. */
+        UNSUPPORTED,
+        /** The data could not be read or decoded. */
+        FAILED
+    }
+
+    /** The outcome of verifying one checksum. */
+    public static class Result {
+
+        private final String subject;
+        private final UDIFChecksum expected;
+        private final Status status;
+        private final int actual;
+        private final String message;
+
+        private Result(String subject, UDIFChecksum expected, Status status, int actual, String message) {
+            this.subject = subject;
+            this.expected = expected;
+            this.status = status;
+            this.actual = actual;
+            this.message = message;
+        }
+
+        /** Returns what was checksummed, such as "data fork" or "partition 2 (disk image)". */
+        public String getSubject() {
+            return subject;
+        }
+
+        public UDIFChecksum getExpected() {
+            return expected;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        /** Returns the computed CRC32, if the status is {@link Status#OK} or {@link Status#MISMATCH}. */
+        public int getActualCRC32() {
+            return actual;
+        }
+
+        /** Returns whether this result means the image is damaged. */
+        public boolean isError() {
+            return status == Status.MISMATCH || status == Status.FAILED;
+        }
+
+        @Override
+        public String toString() {
+            return subject + ": " + switch (status) {
+                case OK -> "OK (" + expected + ")";
+                case MISMATCH -> "checksum mismatch (expected " + expected + ", computed CRC32 0x" +
+                        String.format("%08x", actual) + ")";
+                case NONE -> "no checksum";
+                case UNSUPPORTED -> "checksum not verified (" + expected.getTypeAsString() + ")";
+                case FAILED -> "could not be verified (" + message + ")";
+            };
+        }
+    }
+
+    /**
+     * Computes the CRC32 of the decoded data of a partition from the CRC32s of its blocks, which can be added in any
+     * order and from any number of threads. The blocks are put together by their out offsets when
+     * {@link #getCRC32()} is called, using {@link UDIFChecksum#combineCRC32(int, int, long)}.
+     */
+    public static class PartitionChecksum {
+
+        private record Piece(long length, int crc) {
+        }
+
+        private final Map<Long, Piece> pieces = new TreeMap<>();
+
+        /** Returns whether the data of blocks of type <code>blockType</code> counts towards the checksum. */
+        public static boolean covers(int blockType) {
+            return switch (blockType) {
+                case UDIFBlock.BT_ZERO, UDIFBlock.BT_END, UDIFBlock.BT_UNKNOWN -> false;
+                default -> true;
+            };
+        }
+
+        /**
+         * Adds the block at out offset <code>outOffset</code>, whose <code>length</code> bytes of decoded data have
+         * CRC32 <code>crc</code>.
+         */
+        public synchronized void add(long outOffset, int crc, long length) {
+            if (length > 0)
+                pieces.put(outOffset, new Piece(length, crc));
+        }
+
+        /** Adds a block of <code>length</code> zeros at out offset <code>outOffset</code>. */
+        public void addZeros(long outOffset, long length) {
+            add(outOffset, UDIFChecksum.zerosCRC32(length), length);
+        }
+
+        public synchronized int getCRC32() {
+            int crc = 0;
+            for (Piece piece : pieces.values())
+                crc = UDIFChecksum.combineCRC32(crc, piece.crc(), piece.length());
+            return crc;
+        }
+    }
+
+    private final SynchronizedReadableRandomAccessStream syncStream;
+    private final Koly koly;
+    private final PlistPartition[] partitions;
+
+    public UDIFVerifier(UDIFFile file) throws IOException {
+        this(file.getStream(), file.getView().getKoly(), file.getPartitions());
+    }
+
+    /**
+     * @param stream     the image. It must not be used by anyone else while this verifier is in use.
+     * @param koly       the koly block of the image.
+     * @param partitions the partitions of the image.
+     */
+    public UDIFVerifier(ReadableRandomAccessStream stream, Koly koly, PlistPartition[] partitions) {
+        this.syncStream = ConcurrentReadableRandomAccessStream.of(stream);
+        this.koly = koly;
+        this.partitions = partitions;
+    }
+
+    /** Checksums the data fork, as stored in the image. */
+    public Result verifyDataFork() {
+        return verifyDataFork(new ReadableRandomAccessSubstream(syncStream), koly);
+    }
+
+    /**
+     * Checksums the data fork of the image <code>stream</code>, described by <code>koly</code>. This only reads the
+     * image, so it may run on a stream of its own while the image is being extracted.
+     */
+    public static Result verifyDataFork(ReadableRandomAccessStream stream, Koly koly) {
+        String subject = "data fork";
+        UDIFChecksum expected = koly.getDataForkChecksum();
+        Result unverifiable = checkType(subject, expected);
+        if (unverifiable != null)
+            return unverifiable;
+
+        try {
+            long offset = koly.getDataForkOffset();
+            long length = koly.getDataForkLength();
+            if (offset < 0 || length < 0 || offset + length > stream.length())
+                return failed(subject, expected, "the data fork (" + offset + ", " + length +
+                        ") extends past the end of the image");
+
+            CRC32 crc = new CRC32();
+            byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, Math.max(length, 1))];
+            stream.seek(offset);
+            for (long remaining = length; remaining > 0; ) {
+                int bytesRead = stream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (bytesRead <= 0)
+                    return failed(subject, expected, "unexpected end of file");
+                crc.update(buffer, 0, bytesRead);
+                remaining -= bytesRead;
+            }
+            return compare(subject, expected, (int) crc.getValue());
+        } catch (RuntimeException e) {
+            return failed(subject, expected, e.toString());
+        }
+    }
+
+    /** Checksums the checksums of the block tables. Nothing needs to be read for this. */
+    public Result verifyMasterChecksum() {
+        return verifyMasterChecksum(koly, partitions);
+    }
+
+    /** Checksums the checksums of the block tables of <code>partitions</code>, described by <code>koly</code>. */
+    public static Result verifyMasterChecksum(Koly koly, PlistPartition[] partitions) {
+        String subject = "master checksum";
+        UDIFChecksum expected = koly.getMasterChecksum();
+        Result unverifiable = checkType(subject, expected);
+        if (unverifiable != null)
+            return unverifiable;
+
+        CRC32 crc = new CRC32();
+        for (PlistPartition pp : partitions)
+            crc.update(pp.getChecksum().getValue());
+        return compare(subject, expected, (int) crc.getValue());
+    }
+
+    /**
+     * Decodes partition <code>index</code> and checksums its data. The blocks are decoded even if the checksum can't
+     * be verified, so that blocks which can't be decoded are still found.
+     */
+    public Result verifyPartition(int index) {
+        PlistPartition pp = partitions[index];
+        String subject = getSubject(pp, index);
+
+        ReadableRandomAccessStream raf = new ReadableRandomAccessSubstream(syncStream);
+        PartitionChecksum checksum = new PartitionChecksum();
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[BUFFER_SIZE / 4];
+        UDIFBlockTable blocks = pp.getBlockTable();
+        for (int i = pp.getFirstBlock(); i < pp.getFirstBlock() + pp.getBlockCount(); ++i) {
+            int blockType = blocks.getBlockType(i);
+            long outSize = blocks.getOutSize(i);
+            if (!PartitionChecksum.covers(blockType) || outSize == 0)
+                continue;
+            if (blockType == UDIFBlock.BT_ZERO2) {
+                checksum.addZeros(blocks.getTrueOutOffset(i), outSize);
+                continue;
+            }
+
+            UDIFBlock block = blocks.getBlock(i);
+            try {
+                UDIFBlockInputStream is = UDIFBlockInputStream.getStream(raf, block);
+                try {
+                    crc.reset();
+                    long length = 0;
+                    int bytesRead;
+                    while ((bytesRead = is.read(buffer)) > 0) {
+                        crc.update(buffer, 0, bytesRead);
+                        length += bytesRead;
+                    }
+                    checksum.add(block.getTrueOutOffset(), (int) crc.getValue(), length);
+                } finally {
+                    is.close();
+                }
+            } catch (IOException | RuntimeException e) {
+                return failed(subject, pp.getChecksum(), block.getBlockTypeAsString() + " block at out offset " +
+                        block.getTrueOutOffset() + ": " + e);
+            }
+        }
+        return checkPartition(pp, index, checksum);
+    }
+
+    /**
+     * Compares the checksum of partition <code>index</code> with the one computed in <code>checksum</code>, as
+     * filled in during an extraction.
+     */
+    public static Result checkPartition(PlistPartition pp, int index, PartitionChecksum checksum) {
+        String subject = getSubject(pp, index);
+        Result unverifiable = checkType(subject, pp.getChecksum());
+        if (unverifiable != null)
+            return unverifiable;
+        return compare(subject, pp.getChecksum(), checksum.getCRC32());
+    }
+
+    /**
+     * Verifies the data fork and master checksums and, if <code>decode</code> is set, the checksums of all
+     * partitions, on <code>threads</code> threads.
+     *
+     * @return the results, in the order data fork, master checksum, partitions.
+     */
+    public List<Result> verify(boolean decode, int threads) throws InterruptedException {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads must be positive (" + threads + ")");
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "UDIFVerifier-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            futures.add(executor.submit(() -> verifyDataFork()));
+            if (decode) {
+                for (int i = 0; i < partitions.length; ++i) {
+                    int index = i;
+                    futures.add(executor.submit(() -> verifyPartition(index)));
+                }
+            }
+
+            List<Result> results = new ArrayList<>();
+            for (Future<Result> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException re)
+                        throw re;
+                    else if (cause instanceof Error err)
+                        throw err;
+                    else
+                        throw new RuntimeException(cause);
+                }
+                if (results.size() == 1)
+                    results.add(verifyMasterChecksum());
+            }
+            return results;
+        } finally {
+            // Not shutdownNow(): interrupting a thread in a read would close a file channel under the image.
+            executor.shutdown();
+        }
+    }
+
+    private static String getSubject(PlistPartition pp, int index) {
+        return "partition " + index + (pp.getName() != null ? " (" + pp.getName() + ")" : "");
+    }
+
+    /** Returns the result for a checksum that can't be verified, or null if it can. */
+    private static Result checkType(String subject, UDIFChecksum expected) {
+        if (expected.getType() == UDIFChecksum.TYPE_NONE)
+            return new Result(subject, expected, Status.NONE, 0, null);
+        else if (!expected.isCRC32())
+            return new Result(subject, expected, Status.UNSUPPORTED, 0, null);
+        return null;
+    }
+
+    private static Result compare(String subject, UDIFChecksum expected, int actual) {
+        return new Result(subject, expected, expected.getCRC32() == actual ? Status.OK : Status.MISMATCH, actual,
+                null);
+    }
+
+    private static Result failed(String subject, UDIFChecksum expected, String message) {
+        return new Result(subject, expected, Status.FAILED, 0, message);
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean decode = true;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int i = 0;
+        while (i < args.length && args[i].startsWith("-")) {
+            switch (args[i++]) {
+                case "-fast" -> decode = false;
+                case "-threads" -> threads = Integer.parseInt(args[i++]);
+                default -> i = args.length;
+            }
+        }
+        if (i >= args.length) {
+            System.err.println("usage: UDIFVerifier [-fast] [-threads <count>] <dmg>...");
+            System.err.println("  -fast  only verifies the data fork and master checksums, without decoding");
+            System.exit(1);
+        }
+
+        boolean damaged = false;
+        for (; i < args.length; ++i) {
+            System.out.println(args[i] + ":");
+            ReadableFileChannelStream stream =
+                    new ReadableFileChannelStream(new RandomAccessFile(args[i], "r"), args[i]);
+            try {
+                for (Result result : new UDIFVerifier(new UDIFFile(stream)).verify(decode, threads)) {
+                    System.out.println("  " + result);
+                    damaged |= result.isError();
+                }
+            } catch (IOException | RuntimeException e) {
+                System.out.println("  could not be read: " + e);
+                damaged = true;
+            } finally {
+                stream.close();
+            }
+        }
+        System.exit(damaged ? 2 : 0);
+    }
+}
@@ -0,0 +1,362 @@
+package org.catacombae.dmg.udif;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.apache.tools.bzip2.CBZip2OutputStream;
+import org.catacombae.io.ReadableFileStream;
+import org.catacombae.io.ReadableRandomAccessStream;
+
+
+/**
+ * Writes raw disk images as UDIF images: the data fork, made of the encoded chunks of the input, followed by the
+ * plist with the block table of a single "whole disk" partition and the koly trailer.<br>
+ * The input is split into chunks of {@link #getChunkSize()} bytes which are encoded as BT_COPY, BT_ZLIB or
+ * BT_BZIP2 blocks on a pool of worker threads, and written in order. Chunks of zeros become BT_ZERO blocks with no
+ * data, and chunks which don't get smaller by compressing them are stored as BT_COPY blocks, the way hdiutil does.
+ * <br>
+ * The partitions of the input are not looked into, so the image holds one partition whatever the partition scheme
+ * of the input is. The block table and the data fork carry CRC32 checksums.
+ */
+public class UDIFWriter {
+
+    private static final int SECTOR_SIZE = 512;
+
+    /** The chunk size that hdiutil uses: 1 MiB. */
+    public static final int DEFAULT_CHUNK_SIZE = 2048 * SECTOR_SIZE;
+
+    private static final int CHECKSUM_TYPE_CRC32 = 2;
+    private static final int MISH_HEADER_SIZE = 0xCC;
+
+    private final int blockType;
+    private final int chunkSize;
+    private final int threads;
+
+    /**
+     * An encoded chunk, as it will be written to the data fork, with the CRC32 of its data before encoding. The
+     * CRC32s of the chunks are put together in order for the checksum of the block table.
+     */
+    private record Chunk(int blockType, byte[] data, int outSize, int crc) {
+    }
+
+    /**
+     * Creates a writer which encodes chunks of {@link #DEFAULT_CHUNK_SIZE} bytes as <code>blockType</code> blocks,
+     * on as many threads as there are processors.
+     */
+    public UDIFWriter(int blockType) {
+        this(blockType, DEFAULT_CHUNK_SIZE, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param blockType one of {@link UDIFBlock#BT_COPY}, {@link UDIFBlock#BT_ZLIB} and {@link UDIFBlock#BT_BZIP2}.
+     * @param chunkSize the number of bytes of the input per block, a positive multiple of 512.
+     * @param threads   the number of worker threads encoding chunks.
+     */
+    public UDIFWriter(int blockType, int chunkSize, int threads) {
+        switch (blockType) {
+            case UDIFBlock.BT_COPY, UDIFBlock.BT_ZLIB, UDIFBlock.BT_BZIP2 -> {
+            }
+            default -> throw new IllegalArgumentException("Unsupported block type: 0x" +
+                    Integer.toHexString(blockType));
+        }
+        if (chunkSize <= 0 || chunkSize % SECTOR_SIZE != 0)
+            throw new IllegalArgumentException("chunkSize must be a positive multiple of " + SECTOR_SIZE + " (" +
+                    chunkSize + ")");
+        if (threads < 1)
+            throw new IllegalArgumentException("threads must be positive (" + threads + ")");
+
+        this.blockType = blockType;
+        this.chunkSize = chunkSize;
+        this.threads = threads;
+    }
+
+    public int getBlockType() {
+        return blockType;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Writes the UDIF image of the whole of <code>image</code> to <code>out</code>, reading <code>image</code> from
+     * the start. If the length of <code>image</code> isn't a multiple of 512, the last sector is padded with zeros.
+     * <code>out</code> is not closed.
+     *
+     * @return the number of bytes written to <code>out</code>.
+     */
+    public long write(ReadableRandomAccessStream image, OutputStream out) throws IOException {
+        long length = image.length();
+        long sectorCount = (length + SECTOR_SIZE - 1) / SECTOR_SIZE;
+        long chunkCount = (length + chunkSize - 1) / chunkSize;
+        if (chunkCount + 1 > (Integer.MAX_VALUE - MISH_HEADER_SIZE) / UDIFBlock.structSize())
+            throw new IllegalArgumentException("Too many chunks for one block table: " + chunkCount);
+
+        ByteBuffer mish = ByteBuffer.allocate(MISH_HEADER_SIZE + (int) (chunkCount + 1) * UDIFBlock.structSize());
+        mish.position(MISH_HEADER_SIZE);
+        int dataChecksum = 0;
+        CRC32 forkChecksum = new CRC32();
+        long forkLength = 0;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "UDIFWriter-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            // Chunks are submitted in order and written in order, so the queue holds the ones in flight.
+            ArrayDeque<Future<Chunk>> pending = new ArrayDeque<>();
+            int maxInFlight = threads * 2;
+            image.seek(0);
+            for (long pos = 0; pos < length; pos += chunkSize) {
+                int len = (int) Math.min(chunkSize, length - pos);
+                byte[] data = new byte[(len + SECTOR_SIZE - 1) / SECTOR_SIZE * SECTOR_SIZE];
+                image.readFully(data, 0, len);
+
+                if (pending.size() >= maxInFlight) {
+                    Chunk chunk = take(pending);
+                    dataChecksum = addChecksum(dataChecksum, chunk);
+                    forkLength += writeChunk(chunk, mish, forkLength, out, forkChecksum);
+                }
+                pending.add(executor.submit(() -> encode(data)));
+            }
+            while (!pending.isEmpty()) {
+                Chunk chunk = take(pending);
+                dataChecksum = addChecksum(dataChecksum, chunk);
+                forkLength += writeChunk(chunk, mish, forkLength, out, forkChecksum);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        putBlock(mish, UDIFBlock.BT_END, sectorCount, 0, forkLength, 0);
+
+        mish.put(0, "mish".getBytes(StandardCharsets.US_ASCII));
+        mish.putInt(4, 1); // version
+        mish.putLong(8, 0); // first sector
+        mish.putLong(16, sectorCount);
+        mish.putLong(24, 0); // data offset
+        mish.putInt(32, chunkSize / SECTOR_SIZE + 8); // buffers needed
+        mish.putInt(36, 0); // block descriptors, the ID of the partition
+        putChecksum(mish, 0x40, dataChecksum);
+        mish.putInt(0xC8, (int) chunkCount + 1);
+
+        CRC32 masterChecksum = new CRC32();
+        masterChecksum.update(mish.array(), 0x48, 4);
+
+        byte[] plist = createPlist(mish.array());
+        out.write(plist);
+        out.write(createKoly(forkLength, plist.length, sectorCount, forkChecksum, masterChecksum));
+        return forkLength + plist.length + Koly.length();
+    }
+
+    private Chunk encode(byte[] data) throws IOException {
+        if (isZero(data))
+            return new Chunk(UDIFBlock.BT_ZERO, new byte[0], data.length, 0);
+
+        CRC32 crc = new CRC32();
+        crc.update(data);
+
+        byte[] encoded = switch (blockType) {
+            case UDIFBlock.BT_ZLIB -> deflate(data);
+            case UDIFBlock.BT_BZIP2 -> bzip2(data, 0, data.length, 9);
+            default -> null;
+        };
+        if (encoded == null || encoded.length >= data.length)
+            return new Chunk(UDIFBlock.BT_COPY, data, data.length, (int) crc.getValue());
+        return new Chunk(blockType, encoded, data.length, (int) crc.getValue());
+    }
+
+    /**
+     * Adds the data of <code>chunk</code> to the checksum of the block table. BT_ZERO blocks are left out, as hdiutil
+     * leaves them out and as {@link UDIFVerifier} expects.
+     */
+    private static int addChecksum(int dataChecksum, Chunk chunk) {
+        if (chunk.blockType() == UDIFBlock.BT_ZERO)
+            return dataChecksum;
+        return UDIFChecksum.combineCRC32(dataChecksum, chunk.crc(), chunk.outSize());
+    }
+
+    private static Chunk take(ArrayDeque<Future<Chunk>> pending) throws IOException {
+        try {
+            return pending.remove().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while encoding chunks", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException ioe)
+                throw ioe;
+            else if (cause instanceof RuntimeException re)
+                throw re;
+            else if (cause instanceof Error err)
+                throw err;
+            else
+                throw new RuntimeException(cause);
+        }
+    }
+
+    /** Writes <code>chunk</code> at <code>forkOffset</code> in the data fork and returns its length there. */
+    private long writeChunk(Chunk chunk, ByteBuffer mish, long forkOffset, OutputStream out, CRC32 forkChecksum)
+            throws IOException {
+        long outSector = (long) ((mish.position() - MISH_HEADER_SIZE) / UDIFBlock.structSize()) *
+                (chunkSize / SECTOR_SIZE);
+        putBlock(mish, chunk.blockType(), outSector, chunk.outSize() / SECTOR_SIZE, forkOffset, chunk.data().length);
+        out.write(chunk.data());
+        forkChecksum.update(chunk.data());
+        return chunk.data().length;
+    }
+
+    private static void putBlock(ByteBuffer mish, int type, long outSector, long sectorCount, long inOffset,
+                                 long inSize) {
+        mish.putInt(type);
+        mish.putInt(0); // reserved
+        mish.putLong(outSector);
+        mish.putLong(sectorCount);
+        mish.putLong(inOffset);
+        mish.putLong(inSize);
+    }
+
+    private static void putChecksum(ByteBuffer buffer, int offset, int checksum) {
+        buffer.putInt(offset, CHECKSUM_TYPE_CRC32);
+        buffer.putInt(offset + 4, 32);
+        buffer.putInt(offset + 8, checksum);
+    }
+
+    private static boolean isZero(byte[] data) {
+        for (byte b : data) {
+            if (b != 0)
+                return false;
+        }
+        return true;
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            // Output which doesn't fit in the size of the input isn't used.
+            byte[] buffer = new byte[data.length];
+            int length = 0;
+            while (!deflater.finished() && length < buffer.length)
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            return deflater.finished() ? Arrays.copyOf(buffer, length) : null;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /** Returns <code>len</code> bytes of <code>data</code> from <code>off</code> as a bzip2 stream. */
+    static byte[] bzip2(byte[] data, int off, int len, int blockSize) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(len / 2);
+        // CBZip2OutputStream expects the "BZ" signature to have been written by the caller.
+        out.write('B');
+        out.write('Z');
+        try (CBZip2OutputStream bzip2 = new CBZip2OutputStream(out, blockSize)) {
+            bzip2.write(data, off, len);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] createPlist(byte[] mish) {
+        Base64.Encoder base64 = Base64.getMimeEncoder(52, new byte[] {'\n'});
+        String data = base64.encodeToString(mish).replace("\n", "\n\t\t\t\t");
+        String plist = """
+                <?xml version="1.0" encoding="UTF-8"?>
+                <!DOCTYPE plist PUBLIC "-//Apple Computer//DTD PLIST 1.0//EN" \
+                "http://www.apple.com/DTDs/PropertyList-1.0.dtd">
+                <plist version="1.0">
+                <dict>
+                \t<key>resource-fork</key>
+                \t<dict>
+                \t\t<key>blkx</key>
+                \t\t<array>
+                \t\t\t<dict>
+                \t\t\t\t<key>Attributes</key>
+                \t\t\t\t<string>0x0050</string>
+                \t\t\t\t<key>CFName</key>
+                \t\t\t\t<string>whole disk</string>
+                \t\t\t\t<key>Data</key>
+                \t\t\t\t<data>
+                \t\t\t\t%s
+                \t\t\t\t</data>
+                \t\t\t\t<key>ID</key>
+                \t\t\t\t<string>0</string>
+                \t\t\t\t<key>Name</key>
+                \t\t\t\t<string>whole disk</string>
+                \t\t\t</dict>
+                \t\t</array>
+                \t</dict>
+                </dict>
+                </plist>
+                """.formatted(data);
+        return plist.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] createKoly(long forkLength, long plistLength, long sectorCount, CRC32 forkChecksum,
+                                     CRC32 masterChecksum) {
+        ByteBuffer koly = ByteBuffer.allocate(Koly.length());
+        koly.put("koly".getBytes(StandardCharsets.US_ASCII));
+        koly.putInt(4); // version
+        koly.putInt(Koly.length()); // header size
+        koly.putInt(1); // flags: flattened
+        koly.putLong(0x10, 0); // running data fork offset
+        koly.putLong(0x18, 0); // data fork offset
+        koly.putLong(0x20, forkLength);
+        koly.putInt(0x38, 1); // segment number
+        koly.putInt(0x3C, 1); // segment count
+        putChecksum(koly, 0x50, (int) forkChecksum.getValue());
+        koly.putLong(0xD8, forkLength); // plist offset
+        koly.putLong(0xE0, plistLength);
+        putChecksum(koly, 0x160, (int) masterChecksum.getValue());
+        koly.putInt(0x1E8, 1); // image variant: device image
+        koly.putLong(0x1EC, sectorCount);
+        return koly.array();
+    }
+
+    public static void main(String[] args) throws IOException {
+        int blockType = UDIFBlock.BT_ZLIB;
+        int chunkSize = DEFAULT_CHUNK_SIZE;
+        int i = 0;
+        while (i < args.length - 2 && args[i].startsWith("-")) {
+            switch (args[i++]) {
+                case "-copy" -> blockType = UDIFBlock.BT_COPY;
+                case "-zlib" -> blockType = UDIFBlock.BT_ZLIB;
+                case "-bzip2" -> blockType = UDIFBlock.BT_BZIP2;
+                case "-chunksize" -> chunkSize = Integer.parseInt(args[i++]);
+                default -> i = args.length;
+            }
+        }
+        if (i != args.length - 2) {
+            System.err.println("usage: UDIFWriter [-copy | -zlib | -bzip2] [-chunksize <bytes>] <image> <dmg>");
+            System.exit(1);
+        }
+
+        UDIFWriter writer = new UDIFWriter(blockType, chunkSize, Runtime.getRuntime().availableProcessors());
+        ReadableFileStream image = new ReadableFileStream(new RandomAccessFile(args[i], "r"), args[i]);
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(args[i + 1]), 1024 * 1024)) {
+            writer.write(image, out);
+        } finally {
+            image.close();
+        }
+    }
+}
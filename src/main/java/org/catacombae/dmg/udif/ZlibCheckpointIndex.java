@@ -0,0 +1,121 @@
+package org.catacombae.dmg.udif;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+
+/**
+ * Random access points inside a single zlib compressed block, in the style of zlib's zran example.<br>
+ * Each checkpoint records a DEFLATE block boundary: the decoded offset, the position of the boundary in the
+ * compressed data (in bits, since DEFLATE blocks are not byte aligned) and the 32 KiB of decoded data preceding it.
+ * That is all a decoder needs to start at the checkpoint instead of at the beginning of the block, so reaching an
+ * offset inside a large block costs at most one checkpoint interval of decoding.
+ */
+public class ZlibCheckpointIndex {
+
+    /** Size of the zlib header preceding the DEFLATE stream. */
+    private static final int ZLIB_HEADER_SIZE = 2;
+
+    private final long[] outOffsets;
+    private final long[] bitOffsets;
+    private final byte[][] windows;
+
+    private ZlibCheckpointIndex(long[] outOffsets, long[] bitOffsets, byte[][] windows) {
+        this.outOffsets = outOffsets;
+        this.bitOffsets = bitOffsets;
+        this.windows = windows;
+    }
+
+    /**
+     * Decodes a complete zlib stream and records a checkpoint at the first DEFLATE block boundary after every
+     * <code>interval</code> bytes of output.
+     *
+     * @param data     the compressed block.
+     * @param off      the position of the zlib header in <code>data</code>.
+     * @param len      the size of the compressed block.
+     * @param interval the minimum distance in decoded bytes between two checkpoints.
+     */
+    public static ZlibCheckpointIndex build(byte[] data, int off, int len, int interval) throws DataFormatException {
+        if (interval <= 0)
+            throw new IllegalArgumentException("interval must be positive (" + interval + ")");
+        checkHeader(data, off, len);
+
+        int streamOffset = off + ZLIB_HEADER_SIZE;
+        DeflateDecoder decoder = new DeflateDecoder(data, streamOffset, len - ZLIB_HEADER_SIZE);
+        ArrayList<Long> outOffsets = new ArrayList<>();
+        ArrayList<Long> bitOffsets = new ArrayList<>();
+        ArrayList<byte[]> windows = new ArrayList<>();
+
+        byte[] discard = new byte[16384];
+        long lastCheckpoint = 0;
+        while (!decoder.finished()) {
+            if (decoder.inflate(discard, 0, discard.length) == 0 && !decoder.finished())
+                throw new DataFormatException("Decoder made no progress");
+
+            if (decoder.atBlockBoundary() && !decoder.finished() &&
+                    decoder.getTotalOut() - lastCheckpoint >= interval) {
+                lastCheckpoint = decoder.getTotalOut();
+                outOffsets.add(lastCheckpoint);
+                bitOffsets.add(decoder.getBitPosition(streamOffset));
+                windows.add(decoder.getHistory());
+            }
+        }
+
+        long[] outArray = new long[outOffsets.size()];
+        long[] bitArray = new long[bitOffsets.size()];
+        for (int i = 0; i < outArray.length; ++i) {
+            outArray[i] = outOffsets.get(i);
+            bitArray[i] = bitOffsets.get(i);
+        }
+        return new ZlibCheckpointIndex(outArray, bitArray, windows.toArray(byte[][]::new));
+    }
+
+    private static void checkHeader(byte[] data, int off, int len) throws DataFormatException {
+        if (len < ZLIB_HEADER_SIZE)
+            throw new DataFormatException("zlib stream too short");
+        int cmf = data[off] & 0xFF;
+        int flg = data[off + 1] & 0xFF;
+        if ((cmf & 0x0F) != 8 || ((cmf << 8) | flg) % 31 != 0)
+            throw new DataFormatException("Invalid zlib header");
+        if ((flg & 0x20) != 0)
+            throw new DataFormatException("zlib streams with a preset dictionary are not supported");
+    }
+
+    public int getCheckpointCount() {
+        return outOffsets.length;
+    }
+
+    /** Returns the decoded offset of checkpoint <code>i</code>. */
+    public long getOutOffset(int i) {
+        return outOffsets[i];
+    }
+
+    /**
+     * Returns the offset of the first byte of compressed data, relative to the start of the block, needed to resume
+     * at checkpoint <code>i</code>.
+     */
+    public long getInOffset(int i) {
+        return ZLIB_HEADER_SIZE + (bitOffsets[i] >>> 3);
+    }
+
+    /**
+     * Returns the index of the last checkpoint at or before the decoded offset <code>outOffset</code>, or -1 if
+     * there is none.
+     */
+    public int find(long outOffset) {
+        int i = Arrays.binarySearch(outOffsets, outOffset);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    /**
+     * Creates a decoder positioned at checkpoint <code>i</code>.
+     *
+     * @param data compressed data of the block starting at {@link #getInOffset(int)}.
+     * @param off  the position of that data in <code>data</code>.
+     * @param len  the number of bytes of compressed data available.
+     */
+    DeflateDecoder resume(int i, byte[] data, int off, int len) {
+        return new DeflateDecoder(data, off, len, (int) (bitOffsets[i] & 7), windows[i], outOffsets[i]);
+    }
+}
@@ -0,0 +1,394 @@
+package org.catacombae.dmgextractor;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import static java.lang.System.getLogger;
+
+
+/**
+ * Extracts many images in one JVM, a bounded number of them at a time. The images are listed one per line in a file
+ * or on standard input, each optionally followed by a tab and the output file. Every image is extracted the way
+ * {@link DMGExtractor} does it, and the outcome of each (time, bytes, errors) is written as a JSON or CSV report.
+ * <pre>
+ * usage: BatchExtractor [options] &lt;listFile | -&gt;
+ *   -jobs N         extracts N images at once (default: the number of processors)
+ *   -threads N      decodes the blocks of each image on N threads (default: 1)
+ *   -outdir DIR     extracts images without an output file of their own to DIR/&lt;name&gt;.img
+ *   -report FILE    writes the report to FILE instead of standard output
+ *   -csv            writes the report as CSV instead of JSON
+ *   -sparse, -verify, -mmap, -saxparser as for DMGExtractor
+ * </pre>
+ * Images without an output file are only simulated, unless <code>-outdir</code> is given. Encrypted images can't be
+ * extracted in a batch, as there is no one to ask for the password.
+ */
+public class BatchExtractor {
+
+    private static final Logger logger = getLogger(BatchExtractor.class.getName());
+
+    /** An image to extract, and where to. A null <code>isoFile</code> simulates the extraction. */
+    public record Job(File dmgFile, File isoFile) {
+    }
+
+    /** The outcome of one {@link Job}. */
+    public static class Result {
+
+        private final Job job;
+        private final boolean finished;
+        private final long bytesOut;
+        private final long nanos;
+        private final int errors;
+        private final int warnings;
+        private final String message;
+
+        Result(Job job, boolean finished, long bytesOut, long nanos, int errors, int warnings, String message) {
+            this.job = job;
+            this.finished = finished;
+            this.bytesOut = bytesOut;
+            this.nanos = nanos;
+            this.errors = errors;
+            this.warnings = warnings;
+            this.message = message;
+        }
+
+        public Job getJob() {
+            return job;
+        }
+
+        /** Returns whether the extraction ran to its end, even if errors were reported on the way. */
+        public boolean isFinished() {
+            return finished;
+        }
+
+        /** Returns the number of bytes extracted (or that would have been, in a simulation). */
+        public long getBytesOut() {
+            return bytesOut;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        public int getErrorCount() {
+            return errors;
+        }
+
+        public int getWarningCount() {
+            return warnings;
+        }
+
+        /** Returns the first error reported, or why the extraction didn't finish, or null. */
+        public String getMessage() {
+            return message;
+        }
+
+        public boolean isOK() {
+            return finished && errors == 0;
+        }
+
+        static final String CSV_HEADER = "dmg,output,status,bytes,millis,errors,warnings,message";
+
+        String toCSV() {
+            return Util.toCSVField(job.dmgFile().getPath()) + "," +
+                    Util.toCSVField(job.isoFile() != null ? job.isoFile().getPath() : "") + "," + getStatus() + "," +
+                    bytesOut + "," + millis() + "," + errors + "," + warnings + "," +
+                    Util.toCSVField(message != null ? message : "");
+        }
+
+        String toJSON() {
+            return "{\"dmg\": " + Util.toJSONString(job.dmgFile().getPath()) +
+                    ", \"output\": " + (job.isoFile() != null ? Util.toJSONString(job.isoFile().getPath()) : "null") +
+                    ", \"status\": \"" + getStatus() + "\", \"bytes\": " + bytesOut + ", \"millis\": " + millis() +
+                    ", \"errors\": " + errors + ", \"warnings\": " + warnings +
+                    ", \"message\": " + (message != null ? Util.toJSONString(message) : "null") + "}";
+        }
+
+        private String getStatus() {
+            return !finished ? "failed" : errors > 0 ? "errors" : "ok";
+        }
+
+        private String millis() {
+            return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+        }
+
+        @Override
+        public String toString() {
+            return getStatus().toUpperCase(Locale.ROOT) + " " + job.dmgFile() + ": " + bytesOut + " bytes in " +
+                    millis() + " ms" + (errors > 0 ? ", " + errors + " errors" : "") +
+                    (warnings > 0 ? ", " + warnings + " warnings" : "") + (message != null ? " (" + message + ")" : "");
+        }
+    }
+
+    /** Collects what an extraction reports, instead of showing it. Only used by the thread extracting the image. */
+    private static class BatchUI extends BasicUI {
+
+        private boolean finished = false;
+        private int errors = 0;
+        private int warnings = 0;
+        private long bytesOut = 0;
+        private String firstError = null;
+        private String lastMessage = null;
+
+        BatchUI() {
+            super(false);
+        }
+
+        @Override
+        public boolean cancelSignaled() {
+            return false;
+        }
+
+        @Override
+        public File getInputFileFromUser() {
+            return null;
+        }
+
+        @Override
+        public boolean getOutputConfirmationFromUser() {
+            return false;
+        }
+
+        @Override
+        public File getOutputFileFromUser(File inputFile) {
+            return null;
+        }
+
+        @Override
+        public char[] getPasswordFromUser() {
+            return null;
+        }
+
+        @Override
+        public void setProgressFilenames(String inputFilename, String outputFilename) {
+        }
+
+        @Override
+        public void displayMessage(String... messageLines) {
+            if (messageLines.length > 0)
+                lastMessage = messageLines[0];
+        }
+
+        /** Goes on, as the command line does. The warnings are counted by the extraction itself. */
+        @Override
+        public boolean warning(String... messageLines) {
+            return true;
+        }
+
+        @Override
+        public void error(String... messageLines) {
+            if (firstError == null && messageLines.length > 0)
+                firstError = messageLines[0];
+        }
+
+        @Override
+        public void reportFinished(boolean simulation, int errorsReported, int warningsReported,
+                                   long totalExtractedSize) {
+            finished = true;
+            errors = errorsReported;
+            warnings = warningsReported;
+            bytesOut = totalExtractedSize;
+        }
+
+        @Override
+        public void reportProgress(int progressPercentage) {
+        }
+    }
+
+    private final DMGExtractor.Session settings;
+    private final int jobs;
+
+    /**
+     * @param settings the options of each extraction. Its files are ignored.
+     * @param jobs     the number of images to extract at once.
+     */
+    BatchExtractor(DMGExtractor.Session settings, int jobs) {
+        if (jobs < 1)
+            throw new IllegalArgumentException("jobs must be positive (" + jobs + ")");
+        this.settings = settings;
+        this.jobs = jobs;
+    }
+
+    /**
+     * Extracts the images of <code>batch</code>, {@link #jobs} at a time, passing each result on to
+     * <code>listener</code> when its image is done.
+     *
+     * @return the results, in the order of <code>batch</code>.
+     */
+    List<Result> extract(List<Job> batch, Consumer<Result> listener) throws InterruptedException {
+        // Java 17 has no virtual threads, so the images run on a bounded pool of platform threads. The blocks of an
+        // image are decoded on further threads of its own if settings.threads > 1.
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(jobs, Math.max(batch.size(), 1)), r -> {
+            Thread t = new Thread(r, "BatchExtractor-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            ExecutorCompletionService<Result> completion = new ExecutorCompletionService<>(executor);
+            List<Future<Result>> futures = new ArrayList<>();
+            for (Job job : batch)
+                futures.add(completion.submit(() -> extract(job)));
+            for (int i = 0; i < futures.size(); ++i)
+                listener.accept(get(completion.take()));
+
+            List<Result> results = new ArrayList<>();
+            for (Future<Result> future : futures)
+                results.add(get(future));
+            return results;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static Result get(Future<Result> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            // extract(Job) catches everything but Errors.
+            Throwable cause = e.getCause();
+            if (cause instanceof Error err)
+                throw err;
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /** Extracts one image on the calling thread. */
+    Result extract(Job job) {
+        BatchUI ui = new BatchUI();
+        long start = System.nanoTime();
+        try {
+            if (!job.dmgFile().exists())
+                return new Result(job, false, 0, System.nanoTime() - start, 1, 0, "Input file not found");
+            DMGExtractor.extractProcedure(settings.forImage(job.dmgFile(), job.isoFile()), ui);
+        } catch (Exception e) {
+            logger.log(Level.DEBUG, job.dmgFile() + ": " + e.getMessage(), e);
+            return new Result(job, false, ui.bytesOut, System.nanoTime() - start, ui.errors + 1, ui.warnings,
+                    e.toString());
+        }
+        long nanos = System.nanoTime() - start;
+        if (!ui.finished)
+            return new Result(job, false, 0, nanos, 1, 0, ui.firstError != null ? ui.firstError : ui.lastMessage);
+        return new Result(job, true, ui.bytesOut, nanos, ui.errors, ui.warnings, ui.firstError);
+    }
+
+    /**
+     * Reads the images to extract from <code>list</code>: one per line, optionally followed by a tab and the output
+     * file. Empty lines and lines starting with # are skipped. Images without an output file are extracted to
+     * <code>outputDir</code>, named after the image, or only simulated if <code>outputDir</code> is null.
+     */
+    static List<Job> readJobs(Reader list, File outputDir) throws IOException {
+        List<Job> batch = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(list);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isBlank() || line.startsWith("#"))
+                continue;
+            int tab = line.indexOf('\t');
+            File dmgFile = new File(tab >= 0 ? line.substring(0, tab) : line.strip());
+            File isoFile = null;
+            if (tab >= 0 && !line.substring(tab + 1).isBlank())
+                isoFile = new File(line.substring(tab + 1).strip());
+            else if (outputDir != null)
+                isoFile = new File(outputDir, getOutputName(dmgFile));
+            batch.add(new Job(dmgFile, isoFile));
+        }
+        return batch;
+    }
+
+    /** Returns the name of the image with its extension replaced by .img. */
+    private static String getOutputName(File dmgFile) {
+        String name = dmgFile.getName();
+        int dot = name.lastIndexOf('.');
+        return (dot > 0 ? name.substring(0, dot) : name) + ".img";
+    }
+
+    /** Writes <code>results</code> as a JSON array, one image per line, or as CSV with a header line. */
+    static void writeReport(List<Result> results, boolean csv, PrintStream ps) {
+        if (csv) {
+            ps.println(Result.CSV_HEADER);
+            for (Result result : results)
+                ps.println(result.toCSV());
+        } else {
+            ps.println("[");
+            for (int i = 0; i < results.size(); ++i)
+                ps.println("  " + results.get(i).toJSON() + (i < results.size() - 1 ? "," : ""));
+            ps.println("]");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        DMGExtractor.Session settings = new DMGExtractor.Session();
+        int jobs = Runtime.getRuntime().availableProcessors();
+        File outputDir = null;
+        File reportFile = null;
+        boolean csv = false;
+        int i = 0;
+        try {
+            for (; i < args.length && args[i].startsWith("-") && !args[i].equals("-"); ++i) {
+                switch (args[i]) {
+                    case "-jobs" -> jobs = Integer.parseInt(args[++i]);
+                    case "-threads" -> settings.threads = Integer.parseInt(args[++i]);
+                    case "-outdir" -> outputDir = new File(args[++i]);
+                    case "-report" -> reportFile = new File(args[++i]);
+                    case "-csv" -> csv = true;
+                    case "-sparse" -> settings.sparse = true;
+                    case "-verify" -> settings.verify = true;
+                    case "-mmap" -> settings.mmap = true;
+                    case "-saxparser" -> settings.useSaxParser = true;
+                    default -> throw new IllegalArgumentException("Invalid argument: " + args[i]);
+                }
+            }
+            if (i != args.length - 1)
+                throw new IllegalArgumentException("Exactly one list file (or - for standard input) is expected.");
+            if (jobs < 1 || settings.threads < 1)
+                throw new IllegalArgumentException("-jobs and -threads must be positive.");
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            System.err.println(e instanceof IllegalArgumentException ? e.getMessage() : "Missing option value.");
+            System.err.println("usage: BatchExtractor [-jobs N] [-threads N] [-outdir <dir>] [-report <file>] [-csv]");
+            System.err.println("                      [-sparse] [-verify] [-mmap] [-saxparser] <listFile | ->");
+            System.err.println("  Extracts the images listed in listFile (or on standard input), one per line,");
+            System.err.println("  each optionally followed by a tab and its output file.");
+            System.exit(1);
+            return;
+        }
+
+        List<Job> batch;
+        try (Reader list = args[i].equals("-") ?
+                new InputStreamReader(System.in, StandardCharsets.UTF_8) :
+                Files.newBufferedReader(Paths.get(args[i]), StandardCharsets.UTF_8)) {
+            batch = readJobs(list, outputDir);
+        }
+        if (outputDir != null && !outputDir.isDirectory() && !outputDir.mkdirs()) {
+            System.err.println("Could not create " + outputDir);
+            System.exit(1);
+        }
+
+        List<Result> results = new BatchExtractor(settings, jobs).extract(batch, System.err::println);
+        if (reportFile != null) {
+            try (PrintStream ps = new PrintStream(reportFile, StandardCharsets.UTF_8)) {
+                writeReport(results, csv, ps);
+            }
+        } else
+            writeReport(results, csv, System.out);
+
+        boolean ok = results.stream().allMatch(Result::isOK);
+        System.exit(ok ? 0 : 1);
+    }
+}
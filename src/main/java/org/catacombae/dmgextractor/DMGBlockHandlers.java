@@ -20,9 +20,16 @@ package org.catacombae.dmgextractor;
 import java.io.IOException;
 import java.lang.System.Logger;
 import java.lang.System.Logger.Level;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32;
 
 import org.catacombae.dmg.udif.UDIFBlock;
 import org.catacombae.dmg.udif.UDIFBlockInputStream;
+import org.catacombae.dmg.udif.UDIFMetrics;
+import org.catacombae.dmg.udif.UDIFVerifier;
+import org.catacombae.dmgextractor.io.TimedReadableRandomAccessStream;
 import org.catacombae.io.RandomAccessStream;
 import org.catacombae.io.ReadableRandomAccessStream;
 
@@ -30,49 +37,168 @@ import static java.lang.System.getLogger;
 
 
 /**
- * Please don't try to use this code with concurrent threads... :) Use external
- * synchronization to protect the shared data in this class.
+ * Extracts single blocks of an image. Each thread has a buffer of its own, so several images (or several blocks of
+ * one image, to different streams) may be extracted at once.
  */
 class DMGBlockHandlers {
 
     private static final Logger logger = getLogger(DMGBlockHandlers.class.getName());
 
-    private static final byte[] inBuffer = new byte[0x40000];
+    private static final ThreadLocal<byte[]> inBuffers = ThreadLocal.withInitial(() -> new byte[0x40000]);
+
+    /**
+     * The granularity at which sparse output skips zeros. Runs of zeros are only left out of the output file if they
+     * cover whole pages, as smaller holes wouldn't save any space in the file system.
+     */
+    static final int SPARSE_PAGE_SIZE = 4096;
+    private static final byte[] ZERO_PAGE = new byte[SPARSE_PAGE_SIZE];
+
+    /** Channel transfers are done in pieces of this size, so that progress is reported regularly. */
+    static final long TRANSFER_CHUNK_SIZE = 8 * 1024 * 1024;
 
     /**
      * Extracts an UDIFBlock describing a region of the file <code>dmgRaf</code>
      * to the file <code>isoRaf</code>. If the <code>testOnly</code> flag is
      * set, nothing is written to <code>isoRaf</code> (in fact, it can be null
      * in this case). <code>ui</code> may not be null. If you do not want user
-     * interaction, use {@link UserInterface.NullUI}.
+     * interaction, use {@link UserInterface.NullUI}.<br>
+     * If the <code>sparse</code> flag is set, zeros are skipped over instead of written, which leaves holes in
+     * <code>isoRaf</code>. The caller must then extend the file to its full length when done, as trailing zeros are
+     * not written either.<br>
+     * The sizes and the read, decode and write times of the block are recorded in <code>metrics</code> under
+     * partition <code>partition</code>. If <code>checksum</code> isn't null, the CRC32 of the decoded data is added
+     * to it.
      */
     static long processBlock(UDIFBlock block, ReadableRandomAccessStream dmgRaf,
-                             RandomAccessStream isoRaf, boolean testOnly, UserInterface ui) throws IOException {
+                             RandomAccessStream isoRaf, boolean testOnly, boolean sparse, UserInterface ui,
+                             UDIFMetrics metrics, int partition, UDIFVerifier.PartitionChecksum checksum)
+            throws IOException {
 
-        UDIFBlockInputStream is = UDIFBlockInputStream.getStream(dmgRaf, block);
-        long res = processStream(is, isoRaf, testOnly, ui);
-        is.close();
-        if (res != block.getOutSize()) {
-            logger.log(Level.DEBUG, "WARNING: Could not extract entire block! " +
-                    "Extracted " + res + " of " + block.getOutSize() + " bytes");
-        }
-        return res;
-    }
+        if (checksum != null && !UDIFVerifier.PartitionChecksum.covers(block.getBlockType()))
+            checksum = null;
 
-    private static long processStream(
-            UDIFBlockInputStream is, RandomAccessStream isoRaf, boolean testOnly, UserInterface ui) throws IOException {
+        if (sparse && isZeroBlock(block.getBlockType())) {
+            // Nothing to decode.
+            if (!testOnly)
+                isoRaf.seek(isoRaf.getFilePointer() + block.getOutSize());
+            ui.addProgressRaw(block.getOutSize());
+            metrics.recordBlock(block.getBlockType(), partition, 0, block.getOutSize(), 0, 0, 0);
+            if (checksum != null)
+                checksum.addZeros(block.getTrueOutOffset(), block.getOutSize());
+            return block.getOutSize();
+        }
 
+        byte[] inBuffer = inBuffers.get();
+        CRC32 crc = checksum != null ? new CRC32() : null;
+        TimedReadableRandomAccessStream timedRaf = new TimedReadableRandomAccessStream(dmgRaf);
+        UDIFBlockInputStream is = UDIFBlockInputStream.getStream(timedRaf, block);
         long totalBytesRead = 0;
-        int bytesRead = is.read(inBuffer);
-        while (bytesRead > 0) {
+        long decodeNanos = 0;
+        long writeNanos = 0;
+        while (true) {
+            long start = System.nanoTime();
+            int bytesRead = is.read(inBuffer);
+            decodeNanos += System.nanoTime() - start;
+            if (bytesRead <= 0)
+                break;
             totalBytesRead += bytesRead;
+            if (crc != null)
+                crc.update(inBuffer, 0, bytesRead);
 //            ui.reportProgress((int) (dmgRaf.getFilePointer() * 100 / dmgRaf.length()));
             ui.addProgressRaw(bytesRead);
             if (!testOnly) {
-                isoRaf.write(inBuffer, 0, bytesRead);
+                start = System.nanoTime();
+                if (sparse)
+                    writeSparse(isoRaf, inBuffer, 0, bytesRead);
+                else
+                    isoRaf.write(inBuffer, 0, bytesRead);
+                writeNanos += System.nanoTime() - start;
             }
-            bytesRead = is.read(inBuffer);
+        }
+        is.close();
+        if (checksum != null)
+            checksum.add(block.getTrueOutOffset(), (int) crc.getValue(), totalBytesRead);
+        long readNanos = timedRaf.getReadNanos();
+        metrics.recordBlock(block.getBlockType(), partition, block.getInSize(), totalBytesRead, readNanos,
+                decodeNanos - readNanos, writeNanos);
+        if (totalBytesRead != block.getOutSize()) {
+            logger.log(Level.DEBUG, "WARNING: Could not extract entire block! " +
+                    "Extracted " + totalBytesRead + " of " + block.getOutSize() + " bytes");
         }
         return totalBytesRead;
     }
+
+    /**
+     * Copies the data of a BT_COPY block from <code>dmgChannel</code> to the current position of
+     * <code>isoChannel</code> with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+     * which lets the kernel move the data without passing it through the heap. The number of bytes copied is
+     * reported to <code>progress</code> as the copy goes on.<br>
+     * The kernel reads and writes in one go, so the whole time of the copy is recorded in <code>metrics</code> as
+     * write time.
+     */
+    static long transferBlock(UDIFBlock block, FileChannel dmgChannel, FileChannel isoChannel, LongConsumer progress,
+                              UDIFMetrics metrics, int partition)
+            throws IOException {
+
+        long start = System.nanoTime();
+        long inOffset = block.getTrueInOffset();
+        long count = block.getInSize();
+        long transferred = 0;
+        while (transferred < count) {
+            long res = dmgChannel.transferTo(inOffset + transferred,
+                    Math.min(count - transferred, TRANSFER_CHUNK_SIZE), isoChannel);
+            if (res <= 0)
+                break; // end of file
+            transferred += res;
+            progress.accept(res);
+        }
+        metrics.recordBlock(block.getBlockType(), partition, transferred, transferred, 0, 0,
+                System.nanoTime() - start);
+        if (transferred != block.getOutSize()) {
+            logger.log(Level.DEBUG, "WARNING: Could not extract entire block! " +
+                    "Extracted " + transferred + " of " + block.getOutSize() + " bytes");
+        }
+        return transferred;
+    }
+
+    static boolean isZeroBlock(int blockType) {
+        return blockType == UDIFBlock.BT_ZERO || blockType == UDIFBlock.BT_ZERO2;
+    }
+
+    /**
+     * Writes <code>data[off..off+len)</code> at the file pointer of <code>out</code>, seeking over the pages that are
+     * all zero.
+     */
+    static void writeSparse(RandomAccessStream out, byte[] data, int off, int len) {
+        long pos = out.getFilePointer();
+        int i = 0;
+        while (i < len) {
+            i += sparseRunLength(data, off + i, len - i, pos + i, true);
+            int dataLength = sparseRunLength(data, off + i, len - i, pos + i, false);
+            if (dataLength > 0) {
+                out.seek(pos + i);
+                out.write(data, off + i, dataLength);
+                i += dataLength;
+            }
+        }
+        out.seek(pos + len);
+    }
+
+    /**
+     * Divides <code>data[off..off+len)</code>, which belongs at position <code>pos</code> of the output file, into
+     * pages aligned to {@link #SPARSE_PAGE_SIZE} in the output file. Returns the length of the leading run of pages
+     * that are all zero if <code>zero</code> is true, or of those that contain data if it is false. A partial page at
+     * either end counts as a page.
+     */
+    static int sparseRunLength(byte[] data, int off, int len, long pos, boolean zero) {
+        int i = 0;
+        while (i < len) {
+            int pageLength = (int) Math.min(len - i, SPARSE_PAGE_SIZE - ((pos + i) % SPARSE_PAGE_SIZE));
+            boolean pageIsZero = Arrays.mismatch(data, off + i, off + i + pageLength, ZERO_PAGE, 0, pageLength) < 0;
+            if (pageIsZero != zero)
+                break;
+            i += pageLength;
+        }
+        return i;
+    }
 }
@@ -21,13 +21,19 @@ package org.catacombae.dmgextractor;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.io.RandomAccessFile;
 import java.lang.System.Logger;
 import java.lang.System.Logger.Level;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import javax.swing.JOptionPane;
 
 import org.catacombae.dmg.encrypted.ReadableCEncryptedEncodingStream;
@@ -39,8 +45,11 @@ import org.catacombae.dmg.udif.Plist;
 import org.catacombae.dmg.udif.PlistPartition;
 import org.catacombae.dmg.udif.UDIFBlock;
 import org.catacombae.dmg.udif.UDIFDetector;
+import org.catacombae.dmg.udif.UDIFMetrics;
+import org.catacombae.dmg.udif.UDIFVerifier;
+import org.catacombae.dmgextractor.io.ReadableFileChannelStream;
+import org.catacombae.dmgextractor.io.ReadableMappedFileStream;
 import org.catacombae.io.FileStream;
-import org.catacombae.io.ReadableFileStream;
 import org.catacombae.io.ReadableRandomAccessStream;
 import org.catacombae.io.RuntimeIOException;
 import org.catacombae.io.TruncatableRandomAccessStream;
@@ -77,16 +86,36 @@ public class DMGExtractor {
     /**
      * Contains settings variables for a DMGExtractor session.
      */
-    private static class Session {
+    static class Session {
 
         public String parseArgsErrorMessage = null;
         public boolean useSaxParser = false;
         public boolean verbose = false;
         public boolean debug = false;
         public boolean graphical = false;
+        public int threads = 1;
+        public boolean sparse = false;
+        public boolean mmap = false;
+        public boolean verify = false;
         public String startupCommand = "java DMGExtractor";
         public File dmgFile = null;
         public File isoFile = null;
+
+        /** Returns a session with the same settings, for extracting <code>dmgFile</code> to <code>isoFile</code>. */
+        Session forImage(File dmgFile, File isoFile) {
+            Session ses = new Session();
+            ses.useSaxParser = useSaxParser;
+            ses.verbose = verbose;
+            ses.debug = debug;
+            ses.threads = threads;
+            ses.sparse = sparse;
+            ses.mmap = mmap;
+            ses.verify = verify;
+            ses.startupCommand = startupCommand;
+            ses.dmgFile = dmgFile;
+            ses.isoFile = isoFile;
+            return ses;
+        }
     }
 
     public static void main(String[] args) throws Exception {
@@ -150,7 +179,14 @@ public class DMGExtractor {
         }
     }
 
-    private static boolean extractProcedure(Session ses, UserInterface ui) throws Exception {
+    /**
+     * Extracts <code>ses.dmgFile</code> to <code>ses.isoFile</code>, or simulates the extraction if there is no
+     * <code>isoFile</code>. Everything is reported through <code>ui</code>, which is only used by the calling thread,
+     * so several images may be extracted at once with a <code>ui</code> each.
+     *
+     * @return false if the image wasn't UDIF encoded and the user chose not to copy it as it is.
+     */
+    static boolean extractProcedure(Session ses, UserInterface ui) throws Exception {
 
         ui.displayMessageVerbose("Processing: \"" + ses.dmgFile + "\"");
 
@@ -175,75 +211,117 @@ public class DMGExtractor {
             sparseBundle = false;
         }
 
+        RandomAccessFile dmgFileRaf = null;
         if (dmgRaf == null) {
-            dmgRaf = new ReadableFileStream(new RandomAccessFile(ses.dmgFile, "r"), ses.dmgFile.getPath());
+            dmgFileRaf = new RandomAccessFile(ses.dmgFile, "r");
+            if (ses.mmap)
+                dmgRaf = new ReadableMappedFileStream(dmgFileRaf, ses.dmgFile.getPath());
+            else
+                dmgRaf = new ReadableFileChannelStream(dmgFileRaf, ses.dmgFile.getPath());
         }
 
-        boolean encrypted;
-        if (ReadableCEncryptedEncodingStream.isCEncryptedEncoding(dmgRaf)) {
-            encrypted = true;
-            char[] password;
-            while (true) {
-                password = ui.getPasswordFromUser();
-                if (password == null) {
-                    ui.displayMessage("No password specified. Can not continue...");
-                    dmgRaf.close();
-                    return true;
-                }
-                try {
-                    var encryptionFilter = new ReadableCEncryptedEncodingStream(dmgRaf, password);
-                    dmgRaf = encryptionFilter;
-                    break;
-                } catch (Exception e) {
-                    ui.displayMessage("Incorrect password!");
+        // The files are closed however the extraction ends, as a batch goes on with the next image.
+        TruncatableRandomAccessStream isoRaf = null;
+        try {
+            boolean encrypted;
+            if (ReadableCEncryptedEncodingStream.isCEncryptedEncoding(dmgRaf)) {
+                encrypted = true;
+                char[] password;
+                while (true) {
+                    password = ui.getPasswordFromUser();
+                    if (password == null) {
+                        ui.displayMessage("No password specified. Can not continue...");
+                        return true;
+                    }
+                    try {
+                        var encryptionFilter = new ReadableCEncryptedEncodingStream(dmgRaf, password);
+                        dmgRaf = encryptionFilter;
+                        break;
+                    } catch (Exception e) {
+                        ui.displayMessage("Incorrect password!");
+                    }
                 }
+            } else
+                encrypted = false;
+
+            boolean sparseImage = false;
+            if (!sparseBundle && SparseImageRecognizer.isSparseImage(dmgRaf)) {
+                ReadableSparseImageStream sparseImageStream = new ReadableSparseImageStream(dmgRaf);
+                dmgRaf = sparseImageStream;
+                sparseImage = true;
             }
-        } else
-            encrypted = false;
-
-        boolean sparseImage = false;
-        if (!sparseBundle && SparseImageRecognizer.isSparseImage(dmgRaf)) {
-            ReadableSparseImageStream sparseImageStream = new ReadableSparseImageStream(dmgRaf);
-            dmgRaf = sparseImageStream;
-            sparseImage = true;
-        }
 
-        TruncatableRandomAccessStream isoRaf = null;
-        if (ses.isoFile != null) {
-            isoRaf = new FileStream(ses.isoFile);
-            isoRaf.setLength(0);
-            ui.displayMessageVerbose("Extracting to: \"" + ses.isoFile + "\"");
-        } else {
-            ui.displayMessageVerbose("Simulating extraction...");
-        }
+            // Unless a filter stream was put on top of the image, data can be copied straight from the file.
+            FileChannel dmgChannel = dmgFileRaf != null && !encrypted && !sparseImage ? dmgFileRaf.getChannel() : null;
+
+            FileChannel isoChannel = null;
+            if (ses.isoFile != null) {
+                RandomAccessFile isoFileRaf = new RandomAccessFile(ses.isoFile, "rw");
+                isoRaf = new FileStream(isoFileRaf, ses.isoFile.getPath());
+                isoChannel = isoFileRaf.getChannel();
+                isoRaf.setLength(0);
+                ui.displayMessageVerbose("Extracting to: \"" + ses.isoFile + "\"");
+            } else {
+                ui.displayMessageVerbose("Simulating extraction...");
+            }
 
-        boolean result;
+            boolean result;
 
-        if (!UDIFDetector.isUDIFEncoded(dmgRaf)) {
-            if (!sparseBundle && !encrypted && !sparseImage &&
-                    !ui.warning("The image you selected does not seem to be " +
-                                    "UDIF encoded, sparse or encrypted.",
-                            "Its contents will be copied unchanged to the destination.")) {
-                result = false;
+            if (!UDIFDetector.isUDIFEncoded(dmgRaf)) {
+                if (!sparseBundle && !encrypted && !sparseImage &&
+                        !ui.warning("The image you selected does not seem to be " +
+                                        "UDIF encoded, sparse or encrypted.",
+                                "Its contents will be copied unchanged to the destination.")) {
+                    result = false;
+                } else {
+                    copyData(dmgRaf, dmgChannel, isoRaf, isoChannel, ses.sparse, ui);
+                    result = true;
+                }
             } else {
-                copyData(dmgRaf, isoRaf, ui);
+                extractUDIF(dmgRaf, dmgChannel, isoRaf, isoChannel, ui, ses);
                 result = true;
             }
-        } else {
-            extractUDIF(dmgRaf, isoRaf, ui, ses);
-            result = true;
+
+            return result;
+        } finally {
+            if (isoRaf != null) {
+                isoRaf.close();
+            }
+
+            dmgRaf.close();
         }
+    }
 
-        if (isoRaf != null) {
-            isoRaf.close();
+    private static UDIFVerifier.Result verifyDataFork(File dmgFile, Koly koly) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(dmgFile, "r")) {
+            return UDIFVerifier.verifyDataFork(new ReadableFileChannelStream(raf, dmgFile.getPath()), koly);
         }
+    }
 
-        dmgRaf.close();
+    /**
+     * Reads the partitions from the plist of the image. Only the block tables outlive this method, the plist data and
+     * its tree can be collected while the image is extracted.
+     */
+    private static PlistPartition[] readPartitions(ReadableRandomAccessStream dmgRaf, Koly koly, boolean useSaxParser)
+            throws IOException {
+        dmgRaf.seek(koly.getPlistBegin1());
+        long plistSize = koly.getPlistSize();
+        if (plistSize > Integer.MAX_VALUE)
+            throw new RuntimeException("getPlistSize() way too large (" + plistSize + ")!");
+        else if (plistSize < 0)
+            throw new RuntimeException("getPlistSize() way too small (" + plistSize + ")!");
+        byte[] buffer = new byte[(int) koly.getPlistSize()];
+        dmgRaf.read(buffer);
 
-        return result;
+        return new Plist(buffer, useSaxParser).getPartitions();
     }
 
-    private static void extractUDIF(ReadableRandomAccessStream dmgRaf, TruncatableRandomAccessStream isoRaf,
+    /**
+     * @param dmgChannel the channel of the image file, or null if the image is read through a filter stream.
+     * @param isoChannel the channel of <code>isoRaf</code>, sharing its file pointer.
+     */
+    private static void extractUDIF(ReadableRandomAccessStream dmgRaf, FileChannel dmgChannel,
+                                    TruncatableRandomAccessStream isoRaf, FileChannel isoChannel,
                                     UserInterface ui, Session ses) throws Exception {
         boolean testOnly = ses.isoFile == null;
 
@@ -274,24 +352,11 @@ public class DMGExtractor {
 //                    "plistSize=" + plistSize + " plistBegin1=" + plistBegin1 + " plistEnd=" + plistEnd + " plistEnd-plistBegin1=" + (plistEnd - plistBegin1));
 //        }
         ui.displayMessageVerbose("Jumping to address...");
-        dmgRaf.seek(koly.getPlistBegin1());
-        long plistSize = koly.getPlistSize();
-        if (plistSize > Integer.MAX_VALUE)
-            throw new RuntimeException("getPlistSize() way too large (" + plistSize + ")!");
-        else if (plistSize < 0)
-            throw new RuntimeException("getPlistSize() way too small (" + plistSize + ")!");
-        byte[] buffer = new byte[(int) koly.getPlistSize()];
-        dmgRaf.read(buffer);
-
-        Plist plist = new Plist(buffer, ses.useSaxParser);
-        PlistPartition[] partitions = plist.getPartitions();
+        PlistPartition[] partitions = readPartitions(dmgRaf, koly, ses.useSaxParser);
 
         long totalOutSize = 0;
-        for (PlistPartition p : partitions) {
-            Iterator<UDIFBlock> blockIt = p.getBlockIterator();
-            while (blockIt.hasNext())
-                totalOutSize += blockIt.next().getOutSize();
-        }
+        for (PlistPartition p : partitions)
+            totalOutSize += p.getPartitionSize();
         ui.displayMessageVerbose("Target size: " + totalOutSize + " bytes");
         ui.setTotalProgressLength(totalOutSize);
 
@@ -303,162 +368,272 @@ public class DMGExtractor {
         int warningsReported = 0;
         long totalSize = 0;
         ui.reportProgress(0);
-        for (PlistPartition dpp : partitions) {
-            long partitionSize = dpp.getPartitionSize();
-            totalSize += partitionSize;
-
-            ui.displayMessageVerbose("  " + dpp.getName(),
-                    "    ID: " + dpp.getID(),
-                    "    Attributes: " + dpp.getAttributes(),
-                    "    Partition map block count: " + dpp.getBlockCount(),
-                    "    Partition size: " + partitionSize + " bytes");
-
-            int blockCount = 0;
-            Iterator<UDIFBlock> blockIterator = dpp.getBlockIterator();
-            while (blockIterator.hasNext()) {
-                if (ui.cancelSignaled())
-                    return;
-                UDIFBlock currentBlock = blockIterator.next();
-
-                // Offset of the input data for the current block in the input file
-                int blockType = currentBlock.getBlockType();
-                // Offset of the input data for the current block in the input file
-                long inOffset = currentBlock.getTrueInOffset();
-                // Size of the input data for the current block
-                long inSize = currentBlock.getInSize();
-                // Offset of the output data for the current block in the output file
-                long outOffset = currentBlock.getTrueOutOffset();
-                // Size of the output data (possibly larger than inSize because of
-                // decompression, zero expansion...)
-                long outSize = currentBlock.getOutSize();
-
-                long trueOutOffset = currentBlock.getTrueOutOffset();
-                long trueInOffset = currentBlock.getTrueInOffset();
-                String blockTypeString = currentBlock.getBlockTypeAsString();
-
-//                String[] variableStatus = {"outOffset=" + outOffset + " outSize=" + outSize,
-//                        "inOffset=" + inOffset + " inSize=" + inSize,
-//                        "trueOutOffset=" + trueOutOffset + " trueInOffset=" + trueInOffset};
-
-                if (ses.debug) {
-                    ui.displayMessage(
-                            "      " + partitionNumber + ":" + blockCount + ". " + blockTypeString + " processing...",
-                            "        outOffset=" + outOffset + " outSize=" + outSize,
-                            "        inOffset=" + inOffset + " inSize=" + inSize,
-                            "        trueOutOffset=" + trueOutOffset + " trueInOffset=" + trueInOffset);
-                } else
-                    ui.displayMessageVerbose("      Processing " + blockTypeString +
-                            " block. In: " + inSize +
-                            " bytes. Out: " + outSize + " bytes.");
 
-                if (!testOnly && isoRaf.getFilePointer() != trueOutOffset) {
-                    ++warningsReported;
-                    boolean proceed = ui.warning(blockTypeString +
-                            " FP != trueOutOffset (" + isoRaf.getFilePointer() +
-                            " != " + trueOutOffset + ")");
-
-                    if (!proceed)
-                        return;
-                }
+        UDIFMetrics metrics = new UDIFMetrics();
+        UDIFVerifier.PartitionChecksum[] checksums = null;
+        FutureTask<UDIFVerifier.Result> dataForkCheck = null;
+        if (ses.verify) {
+            checksums = new UDIFVerifier.PartitionChecksum[partitions.length];
+            for (int i = 0; i < checksums.length; ++i)
+                checksums[i] = new UDIFVerifier.PartitionChecksum();
+            if (dmgChannel != null) {
+                // The data fork is read again through a file handle of its own, alongside the extraction.
+                dataForkCheck = new FutureTask<>(() -> verifyDataFork(ses.dmgFile, koly));
+                Thread t = new Thread(dataForkCheck, "DMGExtractor-verifier");
+                t.setDaemon(true);
+                t.start();
+            }
+        }
 
-                if (blockType == UDIFBlock.BT_ADC) {
-                    ++errorsReported;
+        ParallelBlockExtractor pipeline = null;
+        if (ses.threads > 1) {
+            ui.displayMessageVerbose("Extracting blocks on " + ses.threads + " threads.");
+            pipeline = new ParallelBlockExtractor(dmgRaf, dmgChannel, isoChannel,
+                    ses.isoFile != null ? ses.isoFile.toPath() : null, ses.threads, ses.sparse, metrics, checksums);
+        }
+        // Blocks are written at their trueOutOffset in parallel mode, so this stands in for the file pointer there.
+        long expectedOutOffset = 0;
 
-                    if (extractionError(ui, testOnly, "BT_ADC not supported."))
-                        break;
-                    else
+        try {
+            for (PlistPartition dpp : partitions) {
+                long partitionSize = dpp.getPartitionSize();
+                totalSize += partitionSize;
+                metrics.setPartitionName(partitionNumber, dpp.getName());
+
+                ui.displayMessageVerbose("  " + dpp.getName(),
+                        "    ID: " + dpp.getID(),
+                        "    Attributes: " + dpp.getAttributes(),
+                        "    Partition map block count: " + dpp.getBlockCount(),
+                        "    Partition size: " + partitionSize + " bytes");
+
+                int blockCount = 0;
+                Iterator<UDIFBlock> blockIterator = dpp.getBlockIterator();
+                while (blockIterator.hasNext()) {
+                    if (ui.cancelSignaled())
                         return;
-                } else if (blockType == UDIFBlock.BT_ZLIB) {
-                    try {
-                        DMGBlockHandlers.processBlock(currentBlock, dmgRaf, isoRaf, testOnly, ui);
-                    } catch (DmgException de) {
-                        logger.log(Level.ERROR, de.getMessage(), de);
-                        String[] message = {"BT_ZLIB Could not decode..."};
-
-                        ++errorsReported;
-                        if (!ses.debug) {
-                            String[] appended = {"outOffset=" + outOffset + " outSize=" + outSize,
-                                    "inOffset=" + inOffset + " inSize=" + inSize,
-                                    "trueOutOffset=" + trueOutOffset + " trueInOffset=" + trueInOffset};
-                            message = Util.concatenate(message, appended);
-                        }
+                    UDIFBlock currentBlock = blockIterator.next();
+
+                    // Offset of the input data for the current block in the input file
+                    int blockType = currentBlock.getBlockType();
+                    // Offset of the input data for the current block in the input file
+                    long inOffset = currentBlock.getTrueInOffset();
+                    // Size of the input data for the current block
+                    long inSize = currentBlock.getInSize();
+                    // Offset of the output data for the current block in the output file
+                    long outOffset = currentBlock.getTrueOutOffset();
+                    // Size of the output data (possibly larger than inSize because of
+                    // decompression, zero expansion...)
+                    long outSize = currentBlock.getOutSize();
+
+                    long trueOutOffset = currentBlock.getTrueOutOffset();
+                    long trueInOffset = currentBlock.getTrueInOffset();
+                    String blockTypeString = currentBlock.getBlockTypeAsString();
+
+    //                String[] variableStatus = {"outOffset=" + outOffset + " outSize=" + outSize,
+    //                        "inOffset=" + inOffset + " inSize=" + inSize,
+    //                        "trueOutOffset=" + trueOutOffset + " trueInOffset=" + trueInOffset};
+
+                    if (ses.debug) {
+                        ui.displayMessage(
+                                "      " + partitionNumber + ":" + blockCount + ". " + blockTypeString + " processing...",
+                                "        outOffset=" + outOffset + " outSize=" + outSize,
+                                "        inOffset=" + inOffset + " inSize=" + inSize,
+                                "        trueOutOffset=" + trueOutOffset + " trueInOffset=" + trueInOffset);
+                    } else
+                        ui.displayMessageVerbose("      Processing " + blockTypeString +
+                                " block. In: " + inSize +
+                                " bytes. Out: " + outSize + " bytes.");
+
+                    long filePointer = pipeline != null ? expectedOutOffset : testOnly ? 0 : isoRaf.getFilePointer();
+                    if (!testOnly && filePointer != trueOutOffset) {
+                        ++warningsReported;
+                        boolean proceed = ui.warning(blockTypeString +
+                                " FP != trueOutOffset (" + filePointer +
+                                " != " + trueOutOffset + ")");
 
-                        if (extractionError(ui, testOnly, message))
-                            break;
-                        else
+                        if (!proceed)
                             return;
                     }
-                } else if (blockType == UDIFBlock.BT_BZIP2) {
-                    DMGBlockHandlers.processBlock(currentBlock, dmgRaf, isoRaf, testOnly, ui);
-                } else if(blockType == UDIFBlock.BT_LZFSE) {
-                    DMGBlockHandlers.processBlock(currentBlock, dmgRaf, isoRaf, testOnly, ui);
-                } else if (blockType == UDIFBlock.BT_COPY) {
-                    DMGBlockHandlers.processBlock(currentBlock, dmgRaf, isoRaf, testOnly, ui);
-                } else if (blockType == UDIFBlock.BT_ZERO) {
-                    DMGBlockHandlers.processBlock(currentBlock, dmgRaf, isoRaf, testOnly, ui);
-                } else if (blockType == UDIFBlock.BT_ZERO2) {
-                    DMGBlockHandlers.processBlock(currentBlock, dmgRaf, isoRaf, testOnly, ui);
-                } else if (blockType == UDIFBlock.BT_UNKNOWN) {
-                    // I have no idea what this blocktype is... but it's common, and usually
-                    // doesn't appear more than 2-3 times in a dmg. As long as its input and
-                    // output sizes are 0, there's no reason to complain... is there?
-                    if (!(inSize == 0 && outSize == 0)) {
-                        String[] message = {"Blocktype BT_UNKNOWN had non-zero sizes...",
-                                "  inSize=" + inSize + ", outSize=" + outSize,
-                                "  Please contact the author of the program to report this bug!"};
 
-                        ++errorsReported;
-                        if (!ses.debug) {
-                            String[] appended = {"outOffset=" + outOffset + " outSize=" + outSize,
-                                    "inOffset=" + inOffset + " inSize=" + inSize,
-                                    "trueOutOffset=" + trueOutOffset + " trueInOffset=" + trueInOffset};
-                            message = Util.concatenate(message, appended);
+                    if (pipeline != null && ParallelBlockExtractor.isDataBlock(blockType)) {
+                        while (!pipeline.trySubmit(currentBlock, partitionNumber, 100)) {
+                            ui.addProgressRaw(pipeline.takeProgress());
+                            if (ui.cancelSignaled())
+                                return;
                         }
+                        expectedOutOffset = trueOutOffset + outSize;
 
-                        if (extractionError(ui, testOnly, message))
+                        ParallelBlockExtractor.Failure failure;
+                        while ((failure = pipeline.pollFailure()) != null) {
+                            ++errorsReported;
+                            if (!extractionError(ui, testOnly, getDecodeErrorMessage(failure.getBlock())))
+                                return;
+                        }
+                    } else if (blockType == UDIFBlock.BT_ADC) {
+                        ++errorsReported;
+
+                        if (extractionError(ui, testOnly, "BT_ADC not supported."))
                             break;
                         else
                             return;
-                    }
-                } else if (blockType == UDIFBlock.BT_END) {
-                    // Nothing needs to be done in this pass.
-                } else {
-                    if (inSize == 0 && outSize == 0) {
-                        ui.warning("previously unseen blocktype " + blockType + " [0x" + Integer.toHexString(blockType) + "]",
-                                ("outOffset=" + outOffset + " outSize=" + outSize +
-                                        " inOffset=" + inOffset + " inSize=" + inSize),
-                                "As inSize and outSize is 0 (block is a marker?), we can try to continue the operation...");
-                        ++warningsReported;
+                    } else if (blockType == UDIFBlock.BT_ZLIB) {
+                        try {
+                            DMGBlockHandlers.processBlock(currentBlock, dmgRaf, isoRaf, testOnly, ses.sparse, ui,
+                                    metrics, partitionNumber, checksums != null ? checksums[partitionNumber] : null);
+                        } catch (DmgException de) {
+                            logger.log(Level.ERROR, de.getMessage(), de);
+                            String[] message = {"BT_ZLIB Could not decode..."};
+
+                            ++errorsReported;
+                            if (!ses.debug) {
+                                String[] appended = {"outOffset=" + outOffset + " outSize=" + outSize,
+                                        "inOffset=" + inOffset + " inSize=" + inSize,
+                                        "trueOutOffset=" + trueOutOffset + " trueInOffset=" + trueInOffset};
+                                message = Util.concatenate(message, appended);
+                            }
+
+                            if (extractionError(ui, testOnly, message))
+                                break;
+                            else
+                                return;
+                        }
+                    } else if (blockType == UDIFBlock.BT_BZIP2) {
+                        DMGBlockHandlers.processBlock(currentBlock, dmgRaf, isoRaf, testOnly, ses.sparse, ui, metrics,
+                                partitionNumber, checksums != null ? checksums[partitionNumber] : null);
+                    } else if(blockType == UDIFBlock.BT_LZFSE) {
+                        DMGBlockHandlers.processBlock(currentBlock, dmgRaf, isoRaf, testOnly, ses.sparse, ui, metrics,
+                                partitionNumber, checksums != null ? checksums[partitionNumber] : null);
+                    } else if (blockType == UDIFBlock.BT_COPY) {
+                        // Sparse output and verification need to look at the data, so it can't be transferred
+                        // blindly.
+                        if (dmgChannel != null && isoChannel != null && !ses.sparse && !ses.verify)
+                            DMGBlockHandlers.transferBlock(currentBlock, dmgChannel, isoChannel, ui::addProgressRaw,
+                                    metrics, partitionNumber);
+                        else
+                            DMGBlockHandlers.processBlock(currentBlock, dmgRaf, isoRaf, testOnly, ses.sparse, ui,
+                                    metrics, partitionNumber, checksums != null ? checksums[partitionNumber] : null);
+                    } else if (blockType == UDIFBlock.BT_ZERO) {
+                        DMGBlockHandlers.processBlock(currentBlock, dmgRaf, isoRaf, testOnly, ses.sparse, ui, metrics,
+                                partitionNumber, checksums != null ? checksums[partitionNumber] : null);
+                    } else if (blockType == UDIFBlock.BT_ZERO2) {
+                        DMGBlockHandlers.processBlock(currentBlock, dmgRaf, isoRaf, testOnly, ses.sparse, ui, metrics,
+                                partitionNumber, checksums != null ? checksums[partitionNumber] : null);
+                    } else if (blockType == UDIFBlock.BT_UNKNOWN) {
+                        // I have no idea what this blocktype is... but it's common, and usually
+                        // doesn't appear more than 2-3 times in a dmg. As long as its input and
+                        // output sizes are 0, there's no reason to complain... is there?
+                        if (!(inSize == 0 && outSize == 0)) {
+                            String[] message = {"Blocktype BT_UNKNOWN had non-zero sizes...",
+                                    "  inSize=" + inSize + ", outSize=" + outSize,
+                                    "  Please contact the author of the program to report this bug!"};
+
+                            ++errorsReported;
+                            if (!ses.debug) {
+                                String[] appended = {"outOffset=" + outOffset + " outSize=" + outSize,
+                                        "inOffset=" + inOffset + " inSize=" + inSize,
+                                        "trueOutOffset=" + trueOutOffset + " trueInOffset=" + trueInOffset};
+                                message = Util.concatenate(message, appended);
+                            }
+
+                            if (extractionError(ui, testOnly, message))
+                                break;
+                            else
+                                return;
+                        }
+                    } else if (blockType == UDIFBlock.BT_END) {
+                        // Nothing needs to be done in this pass.
                     } else {
-                        String[] message = {"previously unseen blocktype " + blockType + " [0x" + Integer.toHexString(blockType) + "]",
-                                "outOffset=" + outOffset + " outSize=" + outSize + " inOffset=" + inOffset + " inSize=" + inSize,
-                                "CRITICAL. inSize and/or outSize are not 0!"};
-//                        errorMessage("previously unseen blocktype " + blockType + " [0x" + Integer.toHexString(blockType) + "]",
-//                                ("  outOffset=" + outOffset + " outSize=" + outSize +
-//                                        " inOffset=" + inOffset + " inSize=" + inSize),
-//                                "  CRITICAL. inSize and/or outSize are not 0!");
-                        ++errorsReported;
-                        if (!ses.debug) {
-                            String[] appended = {"outOffset=" + outOffset + " outSize=" + outSize,
-                                    "inOffset=" + inOffset + " inSize=" + inSize,
-                                    "trueOutOffset=" + trueOutOffset + " trueInOffset=" + trueInOffset};
-                            message = Util.concatenate(message, appended);
+                        if (inSize == 0 && outSize == 0) {
+                            ui.warning("previously unseen blocktype " + blockType + " [0x" + Integer.toHexString(blockType) + "]",
+                                    ("outOffset=" + outOffset + " outSize=" + outSize +
+                                            " inOffset=" + inOffset + " inSize=" + inSize),
+                                    "As inSize and outSize is 0 (block is a marker?), we can try to continue the operation...");
+                            ++warningsReported;
+                        } else {
+                            String[] message = {"previously unseen blocktype " + blockType + " [0x" + Integer.toHexString(blockType) + "]",
+                                    "outOffset=" + outOffset + " outSize=" + outSize + " inOffset=" + inOffset + " inSize=" + inSize,
+                                    "CRITICAL. inSize and/or outSize are not 0!"};
+    //                        errorMessage("previously unseen blocktype " + blockType + " [0x" + Integer.toHexString(blockType) + "]",
+    //                                ("  outOffset=" + outOffset + " outSize=" + outSize +
+    //                                        " inOffset=" + inOffset + " inSize=" + inSize),
+    //                                "  CRITICAL. inSize and/or outSize are not 0!");
+                            ++errorsReported;
+                            if (!ses.debug) {
+                                String[] appended = {"outOffset=" + outOffset + " outSize=" + outSize,
+                                        "inOffset=" + inOffset + " inSize=" + inSize,
+                                        "trueOutOffset=" + trueOutOffset + " trueInOffset=" + trueInOffset};
+                                message = Util.concatenate(message, appended);
+                            }
+
+                            if (extractionError(ui, testOnly, message))
+                                break;
+                            else
+                                return;
                         }
+                    }
 
-                        if (extractionError(ui, testOnly, message))
-                            break;
-                        else
+                    ++blockCount;
+                }
+                ++partitionNumber;
+            }
+
+            if (pipeline != null) {
+                boolean done;
+                do {
+                    done = pipeline.awaitCompletion(100);
+                    ui.addProgressRaw(pipeline.takeProgress());
+
+                    ParallelBlockExtractor.Failure failure;
+                    while ((failure = pipeline.pollFailure()) != null) {
+                        ++errorsReported;
+                        if (!extractionError(ui, testOnly, getDecodeErrorMessage(failure.getBlock())))
                             return;
                     }
-                }
+                    if (ui.cancelSignaled())
+                        return;
+                } while (!done);
+            }
+        } finally {
+            if (pipeline != null)
+                pipeline.close();
+        }
 
-                ++blockCount;
+        if (ses.sparse && !testOnly) {
+            // Zeros at the end of the image were skipped, so the file may still be too short.
+            long outputEnd = pipeline != null ? expectedOutOffset : isoRaf.getFilePointer();
+            if (isoRaf.length() < outputEnd)
+                isoRaf.setLength(outputEnd);
+        }
+
+        if (ses.verify) {
+            List<UDIFVerifier.Result> results = new ArrayList<>();
+            if (dataForkCheck != null) {
+                try {
+                    results.add(dataForkCheck.get());
+                } catch (ExecutionException e) {
+                    throw new RuntimeException("Could not verify the data fork", e.getCause());
+                }
+            } else
+                results.add(UDIFVerifier.verifyDataFork(dmgRaf, koly));
+            results.add(UDIFVerifier.verifyMasterChecksum(koly, partitions));
+            for (int i = 0; i < partitions.length; ++i)
+                results.add(UDIFVerifier.checkPartition(partitions[i], i, checksums[i]));
+
+            String[] errors = new String[0];
+            for (UDIFVerifier.Result result : results) {
+                if (result.isError()) {
+                    ++errorsReported;
+                    errors = Util.concatenate(errors, result.toString());
+                } else
+                    ui.displayMessageVerbose("Verified " + result);
             }
-            ++partitionNumber;
+            if (errors.length > 0)
+                ui.error(errors);
         }
 
         ui.reportProgress(100);
         ui.reportFinished(isoRaf == null, errorsReported, warningsReported, totalSize);
+        ui.displayMessageVerbose(metrics.getSummary());
 
         if (ses.debug) {
             ConcatenatedIterator<UDIFBlock> cit = new ConcatenatedIterator<>();
@@ -540,26 +715,61 @@ public class DMGExtractor {
         }
     }
 
-    private static void copyData(
-            ReadableRandomAccessStream inStream, TruncatableRandomAccessStream outStream, UserInterface ui) {
+    private static void copyData(ReadableRandomAccessStream inStream, FileChannel inChannel,
+                                 TruncatableRandomAccessStream outStream, FileChannel outChannel,
+                                 boolean sparse, UserInterface ui) throws IOException {
         byte[] buffer = new byte[64 * 1024];
 
         ui.setTotalProgressLength(inStream.length());
         long totalBytesCopied = 0;
         inStream.seek(0);
 
+        if (inChannel != null && outChannel != null && !sparse) {
+            // Let the kernel copy the file.
+            long length = inStream.length();
+            while (totalBytesCopied < length && !ui.cancelSignaled()) {
+                long bytesCopied = inChannel.transferTo(totalBytesCopied,
+                        Math.min(length - totalBytesCopied, DMGBlockHandlers.TRANSFER_CHUNK_SIZE), outChannel);
+                if (bytesCopied <= 0)
+                    break;
+                ui.addProgressRaw(bytesCopied);
+                totalBytesCopied += bytesCopied;
+            }
+
+            ui.reportProgress(100);
+            ui.reportFinished(false, 0, 0, totalBytesCopied);
+            return;
+        }
+
         int bytesRead;
         while ((bytesRead = inStream.read(buffer)) > 0 && !ui.cancelSignaled()) {
-            if (outStream != null)
-                outStream.write(buffer, 0, bytesRead);
+            if (outStream != null) {
+                if (sparse)
+                    DMGBlockHandlers.writeSparse(outStream, buffer, 0, bytesRead);
+                else
+                    outStream.write(buffer, 0, bytesRead);
+            }
             ui.addProgressRaw(bytesRead);
             totalBytesCopied += bytesRead;
         }
+        if (sparse && outStream != null && outStream.length() < totalBytesCopied)
+            outStream.setLength(totalBytesCopied);
 
         ui.reportProgress(100);
         ui.reportFinished(outStream == null, 0, 0, totalBytesCopied);
     }
 
+    /**
+     * Builds the error message for a block which the parallel extractor could not decode. The block's
+     * "processing..." line has usually scrolled by when the error is reported, so its offsets are always included.
+     */
+    private static String[] getDecodeErrorMessage(UDIFBlock block) {
+        return new String[] {block.getBlockTypeAsString() + " Could not decode...",
+                "outOffset=" + block.getOutOffset() + " outSize=" + block.getOutSize(),
+                "inOffset=" + block.getInOffset() + " inSize=" + block.getInSize(),
+                "trueOutOffset=" + block.getTrueOutOffset() + " trueInOffset=" + block.getTrueInOffset()};
+    }
+
     /**
      * @param message
      * @param ui
@@ -594,6 +804,23 @@ public class DMGExtractor {
                     ses.verbose = true;
                 else if (cur.equals("-debug")) {
                     ses.debug = true;
+                } else if (cur.equals("-mmap")) {
+                    ses.mmap = true;
+                } else if (cur.equals("-sparse")) {
+                    ses.sparse = true;
+                } else if (cur.equals("-verify")) {
+                    ses.verify = true;
+                } else if (cur.equals("-threads")) {
+                    try {
+                        ses.threads = Integer.parseInt(args[i + 1]);
+                    } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                        ses.threads = 0;
+                    }
+                    if (ses.threads < 1) {
+                        ses.parseArgsErrorMessage = "Invalid thread count for -threads.";
+                        return ses;
+                    }
+                    ++i;
                 } else if (cur.equals("-startupcommand")) {
                     ses.startupCommand = args[i + 1];
                     ++i;
@@ -662,6 +889,14 @@ public class DMGExtractor {
                 "                the APX parser (will connect to Apple's website for DTD",
                 "                validation)",
                 "    -gui        starts the program in graphical mode",
+                "    -threads N  decodes the blocks of the image on N threads in parallel",
+                "                (default: 1)",
+                "    -sparse     leaves zero filled regions unwritten, creating a sparse output",
+                "                file (saves time and disk space for mostly empty images)",
+                "    -mmap       reads the input file through memory mapping instead of one",
+                "                system call per read",
+                "    -verify     verifies the checksums of the image and of the decoded data of",
+                "                each partition while extracting",
                 "    -debug      performs unspecified debug operations (only intended for",
                 "                development use)",
                 ""
@@ -0,0 +1,344 @@
+package org.catacombae.dmgextractor;
+
+import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.catacombae.dmg.udif.UDIFBlock;
+import org.catacombae.dmg.udif.UDIFBlockInputStream;
+import org.catacombae.dmg.udif.UDIFMetrics;
+import org.catacombae.dmg.udif.UDIFVerifier;
+import org.catacombae.dmgextractor.io.ConcurrentReadableRandomAccessStream;
+import org.catacombae.dmgextractor.io.TimedReadableRandomAccessStream;
+import org.catacombae.io.ReadableRandomAccessStream;
+import org.catacombae.io.ReadableRandomAccessSubstream;
+import org.catacombae.io.SynchronizedReadableRandomAccessStream;
+
+import static java.lang.System.getLogger;
+
+
+/**
+ * Extracts UDIF blocks on a pool of worker threads. Every block is decoded independently and written to its
+ * {@link UDIFBlock#getTrueOutOffset()} position in the output file with positional writes, so blocks may finish in
+ * any order.<br>
+ * The number of blocks queued or being decoded is capped at twice the number of threads, and each worker decodes
+ * through a single buffer of its own, which bounds the memory used no matter how large the image is.<br>
+ * Only the thread that submits blocks may call the methods of this class. Progress and failures are handed back to
+ * that thread, so the {@link UserInterface} is never touched by the workers.
+ */
+class ParallelBlockExtractor implements AutoCloseable {
+
+    private static final Logger logger = getLogger(ParallelBlockExtractor.class.getName());
+
+    private static final int BUFFER_SIZE = 0x40000;
+
+    /** A block that could not be decoded. */
+    static class Failure {
+
+        private final UDIFBlock block;
+        private final DmgException cause;
+
+        private Failure(UDIFBlock block, DmgException cause) {
+            this.block = block;
+            this.cause = cause;
+        }
+
+        public UDIFBlock getBlock() {
+            return block;
+        }
+
+        public DmgException getCause() {
+            return cause;
+        }
+    }
+
+    private final FileChannel dmgChannel;
+    private final FileChannel isoChannel;
+    private final Path isoPath;
+    private final boolean sparse;
+    private final UDIFMetrics metrics;
+    private final UDIFVerifier.PartitionChecksum[] checksums;
+    private final ExecutorService executor;
+    private final ExecutorCompletionService<Failure> completionService;
+    private final int maxInFlight;
+    private int inFlight = 0;
+    private final LinkedList<Failure> failures = new LinkedList<>();
+    private final AtomicLong progress = new AtomicLong();
+    private volatile boolean cancelled = false;
+
+    private final ThreadLocal<TimedReadableRandomAccessStream> streams;
+    private final ThreadLocal<byte[]> buffers = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+    /**
+     * The output channels of the workers for transferTo, which writes at the position of its channel. With a channel
+     * each, the workers copy BT_COPY blocks at the same time. Closed by {@link #close()}.
+     */
+    private final ThreadLocal<FileChannel> transferChannels = new ThreadLocal<>();
+    private final Queue<FileChannel> openTransferChannels = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param dmgRaf     the UDIF image. It must not be used by anyone else until this extractor is closed.
+     * @param dmgChannel the channel of the image file, used to copy BT_COPY blocks without passing them through
+     *                   the heap. Null if the image is read through a filter stream.
+     * @param isoChannel the output file, or null to only decode the blocks (testing mode).
+     * @param threads    the number of worker threads.
+     * @param sparse     whether to skip over zeros instead of writing them. The caller must extend the output file
+     *                   to its full length afterwards.
+     */
+    ParallelBlockExtractor(ReadableRandomAccessStream dmgRaf, FileChannel dmgChannel, FileChannel isoChannel,
+                           int threads, boolean sparse) {
+        this(dmgRaf, dmgChannel, isoChannel, null, threads, sparse, new UDIFMetrics(), null);
+    }
+
+    /**
+     * Like {@link #ParallelBlockExtractor(ReadableRandomAccessStream, FileChannel, FileChannel, int, boolean)}, and
+     * records the sizes and times of the blocks in <code>metrics</code>. If <code>checksums</code> isn't null, the
+     * CRC32 of the decoded data of each block is added to the element of <code>checksums</code> for its partition,
+     * where there is one.<br>
+     * If <code>isoPath</code>, the path of the output file, is given, each worker opens a channel of its own to it
+     * and BT_COPY blocks are copied from <code>dmgChannel</code> by the kernel. Otherwise they are passed through the
+     * buffers of the workers like the other blocks.
+     */
+    ParallelBlockExtractor(ReadableRandomAccessStream dmgRaf, FileChannel dmgChannel, FileChannel isoChannel,
+                           Path isoPath, int threads, boolean sparse, UDIFMetrics metrics,
+                           UDIFVerifier.PartitionChecksum[] checksums) {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads must be positive (" + threads + ")");
+
+        // Each worker gets its own file pointer into the image. Reads of a file are positional and run concurrently,
+        // reads of other streams are serialized by the synchronized stream.
+        SynchronizedReadableRandomAccessStream syncRaf = ConcurrentReadableRandomAccessStream.of(dmgRaf);
+        this.streams = ThreadLocal.withInitial(() ->
+                new TimedReadableRandomAccessStream(new ReadableRandomAccessSubstream(syncRaf)));
+        this.dmgChannel = dmgChannel;
+        this.isoChannel = isoChannel;
+        this.isoPath = isoChannel != null ? isoPath : null;
+        this.sparse = sparse;
+        this.metrics = metrics;
+        this.checksums = checksums;
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "DMGExtractor-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        this.completionService = new ExecutorCompletionService<>(executor);
+        this.maxInFlight = threads * 2;
+    }
+
+    /** Returns whether blocks of type <code>blockType</code> carry data that the workers can extract. */
+    static boolean isDataBlock(int blockType) {
+        return switch (blockType) {
+            case UDIFBlock.BT_ZLIB, UDIFBlock.BT_BZIP2, UDIFBlock.BT_LZFSE, UDIFBlock.BT_COPY, UDIFBlock.BT_ZERO,
+                 UDIFBlock.BT_ZERO2 -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * Queues <code>block</code> for extraction if fewer than the maximum number of blocks are in flight, waiting at
+     * most <code>timeoutMillis</code> for one of them to finish otherwise.
+     *
+     * @return true if the block was queued, false if the wait timed out.
+     */
+    boolean trySubmit(UDIFBlock block, long timeoutMillis) throws IOException, InterruptedException {
+        return trySubmit(block, -1, timeoutMillis);
+    }
+
+    /**
+     * Like {@link #trySubmit(UDIFBlock, long)}, recording the block in the metrics under partition
+     * <code>partition</code> (-1 for none).
+     */
+    boolean trySubmit(UDIFBlock block, int partition, long timeoutMillis) throws IOException, InterruptedException {
+        if (inFlight >= maxInFlight)
+            collect(completionService.poll(timeoutMillis, TimeUnit.MILLISECONDS));
+        if (inFlight >= maxInFlight)
+            return false;
+
+        completionService.submit(() -> extract(block, partition));
+        ++inFlight;
+        return true;
+    }
+
+    /**
+     * Waits at most <code>timeoutMillis</code> for a queued block to finish.
+     *
+     * @return true if there are no more blocks in flight.
+     */
+    boolean awaitCompletion(long timeoutMillis) throws IOException, InterruptedException {
+        if (inFlight > 0)
+            collect(completionService.poll(timeoutMillis, TimeUnit.MILLISECONDS));
+        return inFlight == 0;
+    }
+
+    /** Returns the number of bytes extracted since the previous call. */
+    long takeProgress() {
+        return progress.getAndSet(0);
+    }
+
+    /** Returns the next block that could not be decoded, or null if there is none. */
+    Failure pollFailure() {
+        return failures.poll();
+    }
+
+    /**
+     * Stops the extraction. Blocks which haven't been started are dropped, and the blocks being decoded are abandoned
+     * at the next buffer boundary. Returns when all workers have stopped, or when the calling thread is interrupted,
+     * in which case its interrupt flag is set again and the workers stop on their own.
+     */
+    @Override
+    public void close() {
+        cancelled = true;
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS))
+                logger.log(Level.DEBUG, "Waiting for the worker threads to finish...");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            FileChannel channel;
+            while ((channel = openTransferChannels.poll()) != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    logger.log(Level.DEBUG, "Could not close an output channel: " + e);
+                }
+            }
+        }
+    }
+
+    private void collect(Future<Failure> future) throws IOException, InterruptedException {
+        if (future == null)
+            return;
+
+        --inFlight;
+        try {
+            Failure failure = future.get();
+            if (failure != null)
+                failures.add(failure);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException ioe)
+                throw ioe;
+            else if (cause instanceof RuntimeException re)
+                throw re;
+            else if (cause instanceof Error err)
+                throw err;
+            else
+                throw new RuntimeException(cause);
+        }
+    }
+
+    /** Runs on a worker thread. */
+    private Failure extract(UDIFBlock block, int partition) throws IOException {
+        if (cancelled)
+            return null;
+        UDIFVerifier.PartitionChecksum checksum = null;
+        if (checksums != null && partition >= 0 && UDIFVerifier.PartitionChecksum.covers(block.getBlockType()))
+            checksum = checksums[partition];
+        if (sparse && DMGBlockHandlers.isZeroBlock(block.getBlockType())) {
+            progress.addAndGet(block.getOutSize());
+            metrics.recordBlock(block.getBlockType(), partition, 0, block.getOutSize(), 0, 0, 0);
+            if (checksum != null)
+                checksum.addZeros(block.getTrueOutOffset(), block.getOutSize());
+            return null;
+        }
+        // The kernel copy doesn't let the data be checksummed.
+        if (block.getBlockType() == UDIFBlock.BT_COPY && dmgChannel != null && isoPath != null && !sparse &&
+                checksum == null) {
+            FileChannel transferChannel = getTransferChannel();
+            transferChannel.position(block.getTrueOutOffset());
+            DMGBlockHandlers.transferBlock(block, dmgChannel, transferChannel, progress::addAndGet, metrics,
+                    partition);
+            return null;
+        }
+
+        byte[] buffer = buffers.get();
+        CRC32 crc = checksum != null ? new CRC32() : null;
+        TimedReadableRandomAccessStream timedRaf = streams.get();
+        long readNanosBefore = timedRaf.getReadNanos();
+        UDIFBlockInputStream is = UDIFBlockInputStream.getStream(timedRaf, block);
+        try {
+            long outPos = block.getTrueOutOffset();
+            long totalBytesRead = 0;
+            long decodeNanos = 0;
+            long writeNanos = 0;
+            while (!cancelled) {
+                long start = System.nanoTime();
+                int bytesRead = is.read(buffer);
+                decodeNanos += System.nanoTime() - start;
+                if (bytesRead <= 0)
+                    break;
+                if (isoChannel != null) {
+                    start = System.nanoTime();
+                    if (sparse)
+                        writeSparse(buffer, bytesRead, outPos);
+                    else
+                        write(buffer, 0, bytesRead, outPos);
+                    writeNanos += System.nanoTime() - start;
+                    outPos += bytesRead;
+                }
+                if (crc != null)
+                    crc.update(buffer, 0, bytesRead);
+                totalBytesRead += bytesRead;
+                progress.addAndGet(bytesRead);
+            }
+            if (checksum != null && !cancelled)
+                checksum.add(block.getTrueOutOffset(), (int) crc.getValue(), totalBytesRead);
+            long readNanos = timedRaf.getReadNanos() - readNanosBefore;
+            metrics.recordBlock(block.getBlockType(), partition, block.getInSize(), totalBytesRead, readNanos,
+                    decodeNanos - readNanos, writeNanos);
+
+            if (!cancelled && totalBytesRead != block.getOutSize()) {
+                logger.log(Level.DEBUG, "WARNING: Could not extract entire block! " +
+                        "Extracted " + totalBytesRead + " of " + block.getOutSize() + " bytes");
+            }
+            return null;
+        } catch (DmgException de) {
+            logger.log(Level.ERROR, de.getMessage(), de);
+            return new Failure(block, de);
+        } finally {
+            is.close();
+        }
+    }
+
+    /** Returns the output channel of the calling worker, opening it the first time. */
+    private FileChannel getTransferChannel() throws IOException {
+        FileChannel channel = transferChannels.get();
+        if (channel == null) {
+            channel = FileChannel.open(isoPath, StandardOpenOption.WRITE);
+            openTransferChannels.add(channel);
+            transferChannels.set(channel);
+        }
+        return channel;
+    }
+
+    private void writeSparse(byte[] buffer, int len, long pos) throws IOException {
+        int i = 0;
+        while (i < len) {
+            i += DMGBlockHandlers.sparseRunLength(buffer, i, len - i, pos + i, true);
+            int dataLength = DMGBlockHandlers.sparseRunLength(buffer, i, len - i, pos + i, false);
+            write(buffer, i, dataLength, pos + i);
+            i += dataLength;
+        }
+    }
+
+    private void write(byte[] buffer, int off, int len, long pos) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(buffer, off, len);
+        while (bb.hasRemaining())
+            pos += isoChannel.write(bb, pos);
+    }
+}
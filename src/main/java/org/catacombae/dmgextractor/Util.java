@@ -19,4 +19,32 @@ package org.catacombae.dmgextractor;
 
 public class Util extends org.catacombae.util.Util {
 //    public static int sectorSize = 0x800;
+
+    /** Returns <code>s</code> as a quoted JSON string. */
+    public static String toJSONString(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            switch (c) {
+                case '"' -> sb.append("\\\"");
+                case '\\' -> sb.append("\\\\");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                case '\t' -> sb.append("\\t");
+                default -> {
+                    if (c < 0x20)
+                        sb.append(String.format("\\u%04x", (int) c));
+                    else
+                        sb.append(c);
+                }
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    /** Returns <code>s</code> as a CSV field, quoted if it has to be. */
+    public static String toCSVField(String s) {
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0 && s.indexOf('\r') < 0)
+            return s;
+        return "\"" + s.replace("\"", "\"\"") + "\"";
+    }
 }
@@ -55,6 +55,6 @@ public class ConcatenatedReader extends Reader {
                     break; // There wasn't enough data
             }
         }
-        return bytesRead;
+        return bytesRead == 0 && len > 0 ? -1 : bytesRead;
     }
 }
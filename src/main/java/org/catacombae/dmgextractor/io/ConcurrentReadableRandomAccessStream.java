@@ -0,0 +1,50 @@
+package org.catacombae.dmgextractor.io;
+
+import org.catacombae.io.ReadableRandomAccessStream;
+import org.catacombae.io.RuntimeIOException;
+import org.catacombae.io.SynchronizedReadableRandomAccessStream;
+
+
+/**
+ * A {@link SynchronizedReadableRandomAccessStream} over a {@link PositionalReadable} stream, whose atomic seek+read
+ * {@link #readFrom(long, byte[], int, int)} is a positional read that takes no lock. The
+ * {@link org.catacombae.io.ReadableRandomAccessSubstream}s of an image read through it, so threads with substreams of
+ * their own read the image concurrently instead of one at a time.<br>
+ * The methods which use the shared file pointer are still synchronized.
+ */
+public class ConcurrentReadableRandomAccessStream extends SynchronizedReadableRandomAccessStream {
+
+    private final PositionalReadable source;
+
+    public <T extends ReadableRandomAccessStream & PositionalReadable> ConcurrentReadableRandomAccessStream(
+            T source) {
+        this(source, source);
+    }
+
+    private ConcurrentReadableRandomAccessStream(ReadableRandomAccessStream stream, PositionalReadable source) {
+        super(stream);
+        this.source = source;
+    }
+
+    /**
+     * Returns a stream for the substreams of <code>stream</code> to share: a lock-free one if <code>stream</code>
+     * can read at a position without a file pointer, otherwise a {@link SynchronizedReadableRandomAccessStream}.
+     */
+    public static SynchronizedReadableRandomAccessStream of(ReadableRandomAccessStream stream) {
+        if (stream instanceof SynchronizedReadableRandomAccessStream sync)
+            return sync;
+        if (stream instanceof PositionalReadable positional)
+            return new ConcurrentReadableRandomAccessStream(stream, positional);
+        return new SynchronizedReadableRandomAccessStream(stream);
+    }
+
+    @Override
+    public int readFrom(long pos, byte[] b, int off, int len) throws RuntimeIOException {
+        return source.readFrom(pos, b, off, len);
+    }
+
+    @Override
+    public long length() throws RuntimeIOException {
+        return source.length();
+    }
+}
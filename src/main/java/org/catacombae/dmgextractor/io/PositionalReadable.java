@@ -0,0 +1,22 @@
+package org.catacombae.dmgextractor.io;
+
+import org.catacombae.io.RuntimeIOException;
+
+
+/**
+ * A stream which can read at a given position without a file pointer, and so without a lock, from any number of
+ * threads at once. {@link ConcurrentReadableRandomAccessStream} builds on this.
+ */
+public interface PositionalReadable {
+
+    /**
+     * Reads up to <code>len</code> bytes at position <code>pos</code> without using or moving the file pointer.
+     * Safe to call from several threads at once.
+     *
+     * @return the number of bytes read, or -1 if <code>pos</code> is at or beyond the end of the stream.
+     */
+    int readFrom(long pos, byte[] b, int off, int len) throws RuntimeIOException;
+
+    /** Returns the length of the stream. Safe to call from several threads at once. */
+    long length() throws RuntimeIOException;
+}
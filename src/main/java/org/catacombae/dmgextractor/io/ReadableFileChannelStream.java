@@ -0,0 +1,157 @@
+package org.catacombae.dmgextractor.io;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+
+import org.catacombae.io.BasicReadableRandomAccessStream;
+import org.catacombae.io.RuntimeIOException;
+
+
+/**
+ * A read-only random access stream over a file, which reads through {@link FileChannel#read(ByteBuffer, long)}. That
+ * read takes the position as an argument, so unlike the seek+read of {@link org.catacombae.io.ReadableFileStream} it
+ * needs no lock, and concurrent readers of the file each get a request of their own to the storage.<br>
+ * {@link #readFrom(long, byte[], int, int)} doesn't use the file pointer and may be called from several threads at
+ * once. The other methods may not.<br>
+ * A thread which is interrupted while it reads closes the channel, for all threads. The file is then opened again
+ * from its path, so that only the read of the interrupted thread fails, with the interrupt status of the thread set.
+ */
+public class ReadableFileChannelStream extends BasicReadableRandomAccessStream implements PositionalReadable {
+
+    private volatile RandomAccessFile raf;
+    private volatile FileChannel channel;
+    private final String openPath;
+    private volatile boolean closed;
+    private long filePointer = 0;
+
+    public ReadableFileChannelStream(File file) throws RuntimeIOException {
+        this(open(file), file.getPath());
+    }
+
+    /**
+     * @param raf      the file to read. It is closed when this stream is closed.
+     * @param openPath the path of the file, for messages and to open it again after an interrupt has closed it.
+     */
+    public ReadableFileChannelStream(RandomAccessFile raf, String openPath) {
+        this.raf = raf;
+        this.channel = raf.getChannel();
+        this.openPath = openPath;
+    }
+
+    private static RandomAccessFile open(File file) throws RuntimeIOException {
+        try {
+            return new RandomAccessFile(file, "r");
+        } catch (FileNotFoundException ex) {
+            throw new RuntimeIOException(ex);
+        }
+    }
+
+    public String getOpenPath() {
+        return openPath;
+    }
+
+    @Override
+    public int readFrom(long pos, byte[] b, int off, int len) throws RuntimeIOException {
+        if (pos < 0)
+            throw new IllegalArgumentException("Negative position: " + pos);
+        if (off < 0 || len < 0 || len > b.length - off)
+            throw new IndexOutOfBoundsException("off=" + off + " len=" + len + " b.length=" + b.length);
+        if (len == 0)
+            return 0;
+
+        ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+        // A positional read may return less than asked for before the end of the file, so it is repeated.
+        while (buffer.hasRemaining()) {
+            FileChannel channel = this.channel;
+            try {
+                int bytesRead = channel.read(buffer, pos + (buffer.position() - off));
+                if (bytesRead < 0)
+                    break;
+            } catch (ClosedChannelException ex) {
+                reopen(channel, ex);
+                // Reading on would only close the channel again.
+                if (ex instanceof ClosedByInterruptException) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeIOException(ex);
+                }
+            } catch (IOException ex) {
+                throw new RuntimeIOException(ex);
+            }
+        }
+        int bytesRead = buffer.position() - off;
+        return bytesRead == 0 ? -1 : bytesRead;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws RuntimeIOException {
+        int bytesRead = readFrom(filePointer, b, off, len);
+        if (bytesRead > 0)
+            filePointer += bytesRead;
+        return bytesRead;
+    }
+
+    @Override
+    public void seek(long pos) throws RuntimeIOException {
+        if (pos < 0)
+            throw new IllegalArgumentException("Negative position: " + pos);
+        filePointer = pos;
+    }
+
+    @Override
+    public long getFilePointer() throws RuntimeIOException {
+        return filePointer;
+    }
+
+    @Override
+    public long length() throws RuntimeIOException {
+        while (true) {
+            FileChannel channel = this.channel;
+            try {
+                return channel.size();
+            } catch (ClosedChannelException ex) {
+                reopen(channel, ex);
+                if (ex instanceof ClosedByInterruptException) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeIOException(ex);
+                }
+            } catch (IOException ex) {
+                throw new RuntimeIOException(ex);
+            }
+        }
+    }
+
+    /**
+     * Opens the file again after <code>failed</code> was closed under a reader by an interrupt, unless another reader
+     * has done so already. Throws <code>cause</code> if the stream has been closed or the file can't be opened.
+     */
+    private synchronized void reopen(FileChannel failed, ClosedChannelException cause) throws RuntimeIOException {
+        if (closed)
+            throw new RuntimeIOException(cause);
+        if (channel != failed)
+            return;
+        try {
+            RandomAccessFile newRaf = new RandomAccessFile(openPath, "r");
+            raf = newRaf;
+            channel = newRaf.getChannel();
+        } catch (IOException ex) {
+            cause.addSuppressed(ex);
+            throw new RuntimeIOException(cause);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws RuntimeIOException {
+        closed = true;
+        try {
+            raf.close();
+        } catch (IOException ex) {
+            throw new RuntimeIOException(ex);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package org.catacombae.dmgextractor.io;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.catacombae.io.BasicReadableRandomAccessStream;
+import org.catacombae.io.RuntimeIOException;
+
+
+/**
+ * A read-only random access stream over a memory mapped file. Reads are served from the page cache by copying out of
+ * the mapping, so unlike {@link org.catacombae.io.ReadableFileStream} they don't cost a system call each.<br>
+ * A {@link MappedByteBuffer} can't be larger than 2 GiB, so the file is mapped in windows of at most that size. A
+ * window is mapped the first time it is read from. The length of the file is fixed when the stream is opened.<br>
+ * {@link #readFrom(long, byte[], int, int)} doesn't use the file pointer and may be called from several threads at
+ * once. The other methods may not.
+ */
+public class ReadableMappedFileStream extends BasicReadableRandomAccessStream implements PositionalReadable {
+
+    /** The default window size, 1 GiB. */
+    public static final int DEFAULT_WINDOW_SIZE = 1 << 30;
+
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final String openPath;
+    private final long length;
+    private final int windowSize;
+    /** The mapped windows, read without a lock. A thread that loses the race to map a window drops its mapping. */
+    private final AtomicReferenceArray<MappedByteBuffer> windows;
+    private long filePointer = 0;
+
+    public ReadableMappedFileStream(File file) throws RuntimeIOException {
+        this(open(file), file.getPath());
+    }
+
+    public ReadableMappedFileStream(RandomAccessFile raf, String openPath) throws RuntimeIOException {
+        this(raf, openPath, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * @param raf        the file to map. It is closed when this stream is closed.
+     * @param openPath   the path of the file, for messages.
+     * @param windowSize the size of each mapped region. At most {@link Integer#MAX_VALUE} (2 GiB - 1).
+     */
+    public ReadableMappedFileStream(RandomAccessFile raf, String openPath, int windowSize) throws RuntimeIOException {
+        if (windowSize <= 0)
+            throw new IllegalArgumentException("windowSize must be positive (" + windowSize + ")");
+        this.raf = raf;
+        this.channel = raf.getChannel();
+        this.openPath = openPath;
+        this.windowSize = windowSize;
+        try {
+            this.length = channel.size();
+        } catch (IOException ex) {
+            throw new RuntimeIOException(ex);
+        }
+        long windowCount = (length + windowSize - 1) / windowSize;
+        if (windowCount > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("windowSize " + windowSize + " too small for a file of " + length +
+                    " bytes");
+        this.windows = new AtomicReferenceArray<>((int) windowCount);
+    }
+
+    private static RandomAccessFile open(File file) throws RuntimeIOException {
+        try {
+            return new RandomAccessFile(file, "r");
+        } catch (FileNotFoundException ex) {
+            throw new RuntimeIOException(ex);
+        }
+    }
+
+    public String getOpenPath() {
+        return openPath;
+    }
+
+    /**
+     * Reads up to <code>len</code> bytes at position <code>pos</code> without using or moving the file pointer.
+     * Safe to call from several threads at once.
+     *
+     * @return the number of bytes read, or -1 if <code>pos</code> is at or beyond the end of the file.
+     */
+    @Override
+    public int readFrom(long pos, byte[] b, int off, int len) throws RuntimeIOException {
+        if (pos < 0)
+            throw new IllegalArgumentException("Negative position: " + pos);
+        if (off < 0 || len < 0 || len > b.length - off)
+            throw new IndexOutOfBoundsException("off=" + off + " len=" + len + " b.length=" + b.length);
+        if (len == 0)
+            return 0;
+        if (pos >= length)
+            return -1;
+
+        int bytesToRead = (int) Math.min(len, length - pos);
+        int bytesRead = 0;
+        while (bytesRead < bytesToRead) {
+            long curPos = pos + bytesRead;
+            int windowIndex = (int) (curPos / windowSize);
+            int windowOffset = (int) (curPos % windowSize);
+            MappedByteBuffer window = getWindow(windowIndex);
+            int curBytesToRead = Math.min(bytesToRead - bytesRead, window.capacity() - windowOffset);
+            // Absolute get, which leaves the buffer's position alone.
+            window.get(windowOffset, b, off + bytesRead, curBytesToRead);
+            bytesRead += curBytesToRead;
+        }
+        return bytesRead;
+    }
+
+    private MappedByteBuffer getWindow(int windowIndex) throws RuntimeIOException {
+        MappedByteBuffer window = windows.get(windowIndex);
+        if (window == null) {
+            long windowStart = (long) windowIndex * windowSize;
+            try {
+                window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart,
+                        Math.min(windowSize, length - windowStart));
+            } catch (IOException ex) {
+                throw new RuntimeIOException(ex);
+            }
+            MappedByteBuffer mapped = windows.compareAndExchange(windowIndex, null, window);
+            if (mapped != null)
+                window = mapped;
+        }
+        return window;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws RuntimeIOException {
+        int bytesRead = readFrom(filePointer, b, off, len);
+        if (bytesRead > 0)
+            filePointer += bytesRead;
+        return bytesRead;
+    }
+
+    @Override
+    public void seek(long pos) throws RuntimeIOException {
+        if (pos < 0)
+            throw new IllegalArgumentException("Negative position: " + pos);
+        filePointer = pos;
+    }
+
+    @Override
+    public long getFilePointer() throws RuntimeIOException {
+        return filePointer;
+    }
+
+    @Override
+    public long length() throws RuntimeIOException {
+        return length;
+    }
+
+    /**
+     * Closes the file. The mappings can't be released explicitly, they stay valid until they are garbage collected.
+     */
+    @Override
+    public void close() throws RuntimeIOException {
+        for (int i = 0; i < windows.length(); ++i)
+            windows.set(i, null);
+        try {
+            raf.close();
+        } catch (IOException ex) {
+            throw new RuntimeIOException(ex);
+        }
+    }
+}
@@ -24,22 +24,30 @@ import org.catacombae.io.RuntimeIOException;
 
 /**
  * This class adds concurrency safety to a random access stream. It includes a seek+read
- * atomic operation. All operations on this object is synchronized on its own monitor.
+ * atomic operation. All operations on this object is synchronized on its own monitor, except
+ * {@link #readFrom(long, byte[], int, int)} over a {@link PositionalReadable} stream, which needs no lock.
  */
 public class SynchronizedRandomAccessStream extends BasicReadableRandomAccessStream {
 
     /** The underlying stream. */
     private final ReadableRandomAccessStream ras;
+    /** <code>ras</code>, if it can read at a position without using its file pointer, otherwise null. */
+    private final PositionalReadable positional;
 
     public SynchronizedRandomAccessStream(ReadableRandomAccessStream ras) {
         this.ras = ras;
+        this.positional = ras instanceof PositionalReadable p ? p : null;
     }
 
-    /** Atomic seek+read. */
-    public synchronized int readFrom(long pos, byte[] b, int off, int len) throws RuntimeIOException {
-        if (getFilePointer() != pos)
-            seek(pos);
-        return read(b, off, len);
+    /** Atomic seek+read. Leaves the file pointer alone if the underlying stream reads positionally. */
+    public int readFrom(long pos, byte[] b, int off, int len) throws RuntimeIOException {
+        if (positional != null)
+            return positional.readFrom(pos, b, off, len);
+        synchronized (this) {
+            if (getFilePointer() != pos)
+                seek(pos);
+            return read(b, off, len);
+        }
     }
 
     /** Atomic seek+skip. */
@@ -0,0 +1,66 @@
+package org.catacombae.dmgextractor.io;
+
+import org.catacombae.io.BasicReadableRandomAccessStream;
+import org.catacombae.io.ReadableRandomAccessStream;
+import org.catacombae.io.RuntimeIOException;
+
+
+/**
+ * Passes everything on to another stream, adding up the time spent in its read methods. A decoder reading through
+ * this stream can then tell the time it spent waiting for data from the time it spent decoding it.<br>
+ * Like most streams, this one may only be used by one thread at a time.
+ */
+public class TimedReadableRandomAccessStream extends BasicReadableRandomAccessStream {
+
+    private final ReadableRandomAccessStream source;
+    private long readNanos = 0;
+
+    public TimedReadableRandomAccessStream(ReadableRandomAccessStream source) {
+        this.source = source;
+    }
+
+    /** Returns the time spent reading so far. */
+    public long getReadNanos() {
+        return readNanos;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws RuntimeIOException {
+        long start = System.nanoTime();
+        try {
+            return source.read(b, off, len);
+        } finally {
+            readNanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public void readFully(byte[] b, int off, int len) throws RuntimeIOException {
+        long start = System.nanoTime();
+        try {
+            source.readFully(b, off, len);
+        } finally {
+            readNanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public void seek(long pos) throws RuntimeIOException {
+        source.seek(pos);
+    }
+
+    @Override
+    public long getFilePointer() throws RuntimeIOException {
+        return source.getFilePointer();
+    }
+
+    @Override
+    public long length() throws RuntimeIOException {
+        return source.length();
+    }
+
+    /** Does not close the source stream. */
+    @Override
+    public void close() throws RuntimeIOException {
+    }
+}
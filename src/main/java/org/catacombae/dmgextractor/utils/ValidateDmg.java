@@ -22,8 +22,13 @@ import java.io.RandomAccessFile;
 import java.lang.System.Logger;
 import java.lang.System.Logger.Level;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.catacombae.dmg.udif.Koly;
+import org.catacombae.dmg.udif.PlistPartition;
+import org.catacombae.dmg.udif.UDIFBlock;
+import org.catacombae.dmg.udif.UDIFBlockTable;
 import org.catacombae.dmg.udif.UDIFFileView;
 import org.catacombae.dmgextractor.Util;
 import org.catacombae.io.ReadableFileStream;
@@ -61,7 +66,14 @@ public class ValidateDmg {
                         System.out.print("  " + warnings.length + " warnings:");
                     System.out.print("    " + warnings[i]);
                 }
-                dfw.getPlist(); // Creates a new Plist, which automatically parses the XML data (and validates it).
+                // Parses the XML data and the block tables (and validates them).
+                PlistPartition[] partitions = dfw.getPlist().getPartitions();
+                ValidateResult bvr = new ValidateResult();
+                validateBlockTables(partitions, koly, raf.length(), bvr);
+                for (String error : bvr.getErrors())
+                    System.out.print("    " + error);
+                for (String warning : bvr.getWarnings())
+                    System.out.print("    " + warning);
             } catch (Exception e) {
                 logger.log(Level.ERROR, e.getMessage(), e);
             }
@@ -83,7 +95,7 @@ public class ValidateDmg {
         // unknown1 has always been a certain byte-sequence in examples. checkit
         // 0000 0004 0000 0200 0000 0001 0000 0000 0000 0000 0000 0000 0000 0000
         byte[] previouslySeenString = {
-                0x0, 0x0, 0x0, 0x4, 0x0, 0x0, 0x20, 0x0,
+                0x0, 0x0, 0x0, 0x4, 0x0, 0x0, 0x2, 0x0,
                 0x0, 0x0, 0x0, 0x1, 0x0, 0x0, 0x0, 0x0,
                 0x0, 0x0, 0x0, 0x0, 0x0, 0x0, 0x0, 0x0,
                 0x0, 0x0, 0x0, 0x0
@@ -140,4 +152,96 @@ public class ValidateDmg {
             vr.addError("plist dimensions outside file bounds! (plistSize: " + plistSize + " sourceFile.length-512: " + (sourceFile.length() - 512));
         return vr;
     }
+
+    /** The number of block table problems reported for an image, before the rest are only counted. */
+    private static final int MAX_BLOCK_MESSAGES = 20;
+
+    /**
+     * Checks that the block tables of <code>partitions</code> are consistent: that the blocks follow each other in the
+     * output without gaps (warnings) or overlaps (errors), that their block types are known, and that the data of each
+     * block lies within the data fork described by <code>koly</code>, or within the file if it has no data fork
+     * length.
+     */
+    public static void validateBlockTables(PlistPartition[] partitions, Koly koly, long fileLength,
+                                           ValidateResult vr) {
+        long dataStart = 0;
+        long dataEnd = fileLength - Koly.length();
+        if (koly.getDataForkLength() > 0) {
+            dataStart = koly.getDataForkOffset();
+            dataEnd = dataStart + koly.getDataForkLength();
+            if (dataEnd > fileLength - Koly.length())
+                vr.addError("data fork outside file bounds! (dataForkOffset: " + dataStart + " dataForkLength: " +
+                        koly.getDataForkLength() + " file size: " + fileLength + ")");
+        }
+
+        int problems = 0;
+        // Only the messages are capped, not their severity: if any of the problems left out is an error, so is the
+        // line counting them.
+        boolean errorsNotListed = false;
+        List<String> errors = new ArrayList<>();
+        List<String> warnings = new ArrayList<>();
+        long expectedOutOffset = 0;
+        for (int p = 0; p < partitions.length; ++p) {
+            PlistPartition pp = partitions[p];
+            UDIFBlockTable blocks = pp.getBlockTable();
+            for (int i = pp.getFirstBlock(); i < pp.getFirstBlock() + pp.getBlockCount(); ++i) {
+                String where = "partition " + p + " block " + (i - pp.getFirstBlock());
+                int blockType = blocks.getBlockType(i);
+                long outOffset = blocks.getTrueOutOffset(i);
+                long outSize = blocks.getOutSize(i);
+                long inOffset = blocks.getTrueInOffset(i);
+                long inSize = blocks.getInSize(i);
+
+                errors.clear();
+                warnings.clear();
+                boolean hasData;
+                switch (blockType) {
+                    case UDIFBlock.BT_ADC, UDIFBlock.BT_ZLIB, UDIFBlock.BT_BZIP2, UDIFBlock.BT_LZFSE,
+                         UDIFBlock.BT_COPY -> hasData = true;
+                    case UDIFBlock.BT_ZERO, UDIFBlock.BT_ZERO2, UDIFBlock.BT_END, UDIFBlock.BT_UNKNOWN ->
+                            hasData = false;
+                    default -> {
+                        hasData = false;
+                        errors.add(where + ": unknown block type 0x" + Util.toHexStringBE(blockType));
+                    }
+                }
+
+                if (errors.isEmpty() && outSize < 0)
+                    errors.add(where + ": negative outSize " + outSize);
+                else if (errors.isEmpty() && outSize > 0) {
+                    if (outOffset < expectedOutOffset)
+                        errors.add(where + " overlaps the block before it (out offset " + outOffset + " < " +
+                                expectedOutOffset + ")");
+                    else if (outOffset > expectedOutOffset)
+                        warnings.add(where + " leaves a gap of " + (outOffset - expectedOutOffset) +
+                                " bytes after the block before it (out offset " + outOffset + ")");
+                    expectedOutOffset = Math.max(expectedOutOffset, outOffset + outSize);
+
+                    if (hasData && inSize <= 0)
+                        errors.add(where + ": " + UDIFBlock.getBlockTypeAsString(blockType) + " block has no data");
+                    else if (hasData && (inOffset < dataStart || inOffset + inSize > dataEnd))
+                        errors.add(where + ": data outside the data fork (inOffset: " + inOffset + " inSize: " +
+                                inSize + " data fork: " + dataStart + "-" + dataEnd + ")");
+                }
+
+                for (String error : errors) {
+                    if (problems++ < MAX_BLOCK_MESSAGES)
+                        vr.addError(error);
+                    else
+                        errorsNotListed = true;
+                }
+                for (String warning : warnings) {
+                    if (problems++ < MAX_BLOCK_MESSAGES)
+                        vr.addWarning(warning);
+                }
+            }
+        }
+        if (problems > MAX_BLOCK_MESSAGES) {
+            String message = (problems - MAX_BLOCK_MESSAGES) + " more block table problems not listed";
+            if (errorsNotListed)
+                vr.addError(message);
+            else
+                vr.addWarning(message);
+        }
+    }
 }
@@ -18,38 +18,311 @@
 package org.catacombae.dmgextractor.utils;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
 import java.lang.System.Logger;
 import java.lang.System.Logger.Level;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import org.catacombae.dmg.udif.Koly;
+import org.catacombae.dmg.udif.PlistPartition;
+import org.catacombae.dmg.udif.UDIFFile;
+import org.catacombae.dmg.udif.UDIFVerifier;
+import org.catacombae.dmgextractor.Util;
+import org.catacombae.dmgextractor.io.ReadableFileChannelStream;
 
 import static java.lang.System.getLogger;
 
 
 /**
- * Wrapper to allow processing of a list of dmg files. (I was too lazy
- * to write a shell script for this..)
+ * Validates a list of dmg files, several at a time, and writes a JSON or CSV report with the outcome for each file.
+ * <br>
+ * Each file is checked for the rules of {@link ValidateDmg#validateKoly(RandomAccessFile, Koly)}, for a plist that
+ * parses, for consistent block tables ({@link ValidateDmg#validateBlockTables(PlistPartition[], Koly, long,
+ * ValidateResult)}) and for its master checksum. With <code>-decode</code> every block is also decoded, without
+ * writing anything, and the data fork and partition checksums are verified, the partitions of a file on
+ * <code>-threads</code> threads.
  */
 public class ValidateDmgs {
 
     private static final Logger logger = getLogger(ValidateDmgs.class.getName());
 
-    public static void main(String[] args) throws IOException {
+    /** The outcome of validating one file. */
+    public static class Report {
+
+        private final String file;
+        private final int partitions;
+        private final int blocks;
+        private final long size;
+        private final long nanos;
+        private final ValidateResult result;
+
+        Report(String file, int partitions, int blocks, long size, long nanos, ValidateResult result) {
+            this.file = file;
+            this.partitions = partitions;
+            this.blocks = blocks;
+            this.size = size;
+            this.nanos = nanos;
+            this.result = result;
+        }
+
+        public String getFile() {
+            return file;
+        }
+
+        public int getPartitionCount() {
+            return partitions;
+        }
+
+        public int getBlockCount() {
+            return blocks;
+        }
+
+        /** Returns the size of the image when extracted. */
+        public long getSize() {
+            return size;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        public ValidateResult getResult() {
+            return result;
+        }
+
+        String getStatus() {
+            return result.hasErrors() ? "errors" : result.hasWarnings() ? "warnings" : "ok";
+        }
+
+        static final String CSV_HEADER = "file,status,partitions,blocks,size,millis,errors,warnings,message";
+
+        String toCSV() {
+            String[] errors = result.getErrors();
+            String[] warnings = result.getWarnings();
+            String message = errors.length > 0 ? errors[0] : warnings.length > 0 ? warnings[0] : "";
+            return Util.toCSVField(file) + "," + getStatus() + "," + partitions + "," + blocks + "," + size + "," +
+                    millis() + "," + errors.length + "," + warnings.length + "," + Util.toCSVField(message);
+        }
+
+        String toJSON() {
+            return "{\"file\": " + Util.toJSONString(file) + ", \"status\": \"" + getStatus() +
+                    "\", \"partitions\": " + partitions + ", \"blocks\": " + blocks + ", \"size\": " + size +
+                    ", \"millis\": " + millis() + ", \"errors\": " + toJSONArray(result.getErrors()) +
+                    ", \"warnings\": " + toJSONArray(result.getWarnings()) + "}";
+        }
+
+        private static String toJSONArray(String[] messages) {
+            StringBuilder sb = new StringBuilder("[");
+            for (int i = 0; i < messages.length; ++i)
+                sb.append(i > 0 ? ", " : "").append(Util.toJSONString(messages[i]));
+            return sb.append(']').toString();
+        }
+
+        private String millis() {
+            return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(getStatus().toUpperCase(Locale.ROOT) + " " + file + ": " +
+                    partitions + " partitions, " + blocks + " blocks in " + millis() + " ms");
+            for (String error : result.getErrors())
+                sb.append("\n    ").append(error);
+            for (String warning : result.getWarnings())
+                sb.append("\n    ").append(warning);
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Validates <code>filename</code> on the calling thread, decoding its partitions on <code>threads</code> threads
+     * if <code>decode</code> is set.
+     */
+    public static Report validate(String filename, boolean decode, int threads) {
+        ValidateResult vr = new ValidateResult();
+        int partitionCount = 0;
+        int blockCount = 0;
+        long size = 0;
+        long start = System.nanoTime();
+        ReadableFileChannelStream stream = null;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(filename, "r");
+            stream = new ReadableFileChannelStream(raf, filename);
+            UDIFFile file = new UDIFFile(stream);
+            Koly koly = file.getView().getKoly();
+            vr.add(ValidateDmg.validateKoly(raf, koly));
+
+            PlistPartition[] partitions = file.getPartitions();
+            partitionCount = partitions.length;
+            for (PlistPartition pp : partitions) {
+                blockCount += pp.getBlockCount();
+                size += pp.getPartitionSize();
+            }
+            ValidateDmg.validateBlockTables(partitions, koly, raf.length(), vr);
+
+            UDIFVerifier verifier = new UDIFVerifier(stream, koly, partitions);
+            List<UDIFVerifier.Result> results =
+                    decode ? verifier.verify(true, threads) : List.of(verifier.verifyMasterChecksum());
+            for (UDIFVerifier.Result result : results) {
+                if (result.isError())
+                    vr.addError(result.toString());
+                else if (result.getStatus() == UDIFVerifier.Status.UNSUPPORTED)
+                    vr.addWarning(result.toString());
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.DEBUG, filename + ": " + e.getMessage(), e);
+            vr.addError("could not be read: " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            vr.addError("interrupted");
+        } finally {
+            if (stream != null)
+                stream.close();
+        }
+        return new Report(filename, partitionCount, blockCount, size, System.nanoTime() - start, vr);
+    }
+
+    /**
+     * Validates <code>files</code>, <code>jobs</code> of them at a time, passing each report on to
+     * <code>listener</code> when its file is done.
+     *
+     * @return the reports, in the order of <code>files</code>.
+     */
+    public static List<Report> validate(List<String> files, boolean decode, int jobs, int threads,
+                                        Consumer<Report> listener) throws InterruptedException {
+        if (jobs < 1 || threads < 1)
+            throw new IllegalArgumentException("jobs and threads must be positive (" + jobs + ", " + threads + ")");
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(jobs, Math.max(files.size(), 1)), r -> {
+            Thread t = new Thread(r, "ValidateDmgs-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            ExecutorCompletionService<Report> completion = new ExecutorCompletionService<>(executor);
+            List<Future<Report>> futures = new ArrayList<>();
+            for (String file : files)
+                futures.add(completion.submit(() -> validate(file, decode, threads)));
+            for (int i = 0; i < futures.size(); ++i)
+                listener.accept(get(completion.take()));
+
+            List<Report> reports = new ArrayList<>();
+            for (Future<Report> future : futures)
+                reports.add(get(future));
+            return reports;
+        } finally {
+            // Not shutdownNow(): interrupting a thread in a read would close the file channel under it.
+            executor.shutdown();
+        }
+    }
+
+    private static Report get(Future<Report> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            // validate(String, boolean, int) catches everything but Errors.
+            Throwable cause = e.getCause();
+            if (cause instanceof Error err)
+                throw err;
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /** Writes <code>reports</code> as a JSON array, one file per line, or as CSV with a header line. */
+    public static void writeReport(List<Report> reports, boolean csv, PrintStream ps) {
+        if (csv) {
+            ps.println(Report.CSV_HEADER);
+            for (Report report : reports)
+                ps.println(report.toCSV());
+        } else {
+            ps.println("[");
+            for (int i = 0; i < reports.size(); ++i)
+                ps.println("  " + reports.get(i).toJSON() + (i < reports.size() - 1 ? "," : ""));
+            ps.println("]");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean decode = false;
+        boolean csv = false;
+        int jobs = 0;
+        int threads = 0;
+        File reportFile = null;
+        int i = 0;
+        try {
+            for (; i < args.length && args[i].startsWith("-") && !args[i].equals("-"); ++i) {
+                switch (args[i]) {
+                    case "-decode" -> decode = true;
+                    case "-csv" -> csv = true;
+                    case "-jobs" -> jobs = Integer.parseInt(args[++i]);
+                    case "-threads" -> threads = Integer.parseInt(args[++i]);
+                    case "-report" -> reportFile = new File(args[++i]);
+                    default -> throw new IllegalArgumentException("Invalid argument: " + args[i]);
+                }
+            }
+            if (i >= args.length)
+                throw new IllegalArgumentException("No list files.");
+            if (jobs < 0 || threads < 0)
+                throw new IllegalArgumentException("-jobs and -threads must be positive.");
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            System.err.println(e instanceof IllegalArgumentException ? e.getMessage() : "Missing option value.");
+            System.err.println("usage: ValidateDmgs [-decode] [-jobs N] [-threads N] [-report <file>] [-csv]");
+            System.err.println("                    <listFile | ->...");
+            System.err.println("  Validates the dmg files listed in the list files (or on standard input), one per");
+            System.err.println("  line. -decode also decodes every block and verifies the checksums.");
+            System.exit(1);
+            return;
+        }
+
         LinkedList<String> fileList = new LinkedList<>();
-        for (String currentList : args) {
+        for (; i < args.length; ++i) {
+            String currentList = args[i];
             try {
-                BufferedReader listIn = new BufferedReader(new InputStreamReader(new FileInputStream(currentList)));
+                BufferedReader listIn = new BufferedReader(new InputStreamReader(
+                        currentList.equals("-") ? System.in : new FileInputStream(currentList),
+                        StandardCharsets.UTF_8));
                 String currentDmg = listIn.readLine();
                 while (currentDmg != null) {
-                    fileList.add(currentDmg);
+                    if (!currentDmg.isBlank() && !currentDmg.startsWith("#"))
+                        fileList.add(currentDmg.strip());
                     currentDmg = listIn.readLine();
                 }
             } catch (IOException e) {
                 logger.log(Level.ERROR, e.getMessage(), e);
             }
         }
-        ValidateDmg.main(fileList.toArray(String[]::new));
+
+        // By default the files are validated on all processors, and the partitions of each file on what is left.
+        int processors = Runtime.getRuntime().availableProcessors();
+        if (jobs == 0)
+            jobs = Math.max(1, Math.min(processors, fileList.size()));
+        if (threads == 0)
+            threads = Math.max(1, processors / jobs);
+
+        List<Report> reports = validate(fileList, decode, jobs, threads, System.err::println);
+        if (reportFile != null) {
+            try (PrintStream ps = new PrintStream(reportFile, StandardCharsets.UTF_8)) {
+                writeReport(reports, csv, ps);
+            }
+        } else
+            writeReport(reports, csv, System.out);
+
+        boolean damaged = reports.stream().anyMatch(r -> r.getResult().hasErrors());
+        System.exit(damaged ? 2 : 0);
     }
 }
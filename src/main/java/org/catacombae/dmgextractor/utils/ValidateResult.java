@@ -36,6 +36,20 @@ public class ValidateResult {
         warnings.addLast(message);
     }
 
+    /** Adds the errors and warnings of <code>other</code> to this result. */
+    public void add(ValidateResult other) {
+        errors.addAll(other.errors);
+        warnings.addAll(other.warnings);
+    }
+
+    public boolean hasErrors() {
+        return !errors.isEmpty();
+    }
+
+    public boolean hasWarnings() {
+        return !warnings.isEmpty();
+    }
+
     public String[] getErrors() {
         return errors.toArray(String[]::new);
     }
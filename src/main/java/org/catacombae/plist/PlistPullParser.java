@@ -0,0 +1,400 @@
+package org.catacombae.plist;
+
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.Arrays;
+import java.util.Base64;
+
+
+/**
+ * A pull parser over the raw bytes of an XML plist, for reading a few values out of a large plist without building
+ * a tree of it.<br>
+ * It knows just enough XML for plists: elements, character data, entity and character references and CDATA
+ * sections. The XML declaration, processing instructions, comments and the document type declaration are skipped,
+ * so nothing (in particular not the DTD) is ever fetched. Attributes are skipped as well. Only encodings in which
+ * markup is ASCII, like UTF-8, are supported.<br>
+ * Malformed input makes the methods throw {@link IllegalArgumentException}.
+ */
+public class PlistPullParser {
+
+    public static final int START_ELEMENT = 1;
+    public static final int END_ELEMENT = 2;
+    public static final int TEXT = 3;
+    public static final int END_DOCUMENT = 4;
+
+    private final byte[] data;
+    private final int end;
+    private final Charset encoding;
+    private int pos;
+
+    private int event;
+    private String name;
+    private int textStart;
+    private int textEnd;
+    private boolean cdata;
+    /** Set after the start of an empty element, <code>&lt;true/&gt;</code>, whose end comes next. */
+    private boolean emptyElement = false;
+
+    public PlistPullParser(byte[] data) {
+        this(data, 0, data.length);
+    }
+
+    public PlistPullParser(byte[] data, int offset, int length) {
+        this.data = data;
+        this.pos = offset;
+        this.end = offset + length;
+
+        if (startsWith(new byte[] {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF}))
+            pos += 3;
+        else if (length >= 2 && (data[pos] == 0 || data[pos + 1] == 0 ||
+                (data[pos] & 0xFE) == 0xFE && (data[pos + 1] & 0xFE) == 0xFE))
+            throw new IllegalArgumentException("Unsupported encoding: the plist isn't ASCII compatible");
+        this.encoding = readEncoding();
+    }
+
+    /** Returns the charset of the text of the plist, from its XML declaration (UTF-8 if there is none). */
+    public Charset getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * Moves to the next event, one of {@link #START_ELEMENT}, {@link #END_ELEMENT}, {@link #TEXT} and
+     * {@link #END_DOCUMENT}, and returns it.
+     */
+    public int next() {
+        if (emptyElement) {
+            emptyElement = false;
+            return event = END_ELEMENT;
+        }
+        while (pos < end) {
+            if (data[pos] != '<') {
+                textStart = pos;
+                while (pos < end && data[pos] != '<')
+                    ++pos;
+                textEnd = pos;
+                cdata = false;
+                return event = TEXT;
+            } else if (startsWith("<?")) {
+                pos = indexOf("?>", pos + 2) + 2;
+            } else if (startsWith("<!--")) {
+                pos = indexOf("-->", pos + 4) + 3;
+            } else if (startsWith("<![CDATA[")) {
+                textStart = pos + 9;
+                textEnd = indexOf("]]>", textStart);
+                pos = textEnd + 3;
+                cdata = true;
+                return event = TEXT;
+            } else if (startsWith("<!")) {
+                skipDeclaration();
+            } else if (startsWith("</")) {
+                pos += 2;
+                name = readName();
+                skipWhitespace();
+                expect('>');
+                return event = END_ELEMENT;
+            } else {
+                ++pos;
+                name = readName();
+                emptyElement = skipAttributes();
+                return event = START_ELEMENT;
+            }
+        }
+        return event = END_DOCUMENT;
+    }
+
+    /** Returns the current event. */
+    public int getEvent() {
+        return event;
+    }
+
+    /** Returns the name of the element of the current {@link #START_ELEMENT} or {@link #END_ELEMENT} event. */
+    public String getName() {
+        return name;
+    }
+
+    /** Returns the character data of the current {@link #TEXT} event, with references resolved. */
+    public String getText() {
+        String text = new String(data, textStart, textEnd - textStart, encoding);
+        return cdata ? text : unescape(text);
+    }
+
+    /**
+     * Moves to the next start or end of an element, skipping whitespace, and returns the event.
+     *
+     * @throws IllegalArgumentException if there is character data other than whitespace on the way, or no more
+     *                                  elements.
+     */
+    public int nextTag() {
+        while (true) {
+            switch (next()) {
+                case START_ELEMENT, END_ELEMENT -> {
+                    return event;
+                }
+                case TEXT -> {
+                    if (!isWhitespace(textStart, textEnd))
+                        throw error("Unexpected character data");
+                }
+                default -> throw error("Unexpected end of document");
+            }
+        }
+    }
+
+    /** Moves to the start of the next element, which must be <code>expectedName</code>. */
+    public void requireStart(String expectedName) {
+        if (nextTag() != START_ELEMENT || !name.equals(expectedName))
+            throw error("Expected <" + expectedName + ">");
+    }
+
+    /**
+     * Skips the rest of the current element, after its {@link #START_ELEMENT} event, to its {@link #END_ELEMENT}
+     * event.
+     */
+    public void skipElement() {
+        int depth = 1;
+        while (depth > 0) {
+            switch (next()) {
+                case START_ELEMENT -> ++depth;
+                case END_ELEMENT -> --depth;
+                case END_DOCUMENT -> throw error("Unexpected end of document");
+            }
+        }
+    }
+
+    /**
+     * Reads the character data of the current element, after its {@link #START_ELEMENT} event, up to and including
+     * its {@link #END_ELEMENT} event.
+     */
+    public String readText() {
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            switch (next()) {
+                case TEXT -> sb.append(getText());
+                case END_ELEMENT -> {
+                    return sb.toString();
+                }
+                case START_ELEMENT -> throw error("Unexpected element <" + name + ">");
+                default -> throw error("Unexpected end of document");
+            }
+        }
+    }
+
+    /**
+     * Decodes the base64 content of the current element, after the {@link #START_ELEMENT} event of a
+     * <code>&lt;data&gt;</code> element, up to and including its {@link #END_ELEMENT} event. Line breaks and other
+     * XML whitespace in the content are skipped, any other character that isn't base64 is an error.
+     */
+    public byte[] readData() {
+        byte[] text = null;
+        while (true) {
+            switch (next()) {
+                case TEXT -> {
+                    int length = 0;
+                    if (text == null) {
+                        text = new byte[textEnd - textStart];
+                    } else {
+                        length = text.length;
+                        text = Arrays.copyOf(text, length + textEnd - textStart);
+                    }
+                    for (int i = textStart; i < textEnd; ++i) {
+                        if (!isWhitespace(data[i]))
+                            text[length++] = data[i];
+                    }
+                    text = length == text.length ? text : Arrays.copyOf(text, length);
+                }
+                case END_ELEMENT -> {
+                    try {
+                        // The same strict decoding as Plist.decodeBase64, for the tree.
+                        return text == null ? new byte[0] : Base64.getDecoder().decode(text);
+                    } catch (IllegalArgumentException e) {
+                        throw error("Invalid base64 data (" + e.getMessage() + ")");
+                    }
+                }
+                case START_ELEMENT -> throw error("Unexpected element <" + name + ">");
+                default -> throw error("Unexpected end of document");
+            }
+        }
+    }
+
+    /**
+     * Looks for the key <code>key</code> in the current <code>&lt;dict&gt;</code>, after its {@link #START_ELEMENT}
+     * event or after a value, skipping the other entries.
+     *
+     * @return true if the key was found, and the next tag is the start of its value. False if the end of the dict
+     * was reached first.
+     */
+    public boolean findKey(String key) {
+        while (nextTag() == START_ELEMENT) {
+            if (!name.equals("key"))
+                throw error("Expected <key>");
+            String currentKey = readText();
+            if (currentKey.equals(key))
+                return true;
+            if (nextTag() != START_ELEMENT)
+                throw error("Missing value for key \"" + currentKey + "\"");
+            skipElement();
+        }
+        return false;
+    }
+
+    private Charset readEncoding() {
+        if (!startsWith("<?xml"))
+            return StandardCharsets.UTF_8;
+        int declEnd = indexOf("?>", pos);
+        String decl = new String(data, pos, declEnd - pos, StandardCharsets.US_ASCII);
+        int i = decl.indexOf("encoding");
+        if (i < 0)
+            return StandardCharsets.UTF_8;
+        i = decl.indexOf('=', i) + 1;
+        while (i < decl.length() && Character.isWhitespace(decl.charAt(i)))
+            ++i;
+        if (i <= 0 || i >= decl.length() || (decl.charAt(i) != '"' && decl.charAt(i) != '\''))
+            throw error("Malformed XML declaration");
+        int quoteEnd = decl.indexOf(decl.charAt(i), i + 1);
+        if (quoteEnd < 0)
+            throw error("Malformed XML declaration");
+        String encodingName = decl.substring(i + 1, quoteEnd);
+        try {
+            Charset charset = Charset.forName(encodingName);
+            if (!charset.equals(StandardCharsets.UTF_8) && !charset.equals(StandardCharsets.US_ASCII) &&
+                    !charset.equals(StandardCharsets.ISO_8859_1))
+                throw new IllegalArgumentException("Unsupported encoding: " + encodingName);
+            return charset;
+        } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+            throw new IllegalArgumentException("Unsupported encoding: " + encodingName, e);
+        }
+    }
+
+    private String readName() {
+        int start = pos;
+        while (pos < end && !isWhitespace(data[pos]) && data[pos] != '>' && data[pos] != '/')
+            ++pos;
+        if (pos == start)
+            throw error("Expected an element name");
+        return new String(data, start, pos - start, StandardCharsets.US_ASCII);
+    }
+
+    /** Skips to the end of a start tag, and returns whether it was the tag of an empty element. */
+    private boolean skipAttributes() {
+        while (pos < end) {
+            byte b = data[pos++];
+            if (b == '"' || b == '\'') {
+                while (pos < end && data[pos] != b)
+                    ++pos;
+                ++pos;
+            } else if (b == '>') {
+                return data[pos - 2] == '/';
+            }
+        }
+        throw error("Unterminated start tag <" + name + ">");
+    }
+
+    /** Skips a declaration like <code>&lt;!DOCTYPE ...&gt;</code>, with its internal subset if it has one. */
+    private void skipDeclaration() {
+        int depth = 0;
+        while (pos < end) {
+            byte b = data[pos++];
+            if (b == '"' || b == '\'') {
+                while (pos < end && data[pos] != b)
+                    ++pos;
+                ++pos;
+            } else if (b == '<') {
+                ++depth;
+            } else if (b == '>' && --depth == 0) {
+                return;
+            }
+        }
+        throw error("Unterminated declaration");
+    }
+
+    private void skipWhitespace() {
+        while (pos < end && isWhitespace(data[pos]))
+            ++pos;
+    }
+
+    private void expect(char c) {
+        if (pos >= end || data[pos] != c)
+            throw error("Expected '" + c + "'");
+        ++pos;
+    }
+
+    private boolean isWhitespace(int start, int end) {
+        for (int i = start; i < end; ++i) {
+            if (!isWhitespace(data[i]))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+
+    private boolean startsWith(String s) {
+        return startsWith(s.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private boolean startsWith(byte[] bytes) {
+        if (end - pos < bytes.length)
+            return false;
+        for (int i = 0; i < bytes.length; ++i) {
+            if (data[pos + i] != bytes[i])
+                return false;
+        }
+        return true;
+    }
+
+    private int indexOf(String s, int from) {
+        byte[] bytes = s.getBytes(StandardCharsets.US_ASCII);
+        outer:
+        for (int i = from; i <= end - bytes.length; ++i) {
+            for (int j = 0; j < bytes.length; ++j) {
+                if (data[i + j] != bytes[j])
+                    continue outer;
+            }
+            return i;
+        }
+        throw error("Expected \"" + s + "\"");
+    }
+
+    private String unescape(String text) {
+        int amp = text.indexOf('&');
+        if (amp < 0)
+            return text;
+
+        StringBuilder sb = new StringBuilder(text.length());
+        int i = 0;
+        while (amp >= 0) {
+            sb.append(text, i, amp);
+            int semicolon = text.indexOf(';', amp);
+            if (semicolon < 0)
+                throw error("Unterminated reference");
+            String ref = text.substring(amp + 1, semicolon);
+            switch (ref) {
+                case "amp" -> sb.append('&');
+                case "lt" -> sb.append('<');
+                case "gt" -> sb.append('>');
+                case "quot" -> sb.append('"');
+                case "apos" -> sb.append('\'');
+                default -> {
+                    if (!ref.startsWith("#"))
+                        throw error("Unknown entity &" + ref + ";");
+                    try {
+                        sb.appendCodePoint(ref.startsWith("#x") ? Integer.parseInt(ref.substring(2), 16) :
+                                Integer.parseInt(ref.substring(1)));
+                    } catch (IllegalArgumentException e) {
+                        throw error("Invalid character reference &" + ref + ";");
+                    }
+                }
+            }
+            i = semicolon + 1;
+            amp = text.indexOf('&', i);
+        }
+        return sb.append(text, i, text.length()).toString();
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at byte " + pos + " of the plist");
+    }
+}
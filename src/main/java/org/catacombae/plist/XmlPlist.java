@@ -51,7 +51,10 @@ public class XmlPlist {
 
     private static final Logger logger = getLogger(XmlPlist.class.getName());
 
-    private final XMLNode rootNode;
+    private final byte[] data;
+    private final boolean useSAXParser;
+    /** Built on the first call to {@link #getRootNode()}. */
+    private XMLNode rootNode;
 
     public XmlPlist(byte[] data) {
         this(data, 0, data.length);
@@ -68,13 +71,27 @@ public class XmlPlist {
     public XmlPlist(byte[] data, int offset, int length, boolean useSAXParser) {
 //        plistData = new byte[length];
 //        System.arraycopy(data, offset, plistData, 0, length);
-        rootNode = parseXMLData(data, useSAXParser);
+        this.data = data;
+        this.useSAXParser = useSAXParser;
     }
 
-    public PlistNode getRootNode() {
+    /** Returns whether the tree is built with the SAX parser rather than the internal one. */
+    public boolean isUsingSAXParser() {
+        return useSAXParser;
+    }
+
+    /** Returns the root of the tree of the plist, parsing the XML data the first time. */
+    public synchronized PlistNode getRootNode() {
+        if (rootNode == null)
+            rootNode = parseXMLData(data, useSAXParser);
         return new XmlPlistNode(rootNode);
     }
 
+    /** Lets go of the tree, if it has been built. The next call to {@link #getRootNode()} builds it again. */
+    protected synchronized void releaseRootNode() {
+        rootNode = null;
+    }
+
     private XMLNode parseXMLData(byte[] plistData, boolean defaultToSAX) {
 //        InputStream is = new ByteArrayInputStream(plistData);
         NodeBuilder handler = new NodeBuilder();
@@ -146,7 +163,10 @@ public class XmlPlist {
     private void parseXMLDataSAX(byte[] buffer, NodeBuilder handler) {
         try {
             InputStream is = new ByteArrayInputStream(buffer);
-            SAXParser saxParser = SAXParserFactory.newInstance().newSAXParser();
+            SAXParserFactory factory = SAXParserFactory.newInstance();
+            // Plists refer to Apple's DTD on the web, which would be downloaded for every parse otherwise.
+            factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+            SAXParser saxParser = factory.newSAXParser();
 //            logger.log(Level.TRACE, "validation: " + saxParser.getProperty("validation"));
 //            logger.log(Level.TRACE, "external-general-entities: " + saxParser.getProperty("external-general-entities"));
 //            logger.log(Level.TRACE, "external-parameter-entities: " + saxParser.getProperty("external-parameter-entities"));
@@ -103,8 +103,9 @@ public class DebugXMLContentHandler extends XMLContentHandler {
 
     //     }
     @Override
-    public void chardata(int beginLine, int beginColumn, int endLine, int endColumn) {
-        println("chardata: starting at (" + beginLine + "," + beginColumn + ") and ending at (" + endLine + "," + endColumn + ")");
+    public void chardata(int beginLine, int beginColumn, int endLine, int endColumn, long beginOffset,
+                         long endOffset) {
+        println("chardata: starting at (" + beginLine + "," + beginColumn + ") and ending at (" + endLine + "," + endColumn + "), bytes " + beginOffset + "-" + endOffset);
     }
 
     @Override
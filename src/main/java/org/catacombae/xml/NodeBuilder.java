@@ -70,6 +70,10 @@ public class NodeBuilder extends DefaultHandler {
         currentNode.addChild(new XMLText(file, encoding, startLine, startColumn, endLine, endColumn));
     }
 
+    public void characters(SynchronizedRandomAccessStream file, Charset encoding, long beginOffset, long endOffset) {
+        currentNode.addChild(new XMLText(file, encoding, beginOffset, endOffset));
+    }
+
     @Override
     public void characters(char[] buf, int offset, int len) throws SAXException {
 //        logger.log(Level.TRACE, "CH");
@@ -104,8 +104,12 @@ public class NodeBuilderContentHandler extends XMLContentHandler {
     }
 
     @Override
-    public void chardata(int beginLine, int beginColumn, int endLine, int endColumn) {
-        nodeBuilder.characters(sras, encoding, beginLine, beginColumn, endLine, endColumn);
+    public void chardata(int beginLine, int beginColumn, int endLine, int endColumn, long beginOffset,
+                         long endOffset) {
+        if (beginOffset >= 0 && endOffset >= 0)
+            nodeBuilder.characters(sras, encoding, beginOffset, endOffset);
+        else
+            nodeBuilder.characters(sras, encoding, beginLine, beginColumn, endLine, endColumn);
     }
 
 //    public void chardata(CharSequence data) {
@@ -60,7 +60,8 @@ public class NullXMLContentHandler extends XMLContentHandler {
     }
 
     @Override
-    public void chardata(int beginLine, int beginColumn, int endLine, int endColumn) {
+    public void chardata(int beginLine, int beginColumn, int endLine, int endColumn, long beginOffset,
+                         long endOffset) {
     }
 
     @Override
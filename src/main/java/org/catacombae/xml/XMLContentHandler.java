@@ -29,6 +29,10 @@ public abstract class XMLContentHandler {
         this.encoding = encoding;
     }
 
+    public Charset getEncoding() {
+        return encoding;
+    }
+
 //    public void doctype(String
 
     public abstract void xmlDecl(String version, String encoding, Boolean standalone);
@@ -47,7 +51,12 @@ public abstract class XMLContentHandler {
 
     public abstract void endElement(String name);
 
-    public abstract void chardata(int beginLine, int beginColumn, int endLine, int endColumn);
+    /**
+     * Reports a run of character data. The byte offsets are counted from the start of the document, the end offset
+     * being just past the last character, and are -1 if they are unknown.
+     */
+    public abstract void chardata(int beginLine, int beginColumn, int endLine, int endColumn, long beginOffset,
+                                  long endOffset);
 
     public abstract void reference(String ref);
 }
\ No newline at end of file
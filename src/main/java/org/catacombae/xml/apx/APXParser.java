@@ -71,7 +71,9 @@ public class APXParser implements APXParserConstants {
     /**
      * This is the way to create an APXParser. Don't use the constructor even if it would be possible.
      *
-     * @param misr the reader supplying the input data for the parser. Can not be null.
+     * @param misr the reader supplying the input data for the parser. Can not be null. It must decode
+     *             the encoding of the content handler, which the byte offsets of the character data
+     *             are counted in.
      * @param xch  the content handler that takes care of the contents of the parsed XML document. Can
      *             not be null. Use NullXMLContentHandler if you are not intrested in the contents of
      *             the document.
@@ -81,6 +83,7 @@ public class APXParser implements APXParserConstants {
         APXParser a = new APXParser(misr);
         //a.usedReader = misr;
         a.contentHandler = xch;
+        a.jj_input_stream.setOffsetEncoding(xch.getEncoding());
         return a;
     }
 
@@ -602,12 +605,14 @@ label_9:
     final public void charData() throws ParseException {
         Token t;
         int beginLine = -1, beginColumn = -1;
+        long beginOffset = -1;
 label_10:
         while (true) {
             t = jj_consume_token(CHARDATA);
             if (beginLine == -1) {
                 beginLine = t.beginLine;
                 beginColumn = t.beginColumn;
+                beginOffset = t.beginOffset;
             }
             switch ((jj_ntk == -1) ? jj_ntk() : jj_ntk) {
                 case CHARDATA:
@@ -617,7 +622,7 @@ label_10:
                     break label_10;
             }
         }
-        contentHandler.chardata(beginLine, beginColumn, t.endLine, t.endColumn);
+        contentHandler.chardata(beginLine, beginColumn, t.endLine, t.endColumn, beginOffset, t.endOffset);
     }
 
     final public void cdSect() throws ParseException {
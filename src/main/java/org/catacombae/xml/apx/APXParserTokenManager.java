@@ -2693,6 +2693,8 @@ MatchLoop:
         t.beginColumn = input_stream.getBeginColumn();
         t.endLine = input_stream.getEndLine();
         t.endColumn = input_stream.getEndColumn();
+        t.beginOffset = input_stream.getBeginOffset();
+        t.endOffset = input_stream.getEndOffset();
         return t;
     }
 
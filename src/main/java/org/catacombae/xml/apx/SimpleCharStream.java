@@ -32,9 +32,18 @@ public class SimpleCharStream {
     public int bufpos = -1;
     protected int[] bufline;
     protected int[] bufcolumn;
+    /** The byte offset of each character in the input, if {@link #offsetEncoding} is known. */
+    protected long[] bufoffset;
 
     protected int column = 0;
     protected int line = 1;
+    protected long offset = 0;
+    /**
+     * 1 for single byte encodings, 0 for UTF-8 and -1 if byte offsets can't be tracked.
+     *
+     * @see #setOffsetEncoding
+     */
+    protected int offsetEncoding = -1;
 
     protected boolean prevCharIsCR = false;
     protected boolean prevCharIsLF = false;
@@ -54,11 +63,37 @@ public class SimpleCharStream {
         return tabSize;
     }
 
+    /**
+     * Sets the encoding of the bytes that the reader decodes, for tracking the byte offsets of the characters from
+     * the start of the input. Offsets can be tracked for UTF-8 and single byte encodings, they are -1 otherwise.
+     */
+    public void setOffsetEncoding(java.nio.charset.Charset encoding) {
+        if (encoding == null || !encoding.canEncode())
+            offsetEncoding = -1;
+        else if (encoding.equals(java.nio.charset.StandardCharsets.UTF_8))
+            offsetEncoding = 0;
+        else if (encoding.newEncoder().maxBytesPerChar() == 1)
+            offsetEncoding = 1;
+        else
+            offsetEncoding = -1;
+    }
+
+    /** Returns the number of bytes that <code>c</code> takes in the input. Surrogates take half of their pair. */
+    protected int byteLength(char c) {
+        if (offsetEncoding != 0 || c < 0x80)
+            return 1;
+        else if (c < 0x800 || Character.isSurrogate(c))
+            return 2;
+        else
+            return 3;
+    }
+
 
     protected void ExpandBuff(boolean wrapAround) {
         char[] newbuffer = new char[bufsize + 2048];
         int[] newbufline = new int[bufsize + 2048];
         int[] newbufcolumn = new int[bufsize + 2048];
+        long[] newbufoffset = new long[bufsize + 2048];
 
         try {
             if (wrapAround) {
@@ -75,6 +110,10 @@ public class SimpleCharStream {
                 System.arraycopy(bufcolumn, 0, newbufcolumn, bufsize - tokenBegin, bufpos);
                 bufcolumn = newbufcolumn;
 
+                System.arraycopy(bufoffset, tokenBegin, newbufoffset, 0, bufsize - tokenBegin);
+                System.arraycopy(bufoffset, 0, newbufoffset, bufsize - tokenBegin, bufpos);
+                bufoffset = newbufoffset;
+
                 maxNextCharInd = (bufpos += (bufsize - tokenBegin));
             } else {
                 System.arraycopy(buffer, tokenBegin, newbuffer, 0, bufsize - tokenBegin);
@@ -86,6 +125,9 @@ public class SimpleCharStream {
                 System.arraycopy(bufcolumn, tokenBegin, newbufcolumn, 0, bufsize - tokenBegin);
                 bufcolumn = newbufcolumn;
 
+                System.arraycopy(bufoffset, tokenBegin, newbufoffset, 0, bufsize - tokenBegin);
+                bufoffset = newbufoffset;
+
                 maxNextCharInd = (bufpos -= tokenBegin);
             }
         } catch (Throwable t) {
@@ -173,6 +215,8 @@ public class SimpleCharStream {
 
         bufline[bufpos] = line;
         bufcolumn[bufpos] = column;
+        bufoffset[bufpos] = offset;
+        offset += byteLength(c);
     }
 
     public char readChar() throws java.io.IOException {
@@ -228,6 +272,16 @@ public class SimpleCharStream {
         return bufline[tokenBegin];
     }
 
+    /** Returns the byte offset of the first character of the token, or -1 if offsets aren't tracked. */
+    public long getBeginOffset() {
+        return offsetEncoding < 0 ? -1 : bufoffset[tokenBegin];
+    }
+
+    /** Returns the byte offset just past the last character of the token, or -1 if offsets aren't tracked. */
+    public long getEndOffset() {
+        return offsetEncoding < 0 ? -1 : bufoffset[bufpos] + byteLength(buffer[bufpos]);
+    }
+
     public void backup(int amount) {
 
         inBuf += amount;
@@ -245,6 +299,7 @@ public class SimpleCharStream {
         buffer = new char[buffersize];
         bufline = new int[buffersize];
         bufcolumn = new int[buffersize];
+        bufoffset = new long[buffersize];
     }
 
     public SimpleCharStream(java.io.Reader dstream, int startline,
@@ -267,7 +322,9 @@ public class SimpleCharStream {
             buffer = new char[buffersize];
             bufline = new int[buffersize];
             bufcolumn = new int[buffersize];
+            bufoffset = new long[buffersize];
         }
+        offset = 0;
         prevCharIsLF = prevCharIsCR = false;
         tokenBegin = inBuf = maxNextCharInd = 0;
         bufpos = -1;
@@ -364,6 +421,7 @@ public class SimpleCharStream {
         buffer = null;
         bufline = null;
         bufcolumn = null;
+        bufoffset = null;
     }
 
     /**
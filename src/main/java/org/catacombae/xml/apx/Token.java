@@ -38,6 +38,13 @@ public class Token {
      */
     public int beginLine, beginColumn, endLine, endColumn;
 
+    /**
+     * beginOffset is the byte offset of the first character of this token in the
+     * input, endOffset the byte offset just past its last character. Both are -1
+     * if the encoding of the input doesn't allow tracking them.
+     */
+    public long beginOffset, endOffset;
+
     /**
      * The string image of the token.
      */
@@ -0,0 +1,138 @@
+package org.catacombae.dmg.udif;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.tools.bzip2.CBZip2InputStream;
+import org.catacombae.dmgextractor.DmgException;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class Bzip2DecoderTest {
+
+    private static byte[] decode(byte[] compressed) {
+        Bzip2Decoder decoder = new Bzip2Decoder(compressed, 0, compressed.length);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // An odd read size, so that reads end in the middle of runs.
+        byte[] buffer = new byte[7777];
+        int bytesRead;
+        while ((bytesRead = decoder.read(buffer, 0, buffer.length)) > 0)
+            out.write(buffer, 0, bytesRead);
+        assertTrue(decoder.finished());
+        decoder.release();
+        return out.toByteArray();
+    }
+
+    /** Text-like data with runs of all lengths, including runs longer than the 255 repeats a run can encode. */
+    private static byte[] testData(int length, long seed) {
+        Random random = new Random(seed);
+        byte[] data = new byte[length];
+        int i = 0;
+        while (i < length) {
+            int runLength = random.nextInt(8) == 0 ? random.nextInt(600) : 1;
+            byte b = (byte) ('a' + random.nextInt(random.nextBoolean() ? 4 : 26));
+            for (int j = 0; j < runLength && i < length; ++j)
+                data[i++] = b;
+        }
+        return data;
+    }
+
+    @Test
+    void testDecode() throws Exception {
+        for (int length : new int[] {0, 1, 5, 1000, 250000}) {
+            byte[] data = testData(length, length);
+            assertArrayEquals(data, decode(Encoders.bzip2(data, 9)), "length " + length);
+        }
+    }
+
+    @Test
+    void testMultipleBlocks() throws Exception {
+        byte[] data = testData(450000, 1);
+        assertArrayEquals(data, decode(Encoders.bzip2(data, 1)));
+    }
+
+    @Test
+    void testRandomData() throws Exception {
+        byte[] data = new byte[200000];
+        new Random(2).nextBytes(data);
+        assertArrayEquals(data, decode(Encoders.bzip2(data, 9)));
+    }
+
+    @Test
+    void testConcatenatedStreams() throws Exception {
+        byte[] first = testData(30000, 3);
+        byte[] second = testData(20000, 4);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        compressed.write(Encoders.bzip2(first, 9));
+        compressed.write(Encoders.bzip2(second, 9));
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(first);
+        expected.write(second);
+        assertArrayEquals(expected.toByteArray(), decode(compressed.toByteArray()));
+    }
+
+    @Test
+    void testCorruptDataIsDetected() throws Exception {
+        byte[] data = testData(100000, 5);
+        byte[] compressed = Encoders.bzip2(data, 9);
+        Random random = new Random(6);
+        for (int i = 0; i < 50; ++i) {
+            byte[] corrupt = compressed.clone();
+            // Leave the stream header alone, and the last byte, which may end in padding.
+            int pos = 4 + random.nextInt(corrupt.length - 5);
+            corrupt[pos] ^= (byte) (1 << random.nextInt(8));
+            assertThrows(DmgException.class, () -> decode(corrupt), "bit flipped at " + pos);
+        }
+    }
+
+    /**
+     * Compares the decoding throughput of {@link Bzip2Decoder} with that of {@link CBZip2InputStream}, which the
+     * bzip2 block stream used before.
+     *
+     * @param args an optional bzip2 file to decode, instead of generated data.
+     */
+    public static void main(String[] args) throws Exception {
+        byte[] compressed;
+        if (args.length > 0) {
+            compressed = Files.readAllBytes(Paths.get(args[0]));
+        } else {
+            compressed = Encoders.bzip2(testData(8 * 1024 * 1024, 7), 9);
+        }
+        byte[] buffer = new byte[0x40000];
+
+        for (int round = 0; round < 5; ++round) {
+            long start = System.nanoTime();
+            Bzip2Decoder decoder = new Bzip2Decoder(compressed, 0, compressed.length);
+            long decoded = 0;
+            int bytesRead;
+            while ((bytesRead = decoder.read(buffer, 0, buffer.length)) > 0)
+                decoded += bytesRead;
+            decoder.release();
+            long decoderTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            InputStream is = new ByteArrayInputStream(compressed);
+            if (is.read() != 'B' || is.read() != 'Z')
+                throw new IOException("Not a bzip2 file");
+            InputStream cbzip2 = new CBZip2InputStream(new BufferedInputStream(is));
+            long cbzip2Decoded = 0;
+            while ((bytesRead = cbzip2.read(buffer, 0, buffer.length)) > 0)
+                cbzip2Decoded += bytesRead;
+            long cbzip2Time = System.nanoTime() - start;
+
+            if (decoded != cbzip2Decoded)
+                throw new IllegalStateException("Decoded " + decoded + " bytes, CBZip2InputStream " + cbzip2Decoded);
+            System.out.printf("round %d: Bzip2Decoder %.1f MB/s, CBZip2InputStream %.1f MB/s%n", round,
+                    decoded * 1e3 / decoderTime, decoded * 1e3 / cbzip2Time);
+        }
+    }
+}
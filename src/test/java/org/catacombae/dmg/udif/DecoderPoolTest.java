@@ -0,0 +1,77 @@
+package org.catacombae.dmg.udif;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.FutureTask;
+import java.util.zip.Inflater;
+
+import org.catacombae.io.ReadableByteArrayStream;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class DecoderPoolTest {
+
+    @Test
+    void testReleasedObjectsAreReused() {
+        Inflater inflater = DecoderPool.acquireInflater();
+        DecoderPool.releaseInflater(inflater);
+        assertSame(inflater, DecoderPool.acquireInflater());
+        DecoderPool.releaseInflater(inflater);
+
+        byte[] buffer = DecoderPool.acquireBuffer(DecoderPool.BUFFER_SIZE);
+        DecoderPool.releaseBuffer(buffer);
+        assertSame(buffer, DecoderPool.acquireBuffer(DecoderPool.BUFFER_SIZE));
+        DecoderPool.releaseBuffer(buffer);
+    }
+
+    @Test
+    void testLargeObjectsAreBoundedByBytes() throws Exception {
+        // On a thread of its own, so that the pool starts empty.
+        FutureTask<Void> task = new FutureTask<>(() -> {
+            List<byte[]> buffers = new ArrayList<>();
+            for (int i = 0; i < 4; ++i)
+                buffers.add(DecoderPool.acquireInputBuffer(DecoderPool.MAX_INPUT_BUFFER_SIZE));
+            int[] table = DecoderPool.acquireBzip2Table(900000);
+            DecoderPool.releaseBzip2Table(table);
+            for (byte[] buffer : buffers)
+                DecoderPool.releaseInputBuffer(buffer);
+            assertTrue(DecoderPool.pooledBytes() <= DecoderPool.MAX_POOLED_BYTES, "" + DecoderPool.pooledBytes());
+
+            // What was kept is reused, and no longer counted while it is in use.
+            assertSame(table, DecoderPool.acquireBzip2Table(900000));
+            assertSame(buffers.get(0), DecoderPool.acquireInputBuffer(DecoderPool.MAX_INPUT_BUFFER_SIZE));
+            assertEquals(0, DecoderPool.pooledBytes());
+            return null;
+        });
+        Thread thread = new Thread(task);
+        thread.start();
+        task.get();
+    }
+
+    @Test
+    void testStreamsDecodeWithPooledInflaters() throws Exception {
+        Random random = new Random(8);
+        for (int i = 0; i < 20; ++i) {
+            byte[] data = new byte[10000 + random.nextInt(50000)];
+            for (int j = 0; j < data.length; ++j)
+                data[j] = (byte) (random.nextInt(3) == 0 ? random.nextInt() : j / 100);
+            byte[] compressed = Encoders.deflate(data);
+            UDIFBlock block = new UDIFBlock(UDIFBlock.BT_ZLIB, 0, 0, data.length, 0, compressed.length, 0, 0);
+
+            // Abandon the stream half way through every other time, leaving the inflater in the middle of a stream.
+            int len = i % 2 == 0 ? data.length : data.length / 2;
+            byte[] out = new byte[len];
+            try (UDIFBlockInputStream is = UDIFBlockInputStream.getStream(new ReadableByteArrayStream(compressed),
+                    block)) {
+                int bytesRead = 0;
+                while (bytesRead < len)
+                    bytesRead += is.read(out, bytesRead, len - bytesRead);
+            }
+            assertArrayEquals(Arrays.copyOf(data, len), out, "iteration " + i);
+        }
+    }
+}
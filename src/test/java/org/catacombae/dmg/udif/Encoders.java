@@ -0,0 +1,54 @@
+package org.catacombae.dmg.udif;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.zip.Deflater;
+
+
+/**
+ * Compresses test data into the formats of UDIF blocks, for the tests and benchmarks that build their own images.
+ */
+public final class Encoders {
+
+    private Encoders() {
+    }
+
+    public static byte[] deflate(byte[] data) {
+        return deflate(data, 0, data.length, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public static byte[] deflate(byte[] data, int level) {
+        return deflate(data, 0, data.length, level);
+    }
+
+    /** Returns <code>len</code> bytes of <code>data</code> from <code>off</code> as a zlib stream. */
+    public static byte[] deflate(byte[] data, int off, int len, int level) {
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(data, off, len);
+            deflater.finish();
+            // The output grows as needed, as data that doesn't compress comes out larger than it went in.
+            ByteArrayOutputStream out = new ByteArrayOutputStream(len / 2 + 64);
+            byte[] buffer = new byte[64 * 1024];
+            while (!deflater.finished())
+                out.write(buffer, 0, deflater.deflate(buffer));
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    public static byte[] bzip2(byte[] data) {
+        return bzip2(data, 9);
+    }
+
+    /** Returns <code>data</code> as a bzip2 stream with blocks of <code>blockSize</code> times 100k. */
+    public static byte[] bzip2(byte[] data, int blockSize) {
+        try {
+            return UDIFWriter.bzip2(data, 0, data.length, blockSize);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package org.catacombae.dmg.udif;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.github.horrorho.ragingmoose.LZFSEInputStream;
+import org.catacombae.dmgextractor.DmgException;
+import org.catacombae.io.ReadableByteArrayStream;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class LzfseDecoderTest {
+
+    /**
+     * An LZFSE stream of {@link LzfseTestStream#data()}, made of the sub-blocks bvx2, bvx2, bvxn, bvx- and bvx2 with
+     * the sizes in {@link #SUB_BLOCK_SIZES}, followed by bvx$. Matches reach back into the preceding sub-blocks.
+     */
+    private static final String LZFSE = LzfseTestStream.FILE;
+    private static final int[] SUB_BLOCK_SIZES = LzfseTestStream.SUB_BLOCK_SIZES;
+
+    private static byte[] testData() {
+        return LzfseTestStream.data();
+    }
+
+    private static byte[] compressed() throws Exception {
+        return Files.readAllBytes(Paths.get(LZFSE));
+    }
+
+    @Test
+    void testDecode() throws Exception {
+        byte[] data = testData();
+        byte[] compressed = compressed();
+
+        LzfseDecoder decoder = new LzfseDecoder(compressed, 0, compressed.length);
+        byte[] out = new byte[data.length];
+        for (int size : SUB_BLOCK_SIZES)
+            assertEquals(size, decoder.decodeBlock(out, 0, out.length));
+        assertEquals(-1, decoder.decodeBlock(out, 0, out.length));
+        assertTrue(decoder.finished());
+        assertEquals(compressed.length, decoder.getInPosition());
+        assertArrayEquals(data, out);
+    }
+
+    /** The test stream is the output of {@link LzfseTestStream}, which can make it again. */
+    @Test
+    void testStreamIsReproducible() throws Exception {
+        assertArrayEquals(compressed(), LzfseTestStream.encode());
+    }
+
+    /**
+     * Decodes the test stream with RagingMoose as well. This checks that the stream is valid LZFSE to a decoder
+     * that isn't part of this tree, and that {@link LzfseDecoder} decodes it to the same bytes, not only that the
+     * decoder reverses {@link LzfseTestStream}.
+     */
+    @Test
+    void testMatchesRagingMoose() throws Exception {
+        byte[] compressed = compressed();
+        byte[] reference;
+        try (InputStream is = new LZFSEInputStream(new ByteArrayInputStream(compressed))) {
+            reference = is.readAllBytes();
+        }
+        assertArrayEquals(testData(), reference);
+
+        LzfseDecoder decoder = new LzfseDecoder(compressed, 0, compressed.length);
+        byte[] out = new byte[reference.length];
+        while (decoder.decodeBlock(out, 0, out.length) >= 0) {
+        }
+        assertEquals(reference.length, decoder.getOutPosition());
+        assertArrayEquals(reference, out);
+    }
+
+    @Test
+    void testResumeAtEveryCheckpoint() throws Exception {
+        byte[] data = testData();
+        byte[] compressed = compressed();
+
+        LzfseCheckpointIndex index = LzfseCheckpointIndex.build(compressed, 0, compressed.length, data.length, 1);
+        assertEquals(SUB_BLOCK_SIZES.length - 1, index.getCheckpointCount());
+
+        for (int i = 0; i < index.getCheckpointCount(); ++i) {
+            LzfseDecoder decoder = new LzfseDecoder(compressed, 0, compressed.length);
+            byte[] out = new byte[data.length + 10];
+            index.resume(i, decoder, out, 10);
+            int outOffset = (int) index.getOutOffset(i);
+            assertEquals(outOffset, decoder.getOutPosition());
+            while (decoder.decodeBlock(out, 10, data.length) >= 0) {
+            }
+            assertArrayEquals(Arrays.copyOfRange(data, outOffset, data.length),
+                    Arrays.copyOfRange(out, 10 + outOffset, out.length), "checkpoint " + i);
+        }
+    }
+
+    @Test
+    void testReadBlock() throws Exception {
+        byte[] data = testData();
+        byte[] compressed = compressed();
+        UDIFBlock block = new UDIFBlock(UDIFBlock.BT_LZFSE, 0, 0, data.length, 0, compressed.length, 0, 0);
+
+        // All in one read, which is decoded straight into the destination
+        try (UDIFBlockInputStream is = UDIFBlockInputStream.getStream(new ReadableByteArrayStream(compressed), block)) {
+            byte[] out = new byte[data.length];
+            assertEquals(data.length, is.read(out));
+            assertArrayEquals(data, out);
+            assertEquals(-1, is.read());
+        }
+
+        // Small reads
+        try (UDIFBlockInputStream is = UDIFBlockInputStream.getStream(new ReadableByteArrayStream(compressed), block)) {
+            byte[] out = new byte[data.length];
+            int pos = 0;
+            while (pos < out.length)
+                pos += is.read(out, pos, Math.min(777, out.length - pos));
+            assertArrayEquals(data, out);
+        }
+    }
+
+    @Test
+    void testSkip() throws Exception {
+        byte[] data = testData();
+        byte[] compressed = compressed();
+        UDIFBlock block = new UDIFBlock(UDIFBlock.BT_LZFSE, 0, 0, data.length, 0, compressed.length, 0, 0);
+        LzfseCheckpointIndex index = LzfseCheckpointIndex.build(compressed, 0, compressed.length, data.length, 1);
+
+        Random random = new Random(1);
+        for (int i = 0; i < 50; ++i) {
+            int pos = random.nextInt(data.length);
+            int len = Math.min(data.length - pos, random.nextInt(5000));
+            try (UDIFBlockInputStream is = new LzfseBlockInputStream(new ReadableByteArrayStream(compressed), block,
+                    0, i % 2 == 0 ? index : null)) {
+                assertEquals(pos, is.skip(pos));
+                assertEquals(data.length - pos, is.available());
+                byte[] buffer = new byte[len];
+                int bytesRead = 0;
+                while (bytesRead < len)
+                    bytesRead += is.read(buffer, bytesRead, len - bytesRead);
+                assertArrayEquals(Arrays.copyOfRange(data, pos, pos + len), buffer, "pos " + pos);
+            }
+        }
+    }
+
+    /** LZFSE has no checksums, so damage may go unnoticed, but it must never fail other than with DmgException. */
+    @Test
+    void testCorruptData() throws Exception {
+        byte[] compressed = compressed();
+        byte[] out = new byte[300000];
+
+        Random random = new Random(2);
+        for (int i = 0; i < 500; ++i) {
+            byte[] corrupt = compressed.clone();
+            int len = corrupt.length;
+            if (i % 5 == 0)
+                len = random.nextInt(corrupt.length);
+            else
+                corrupt[random.nextInt(corrupt.length)] ^= (byte) (1 << random.nextInt(8));
+            LzfseDecoder decoder = new LzfseDecoder(corrupt, 0, len);
+            try {
+                while (decoder.decodeBlock(out, 0, out.length) >= 0) {
+                }
+            } catch (DmgException e) {
+                // expected
+            }
+        }
+    }
+}
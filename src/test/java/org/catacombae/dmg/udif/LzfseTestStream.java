@@ -0,0 +1,468 @@
+package org.catacombae.dmg.udif;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntSupplier;
+
+
+/**
+ * Makes <code>src/test/resources/test.lzfse</code>, the test stream of {@link LzfseDecoderTest}, so that it can be
+ * reproduced: <code>java -cp target/test-classes:target/classes org.catacombae.dmg.udif.LzfseTestStream</code>.
+ * <br>
+ * The encoder is a plain one, written from the LZFSE and LZVN stream formats of Apple's reference implementation
+ * (github.com/lzfse/lzfse): a greedy matcher, frequencies normalized by proportion and the FSE states of the
+ * reference decoder run backwards. It only has to produce valid streams, not small ones.
+ */
+class LzfseTestStream {
+
+    /** The file the stream is kept in. */
+    static final String FILE = "src/test/resources/test.lzfse";
+
+    /** The sizes of the sub-blocks, in the order bvx2, bvx2, bvxn, bvx- and bvx2. */
+    static final int[] SUB_BLOCK_SIZES = {120000, 90000, 50000, 3000, 37000};
+
+    private static final int[] L_EXTRA = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 2, 3, 5, 8};
+    private static final int[] L_BASE = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 20, 28, 60};
+    private static final int[] M_EXTRA = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 3, 5, 8, 11};
+    private static final int[] M_BASE = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 24, 56, 312};
+    private static final int[] D_EXTRA = new int[64];
+    private static final int[] D_BASE = {
+            0, 1, 2, 3, 4, 6, 8, 10, 12, 16, 20, 24, 28, 36, 44, 52, 60, 76, 92, 108, 124, 156, 188, 220, 252, 316,
+            380, 444, 508, 636, 764, 892, 1020, 1276, 1532, 1788, 2044, 2556, 3068, 3580, 4092, 5116, 6140, 7164,
+            8188, 10236, 12284, 14332, 16380, 20476, 24572, 28668, 32764, 40956, 49148, 57340, 65532, 81916, 98300,
+            114684, 131068, 163836, 196604, 229372
+    };
+
+    static {
+        for (int i = 0; i < D_EXTRA.length; ++i)
+            D_EXTRA[i] = i / 4;
+    }
+
+    private static final int MAX_L = 315;
+    private static final int MAX_M = 2359;
+
+    /** Random letters and copies of earlier data, reaching up to 200000 bytes back. */
+    static byte[] data() {
+        byte[] data = new byte[300000];
+        long[] x = {4711};
+        IntSupplier next = () -> {
+            x[0] = (x[0] * 1103515245 + 12345) & 0x7fffffff;
+            return (int) (x[0] >> 8);
+        };
+        int pos = 0;
+        while (pos < data.length) {
+            int r = next.getAsInt();
+            if (r % 3 == 0 || pos < 16) {
+                int n = 1 + next.getAsInt() % 40;
+                for (int i = 0; i < n; ++i) {
+                    byte b = (byte) (97 + next.getAsInt() % 16);
+                    if (pos < data.length)
+                        data[pos] = b;
+                    ++pos;
+                }
+            } else {
+                int n = 4 + next.getAsInt() % 300;
+                int d = 1 + next.getAsInt() % Math.min(pos, 200000);
+                for (int i = 0; i < n && pos < data.length; ++i, ++pos)
+                    data[pos] = data[pos - d];
+            }
+        }
+        return data;
+    }
+
+    /** Encodes {@link #data()} into sub-blocks of {@link #SUB_BLOCK_SIZES}, followed by bvx$. */
+    static byte[] encode() {
+        byte[] data = data();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int pos = 0;
+        for (int i = 0; i < SUB_BLOCK_SIZES.length; ++i) {
+            int end = pos + SUB_BLOCK_SIZES[i];
+            switch (i) {
+                case 2 -> out.writeBytes(lzvnBlock(data, pos, end));
+                case 3 -> {
+                    out.writeBytes(magic("bvx-"));
+                    out.writeBytes(le(end - pos, 4));
+                    out.write(data, pos, end - pos);
+                }
+                default -> out.writeBytes(lzfseBlock(data, pos, end));
+            }
+            pos = end;
+        }
+        out.writeBytes(magic("bvx$"));
+        return out.toByteArray();
+    }
+
+    /** A run of literals followed by a match of <code>m</code> bytes at distance <code>d</code>, or none. */
+    private record Op(int literalStart, int literalLength, int m, int d) {
+    }
+
+    private static int key(byte[] data, int i) {
+        return (data[i] & 0xff) << 24 | (data[i + 1] & 0xff) << 16 | (data[i + 2] & 0xff) << 8 | data[i + 3] & 0xff;
+    }
+
+    /**
+     * Greedily matches <code>[start, end)</code> against the last position of each four bytes, looking back into the
+     * <code>maxD</code> bytes before <code>start</code> as well.
+     */
+    private static List<Op> findMatches(byte[] data, int start, int end, int maxD, int maxM) {
+        Map<Integer, Integer> table = new HashMap<>();
+        for (int i = Math.max(0, start - maxD); i < start; ++i) {
+            if (i + 4 <= data.length)
+                table.put(key(data, i), i);
+        }
+        List<Op> ops = new ArrayList<>();
+        int literal = start;
+        int i = start;
+        while (i < end) {
+            int bestM = 0;
+            int bestD = 0;
+            if (i + 4 <= end) {
+                int key = key(data, i);
+                Integer j = table.get(key);
+                if (j != null && i - j > 0 && i - j <= maxD) {
+                    int m = 0;
+                    while (i + m < end && m < maxM && data[j + m] == data[i + m])
+                        ++m;
+                    if (m >= 4) {
+                        bestM = m;
+                        bestD = i - j;
+                    }
+                }
+                table.put(key, i);
+            }
+            if (bestM > 0) {
+                ops.add(new Op(literal, i - literal, bestM, bestD));
+                for (int k = i + 1; k < i + bestM; ++k) {
+                    if (k + 4 <= data.length)
+                        table.put(key(data, k), k);
+                }
+                i += bestM;
+                literal = i;
+            } else
+                ++i;
+        }
+        if (literal < end)
+            ops.add(new Op(literal, end - literal, 0, 0));
+        return ops;
+    }
+
+    private static byte[] lzvnBlock(byte[] data, int start, int end) {
+        int[] maxMForL = {10, 8, 6, 4};
+        ByteArrayOutputStream p = new ByteArrayOutputStream();
+        int prevD = 0;
+        for (Op op : findMatches(data, start, end, 65535, 10000)) {
+            int m = op.m();
+            int d = op.d();
+            // Up to three literals go with the match op, the rest before it.
+            int embedded = m == 0 ? 0 : Math.min(op.literalLength(), 3);
+            int rest = op.literalLength() - embedded;
+            for (int k = 0; k < rest; ) {
+                int n = rest - k;
+                if (n >= 16) {
+                    n = Math.min(n, 271);
+                    p.write(0xe0);
+                    p.write(n - 16);
+                } else
+                    p.write(0xe0 | n);
+                p.write(data, op.literalStart() + k, n);
+                k += n;
+            }
+            if (m == 0)
+                continue;
+
+            int l = embedded;
+            int m0;
+            if (l > 0 && d == prevD) {
+                m0 = Math.min(m, maxMForL[l]);
+                p.write(l << 6 | (m0 - 3) << 3 | 6);
+            } else if (d < 1536) {
+                m0 = Math.min(m, maxMForL[l]);
+                p.write(l << 6 | (m0 - 3) << 3 | d >> 8);
+                p.write(d & 0xff);
+            } else if (d < 16384) {
+                m0 = Math.min(m, 34);
+                int mm = m0 - 3;
+                p.write(0xa0 | l << 3 | mm >> 2);
+                p.writeBytes(le((mm & 3) | d << 2, 2));
+            } else {
+                m0 = Math.min(m, maxMForL[l]);
+                p.write(l << 6 | (m0 - 3) << 3 | 7);
+                p.writeBytes(le(d, 2));
+            }
+            p.write(data, op.literalStart() + rest, embedded);
+            prevD = d;
+            for (int r = m - m0; r > 0; ) {
+                int n;
+                if (r >= 16) {
+                    n = Math.min(r, 271);
+                    p.write(0xf0);
+                    p.write(n - 16);
+                } else {
+                    n = r;
+                    p.write(0xf0 | n);
+                }
+                r -= n;
+            }
+        }
+        p.writeBytes(new byte[] {0x06, 0, 0, 0, 0, 0, 0, 0});
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(magic("bvxn"));
+        out.writeBytes(le(end - start, 4));
+        out.writeBytes(le(p.size(), 4));
+        out.writeBytes(p.toByteArray());
+        return out.toByteArray();
+    }
+
+    private static int symbol(int v, int[] base, int[] extra) {
+        for (int s = base.length - 1; s >= 0; --s) {
+            if (base[s] <= v) {
+                if (v - base[s] >= 1 << extra[s])
+                    throw new IllegalArgumentException("value " + v + " doesn't fit symbol " + s);
+                return s;
+            }
+        }
+        throw new IllegalArgumentException("value " + v);
+    }
+
+    /** Scales <code>counts</code> to frequencies that add up to <code>n</code>, fixing the sum on the largest. */
+    private static int[] normalize(int[] counts, int n) {
+        long total = 0;
+        for (int c : counts)
+            total += c;
+        int[] f = new int[counts.length];
+        if (total == 0) {
+            f[0] = n;
+            return f;
+        }
+        int sum = 0;
+        for (int i = 0; i < counts.length; ++i) {
+            f[i] = counts[i] == 0 ? 0 : (int) Math.max(1, counts[i] * (long) n / total);
+            sum += f[i];
+        }
+        int diff = n - sum;
+        while (diff != 0) {
+            int largest = 0;
+            for (int i = 1; i < f.length; ++i) {
+                if (f[i] > f[largest])
+                    largest = i;
+            }
+            if (diff > 0) {
+                f[largest] += diff;
+                diff = 0;
+            } else {
+                int take = Math.min(-diff, f[largest] - 1);
+                f[largest] -= take;
+                diff += take;
+            }
+        }
+        return f;
+    }
+
+    /**
+     * Returns the encoder table of the FSE decoder table of the frequencies <code>f</code>: <code>[s][y]</code> is
+     * <code>{x, k, bits}</code>, where the decoder in state <code>x</code> emits <code>s</code> and reads the
+     * <code>k</code> bits <code>bits</code> to get to state <code>y</code>.
+     */
+    private static int[][][] encoderTable(int[] f, int n) {
+        int[][][] enc = new int[f.length][][];
+        int x = 0;
+        for (int s = 0; s < f.length; ++s) {
+            int fs = f[s];
+            if (fs == 0)
+                continue;
+            enc[s] = new int[n][];
+            int k = Integer.numberOfLeadingZeros(fs) - Integer.numberOfLeadingZeros(n);
+            int j0 = ((2 * n) >> k) - fs;
+            for (int j = 0; j < fs; ++j, ++x) {
+                int bits = j < j0 ? k : k - 1;
+                int delta = j < j0 ? ((fs + j) << k) - n : (j - j0) << (k - 1);
+                for (int y = delta; y < delta + (1 << bits); ++y)
+                    enc[s][y] = new int[] {x, bits, y - delta};
+            }
+        }
+        if (x != n)
+            throw new IllegalStateException("frequencies add up to " + x + ", not " + n);
+        return enc;
+    }
+
+    /** Writes bits from the least significant end of each byte on, as the LZFSE decoder reads them backwards. */
+    private static class BitWriter {
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private long acc;
+        private int accBits;
+        private long bits;
+
+        BitWriter(int zeroBytes) {
+            out.writeBytes(new byte[zeroBytes]);
+            bits = 8L * zeroBytes;
+        }
+
+        void push(long v, int n) {
+            acc |= v << accBits;
+            accBits += n;
+            bits += n;
+            while (accBits >= 8) {
+                out.write((int) acc);
+                acc >>>= 8;
+                accBits -= 8;
+            }
+        }
+
+        byte[] finish() {
+            if (accBits > 0)
+                out.write((int) acc);
+            return out.toByteArray();
+        }
+
+        /** The number of unused bits in the last byte, negated. */
+        int lastBits() {
+            return (int) (bits - 8 * ((bits + 7) / 8));
+        }
+    }
+
+    private static int[] frequencyCode(int v) {
+        int[][] small = {{0, 2}, {2, 2}, {1, 3}, {5, 3}, {3, 5}, {11, 5}, {19, 5}, {27, 5}};
+        if (v < 8)
+            return small[v];
+        if (v < 24)
+            return new int[] {7 | (v - 8) << 4, 8};
+        return new int[] {15 | (v - 24) << 4, 14};
+    }
+
+    private static byte[] lzfseBlock(byte[] data, int start, int end) {
+        // Split into L, M, D triples within the limits of L and M. A D of 0 repeats the previous distance.
+        List<int[]> triples = new ArrayList<>();
+        ByteArrayOutputStream literalStream = new ByteArrayOutputStream();
+        int prevD = -1;
+        for (Op op : findMatches(data, start, end, 262139, MAX_M)) {
+            int literalStart = op.literalStart();
+            int literalLength = op.literalLength();
+            while (literalLength > MAX_L) {
+                triples.add(new int[] {MAX_L, 0, 0});
+                literalStream.write(data, literalStart, MAX_L);
+                literalStart += MAX_L;
+                literalLength -= MAX_L;
+            }
+            literalStream.write(data, literalStart, literalLength);
+            if (op.m() == 0) {
+                if (literalLength > 0)
+                    triples.add(new int[] {literalLength, 0, 0});
+                continue;
+            }
+            triples.add(new int[] {literalLength, op.m(), op.d() == prevD ? 0 : op.d()});
+            prevD = op.d();
+        }
+        byte[] literals = literalStream.toByteArray();
+        int literalCount = literals.length;
+        if (literalCount == 0)
+            literals = new byte[4];
+        else if (literalCount % 4 != 0) {
+            literals = Arrays.copyOf(literals, (literalCount + 3) / 4 * 4);
+            Arrays.fill(literals, literalCount, literals.length, literals[literalCount - 1]);
+        }
+
+        int[] literalCounts = new int[256];
+        for (byte b : literals)
+            ++literalCounts[b & 0xff];
+        int[] lCounts = new int[20];
+        int[] mCounts = new int[20];
+        int[] dCounts = new int[64];
+        int[][] symbols = new int[triples.size()][];
+        for (int i = 0; i < triples.size(); ++i) {
+            int[] t = triples.get(i);
+            symbols[i] = new int[] {symbol(t[0], L_BASE, L_EXTRA), symbol(t[1], M_BASE, M_EXTRA),
+                    symbol(t[2], D_BASE, D_EXTRA)};
+            ++lCounts[symbols[i][0]];
+            ++mCounts[symbols[i][1]];
+            ++dCounts[symbols[i][2]];
+        }
+        int[] literalFreqs = normalize(literalCounts, 1024);
+        int[] lFreqs = normalize(lCounts, 64);
+        int[] mFreqs = normalize(mCounts, 64);
+        int[] dFreqs = normalize(dCounts, 256);
+
+        // The literals are decoded in order with four interleaved states, so they are encoded backwards.
+        int[][][] enc = encoderTable(literalFreqs, 1024);
+        BitWriter bw = new BitWriter(8);
+        int[] states = new int[4];
+        for (int i = literals.length - 1; i >= 0; --i) {
+            int[] e = enc[literals[i] & 0xff][states[i % 4]];
+            bw.push(e[2], e[1]);
+            states[i % 4] = e[0];
+        }
+        byte[] literalPayload = bw.finish();
+        int literalBits = bw.lastBits();
+
+        int[][][][] lmdEnc = {encoderTable(dFreqs, 256), encoderTable(mFreqs, 64), encoderTable(lFreqs, 64)};
+        int[][] lmdBase = {D_BASE, M_BASE, L_BASE};
+        int[][] lmdExtra = {D_EXTRA, M_EXTRA, L_EXTRA};
+        int[] lmdStates = new int[3]; // D, M, L
+        bw = new BitWriter(8);
+        for (int i = triples.size() - 1; i >= 0; --i) {
+            for (int c = 0; c < 3; ++c) {
+                int s = symbols[i][2 - c];
+                int v = triples.get(i)[2 - c];
+                int[] e = lmdEnc[c][s][lmdStates[c]];
+                int vb = lmdExtra[c][s];
+                bw.push((long) e[2] << vb | (v - lmdBase[c][s]), e[1] + vb);
+                lmdStates[c] = e[0];
+            }
+        }
+        byte[] lmdPayload = bw.finish();
+        int lmdBits = bw.lastBits();
+
+        BitWriter fb = new BitWriter(0);
+        for (int[] freqs : new int[][] {lFreqs, mFreqs, dFreqs, literalFreqs}) {
+            for (int f : freqs) {
+                int[] code = frequencyCode(f);
+                fb.push(code[0], code[1]);
+            }
+        }
+        byte[] freqBytes = fb.finish();
+
+        long v0 = literals.length | (long) literalPayload.length << 20 | (long) triples.size() << 40 |
+                (long) (literalBits + 7) << 60;
+        long v1 = states[0] | (long) states[1] << 10 | (long) states[2] << 20 | (long) states[3] << 30 |
+                (long) lmdPayload.length << 40 | (long) (lmdBits + 7) << 60;
+        long v2 = (32 + freqBytes.length) | (long) lmdStates[2] << 32 | (long) lmdStates[1] << 42 |
+                (long) lmdStates[0] << 52;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(magic("bvx2"));
+        out.writeBytes(le(end - start, 4));
+        out.writeBytes(le(v0, 8));
+        out.writeBytes(le(v1, 8));
+        out.writeBytes(le(v2, 8));
+        out.writeBytes(freqBytes);
+        out.writeBytes(literalPayload);
+        out.writeBytes(lmdPayload);
+        return out.toByteArray();
+    }
+
+    private static byte[] magic(String magic) {
+        return magic.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] le(long v, int size) {
+        byte[] b = new byte[size];
+        for (int i = 0; i < size; ++i)
+            b[i] = (byte) (v >>> (8 * i));
+        return b;
+    }
+
+    public static void main(String[] args) throws IOException {
+        byte[] stream = encode();
+        Files.write(Paths.get(args.length > 0 ? args[0] : FILE), stream);
+        System.out.println(data().length + " bytes encoded into " + stream.length);
+    }
+}
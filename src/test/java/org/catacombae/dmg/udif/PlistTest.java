@@ -0,0 +1,146 @@
+package org.catacombae.dmg.udif;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+
+import org.catacombae.dmgextractor.io.ConcatenatedReader;
+import org.catacombae.io.ReadableByteArrayStream;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class PlistTest {
+
+    static void assertPartitionsEqual(PlistPartition[] expected, PlistPartition[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; ++i) {
+            assertEquals(expected[i].getName(), actual[i].getName());
+            assertEquals(expected[i].getID(), actual[i].getID());
+            assertEquals(expected[i].getAttributes(), actual[i].getAttributes());
+            assertEquals(expected[i].getPartitionSize(), actual[i].getPartitionSize());
+            assertEquals(expected[i].getChecksum().getType(), actual[i].getChecksum().getType());
+            assertEquals(expected[i].getChecksum().getSize(), actual[i].getChecksum().getSize());
+            assertArrayEquals(expected[i].getChecksum().getData(), actual[i].getChecksum().getData());
+            UDIFBlock[] expectedBlocks = expected[i].getBlocks();
+            UDIFBlock[] actualBlocks = actual[i].getBlocks();
+            assertEquals(expectedBlocks.length, actualBlocks.length);
+            for (int j = 0; j < expectedBlocks.length; ++j)
+                assertEquals(expectedBlocks[j].toString(), actualBlocks[j].toString(), "partition " + i + " block " + j);
+        }
+    }
+
+    /** The plist of a small image written by {@link UDIFWriter}. */
+    static String writerPlist() throws Exception {
+        byte[] data = new byte[256 * 1024];
+        for (int i = 0; i < data.length / 2; ++i)
+            data[i] = (byte) (i * 31 / 7);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new UDIFWriter(UDIFBlock.BT_ZLIB, 64 * 1024, 2).write(new ReadableByteArrayStream(data), out);
+        byte[] plist = new UDIFFileView(new ReadableByteArrayStream(out.toByteArray())).getPlistData();
+        return new String(plist, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void testReadPartitions() throws Exception {
+        byte[] plistData = new UDIFFileView(new File("src/test/resources/test.dmg")).getPlistData();
+        Plist plist = new Plist(plistData);
+        PlistPartition[] partitions = plist.readPartitions();
+        assertTrue(partitions.length > 1);
+        assertPartitionsEqual(plist.getPartitionsFromTree(), partitions);
+        assertPartitionsEqual(partitions, plist.getPartitions());
+        assertPartitionsEqual(partitions, new Plist(plistData, true).getPartitions());
+    }
+
+    @Test
+    void testSkippedMarkup() throws Exception {
+        String original = writerPlist();
+        String plist = original
+                .replace("<!DOCTYPE plist PUBLIC", "<!-- <plist> --><!DOCTYPE plist [ <!ENTITY x \"<>\"> ] ><!--")
+                .replace("<plist version=\"1.0\">", "--><plist version='1.0'>")
+                .replace("<key>resource-fork</key>", """
+                        <key>other</key>
+                        <dict><key>blkx</key><array><true/><dict/></array></dict>
+                        <key>empty</key><array/>
+                        <?pi ?>
+                        <key>resource-fork</key>""")
+                .replace("<key>blkx</key>", "<key>plst</key><array><dict><key>Data</key><data>AAAA</data></dict>" +
+                        "</array><key>blkx</key>")
+                .replace("<string>whole disk</string>\n\t\t\t</dict>",
+                        "<string> disk &amp; &#x263A; <![CDATA[<&amp;>]]></string>\n\t\t\t\t<key>flag</key><false/>\n" +
+                                "\t\t\t</dict>");
+        assertNotEquals(original, plist);
+
+        PlistPartition[] expected = new Plist(original.getBytes(StandardCharsets.UTF_8)).readPartitions();
+        PlistPartition[] partitions = new Plist(plist.getBytes(StandardCharsets.UTF_8)).readPartitions();
+        assertEquals(1, partitions.length);
+        assertEquals("disk & ☺ <&amp;>", partitions[0].getName());
+        assertEquals(4, partitions[0].getBlockCount() - 1);
+        assertEquals(expected[0].getPartitionSize(), partitions[0].getPartitionSize());
+    }
+
+    @Test
+    void testTreeText() throws Exception {
+        // Characters of 1 to 4 bytes in UTF-8, and CR LF line ends, ahead of the text of the tree.
+        String plist = writerPlist()
+                .replace("<string>whole disk</string>\n\t\t\t</dict>", "<string>d\u00e9j\u00e0 \u263A \uD83D\uDCBE</string>\n\t\t\t</dict>")
+                .replace("\n", "\r\n");
+        Plist p = new Plist(plist.getBytes(StandardCharsets.UTF_8));
+        PlistPartition[] partitions = p.getPartitionsFromTree();
+        assertEquals("d\u00e9j\u00e0 \u263A \uD83D\uDCBE", partitions[0].getName());
+        assertPartitionsEqual(p.readPartitions(), partitions);
+    }
+
+    @Test
+    void testDecodeBase64() throws Exception {
+        byte[] data = new byte[20000];
+        new Random(1).nextBytes(data);
+        String text = Base64.getMimeEncoder(52, "\r\n\t\t\t\t".getBytes(StandardCharsets.US_ASCII)).encodeToString(data);
+        int half = text.length() / 2;
+        // Values are split over several readers when the parser reports their text in pieces.
+        Reader reader = new ConcatenatedReader(new Reader[] {
+                new StringReader("\n\t\t\t\t" + text.substring(0, half)), new StringReader(text.substring(half) + "\n")
+        });
+        assertArrayEquals(data, Plist.decodeBase64(reader));
+
+        assertThrows(IOException.class, () -> Plist.decodeBase64(new StringReader(text.substring(1))));
+        assertThrows(IOException.class, () -> Plist.decodeBase64(new StringReader("\u00e9" + text)));
+    }
+
+    @Test
+    void testMalformed() throws Exception {
+        String plist = writerPlist();
+        for (String malformed : new String[] {
+                plist.substring(0, plist.indexOf("</data>")),
+                plist.replace("<key>blkx</key>", "<key>blk</key>"),
+                plist.replace("<key>ID</key>", "<key>ID</key><key>XX</key>"),
+                plist.replace("<data>", "<data>A="),
+                plist.replace("<data>", "<data>!"),
+                plist.replace("<?xml version=\"1.0\" encoding=\"UTF-8\"?>", "<?xml version=\"1.0\" encoding=\"UTF-16\"?>")
+        }) {
+            Plist p = new Plist(malformed.getBytes(StandardCharsets.UTF_8));
+            assertThrows(IllegalArgumentException.class, p::readPartitions, malformed);
+        }
+
+        // Text that isn't base64 is rejected by both parsers, not skipped.
+        String damaged = plist.replace("<data>", "<data>\u00e9*");
+        Plist p = new Plist(damaged.getBytes(StandardCharsets.UTF_8));
+        assertThrows(IllegalArgumentException.class, p::readPartitions);
+        assertThrows(IOException.class, p::getPartitionsFromTree);
+    }
+
+    @Test
+    void testNoExternalDTD() throws Exception {
+        // Neither parser may load the DTD, which would fail here or at least take a round trip to the server.
+        String plist = writerPlist().replace("http://www.apple.com/DTDs/PropertyList-1.0.dtd",
+                "http://dtd.invalid/PropertyList-1.0.dtd");
+        PlistPartition[] partitions = new Plist(plist.getBytes(StandardCharsets.UTF_8)).getPartitions();
+        assertPartitionsEqual(partitions, new Plist(plist.getBytes(StandardCharsets.UTF_8), true).getPartitions());
+    }
+}
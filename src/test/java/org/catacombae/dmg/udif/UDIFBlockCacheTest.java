@@ -0,0 +1,102 @@
+package org.catacombae.dmg.udif;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class UDIFBlockCacheTest {
+
+    @Test
+    void testEvictsLeastRecentlyUsed() throws Exception {
+        UDIFBlockCache cache = new UDIFBlockCache(300);
+        AtomicInteger decodes = new AtomicInteger();
+        UDIFBlockCache.Decoder decoder = i -> {
+            decodes.incrementAndGet();
+            return new byte[100];
+        };
+
+        cache.get(0, decoder);
+        cache.get(1, decoder);
+        cache.get(2, decoder);
+        assertEquals(3, decodes.get());
+        assertEquals(300, cache.getSize());
+
+        cache.get(0, decoder); // 1 is now the least recently used
+        cache.get(3, decoder);
+        assertEquals(4, decodes.get());
+        assertEquals(300, cache.getSize());
+
+        cache.get(0, decoder);
+        cache.get(2, decoder);
+        assertEquals(4, decodes.get());
+        cache.get(1, decoder);
+        assertEquals(5, decodes.get());
+    }
+
+    @Test
+    void testCountsHitsAndMisses() throws Exception {
+        UDIFMetrics metrics = new UDIFMetrics();
+        UDIFBlockCache cache = new UDIFBlockCache(300, metrics);
+        UDIFBlockCache.Decoder decoder = i -> new byte[100];
+
+        assertNull(cache.getIfPresent(0));
+        cache.get(0, decoder);
+        cache.get(0, decoder);
+        assertNotNull(cache.getIfPresent(0));
+        cache.get(1, decoder);
+        assertEquals(2, metrics.getCacheHitCount());
+        assertEquals(3, metrics.getCacheMissCount());
+    }
+
+    @Test
+    void testOversizedBlockIsNotCached() throws Exception {
+        UDIFBlockCache cache = new UDIFBlockCache(100);
+        byte[] data = cache.get(0, i -> new byte[101]);
+        assertEquals(101, data.length);
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    void testConcurrentRequestsDecodeOnce() throws Exception {
+        UDIFBlockCache cache = new UDIFBlockCache(1024);
+        AtomicInteger decodes = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        UDIFBlockCache.Decoder decoder = i -> {
+            decodes.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return new byte[16];
+        };
+
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<byte[]>> results = new ArrayList<>();
+            for (int i = 0; i < threads; ++i)
+                results.add(executor.submit(() -> cache.get(7, decoder)));
+
+            Thread.sleep(100);
+            release.countDown();
+
+            byte[] first = results.get(0).get(10, TimeUnit.SECONDS);
+            for (Future<byte[]> result : results)
+                assertSame(first, result.get(10, TimeUnit.SECONDS));
+            assertEquals(1, decodes.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
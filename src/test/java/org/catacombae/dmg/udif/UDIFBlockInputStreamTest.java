@@ -0,0 +1,65 @@
+package org.catacombae.dmg.udif;
+
+import java.util.Random;
+
+import org.catacombae.io.ReadableByteArrayStream;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class UDIFBlockInputStreamTest {
+
+    /** Mixes reads that go through the buffer with reads that are decoded straight into the destination. */
+    private static final int[] READ_SIZES = {1, 100, 70000, 5000, 16384, 200000, 3};
+
+    private static byte[] testData() {
+        Random random = new Random(21);
+        byte[] data = new byte[300000];
+        for (int i = 0; i < data.length; ++i)
+            data[i] = (byte) (random.nextInt(4) == 0 ? random.nextInt() : i >> 8);
+        return data;
+    }
+
+    private static void assertDecodes(byte[] expected, int blockType, byte[] image) throws Exception {
+        // Put the block behind some padding so that a wrong in offset shows.
+        byte[] padded = new byte[100 + image.length];
+        System.arraycopy(image, 0, padded, 100, image.length);
+        UDIFBlock block = new UDIFBlock(blockType, 0, 0, expected.length, 100, image.length, 0, 0);
+
+        byte[] out = new byte[expected.length];
+        try (UDIFBlockInputStream is = UDIFBlockInputStream.getStream(new ReadableByteArrayStream(padded), block)) {
+            int pos = 0;
+            for (int i = 0; pos < out.length; ++i) {
+                int bytesRead = is.read(out, pos, Math.min(READ_SIZES[i % READ_SIZES.length], out.length - pos));
+                assertTrue(bytesRead > 0, "read returned " + bytesRead + " at " + pos);
+                pos += bytesRead;
+            }
+            assertEquals(-1, is.read(new byte[100000]));
+        }
+        assertArrayEquals(expected, out);
+    }
+
+    @Test
+    void testZlibBlock() throws Exception {
+        byte[] data = testData();
+        assertDecodes(data, UDIFBlock.BT_ZLIB, Encoders.deflate(data));
+    }
+
+    @Test
+    void testBzip2Block() throws Exception {
+        byte[] data = testData();
+        assertDecodes(data, UDIFBlock.BT_BZIP2, Encoders.bzip2(data));
+    }
+
+    @Test
+    void testCopyBlock() throws Exception {
+        byte[] data = testData();
+        assertDecodes(data, UDIFBlock.BT_COPY, data);
+    }
+
+    @Test
+    void testZeroBlock() throws Exception {
+        assertDecodes(new byte[300000], UDIFBlock.BT_ZERO, new byte[0]);
+    }
+}
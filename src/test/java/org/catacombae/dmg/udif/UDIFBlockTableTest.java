@@ -0,0 +1,76 @@
+package org.catacombae.dmg.udif;
+
+import java.io.File;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class UDIFBlockTableTest {
+
+    @Test
+    void testSegments() {
+        UDIFBlockTable table = new UDIFBlockTable(1);
+        table.startSegment(0, 0);
+        table.add(UDIFBlock.BT_ZLIB, 0, 0, 1024, 512, 100);
+        table.add(UDIFBlock.BT_END, 0, 1024, 0, 0, 0);
+        table.startSegment(1024, 0); // empty
+        table.startSegment(1024, 612);
+        table.add(UDIFBlock.BT_COPY, 7, 0, 2048, 0, 2048);
+        table.add(UDIFBlock.BT_END, 0, 2048, 0, 0, 0);
+        table.trimToSize();
+
+        assertEquals(4, table.size());
+        assertEquals(512, table.getTrueInOffset(0));
+        assertEquals(0, table.getOutOffsetCompensation(1));
+        assertEquals(1024, table.getOutOffsetCompensation(2));
+        assertEquals(612, table.getInOffsetCompensation(2));
+        assertEquals(1024, table.getTrueOutOffset(2));
+        assertEquals(612, table.getTrueInOffset(2));
+        assertEquals(0, table.getInOffset(2));
+        assertEquals(3072, table.getTrueOutOffset(3));
+        assertEquals(3072, table.getOutSize(0, 4));
+        assertEquals(new UDIFBlock(UDIFBlock.BT_COPY, 7, 0, 2048, 0, 2048, 1024, 612).toString(),
+                table.getBlock(2).toString());
+
+        assertThrows(IndexOutOfBoundsException.class, () -> table.getBlock(4));
+        assertThrows(IndexOutOfBoundsException.class, () -> table.getOutSize(1, 5));
+    }
+
+    @Test
+    void testSharedTable() throws Exception {
+        byte[] plistData = new UDIFFileView(new File("src/test/resources/test.dmg")).getPlistData();
+        PlistPartition[] partitions = new Plist(plistData).getPartitions();
+        UDIFBlockTable table = partitions[0].getBlockTable();
+        int blockCount = 0;
+        for (PlistPartition pp : partitions) {
+            assertSame(table, pp.getBlockTable());
+            assertEquals(blockCount, pp.getFirstBlock());
+            blockCount += pp.getBlockCount();
+        }
+        assertEquals(blockCount, table.size());
+        assertSame(table, UDIFBlockTable.of(partitions));
+
+        // Partitions of separate tables are copied into a new one.
+        PlistPartition[] separate = new PlistPartition[partitions.length];
+        for (int i = 0; i < partitions.length; ++i) {
+            PlistPartition pp = partitions[i];
+            UDIFBlockTable own = new UDIFBlockTable();
+            own.startSegment(table.getOutOffsetCompensation(pp.getFirstBlock()),
+                    table.getInOffsetCompensation(pp.getFirstBlock()));
+            for (UDIFBlock b : pp.getBlocks())
+                own.add(b.getBlockType(), b.getReserved(), b.getOutOffset(), b.getOutSize(), b.getInOffset(),
+                        b.getInSize());
+            separate[i] = new PlistPartition(pp.getName(), pp.getID(), pp.getAttributes(), pp.getChecksum(), own, 0,
+                    pp.getBlockCount(), pp.getPreviousOutOffset(), pp.getPreviousInOffset(), pp.getFinalOutOffset(),
+                    pp.getFinalInOffset());
+        }
+        PlistTest.assertPartitionsEqual(partitions, separate);
+        UDIFBlockTable joined = UDIFBlockTable.of(separate);
+        assertNotSame(table, joined);
+        assertEquals(table.size(), joined.size());
+        for (int i = 0; i < table.size(); ++i)
+            assertEquals(table.getBlock(i).toString(), joined.getBlock(i).toString(), "block " + i);
+    }
+}
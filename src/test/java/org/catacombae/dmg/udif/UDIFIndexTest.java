@@ -0,0 +1,143 @@
+package org.catacombae.dmg.udif;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import org.catacombae.io.ReadableFileStream;
+import org.catacombae.io.RuntimeIOException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class UDIFIndexTest {
+
+    private Path dmg;
+    private Path index;
+    private PlistPartition[] expected;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        dmg = Files.createTempFile("UDIFIndexTest", ".dmg");
+        index = Paths.get(dmg + ".index");
+        Files.copy(Paths.get("src/test/resources/test.dmg"), dmg, StandardCopyOption.REPLACE_EXISTING);
+        UDIFFileView view = new UDIFFileView(dmg.toFile());
+        expected = view.getPlist().getPartitions();
+        view.close();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        Files.deleteIfExists(dmg);
+        Files.deleteIfExists(index);
+    }
+
+    private PlistPartition[] open() throws IOException {
+        try (UDIFFile file = new UDIFFile(dmg.toFile(), index.toFile())) {
+            return file.getPartitions();
+        }
+    }
+
+    private Koly koly() {
+        UDIFFileView view = new UDIFFileView(dmg.toFile());
+        try {
+            return view.getKoly();
+        } finally {
+            view.close();
+        }
+    }
+
+    @Test
+    void testRoundTrip() throws Exception {
+        assertFalse(Files.exists(index));
+        PlistPartition[] partitions = open();
+        PlistTest.assertPartitionsEqual(expected, partitions);
+        assertTrue(Files.exists(index));
+
+        PlistPartition[] loaded = UDIFIndex.read(index.toFile(), dmg.toFile(), koly());
+        assertNotNull(loaded);
+        PlistTest.assertPartitionsEqual(expected, loaded);
+        for (int i = 0; i < expected.length; ++i) {
+            assertEquals(expected[i].getFinalOutOffset(), loaded[i].getFinalOutOffset());
+            assertEquals(expected[i].getFinalInOffset(), loaded[i].getFinalInOffset());
+        }
+
+        // The index is read instead of the plist, so blanking the plist (and restoring the time) goes unnoticed.
+        long lastModified = dmg.toFile().lastModified();
+        Koly koly = koly();
+        try (RandomAccessFile raf = new RandomAccessFile(dmg.toFile(), "rw")) {
+            byte[] blank = new byte[(int) koly.getPlistSize()];
+            Arrays.fill(blank, (byte) ' ');
+            raf.seek(koly.getPlistBegin1());
+            raf.write(blank);
+        }
+        assertTrue(dmg.toFile().setLastModified(lastModified));
+        PlistTest.assertPartitionsEqual(expected, open());
+    }
+
+    @Test
+    void testStale() throws Exception {
+        open();
+        assertTrue(dmg.toFile().setLastModified(dmg.toFile().lastModified() - 10000));
+        assertNull(UDIFIndex.read(index.toFile(), dmg.toFile(), koly()));
+
+        // An index that is out of date is replaced.
+        PlistTest.assertPartitionsEqual(expected, open());
+        PlistTest.assertPartitionsEqual(expected, UDIFIndex.read(index.toFile(), dmg.toFile(), koly()));
+    }
+
+    @Test
+    void testCorrupt() throws Exception {
+        open();
+        byte[] data = Files.readAllBytes(index);
+        data[data.length / 2] ^= 1;
+        Files.write(index, data);
+        assertThrows(IOException.class, () -> UDIFIndex.read(index.toFile(), dmg.toFile(), koly()));
+        PlistTest.assertPartitionsEqual(expected, open());
+
+        Files.write(index, Arrays.copyOf(data, 3));
+        assertThrows(IOException.class, () -> UDIFIndex.read(index.toFile(), dmg.toFile(), koly()));
+        PlistTest.assertPartitionsEqual(expected, open());
+        assertNotNull(UDIFIndex.read(index.toFile(), dmg.toFile(), koly()));
+    }
+
+    @Test
+    void testStream() throws Exception {
+        byte[] plain;
+        try (RandomAccessFile raf = new RandomAccessFile(dmg.toFile(), "r")) {
+            UDIFRandomAccessStream stream = new UDIFRandomAccessStream(new ReadableFileStream(raf, dmg.toString()));
+            plain = new byte[(int) stream.length()];
+            stream.readFully(plain);
+        }
+
+        for (int i = 0; i < 2; ++i) {
+            UDIFFile file = new UDIFFile(dmg.toFile(), index.toFile());
+            UDIFRandomAccessStream stream = new UDIFRandomAccessStream(file);
+            byte[] indexed = new byte[(int) stream.length()];
+            stream.readFully(indexed);
+            stream.close();
+            assertArrayEquals(plain, indexed);
+            assertTrue(Files.isRegularFile(index));
+            // The file opened by the UDIFFile is closed with the stream.
+            assertThrows(RuntimeIOException.class, () -> file.getStream().read());
+        }
+    }
+
+    @Test
+    void testCallerStreamStaysOpen() throws Exception {
+        try (RandomAccessFile raf = new RandomAccessFile(dmg.toFile(), "r")) {
+            ReadableFileStream dmgStream = new ReadableFileStream(raf, dmg.toString());
+            UDIFRandomAccessStream stream = new UDIFRandomAccessStream(new UDIFFile(dmgStream));
+            stream.close();
+            dmgStream.seek(0);
+            assertTrue(dmgStream.read() >= 0);
+        }
+    }
+}
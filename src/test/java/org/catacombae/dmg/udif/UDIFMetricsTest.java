@@ -0,0 +1,81 @@
+package org.catacombae.dmg.udif;
+
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class UDIFMetricsTest {
+
+    @Test
+    void testBlockStats() {
+        UDIFMetrics metrics = new UDIFMetrics();
+        metrics.setPartitionName(1, "disk image (Apple_HFS : 1)");
+        metrics.recordBlock(UDIFBlock.BT_ZLIB, 1, 100, 400, 10, 20, 30);
+        metrics.recordBlock(UDIFBlock.BT_ZLIB, 1, 100, 200, 1, 2, 3);
+        metrics.recordBlock(UDIFBlock.BT_ZERO, 0, 0, 1000, 0, 0, 0);
+        metrics.recordBlock(UDIFBlock.BT_COPY, -1, 50, 50, 0, 0, 5);
+
+        Map<Integer, UDIFMetrics.BlockStats> types = metrics.getBlockTypeStats();
+        assertEquals(3, types.size());
+        UDIFMetrics.BlockStats zlib = types.get(UDIFBlock.BT_ZLIB);
+        assertEquals("BT_ZLIB", zlib.getName());
+        assertEquals(2, zlib.getChunkCount());
+        assertEquals(200, zlib.getBytesIn());
+        assertEquals(600, zlib.getBytesOut());
+        assertEquals(11, zlib.getReadNanos());
+        assertEquals(22, zlib.getDecodeNanos());
+        assertEquals(33, zlib.getWriteNanos());
+        assertEquals(3.0, zlib.getCompressionRatio());
+        assertEquals(0.0, types.get(UDIFBlock.BT_ZERO).getCompressionRatio());
+
+        // Blocks without a partition are only counted by type.
+        Map<Integer, UDIFMetrics.BlockStats> partitions = metrics.getPartitionStats();
+        assertEquals(2, partitions.size());
+        assertNull(partitions.get(0).getName());
+        assertEquals(1000, partitions.get(0).getBytesOut());
+        assertEquals("disk image (Apple_HFS : 1)", partitions.get(1).getName());
+        assertEquals(2, partitions.get(1).getChunkCount());
+
+        String[] summary = metrics.getSummary();
+        assertEquals("Block types:", summary[0]);
+        assertTrue(summary[3].contains("BT_ZLIB: 2 chunks, 200 bytes in, 600 bytes out (ratio 3.00)"), summary[3]);
+        assertTrue(summary[6].startsWith("  1 disk image (Apple_HFS : 1): 2 chunks"), summary[6]);
+        assertEquals(7, summary.length);
+    }
+
+    @Test
+    void testLatencyHistogram() {
+        UDIFMetrics metrics = new UDIFMetrics();
+        UDIFMetrics.LatencyHistogram latencies = metrics.getReadLatencies();
+        assertEquals(0, latencies.getPercentileNanos(50));
+
+        for (int i = 0; i < 90; ++i)
+            metrics.recordRead(1000); // bucket 9: 512-1023
+        for (int i = 0; i < 10; ++i)
+            metrics.recordRead(100000); // bucket 16: 65536-131071
+        metrics.recordRead(0);
+
+        assertEquals(101, latencies.getCount());
+        assertEquals(90 * 1000 + 10 * 100000, latencies.getTotalNanos());
+        assertEquals(100000, latencies.getMaxNanos());
+        assertEquals(1, latencies.getBuckets()[0]);
+        assertEquals(90, latencies.getBuckets()[9]);
+        assertEquals(10, latencies.getBuckets()[16]);
+        assertEquals(1023, latencies.getPercentileNanos(50));
+        assertEquals(131071, latencies.getPercentileNanos(99));
+        assertEquals(1, latencies.getPercentileNanos(0));
+
+        metrics.recordSeek();
+        metrics.recordCacheHit();
+        metrics.recordCacheMiss();
+        metrics.recordCacheMiss();
+        String[] summary = metrics.getSummary();
+        assertEquals(3, summary.length);
+        assertTrue(summary[0].startsWith("Reads: 101, mean "), summary[0]);
+        assertEquals("Seeks: 1", summary[1]);
+        assertEquals("Block cache: 1 hits, 2 misses", summary[2]);
+    }
+}
@@ -1,16 +1,237 @@
 package org.catacombae.dmg.udif;
 
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.catacombae.io.ReadableFileStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
 
 import static org.junit.jupiter.api.Assertions.*;
 
 
 class UDIFRandomAccessStreamTest {
 
+    String dmg = "src/test/resources/test.dmg";
+
+    /** The image files opened by the test, which {@link UDIFFile} leaves open so streams can be read after closing. */
+    private final List<RandomAccessFile> files = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() throws IOException {
+        for (RandomAccessFile file : files)
+            file.close();
+    }
+
+    private UDIFFile image() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(dmg, "r");
+        files.add(file);
+        return new UDIFFile(new ReadableFileStream(file, dmg));
+    }
+
+    private UDIFRandomAccessStream open(long blockCacheSize) throws IOException {
+        return new UDIFRandomAccessStream(image(), blockCacheSize);
+    }
+
+    private UDIFRandomAccessStream open(long blockCacheSize, int prefetchDepth) throws IOException {
+        return new UDIFRandomAccessStream(image(), blockCacheSize,
+                UDIFRandomAccessStream.DEFAULT_ZLIB_CHECKPOINT_INTERVAL, prefetchDepth);
+    }
+
+    @Test
+    void testConcurrentReadAt() throws Exception {
+        UDIFRandomAccessStream dras = open(0);
+        byte[] expected = new byte[(int) dras.length()];
+        dras.readFully(expected);
+
+        // No block cache, so the threads really decode concurrently.
+        UDIFRandomAccessStream shared = open(0);
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < threads; ++t) {
+                long seed = t;
+                results.add(executor.submit(() -> {
+                    Random random = new Random(seed);
+                    byte[] buffer = new byte[70000];
+                    for (int i = 0; i < 200; ++i) {
+                        int pos = random.nextInt(expected.length);
+                        int len = random.nextInt(buffer.length);
+                        // Each read is followed by one continuing where it stopped, which reuses the thread's decoder.
+                        int bytesRead = shared.readAt(pos, buffer, 0, len);
+                        int expectedLength = Math.min(len, expected.length - pos);
+                        assertEquals(expectedLength, bytesRead);
+                        assertArrayEquals(Arrays.copyOfRange(expected, pos, pos + expectedLength),
+                                Arrays.copyOf(buffer, bytesRead), "pos " + pos);
+                        if (pos + expectedLength < expected.length) {
+                            pos += expectedLength;
+                            expectedLength = Math.min(len, expected.length - pos);
+                            assertEquals(expectedLength, shared.readAt(pos, buffer, 0, len));
+                            assertArrayEquals(Arrays.copyOfRange(expected, pos, pos + expectedLength),
+                                    Arrays.copyOf(buffer, expectedLength), "pos " + pos);
+                        }
+                    }
+                    return null;
+                }));
+            }
+
+            // The file pointer is independent of readAt.
+            byte[] sequential = new byte[expected.length];
+            shared.seek(0);
+            shared.readFully(sequential);
+            assertArrayEquals(expected, sequential);
+
+            for (Future<?> result : results)
+                result.get();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(-1, shared.readAt(expected.length, new byte[1], 0, 1));
+    }
+
+    @Test
+    void testConcurrentCheckpoints() throws Exception {
+        UDIFRandomAccessStream dras = open(0);
+        byte[] expected = new byte[(int) dras.length()];
+        dras.readFully(expected);
+
+        // Small checkpoint intervals give the blocks of the image indexes, which the threads build as they need them.
+        UDIFRandomAccessStream shared = new UDIFRandomAccessStream(image(), 0, 16 * 1024, 0);
+        int threads = 4;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (int round = 0; round < 2; ++round) {
+                List<Future<?>> results = new ArrayList<>();
+                for (int t = 0; t < threads; ++t) {
+                    long seed = round * threads + t;
+                    results.add(executor.submit(() -> {
+                        Random random = new Random(seed);
+                        byte[] buffer = new byte[5000];
+                        for (int i = 0; i < 100; ++i) {
+                            int pos = random.nextInt(expected.length - buffer.length);
+                            assertEquals(buffer.length, shared.readAt(pos, buffer, 0, buffer.length));
+                            assertArrayEquals(Arrays.copyOfRange(expected, pos, pos + buffer.length), buffer,
+                                    "pos " + pos);
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> result : results)
+                    result.get();
+                // Releases the decoders of all threads, which open new ones if they read on.
+                shared.close();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void testMetrics() throws Exception {
+        // Prefetched blocks would be found in the cache on the first pass.
+        UDIFRandomAccessStream dras = open(64 * 1024 * 1024, 0);
+        byte[] first = new byte[(int) dras.length()];
+        dras.readFully(first);
+        UDIFMetrics metrics = dras.getMetrics();
+        long misses = metrics.getCacheMissCount();
+        assertTrue(misses > 0);
+        assertEquals(0, metrics.getCacheHitCount());
+        assertEquals(0, metrics.getSeekCount());
+
+        // Everything read the second time comes from the cache.
+        dras.seek(0);
+        dras.seek(0);
+        byte[] second = new byte[first.length];
+        dras.readFully(second);
+        assertArrayEquals(first, second);
+        assertEquals(misses, metrics.getCacheMissCount());
+        assertEquals(misses, metrics.getCacheHitCount());
+        assertEquals(1, metrics.getSeekCount());
+
+        long reads = metrics.getReadLatencies().getCount();
+        assertTrue(reads >= 2);
+        dras.readAt(0, new byte[16], 0, 16);
+        assertEquals(reads + 1, metrics.getReadLatencies().getCount());
+    }
+
+    @Test
+    void testPrefetch() throws Exception {
+        UDIFRandomAccessStream plain = open(0);
+        byte[] expected = new byte[(int) plain.length()];
+        plain.readFully(expected);
+
+        UDIFRandomAccessStream dras = open(64 * 1024 * 1024, 3);
+        byte[] actual = new byte[expected.length];
+        for (int pos = 0; pos < actual.length; pos += 1000)
+            dras.readFully(actual, pos, Math.min(1000, actual.length - pos));
+        assertArrayEquals(expected, actual);
+        UDIFMetrics metrics = dras.getMetrics();
+        assertTrue(metrics.getPrefetchCount() > 0);
+
+        // A seek back doesn't disturb what was read ahead.
+        dras.seek(expected.length / 3);
+        dras.readFully(actual, 0, 100000);
+        assertArrayEquals(Arrays.copyOfRange(expected, expected.length / 3, expected.length / 3 + 100000),
+                Arrays.copyOf(actual, 100000));
+        dras.close();
+
+        // No prefetching without a block cache.
+        dras = open(0, 3);
+        dras.readFully(actual);
+        assertArrayEquals(expected, actual);
+        assertEquals(0, dras.getMetrics().getPrefetchCount());
+    }
+
+    private static int prefetchThreads() {
+        int count = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().equals("UDIFRandomAccessStream-prefetch"))
+                ++count;
+        }
+        return count;
+    }
+
+    @Test
+    void testPrefetchThreadsEnd() throws Exception {
+        UDIFRandomAccessStream dras = open(64 * 1024 * 1024, 3);
+        byte[] buffer = new byte[1000];
+        while (dras.read(buffer) > 0) {
+        }
+        assertTrue(dras.getMetrics().getPrefetchCount() > 0);
+        // The stream is dropped without being closed. Its threads end once they have been idle for a while.
+        dras = null;
+
+        long deadline = System.currentTimeMillis() + 10 * UDIFRandomAccessStream.PREFETCH_KEEP_ALIVE_MILLIS;
+        while (prefetchThreads() > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(100);
+        assertEquals(0, prefetchThreads());
+    }
+
+    @Test
+    void testNoPrefetchAfterClose() throws Exception {
+        UDIFRandomAccessStream dras = open(64 * 1024 * 1024, 3);
+        byte[] buffer = new byte[1000];
+        dras.readFully(buffer);
+        long prefetched = dras.getMetrics().getPrefetchCount();
+        dras.close();
+        // The stream can still be read after it is closed, but without starting a new prefetcher.
+        dras.seek(0);
+        while (dras.read(buffer) > 0) {
+        }
+        assertEquals(prefetched, dras.getMetrics().getPrefetchCount());
+    }
+
     public static void main(String[] args) throws IOException {
         System.out.println("UDIFRandomAccessStream simple test program");
         System.out.println("(Simply extracts the contents of a DMG file to a designated output file)");
@@ -18,20 +239,21 @@ class UDIFRandomAccessStreamTest {
             System.out.println("  ERROR: You must supply exactly two arguments: 1. the DMG, 2. the output file");
         else {
             byte[] buffer = new byte[4096];
-            UDIFRandomAccessStream dras = new UDIFRandomAccessStream(new UDIFFile(new ReadableFileStream(
-                    new RandomAccessFile(args[0], "r"), args[0])));
-            FileOutputStream fos = new FileOutputStream(args[1]);
-
-            long totalBytesRead = 0;
+            UDIFRandomAccessStream dras = new UDIFRandomAccessStream(new UDIFFile(new File(args[0]), null));
+            try (FileOutputStream fos = new FileOutputStream(args[1])) {
+                long totalBytesRead = 0;
 
-            int bytesRead = dras.read(buffer);
-            while (bytesRead > 0) {
-                totalBytesRead += bytesRead;
-                fos.write(buffer, 0, bytesRead);
-                bytesRead = dras.read(buffer);
+                int bytesRead = dras.read(buffer);
+                while (bytesRead > 0) {
+                    totalBytesRead += bytesRead;
+                    fos.write(buffer, 0, bytesRead);
+                    bytesRead = dras.read(buffer);
+                }
+                System.out.println("Done! Extracted " + totalBytesRead + " bytes.");
+                System.out.println("Length: " + dras.length() + " bytes");
+            } finally {
+                dras.close();
             }
-            System.out.println("Done! Extracted " + totalBytesRead + " bytes.");
-            System.out.println("Length: " + dras.length() + " bytes");
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,65 @@
+package org.catacombae.dmg.udif;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.catacombae.io.ReadableByteArrayStream;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class UDIFVerifierTest {
+
+    static int crc32(byte[] data, int off, int len) {
+        CRC32 crc = new CRC32();
+        crc.update(data, off, len);
+        return (int) crc.getValue();
+    }
+
+    @Test
+    void testCombineCRC32() {
+        byte[] data = new byte[10000];
+        new Random(4711).nextBytes(data);
+        for (int split : new int[] {0, 1, 511, 5000, 9999, 10000}) {
+            int combined = UDIFChecksum.combineCRC32(crc32(data, 0, split), crc32(data, split, data.length - split),
+                    data.length - split);
+            assertEquals(crc32(data, 0, data.length), combined, "split at " + split);
+        }
+        assertEquals(0xd202ef8d, UDIFChecksum.zerosCRC32(1));
+        assertEquals(crc32(new byte[12345], 0, 12345), UDIFChecksum.zerosCRC32(12345));
+    }
+
+    @Test
+    void testVerify() throws Exception {
+        byte[] dmg = Files.readAllBytes(Paths.get("src/test/resources/test.dmg"));
+        UDIFVerifier verifier = new UDIFVerifier(new UDIFFile(new ReadableByteArrayStream(dmg)));
+        List<UDIFVerifier.Result> results = verifier.verify(true, 4);
+
+        // data fork (no checksum in this image), master checksum and 4 partitions
+        assertEquals(6, results.size());
+        assertEquals(UDIFVerifier.Status.NONE, results.get(0).getStatus());
+        for (UDIFVerifier.Result result : results.subList(1, results.size()))
+            assertEquals(UDIFVerifier.Status.OK, result.getStatus(), result.toString());
+    }
+
+    @Test
+    void testWrittenImage() throws Exception {
+        byte[] image = UDIFWriterTest.write(UDIFWriterTest.createData(), UDIFBlock.BT_ZLIB);
+        UDIFVerifier verifier = new UDIFVerifier(new UDIFFile(new ReadableByteArrayStream(image)));
+        for (UDIFVerifier.Result result : verifier.verify(true, 2))
+            assertEquals(UDIFVerifier.Status.OK, result.getStatus(), result.toString());
+
+        // A byte of the first block, which is noise and so is stored as it is.
+        image[100] ^= 1;
+        verifier = new UDIFVerifier(new UDIFFile(new ReadableByteArrayStream(image)));
+        List<UDIFVerifier.Result> results = verifier.verify(true, 2);
+        assertEquals(UDIFVerifier.Status.MISMATCH, results.get(0).getStatus());
+        assertEquals(UDIFVerifier.Status.OK, results.get(1).getStatus());
+        assertEquals(UDIFVerifier.Status.MISMATCH, results.get(2).getStatus());
+        assertTrue(results.get(2).isError());
+    }
+}
@@ -0,0 +1,129 @@
+package org.catacombae.dmg.udif;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.catacombae.io.ReadableByteArrayStream;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class UDIFWriterTest {
+
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    /** 20 chunks of noise, text and zeros, and half a sector more. */
+    static byte[] createData() {
+        Random random = new Random(4711);
+        byte[] data = new byte[20 * CHUNK_SIZE + 256];
+        for (int chunk = 0; chunk * CHUNK_SIZE < data.length; ++chunk) {
+            int pos = chunk * CHUNK_SIZE;
+            int len = Math.min(CHUNK_SIZE, data.length - pos);
+            switch (chunk % 4) {
+                case 0 -> {
+                    byte[] noise = new byte[len];
+                    random.nextBytes(noise);
+                    System.arraycopy(noise, 0, data, pos, len);
+                }
+                case 1, 2 -> {
+                    for (int i = 0; i < len; ++i)
+                        data[pos + i] = (byte) ("The quick brown fox ".charAt(i % 20) + random.nextInt(2));
+                }
+                default -> {
+                    // zeros
+                }
+            }
+        }
+        return data;
+    }
+
+    static byte[] write(byte[] data, int blockType) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long written = new UDIFWriter(blockType, CHUNK_SIZE, 3).write(new ReadableByteArrayStream(data), out);
+        assertEquals(out.size(), written);
+        return out.toByteArray();
+    }
+
+    @Test
+    void testRoundTrip() throws Exception {
+        byte[] data = createData();
+        // The last sector is padded with zeros.
+        byte[] expected = Arrays.copyOf(data, (data.length + 511) / 512 * 512);
+
+        for (int blockType : new int[] {UDIFBlock.BT_COPY, UDIFBlock.BT_ZLIB, UDIFBlock.BT_BZIP2}) {
+            byte[] image = write(data, blockType);
+            UDIFRandomAccessStream stream = new UDIFRandomAccessStream(new ReadableByteArrayStream(image));
+            assertEquals(expected.length, stream.length());
+            byte[] actual = new byte[expected.length];
+            stream.readFully(actual);
+            assertArrayEquals(expected, actual, "block type 0x" + Integer.toHexString(blockType));
+            stream.close();
+        }
+    }
+
+    @Test
+    void testBlockTypes() throws Exception {
+        byte[] image = write(createData(), UDIFBlock.BT_ZLIB);
+        PlistPartition[] partitions = new UDIFFileView(new ReadableByteArrayStream(image)).getPlist().getPartitions();
+        assertEquals(1, partitions.length);
+
+        UDIFBlock[] blocks = partitions[0].getBlocks();
+        assertEquals(22, blocks.length);
+        for (int i = 0; i < 20; ++i) {
+            // Noise doesn't compress, so it is stored.
+            int expectedType = switch (i % 4) {
+                case 0 -> UDIFBlock.BT_COPY;
+                case 1, 2 -> UDIFBlock.BT_ZLIB;
+                default -> UDIFBlock.BT_ZERO;
+            };
+            assertEquals(expectedType, blocks[i].getBlockType(), "block " + i);
+            assertEquals((long) i * CHUNK_SIZE, blocks[i].getTrueOutOffset(), "block " + i);
+            if (expectedType == UDIFBlock.BT_ZERO)
+                assertEquals(0, blocks[i].getInSize(), "block " + i);
+        }
+        assertEquals(512, blocks[20].getOutSize());
+        assertEquals(UDIFBlock.BT_END, blocks[21].getBlockType());
+    }
+
+    @Test
+    void testChecksums() throws Exception {
+        byte[] data = createData();
+        byte[] image = write(data, UDIFBlock.BT_BZIP2);
+        UDIFFileView view = new UDIFFileView(new ReadableByteArrayStream(image));
+        Koly koly = view.getKoly();
+        long forkLength = koly.getPlistBegin1();
+
+        ByteBuffer trailer = ByteBuffer.wrap(image, image.length - 512, 512).slice();
+        CRC32 forkChecksum = new CRC32();
+        forkChecksum.update(image, 0, (int) forkLength);
+        assertEquals(2, trailer.getInt(0x50));
+        assertEquals(32, trailer.getInt(0x54));
+        assertEquals((int) forkChecksum.getValue(), trailer.getInt(0x58));
+
+        // Chunks of zeros, which become BT_ZERO blocks, are not part of the checksum.
+        byte[] padded = Arrays.copyOf(data, (data.length + 511) / 512 * 512);
+        CRC32 dataChecksum = new CRC32();
+        for (int pos = 0; pos < padded.length; pos += CHUNK_SIZE) {
+            int len = Math.min(CHUNK_SIZE, padded.length - pos);
+            if (!Arrays.equals(padded, pos, pos + len, new byte[len], 0, len))
+                dataChecksum.update(padded, pos, len);
+        }
+        CRC32 masterChecksum = new CRC32();
+        masterChecksum.update(ByteBuffer.allocate(4).putInt((int) dataChecksum.getValue()).array());
+        assertEquals(2, koly.getChecksumAlgorithm());
+        assertEquals(32, koly.getChecksumSize());
+        assertEquals((int) masterChecksum.getValue(), ByteBuffer.wrap(koly.getChecksumData()).getInt());
+    }
+
+    @Test
+    void testIllegalArguments() {
+        assertThrows(IllegalArgumentException.class, () -> new UDIFWriter(UDIFBlock.BT_LZFSE));
+        assertThrows(IllegalArgumentException.class, () -> new UDIFWriter(UDIFBlock.BT_ZLIB, 1000, 1));
+        assertThrows(IllegalArgumentException.class, () -> new UDIFWriter(UDIFBlock.BT_ZLIB, 512, 0));
+    }
+}
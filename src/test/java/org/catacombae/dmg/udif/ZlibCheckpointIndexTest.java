@@ -0,0 +1,86 @@
+package org.catacombae.dmg.udif;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import org.catacombae.io.ReadableByteArrayStream;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class ZlibCheckpointIndexTest {
+
+    /** Mixes random, repetitive and zero data so that the stream contains all kinds of DEFLATE blocks. */
+    private static byte[] createData(int size) {
+        Random random = new Random(4711);
+        byte[] data = new byte[size];
+        int pos = 0;
+        while (pos < size) {
+            int run = Math.min(size - pos, 1 + random.nextInt(20000));
+            switch (random.nextInt(3)) {
+                case 0 -> {
+                    byte[] noise = new byte[run];
+                    random.nextBytes(noise);
+                    System.arraycopy(noise, 0, data, pos, run);
+                }
+                case 1 -> {
+                    for (int i = 0; i < run; ++i)
+                        data[pos + i] = (byte) ("The quick brown fox ".charAt(i % 20) + random.nextInt(2));
+                }
+                default -> Arrays.fill(data, pos, pos + run, (byte) 0);
+            }
+            pos += run;
+        }
+        return data;
+    }
+
+    @Test
+    void testResumeAtEveryCheckpoint() throws Exception {
+        for (int level : new int[] {Deflater.BEST_SPEED, Deflater.DEFAULT_COMPRESSION, Deflater.NO_COMPRESSION}) {
+            byte[] data = createData(3 * 1024 * 1024);
+            byte[] compressed = Encoders.deflate(data, level);
+
+            ZlibCheckpointIndex index = ZlibCheckpointIndex.build(compressed, 0, compressed.length, 128 * 1024);
+            assertTrue(index.getCheckpointCount() > 4, "level " + level + ": " + index.getCheckpointCount());
+
+            for (int i = 0; i < index.getCheckpointCount(); ++i) {
+                int inOffset = (int) index.getInOffset(i);
+                DeflateDecoder decoder = index.resume(i, compressed, inOffset, compressed.length - inOffset);
+                int outOffset = (int) index.getOutOffset(i);
+                // One byte of slack lets the decoder get past the final end-of-block code.
+                byte[] out = new byte[data.length - outOffset + 1];
+                int produced = 0;
+                while (!decoder.finished())
+                    produced += decoder.inflate(out, produced, out.length - produced);
+                assertEquals(data.length - outOffset, produced);
+                assertArrayEquals(Arrays.copyOfRange(data, outOffset, data.length), Arrays.copyOf(out, produced),
+                        "checkpoint " + i);
+            }
+        }
+    }
+
+    @Test
+    void testSkipThroughCheckpoints() throws Exception {
+        byte[] data = createData(2 * 1024 * 1024);
+        byte[] compressed = Encoders.deflate(data);
+        UDIFBlock block = new UDIFBlock(UDIFBlock.BT_ZLIB, 0, 0, data.length, 0, compressed.length, 0, 0);
+        ZlibCheckpointIndex index = ZlibCheckpointIndex.build(compressed, 0, compressed.length, 64 * 1024);
+
+        Random random = new Random(1);
+        for (int i = 0; i < 50; ++i) {
+            int pos = random.nextInt(data.length);
+            int len = Math.min(data.length - pos, random.nextInt(5000));
+            UDIFBlockInputStream is = new UDIFBlockInputStream.ZlibBlockInputStream(
+                    new ReadableByteArrayStream(compressed), block, 0, index);
+            assertEquals(pos, is.skip(pos));
+            assertEquals(data.length - pos, is.available());
+            byte[] buffer = new byte[len];
+            int bytesRead = 0;
+            while (bytesRead < len)
+                bytesRead += is.read(buffer, bytesRead, len - bytesRead);
+            assertArrayEquals(Arrays.copyOfRange(data, pos, pos + len), buffer, "pos " + pos);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package org.catacombae.dmgextractor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.catacombae.dmg.udif.UDIFRandomAccessStream;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class BatchExtractorTest {
+
+    private static final Path DMG = Paths.get("src/test/resources/test.dmg");
+
+    @Test
+    void testExtract() throws Exception {
+        UDIFRandomAccessStream stream =
+                new UDIFRandomAccessStream(new RandomAccessFile(DMG.toFile(), "r"), DMG.toString());
+        byte[] expected = new byte[(int) stream.length()];
+        stream.readFully(expected);
+        stream.close();
+
+        Path dir = Files.createTempDirectory("BatchExtractorTest");
+        try {
+            StringBuilder list = new StringBuilder("# images\n\n");
+            for (int i = 0; i < 4; ++i) {
+                Path dmg = dir.resolve("image" + i + ".dmg");
+                Files.copy(DMG, dmg);
+                list.append(dmg).append(i == 0 ? "\t" + dir.resolve("first.iso") : "").append('\n');
+            }
+            list.append(dir.resolve("missing.dmg")).append('\n');
+            Path outDir = dir.resolve("out");
+            Files.createDirectory(outDir);
+            List<BatchExtractor.Job> batch = BatchExtractor.readJobs(new StringReader(list.toString()),
+                    outDir.toFile());
+            assertEquals(5, batch.size());
+            assertEquals(dir.resolve("first.iso").toFile(), batch.get(0).isoFile());
+            assertEquals(outDir.resolve("image1.img").toFile(), batch.get(1).isoFile());
+
+            DMGExtractor.Session settings = new DMGExtractor.Session();
+            settings.threads = 2;
+            List<BatchExtractor.Result> reported = new ArrayList<>();
+            // The results are passed on from the calling thread only.
+            List<BatchExtractor.Result> results = new BatchExtractor(settings, 2).extract(batch, reported::add);
+
+            assertEquals(5, results.size());
+            assertEquals(5, reported.size());
+            for (int i = 0; i < 4; ++i) {
+                BatchExtractor.Result result = results.get(i);
+                assertSame(batch.get(i), result.getJob());
+                assertTrue(result.isOK(), result.toString());
+                assertEquals(expected.length, result.getBytesOut());
+                assertArrayEquals(expected, Files.readAllBytes(result.getJob().isoFile().toPath()));
+            }
+            BatchExtractor.Result missing = results.get(4);
+            assertFalse(missing.isOK());
+            assertFalse(missing.isFinished());
+            assertNotNull(missing.getMessage());
+
+            ByteArrayOutputStream json = new ByteArrayOutputStream();
+            BatchExtractor.writeReport(results, false, new PrintStream(json, true, StandardCharsets.UTF_8));
+            String report = json.toString(StandardCharsets.UTF_8);
+            assertTrue(report.startsWith("[\n"), report);
+            assertEquals(4, report.split("\"status\": \"ok\"", -1).length - 1, report);
+            assertTrue(report.contains("\"status\": \"failed\""), report);
+
+            ByteArrayOutputStream csv = new ByteArrayOutputStream();
+            BatchExtractor.writeReport(results, true, new PrintStream(csv, true, StandardCharsets.UTF_8));
+            String[] lines = csv.toString(StandardCharsets.UTF_8).split("\n");
+            assertEquals(6, lines.length);
+            assertTrue(lines[1].contains(",ok," + expected.length + ","), lines[1]);
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    @Test
+    void testEscape() {
+        assertEquals("\"a\\\"b\\\\c\\n\\u0001\"", Util.toJSONString("a\"b\\c\n\u0001"));
+        assertEquals("plain", Util.toCSVField("plain"));
+        assertEquals("\"a,\"\"b\"\"\"", Util.toCSVField("a,\"b\""));
+    }
+}
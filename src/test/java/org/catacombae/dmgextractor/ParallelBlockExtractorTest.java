@@ -0,0 +1,158 @@
+package org.catacombae.dmgextractor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import org.catacombae.dmg.udif.Encoders;
+import org.catacombae.dmg.udif.UDIFBlock;
+import org.catacombae.dmg.udif.UDIFMetrics;
+import org.catacombae.io.ReadableByteArrayStream;
+import org.catacombae.io.ReadableFileStream;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class ParallelBlockExtractorTest {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    @Test
+    void testBlocksAreWrittenAtTheirOffsets() throws Exception {
+        testExtract(false);
+    }
+
+    @Test
+    void testSparseExtraction() throws Exception {
+        testExtract(true);
+    }
+
+    private void testExtract(boolean sparse) throws Exception {
+        Random random = new Random(17);
+        byte[] expected = new byte[40 * CHUNK_SIZE];
+        ByteArrayOutputStream image = new ByteArrayOutputStream();
+        List<UDIFBlock> blocks = new ArrayList<>();
+        for (int i = 0; i < 40; ++i) {
+            int outOffset = i * CHUNK_SIZE;
+            if (i % 5 == 4) {
+                blocks.add(new UDIFBlock(UDIFBlock.BT_ZERO, 0, outOffset, CHUNK_SIZE, image.size(), 0, 0, 0));
+                continue;
+            }
+            for (int j = 0; j < CHUNK_SIZE; ++j)
+                expected[outOffset + j] = (byte) (random.nextInt(4) == 0 ? random.nextInt() : j >> 6);
+            byte[] compressed = Encoders.deflate(expected, outOffset, CHUNK_SIZE, Deflater.DEFAULT_COMPRESSION);
+            blocks.add(new UDIFBlock(UDIFBlock.BT_ZLIB, 0, outOffset, CHUNK_SIZE, image.size(),
+                    compressed.length, 0, 0));
+            image.write(compressed);
+        }
+
+        Path output = Files.createTempFile("ParallelBlockExtractorTest", ".img");
+        try (FileChannel isoChannel = FileChannel.open(output, StandardOpenOption.WRITE)) {
+            ParallelBlockExtractor pipeline = new ParallelBlockExtractor(
+                    new ReadableByteArrayStream(image.toByteArray()), null, isoChannel, 4, sparse);
+            long progress = 0;
+            // Submit in reverse order so that nothing depends on the blocks finishing in sequence.
+            for (int i = blocks.size() - 1; i >= 0; --i) {
+                while (!pipeline.trySubmit(blocks.get(i), 100))
+                    progress += pipeline.takeProgress();
+            }
+            while (!pipeline.awaitCompletion(100))
+                progress += pipeline.takeProgress();
+            progress += pipeline.takeProgress();
+            pipeline.close();
+
+            assertNull(pipeline.pollFailure());
+            assertEquals(expected.length, progress);
+
+            // The image ends with a zero block, which sparse extraction doesn't write.
+            if (sparse) {
+                assertTrue(isoChannel.size() < expected.length);
+                isoChannel.write(ByteBuffer.allocate(1), expected.length - 1);
+            }
+        }
+        try {
+            assertArrayEquals(expected, Files.readAllBytes(output));
+        } finally {
+            Files.delete(output);
+        }
+    }
+
+    @Test
+    void testCopyBlocksAreTransferred() throws Exception {
+        testCopyBlocks(true);
+    }
+
+    @Test
+    void testCopyBlocksAreWrittenWithoutOutputPath() throws Exception {
+        testCopyBlocks(false);
+    }
+
+    private void testCopyBlocks(boolean transfer) throws Exception {
+        byte[] expected = new byte[20 * CHUNK_SIZE];
+        new Random(5).nextBytes(expected);
+        // The image holds the chunks in reverse order, after a header.
+        int headerSize = 512;
+        byte[] image = new byte[headerSize + expected.length];
+        List<UDIFBlock> blocks = new ArrayList<>();
+        for (int i = 0; i < 20; ++i) {
+            int inOffset = headerSize + (19 - i) * CHUNK_SIZE;
+            System.arraycopy(expected, i * CHUNK_SIZE, image, inOffset, CHUNK_SIZE);
+            blocks.add(new UDIFBlock(UDIFBlock.BT_COPY, 0, i * CHUNK_SIZE, CHUNK_SIZE, inOffset, CHUNK_SIZE, 0, 0));
+        }
+
+        Path input = Files.createTempFile("ParallelBlockExtractorTest", ".dmg");
+        Path output = Files.createTempFile("ParallelBlockExtractorTest", ".img");
+        try {
+            Files.write(input, image);
+            try (RandomAccessFile dmgFile = new RandomAccessFile(input.toFile(), "r");
+                 FileChannel isoChannel = FileChannel.open(output, StandardOpenOption.WRITE)) {
+                // With the output path, each worker copies through an output channel of its own. Without it, the
+                // blocks go through the buffers of the workers.
+                ParallelBlockExtractor pipeline = new ParallelBlockExtractor(
+                        new ReadableFileStream(dmgFile, input.toString()), dmgFile.getChannel(), isoChannel,
+                        transfer ? output : null, 4, false, new UDIFMetrics(), null);
+                for (UDIFBlock block : blocks)
+                    assertTrue(pipeline.trySubmit(block, 10000));
+                while (!pipeline.awaitCompletion(100))
+                    assertNull(pipeline.pollFailure());
+                pipeline.close();
+
+                assertNull(pipeline.pollFailure());
+                assertEquals(expected.length, pipeline.takeProgress());
+            }
+            assertArrayEquals(expected, Files.readAllBytes(output));
+        } finally {
+            Files.delete(input);
+            Files.delete(output);
+        }
+    }
+
+    @Test
+    void testCorruptBlockIsReported() throws Exception {
+        byte[] garbage = new byte[1024];
+        new Random(3).nextBytes(garbage);
+        garbage[0] = 0x78;
+        garbage[1] = (byte) 0x9c;
+        UDIFBlock corrupt = new UDIFBlock(UDIFBlock.BT_ZLIB, 0, 0, CHUNK_SIZE, 0, garbage.length, 0, 0);
+
+        ParallelBlockExtractor pipeline =
+                new ParallelBlockExtractor(new ReadableByteArrayStream(garbage), null, null, 2, false);
+        assertTrue(pipeline.trySubmit(corrupt, 100));
+        assertTrue(pipeline.awaitCompletion(10000));
+        pipeline.close();
+
+        ParallelBlockExtractor.Failure failure = pipeline.pollFailure();
+        assertNotNull(failure);
+        assertSame(corrupt, failure.getBlock());
+        assertNull(pipeline.pollFailure());
+    }
+}
@@ -0,0 +1,112 @@
+package org.catacombae.dmgextractor.io;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.catacombae.io.ReadableByteArrayStream;
+import org.catacombae.io.ReadableRandomAccessSubstream;
+import org.catacombae.io.RuntimeIOException;
+import org.catacombae.io.SynchronizedReadableRandomAccessStream;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class ReadableFileChannelStreamTest {
+
+    @Test
+    void testConcurrentSubstreams() throws Exception {
+        byte[] data = new byte[100000];
+        new Random(13).nextBytes(data);
+        Path file = Files.createTempFile("ReadableFileChannelStreamTest", ".bin");
+        try {
+            Files.write(file, data);
+            ReadableFileChannelStream stream =
+                    new ReadableFileChannelStream(new RandomAccessFile(file.toFile(), "r"), file.toString());
+            assertEquals(data.length, stream.length());
+            SynchronizedReadableRandomAccessStream shared = ConcurrentReadableRandomAccessStream.of(stream);
+            assertTrue(shared instanceof ConcurrentReadableRandomAccessStream);
+
+            int threads = 4;
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<?>> results = new ArrayList<>();
+                for (int t = 0; t < threads; ++t) {
+                    long seed = t;
+                    results.add(executor.submit(() -> {
+                        // Each thread has a file pointer of its own.
+                        ReadableRandomAccessSubstream substream = new ReadableRandomAccessSubstream(shared);
+                        Random random = new Random(seed);
+                        byte[] buffer = new byte[20000];
+                        for (int i = 0; i < 500; ++i) {
+                            int pos = random.nextInt(data.length);
+                            int len = random.nextInt(buffer.length);
+                            int expectedLength = Math.min(len, data.length - pos);
+                            substream.seek(pos);
+                            assertEquals(expectedLength, substream.read(buffer, 0, len));
+                            assertArrayEquals(Arrays.copyOfRange(data, pos, pos + expectedLength),
+                                    Arrays.copyOf(buffer, expectedLength), "pos " + pos);
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> result : results)
+                    result.get();
+            } finally {
+                executor.shutdown();
+            }
+
+            byte[] buffer = new byte[10];
+            stream.seek(data.length - 4);
+            assertEquals(4, stream.read(buffer, 0, 10));
+            assertEquals(data.length, stream.getFilePointer());
+            assertEquals(-1, stream.read(buffer, 0, 1));
+            assertEquals(0, stream.read(buffer, 0, 0));
+            stream.close();
+        } finally {
+            Files.delete(file);
+        }
+
+        // Streams which can't read at a position are synchronized as before.
+        SynchronizedReadableRandomAccessStream other =
+                ConcurrentReadableRandomAccessStream.of(new ReadableByteArrayStream(data));
+        assertFalse(other instanceof ConcurrentReadableRandomAccessStream);
+        assertSame(other, ConcurrentReadableRandomAccessStream.of(other));
+    }
+
+    @Test
+    void testInterruptedRead() throws Exception {
+        byte[] data = new byte[10000];
+        new Random(14).nextBytes(data);
+        Path file = Files.createTempFile("ReadableFileChannelStreamTest", ".bin");
+        try {
+            Files.write(file, data);
+            ReadableFileChannelStream stream = new ReadableFileChannelStream(file.toFile());
+            byte[] buffer = new byte[100];
+
+            // The read of the interrupted thread fails and closes the channel, but it keeps its interrupt.
+            Thread.currentThread().interrupt();
+            assertThrows(RuntimeIOException.class, () -> stream.readFrom(0, buffer, 0, buffer.length));
+            assertTrue(Thread.interrupted());
+
+            // The other reads go on with the file opened again.
+            assertEquals(buffer.length, stream.readFrom(500, buffer, 0, buffer.length));
+            assertArrayEquals(Arrays.copyOfRange(data, 500, 600), buffer);
+            assertEquals(data.length, stream.length());
+
+            // A closed stream stays closed.
+            stream.close();
+            assertThrows(RuntimeIOException.class, () -> stream.readFrom(0, buffer, 0, buffer.length));
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package org.catacombae.dmgextractor.io;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class ReadableMappedFileStreamTest {
+
+    @Test
+    void testReadsAcrossWindows() throws Exception {
+        byte[] data = new byte[100000];
+        new Random(11).nextBytes(data);
+        Path file = Files.createTempFile("ReadableMappedFileStreamTest", ".bin");
+        try {
+            Files.write(file, data);
+            // A small window size so that most reads span several windows.
+            ReadableMappedFileStream stream =
+                    new ReadableMappedFileStream(new RandomAccessFile(file.toFile(), "r"), file.toString(), 4096);
+            assertEquals(data.length, stream.length());
+
+            Random random = new Random(12);
+            byte[] buffer = new byte[20000];
+            for (int i = 0; i < 500; ++i) {
+                int pos = random.nextInt(data.length);
+                int len = random.nextInt(buffer.length);
+                int expectedLength = Math.min(len, data.length - pos);
+
+                stream.seek(pos);
+                assertEquals(expectedLength, stream.read(buffer, 0, len));
+                assertEquals(pos + expectedLength, stream.getFilePointer());
+                assertArrayEquals(Arrays.copyOfRange(data, pos, pos + expectedLength),
+                        Arrays.copyOf(buffer, expectedLength), "pos " + pos);
+
+                assertEquals(expectedLength, stream.readFrom(pos, buffer, 0, len));
+                assertArrayEquals(Arrays.copyOfRange(data, pos, pos + expectedLength),
+                        Arrays.copyOf(buffer, expectedLength), "pos " + pos);
+            }
+
+            stream.seek(data.length);
+            assertEquals(-1, stream.read(buffer, 0, 1));
+            assertEquals(0, stream.read(buffer, 0, 0));
+            stream.close();
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    void testConcurrentReadFrom() throws Exception {
+        byte[] data = new byte[100000];
+        new Random(21).nextBytes(data);
+        Path file = Files.createTempFile("ReadableMappedFileStreamTest", ".bin");
+        try {
+            Files.write(file, data);
+            ReadableMappedFileStream stream =
+                    new ReadableMappedFileStream(new RandomAccessFile(file.toFile(), "r"), file.toString(), 4096);
+            int threads = 4;
+            // The threads start together, so that they race to map the same windows.
+            CyclicBarrier start = new CyclicBarrier(threads);
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<?>> results = new ArrayList<>();
+                for (int t = 0; t < threads; ++t) {
+                    long seed = t;
+                    results.add(executor.submit(() -> {
+                        start.await();
+                        Random random = new Random(seed);
+                        byte[] buffer = new byte[10000];
+                        for (int i = 0; i < 500; ++i) {
+                            int pos = i < 25 ? i * 4096 : random.nextInt(data.length);
+                            int expectedLength = Math.min(buffer.length, data.length - pos);
+                            assertEquals(expectedLength, stream.readFrom(pos, buffer, 0, buffer.length));
+                            assertArrayEquals(Arrays.copyOfRange(data, pos, pos + expectedLength),
+                                    Arrays.copyOf(buffer, expectedLength), "pos " + pos);
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> result : results)
+                    result.get();
+            } finally {
+                executor.shutdown();
+            }
+            stream.close();
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package org.catacombae.dmgextractor.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.catacombae.dmg.udif.Koly;
+import org.catacombae.dmg.udif.PlistPartition;
+import org.catacombae.dmg.udif.UDIFBlock;
+import org.catacombae.dmg.udif.UDIFFileView;
+import org.catacombae.util.Util;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class ValidateDmgsTest {
+
+    private static final Path DMG = Paths.get("src/test/resources/test.dmg");
+
+    @Test
+    void testValidate() throws Exception {
+        byte[] data = Files.readAllBytes(DMG);
+        Path good = Files.createTempFile("ValidateDmgsTest", ".dmg");
+        Path bad = Files.createTempFile("ValidateDmgsTest", ".dmg");
+        try {
+            Files.write(good, data);
+            // Damages compressed data, which only decoding finds. The image has no partition checksums, so the
+            // damage has to break the zlib stream.
+            byte[] damaged = data.clone();
+            byte[] garbage = new byte[64];
+            new Random(1).nextBytes(garbage);
+            System.arraycopy(garbage, 0, damaged, 10000, garbage.length);
+            Files.write(bad, damaged);
+
+            List<String> files = List.of(good.toString(), bad.toString());
+            List<ValidateDmgs.Report> listened = new ArrayList<>();
+            List<ValidateDmgs.Report> reports = ValidateDmgs.validate(files, true, 2, 2, listened::add);
+            assertEquals(2, reports.size());
+            assertEquals(2, listened.size());
+
+            ValidateDmgs.Report report = reports.get(0);
+            assertEquals(good.toString(), report.getFile());
+            assertEquals(0, report.getResult().getErrors().length, report.toString());
+            assertEquals(0, report.getResult().getWarnings().length, report.toString());
+            assertEquals(4, report.getPartitionCount());
+            assertEquals(48, report.getBlockCount());
+            assertEquals(9516032, report.getSize());
+
+            assertTrue(reports.get(1).getResult().hasErrors(), reports.get(1).toString());
+            assertFalse(ValidateDmgs.validate(bad.toString(), false, 1).getResult().hasErrors());
+
+            ByteArrayOutputStream json = new ByteArrayOutputStream();
+            ValidateDmgs.writeReport(reports, false, new PrintStream(json, true, StandardCharsets.UTF_8));
+            String text = json.toString(StandardCharsets.UTF_8);
+            assertTrue(text.contains("\"status\": \"ok\", \"partitions\": 4, \"blocks\": 48"), text);
+            assertTrue(text.contains("\"status\": \"errors\""), text);
+
+            ByteArrayOutputStream csv = new ByteArrayOutputStream();
+            ValidateDmgs.writeReport(reports, true, new PrintStream(csv, true, StandardCharsets.UTF_8));
+            String[] lines = csv.toString(StandardCharsets.UTF_8).split("\n");
+            assertEquals(3, lines.length);
+            assertTrue(lines[1].endsWith(",ok,4,48,9516032," + lines[1].split(",")[5] + ",0,0,"), lines[1]);
+        } finally {
+            Files.delete(good);
+            Files.delete(bad);
+        }
+    }
+
+    @Test
+    void testBlockTables() throws Exception {
+        PlistPartition[] partitions = new UDIFFileView(DMG.toFile()).getPlist().getPartitions();
+        byte[] data = Files.readAllBytes(DMG);
+        int kolyOffset = data.length - Koly.length();
+
+        ValidateResult vr = new ValidateResult();
+        ValidateDmg.validateBlockTables(partitions, new Koly(data, kolyOffset), data.length, vr);
+        assertFalse(vr.hasErrors(), String.join("\n", vr.getErrors()));
+        assertFalse(vr.hasWarnings(), String.join("\n", vr.getWarnings()));
+
+        // A data fork that ends early leaves the last blocks outside of it.
+        Util.arrayPutBE(data, kolyOffset + 32, 20000L);
+        vr = new ValidateResult();
+        ValidateDmg.validateBlockTables(partitions, new Koly(data, kolyOffset), data.length, vr);
+        assertTrue(vr.hasErrors());
+        assertTrue(vr.getErrors()[0].contains("outside the data fork"), vr.getErrors()[0]);
+    }
+
+    /**
+     * Builds a partition of blocks given as <code>{type, out sector, out sectors, in offset, in size}</code>, ended
+     * by a BT_END block.
+     */
+    private static PlistPartition partition(long[]... blocks) throws IOException {
+        byte[] data = new byte[0xCC + (blocks.length + 1) * UDIFBlock.structSize()];
+        int offset = 0xCC;
+        for (long[] block : blocks) {
+            Util.arrayPutBE(data, offset, (int) block[0]);
+            for (int i = 1; i < block.length; ++i)
+                Util.arrayPutBE(data, offset + 8 * i, block[i]);
+            offset += UDIFBlock.structSize();
+        }
+        Util.arrayPutBE(data, offset, UDIFBlock.BT_END);
+        return new PlistPartition("test", "0", "0x0050", data, 0, 0);
+    }
+
+    @Test
+    void testBlockProblems() throws Exception {
+        byte[] data = Files.readAllBytes(DMG);
+        Koly koly = new Koly(data, data.length - Koly.length());
+        long in = koly.getDataForkOffset();
+
+        // A block that both overlaps the one before it and has its data outside the data fork gets both errors.
+        ValidateResult vr = new ValidateResult();
+        PlistPartition pp = partition(new long[] {UDIFBlock.BT_ZLIB, 0, 1, in, 100},
+                new long[] {UDIFBlock.BT_ZLIB, 0, 1, data.length, 100});
+        ValidateDmg.validateBlockTables(new PlistPartition[] {pp}, koly, data.length, vr);
+        String[] errors = vr.getErrors();
+        assertEquals(2, errors.length, String.join("\n", errors));
+        assertTrue(errors[0].contains("overlaps"), errors[0]);
+        assertTrue(errors[1].contains("outside the data fork"), errors[1]);
+
+        // 21 gaps and then an overlap: the overlap isn't listed, but the image still has errors.
+        List<long[]> blocks = new ArrayList<>();
+        for (int i = 0; i < 22; ++i)
+            blocks.add(new long[] {UDIFBlock.BT_ZLIB, 2 * i, 1, in, 100});
+        blocks.add(new long[] {UDIFBlock.BT_ZLIB, 0, 1, in, 100});
+        vr = new ValidateResult();
+        pp = partition(blocks.toArray(long[][]::new));
+        ValidateDmg.validateBlockTables(new PlistPartition[] {pp}, koly, data.length, vr);
+        assertEquals(20, vr.getWarnings().length);
+        assertEquals(1, vr.getErrors().length, String.join("\n", vr.getErrors()));
+        assertTrue(vr.getErrors()[0].contains("2 more block table problems not listed"), vr.getErrors()[0]);
+
+        // Without the overlap, the problems left out are only warnings.
+        vr = new ValidateResult();
+        pp = partition(blocks.subList(0, 22).toArray(long[][]::new));
+        ValidateDmg.validateBlockTables(new PlistPartition[] {pp}, koly, data.length, vr);
+        assertFalse(vr.hasErrors(), String.join("\n", vr.getErrors()));
+        assertEquals(21, vr.getWarnings().length);
+    }
+
+    @Test
+    void testMissingFile() {
+        ValidateDmgs.Report report = ValidateDmgs.validate(new File("no such.dmg").getPath(), true, 1);
+        assertTrue(report.getResult().hasErrors());
+        assertEquals(0, report.getPartitionCount());
+    }
+}